@@ -44,6 +44,9 @@ import org.apache.hadoop.classification.InterfaceStability;
  * else append to an existing file.</li>
  * <li> CREATE|OVERWRITE - to create a file if it does not exist, 
  * else overwrite an existing file.</li>
+ * <li> LAZY_PERSIST - may be combined with the above to allow the file
+ * system to buffer newly written data in memory and persist it to disk
+ * asynchronously.</li>
  * </ol>
  * 
  * Following combination is not valid and will result in 
@@ -71,7 +74,15 @@ public enum CreateFlag {
   /**
    * Append to a file. See javadoc for more description.
    */
-  APPEND((short) 0x04);
+  APPEND((short) 0x04),
+
+  /**
+   * Allow the data to be buffered in memory and persisted asynchronously.
+   * Recently written data may be lost if the nodes holding it fail before
+   * it is persisted, so this is only suitable for short-lived or
+   * reproducible data. File systems that do not support it ignore it.
+   */
+  LAZY_PERSIST((short) 0x10);
 
   private final short mode;
 
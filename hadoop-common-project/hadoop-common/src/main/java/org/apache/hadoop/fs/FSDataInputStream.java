@@ -18,6 +18,8 @@
 package org.apache.hadoop.fs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
@@ -27,7 +29,8 @@ import org.apache.hadoop.classification.InterfaceStability;
 @InterfaceAudience.Public
 @InterfaceStability.Stable
 public class FSDataInputStream extends DataInputStream
-    implements Seekable, PositionedReadable, Closeable {
+    implements Seekable, PositionedReadable, Closeable, ByteBufferReadable,
+    VectoredReadable {
 
   public FSDataInputStream(InputStream in)
     throws IOException {
@@ -107,6 +110,41 @@ public class FSDataInputStream extends DataInputStream
     return ((Seekable)in).seekToNewSource(targetPos); 
   }
   
+  /**
+   * Read into the given buffer, without a copy through a byte[] if the
+   * wrapped stream supports it.
+   *
+   * @throws UnsupportedOperationException if the wrapped stream does not
+   *         implement {@link ByteBufferReadable}
+   * @see ByteBufferReadable#read(ByteBuffer)
+   */
+  public int read(ByteBuffer buf) throws IOException {
+    if (in instanceof ByteBufferReadable) {
+      return ((ByteBufferReadable)in).read(buf);
+    }
+    throw new UnsupportedOperationException("Byte-buffer read unsupported by "
+        + in.getClass().getName());
+  }
+
+  /**
+   * Read many ranges of the stream. If the wrapped stream does not
+   * implement {@link VectoredReadable}, each range is read with a
+   * positional read.
+   *
+   * @see VectoredReadable#readVectored(List)
+   */
+  public void readVectored(List<FileRange> ranges) throws IOException {
+    if (in instanceof VectoredReadable) {
+      ((VectoredReadable)in).readVectored(ranges);
+      return;
+    }
+    for (FileRange range : ranges) {
+      byte[] data = new byte[range.getLength()];
+      readFully(range.getOffset(), data);
+      range.setData(data);
+    }
+  }
+
   /**
    * Get a reference to the wrapped input stream. Used by unit tests.
    *
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * A range of a file to read with {@link VectoredReadable#readVectored}.
+ * The data of the range is set by the read.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class FileRange {
+  private final long offset;
+  private final int length;
+  private byte[] data;
+
+  /**
+   * @param offset the position in the file of the first byte of the range
+   * @param length the number of bytes of the range
+   */
+  public FileRange(long offset, int length) {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("Invalid range: offset=" + offset
+          + ", length=" + length);
+    }
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /** @return the position in the file following the last byte of the range */
+  public long getEnd() {
+    return offset + length;
+  }
+
+  /** @return the data read, or null if the range was not read yet */
+  public byte[] getData() {
+    return data;
+  }
+
+  /** Set the data read, of the length of the range */
+  public void setData(byte[] data) {
+    if (data.length != length) {
+      throw new IllegalArgumentException("Read " + data.length
+          + " bytes for " + this);
+    }
+    this.data = data;
+  }
+
+  @Override
+  public String toString() {
+    return "range[" + offset + ", " + getEnd() + ")";
+  }
+}
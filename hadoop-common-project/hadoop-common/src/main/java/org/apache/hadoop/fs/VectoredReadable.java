@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Implementers of this interface read many ranges of a file in a single
+ * call. Readers of columnar formats read many small ranges of a file at
+ * once; an implementation may merge the ranges which are close to each
+ * other and read the others concurrently, where a positional read for
+ * each range would pay the cost of a request each time.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public interface VectoredReadable {
+  /**
+   * Read the given ranges of the file, and set the data of each of them.
+   * The ranges may be in any order, and may overlap. This does not change
+   * the current offset of the file, and is thread-safe.
+   * <p>
+   * In the case of an exception, the data of any of the ranges may or may
+   * not have been set.
+   *
+   * @param ranges the ranges to read
+   * @throws java.io.EOFException if a range extends beyond the end of the
+   *         file
+   * @throws IOException if there is some error performing the read
+   */
+  public void readVectored(List<FileRange> ranges) throws IOException;
+}
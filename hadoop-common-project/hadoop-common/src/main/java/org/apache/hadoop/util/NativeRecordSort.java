@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Wrapper around JNI support code to sort serialized records by partition
+ * and key, and to write them out in the IFile record format, natively.
+ * <p>
+ * The records to sort are described by metadata blocks of
+ * {@link #META_INTS} big-endian ints in the buffer of serialized records,
+ * as a map output buffer lays them out: the int offset of the block of the
+ * record at this sort position, the offsets of the value and of the key,
+ * and the partition. The key runs from its offset to the offset of the
+ * value. The sort copies the metadata and the keys of the records into
+ * native memory, about 24 bytes per record plus the keys, and frees them
+ * when it returns.
+ * <p>
+ * The records to write are described by an int array holding
+ * {@link #RECORD_INTS} ints per record: its partition, the offset and
+ * length of its key, the offset and length of its value in the buffer, and
+ * an int carried along with the record. Keys must be contiguous, a value
+ * may wrap around the end of the buffer. The keys are compared in the
+ * order of the registered raw comparator of their type.
+ */
+@InterfaceAudience.LimitedPrivate({"MapReduce"})
+@InterfaceStability.Unstable
+public class NativeRecordSort {
+  private static final Log LOG = LogFactory.getLog(NativeRecordSort.class);
+
+  /** Keys of {@link Text}: a vint length, then the bytes. */
+  public static final int KEY_TEXT = 1;
+  /** Keys of {@link BytesWritable}: a 4 byte length, then the bytes. */
+  public static final int KEY_BYTES = 2;
+  /** Keys of {@link IntWritable} */
+  public static final int KEY_INT = 3;
+  /** Keys of {@link LongWritable} */
+  public static final int KEY_LONG = 4;
+
+  // The ints of a metadata block
+  public static final int META_INDEX = 0;
+  public static final int META_VALSTART = 1;
+  public static final int META_KEYSTART = 2;
+  public static final int META_PARTITION = 3;
+  public static final int META_INTS = 4;
+
+  // The ints describing a record to write
+  public static final int PARTITION = 0;
+  public static final int KEYSTART = 1;
+  public static final int KEYLEN = 2;
+  public static final int VALSTART = 3;
+  public static final int VALLEN = 4;
+  public static final int INDEX = 5;
+  public static final int RECORD_INTS = 6;
+
+  private static final boolean nativeSortLoaded;
+
+  static {
+    boolean loaded = false;
+    if (NativeCodeLoader.isNativeCodeLoaded()) {
+      try {
+        initNative();
+        loaded = true;
+      } catch (UnsatisfiedLinkError e) {
+        // an older libhadoop, without the record sort
+        LOG.warn("The native-hadoop library has no record sort: " + e);
+      }
+    }
+    nativeSortLoaded = loaded;
+  }
+
+  private NativeRecordSort() {}
+
+  /**
+   * Return true if the JNI-based record sort is available.
+   */
+  public static boolean isAvailable() {
+    return nativeSortLoaded;
+  }
+
+  /**
+   * @return the type of the keys of the given class, or -1 if they cannot be
+   *         sorted natively
+   */
+  public static int getKeyType(Class<?> keyClass) {
+    if (keyClass == Text.class) {
+      return KEY_TEXT;
+    } else if (keyClass == BytesWritable.class) {
+      return KEY_BYTES;
+    } else if (keyClass == IntWritable.class) {
+      return KEY_INT;
+    } else if (keyClass == LongWritable.class) {
+      return KEY_LONG;
+    }
+    return -1;
+  }
+
+  /**
+   * Sort records by partition, then by key, by reordering the index ints of
+   * their metadata blocks.
+   * @param buffer the serialized records and their metadata blocks
+   * @param mstart the first sort position
+   * @param mend the sort position after the last one, which may be past
+   *        maxRec when the positions wrap around the end of the buffer
+   * @param maxRec the number of metadata blocks the buffer holds
+   * @param keyType the type of the keys
+   * @throws IllegalArgumentException if a record is out of the buffer
+   */
+  public static void sort(byte[] buffer, int mstart, int mend, int maxRec,
+      int keyType) {
+    if (mstart < 0 || mstart > mend || mend - mstart > maxRec ||
+        maxRec > buffer.length / (META_INTS * 4)) {
+      throw new IllegalArgumentException("Invalid sort positions [" +
+          mstart + ", " + mend + ") of " + maxRec);
+    }
+    nativeSort(buffer, mstart, mend, maxRec, keyType);
+  }
+
+  /**
+   * Write records in the IFile record format: the vint lengths of the key
+   * and of the value, then their bytes. Only whole records are written.
+   * @param buffer the serialized records
+   * @param bufvoid the end of the records in the buffer, where values wrap
+   * @param records the descriptions of the records
+   * @param start the first record to write
+   * @param end the record after the last one to write
+   * @param out the buffer to write the records into
+   * @return the number of records written, shifted left by 32 bits, plus
+   *         the number of bytes written
+   * @throws IllegalArgumentException if a record is out of the buffer
+   */
+  public static long serialize(byte[] buffer, int bufvoid, int[] records,
+      int start, int end, byte[] out) {
+    if (start < 0 || start > end || end > records.length / RECORD_INTS) {
+      throw new IllegalArgumentException("Invalid records [" + start + ", " +
+          end + ")");
+    }
+    if (bufvoid < 0 || bufvoid > buffer.length) {
+      throw new IllegalArgumentException("Invalid buffer end " + bufvoid);
+    }
+    return nativeSerialize(buffer, bufvoid, records, start, end, out);
+  }
+
+  private static native void initNative();
+
+  private static native void nativeSort(byte[] buffer, int mstart,
+      int mend, int maxRec, int keyType);
+
+  private static native long nativeSerialize(byte[] buffer, int bufvoid,
+      int[] records, int start, int end, byte[] out);
+}
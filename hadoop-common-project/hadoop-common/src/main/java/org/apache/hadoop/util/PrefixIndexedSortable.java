@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * An {@link IndexedSortable} whose items carry a fixed-width prefix of their
+ * sort key, so that most of them can be ordered without a call to
+ * {@link IndexedSortable#compare}.
+ *
+ * The prefixes are compared as signed longs, and must be consistent with
+ * {@link IndexedSortable#compare}: if the prefix of i is less than the prefix
+ * of j, then i must compare less than j. Items with equal prefixes are
+ * ordered by {@link IndexedSortable#compare}.
+ */
+@InterfaceAudience.LimitedPrivate({"MapReduce"})
+@InterfaceStability.Unstable
+public interface PrefixIndexedSortable extends IndexedSortable {
+
+  /**
+   * Get the key prefix of the item at the given address. The prefix must
+   * move with the item when it is swapped.
+   */
+  long getPrefix(int i);
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Sorts {@link PrefixIndexedSortable} items by their key prefixes, and orders
+ * the runs of items with equal prefixes with {@link QuickSort}.
+ *
+ * The items are partitioned around the median of three prefixes into those
+ * with a lower, an equal and a higher prefix, so that only the items whose
+ * prefixes tie are compared with {@link IndexedSortable#compare}. Items which
+ * are not {@link PrefixIndexedSortable} are sorted with {@link QuickSort}.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public final class PrefixSorter implements IndexedSorter {
+
+  private static final IndexedSorter ties = new QuickSort();
+  private static final IndexedSorter alt = new HeapSort();
+
+  public PrefixSorter() { }
+
+  /**
+   * Sort the given range of items by prefix, then by comparison.
+   * {@inheritDoc} If the recursion depth falls below
+   * {@link QuickSort#getMaxDepth}, then switch to {@link HeapSort}.
+   */
+  public void sort(IndexedSortable s, int p, int r) {
+    sort(s, p, r, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void sort(final IndexedSortable s, int p, int r,
+      final Progressable rep) {
+    if (!(s instanceof PrefixIndexedSortable)) {
+      ties.sort(s, p, r, rep);
+      return;
+    }
+    sortInternal((PrefixIndexedSortable) s, p, r, rep,
+        QuickSort.getMaxDepth(r - p));
+  }
+
+  private static int compare(PrefixIndexedSortable s, int i, int j) {
+    final long pi = s.getPrefix(i);
+    final long pj = s.getPrefix(j);
+    if (pi != pj) {
+      return pi < pj ? -1 : 1;
+    }
+    return s.compare(i, j);
+  }
+
+  private static long median(long a, long b, long c) {
+    if (a < b) {
+      return b < c ? b : (a < c ? c : a);
+    }
+    return a < c ? a : (b < c ? c : b);
+  }
+
+  private static void sortInternal(final PrefixIndexedSortable s, int p,
+      int r, final Progressable rep, int depth) {
+    if (null != rep) {
+      rep.progress();
+    }
+    while (true) {
+      if (r - p < 13) {
+        for (int i = p; i < r; ++i) {
+          for (int j = i; j > p && compare(s, j - 1, j) > 0; --j) {
+            s.swap(j, j - 1);
+          }
+        }
+        return;
+      }
+      if (--depth < 0) {
+        // give up
+        alt.sort(s, p, r, rep);
+        return;
+      }
+
+      final long pivot = median(s.getPrefix(p), s.getPrefix((p + r) >>> 1),
+          s.getPrefix(r - 1));
+
+      // Divide into [p, lt) < pivot, [lt, gt) == pivot, [gt, r) > pivot
+      int lt = p;
+      int gt = r;
+      int i = p;
+      while (i < gt) {
+        final long pi = s.getPrefix(i);
+        if (pi < pivot) {
+          if (lt != i) {
+            s.swap(lt, i);
+          }
+          ++lt;
+          ++i;
+        } else if (pi > pivot) {
+          s.swap(i, --gt);
+        } else {
+          ++i;
+        }
+      }
+      if (gt - lt > 1) {
+        ties.sort(s, lt, gt, rep);
+      }
+
+      // Conquer
+      // Recurse on smaller interval first to keep stack shallow
+      if (lt - p < r - gt) {
+        sortInternal(s, p, lt, rep, depth);
+        p = gt;
+      } else {
+        sortInternal(s, gt, r, rep, depth);
+        r = lt;
+      }
+    }
+  }
+
+}
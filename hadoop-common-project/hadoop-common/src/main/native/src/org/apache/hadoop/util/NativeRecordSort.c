@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// get the autoconf settings
+#include "config.h"
+
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "org_apache_hadoop.h"
+#include "org_apache_hadoop_util_NativeRecordSort.h"
+#include "gcc_optimizations.h"
+
+#define KEY_TEXT org_apache_hadoop_util_NativeRecordSort_KEY_TEXT
+#define KEY_BYTES org_apache_hadoop_util_NativeRecordSort_KEY_BYTES
+#define KEY_INT org_apache_hadoop_util_NativeRecordSort_KEY_INT
+#define KEY_LONG org_apache_hadoop_util_NativeRecordSort_KEY_LONG
+
+#define META_INDEX org_apache_hadoop_util_NativeRecordSort_META_INDEX
+#define META_VALSTART org_apache_hadoop_util_NativeRecordSort_META_VALSTART
+#define META_KEYSTART org_apache_hadoop_util_NativeRecordSort_META_KEYSTART
+#define META_PARTITION org_apache_hadoop_util_NativeRecordSort_META_PARTITION
+#define META_INTS org_apache_hadoop_util_NativeRecordSort_META_INTS
+#define META_SIZE (META_INTS * 4)
+
+#define KEYSTART org_apache_hadoop_util_NativeRecordSort_KEYSTART
+#define KEYLEN org_apache_hadoop_util_NativeRecordSort_KEYLEN
+#define VALSTART org_apache_hadoop_util_NativeRecordSort_VALSTART
+#define VALLEN org_apache_hadoop_util_NativeRecordSort_VALLEN
+#define RECORD_INTS org_apache_hadoop_util_NativeRecordSort_RECORD_INTS
+
+// runs sorted by insertion before they are merged
+#define INSERTION_RUN 16
+
+// a record to sort, with its key copied out of the Java heap
+typedef struct {
+  jint partition;
+  jint keylen;
+  jint kvoff;       // the int offset of its metadata block
+  size_t key;       // the offset of its key in the copied keys
+} sort_record;
+
+typedef struct {
+  const uint8_t *keys;
+  const sort_record *records;
+  int key_type;
+} sort_context;
+
+static inline uint32_t read_be32(const uint8_t *p) {
+  return ((uint32_t)p[0] << 24) | ((uint32_t)p[1] << 16) |
+         ((uint32_t)p[2] << 8) | (uint32_t)p[3];
+}
+
+static inline uint64_t read_be64(const uint8_t *p) {
+  return ((uint64_t)read_be32(p) << 32) | read_be32(p + 4);
+}
+
+static inline void write_be32(uint8_t *p, uint32_t v) {
+  p[0] = (uint8_t)(v >> 24);
+  p[1] = (uint8_t)(v >> 16);
+  p[2] = (uint8_t)(v >> 8);
+  p[3] = (uint8_t)v;
+}
+
+// the size of a vint from its first byte, as WritableUtils.decodeVIntSize
+static inline int vint_size(int8_t first) {
+  if (first >= -112) {
+    return 1;
+  } else if (first < -120) {
+    return -119 - first;
+  }
+  return -111 - first;
+}
+
+// unsigned lexicographic order, as WritableComparator.compareBytes
+static inline int compare_bytes(const uint8_t *b1, int l1,
+    const uint8_t *b2, int l2) {
+  int ret = memcmp(b1, b2, l1 < l2 ? l1 : l2);
+  return ret != 0 ? ret : l1 - l2;
+}
+
+static int compare_records(const sort_context *ctx, jint i, jint j) {
+  const sort_record *ri = ctx->records + i;
+  const sort_record *rj = ctx->records + j;
+  if (ri->partition != rj->partition) {
+    return ri->partition < rj->partition ? -1 : 1;
+  }
+  const uint8_t *ki = ctx->keys + ri->key;
+  const uint8_t *kj = ctx->keys + rj->key;
+  switch (ctx->key_type) {
+    case KEY_TEXT: {
+      int ni = vint_size((int8_t)ki[0]);
+      int nj = vint_size((int8_t)kj[0]);
+      return compare_bytes(ki + ni, ri->keylen - ni, kj + nj, rj->keylen - nj);
+    }
+    case KEY_BYTES:
+      return compare_bytes(ki + 4, ri->keylen - 4, kj + 4, rj->keylen - 4);
+    case KEY_INT: {
+      int32_t a = (int32_t)read_be32(ki);
+      int32_t b = (int32_t)read_be32(kj);
+      return a < b ? -1 : (a == b ? 0 : 1);
+    }
+    default: {
+      int64_t a = (int64_t)read_be64(ki);
+      int64_t b = (int64_t)read_be64(kj);
+      return a < b ? -1 : (a == b ? 0 : 1);
+    }
+  }
+}
+
+// is a key long enough for its type?
+static int check_key(int key_type, const uint8_t *key, jint keylen) {
+  switch (key_type) {
+    case KEY_TEXT:
+      return keylen >= 1 && vint_size((int8_t)key[0]) <= keylen;
+    case KEY_BYTES:
+    case KEY_INT:
+      return keylen >= 4;
+    default:
+      return keylen >= 8;
+  }
+}
+
+/**
+ * Stable sort of the indices of the records: insertion sort of short runs,
+ * then bottom up merges between idx and tmp.
+ * @return the array holding the sorted indices
+ */
+static jint *merge_sort(const sort_context *ctx, jint *idx, jint *tmp,
+    jint count) {
+  jint lo, i, j;
+  for (lo = 0; lo < count; lo += INSERTION_RUN) {
+    jint hi = count - lo < INSERTION_RUN ? count : lo + INSERTION_RUN;
+    for (i = lo + 1; i < hi; i++) {
+      jint x = idx[i];
+      for (j = i; j > lo && compare_records(ctx, idx[j - 1], x) > 0; j--) {
+        idx[j] = idx[j - 1];
+      }
+      idx[j] = x;
+    }
+  }
+  int64_t width;
+  for (width = INSERTION_RUN; width < count; width *= 2) {
+    for (lo = 0; lo < count; lo += 2 * width) {
+      jint mid = lo + width < count ? lo + width : count;
+      jint hi = lo + 2 * width < count ? lo + 2 * width : count;
+      jint a = lo, b = mid, k = lo;
+      while (a < mid && b < hi) {
+        tmp[k++] = compare_records(ctx, idx[b], idx[a]) < 0
+          ? idx[b++] : idx[a++];
+      }
+      while (a < mid) tmp[k++] = idx[a++];
+      while (b < hi) tmp[k++] = idx[b++];
+    }
+    jint *swap = idx;
+    idx = tmp;
+    tmp = swap;
+  }
+  return idx;
+}
+
+// the size of a vint, as WritableUtils.getVIntSize, for a length
+static inline int vint_encoded_size(jint value) {
+  if (value <= 127) {
+    return 1;
+  }
+  int size = 1;
+  while (value != 0) {
+    value >>= 8;
+    size++;
+  }
+  return size;
+}
+
+// write a vint, as WritableUtils.writeVInt, for a length
+static inline int write_vint(uint8_t *out, jint value) {
+  if (value <= 127) {
+    out[0] = (uint8_t)value;
+    return 1;
+  }
+  int size = vint_encoded_size(value);
+  int len = size - 1;
+  out[0] = (uint8_t)(int8_t)(-112 - len);
+  int i;
+  for (i = 1; i <= len; i++) {
+    out[i] = (uint8_t)(value >> ((len - i) * 8));
+  }
+  return size;
+}
+
+/**
+ * Copy the metadata blocks of the positions [first, first + count) modulo
+ * max_rec between the Java buffer and meta, in at most two parts.
+ */
+static void copy_meta(JNIEnv *env, jbyteArray j_buffer, uint8_t *meta,
+    jint first, jint count, jint max_rec, int to_java) {
+  jint head = max_rec - first < count ? max_rec - first : count;
+  if (to_java) {
+    (*env)->SetByteArrayRegion(env, j_buffer, first * META_SIZE,
+        head * META_SIZE, (jbyte *)meta);
+    (*env)->SetByteArrayRegion(env, j_buffer, 0, (count - head) * META_SIZE,
+        (jbyte *)meta + (size_t)head * META_SIZE);
+  } else {
+    (*env)->GetByteArrayRegion(env, j_buffer, first * META_SIZE,
+        head * META_SIZE, (jbyte *)meta);
+    (*env)->GetByteArrayRegion(env, j_buffer, 0, (count - head) * META_SIZE,
+        (jbyte *)meta + (size_t)head * META_SIZE);
+  }
+}
+
+JNIEXPORT void JNICALL Java_org_apache_hadoop_util_NativeRecordSort_initNative
+  (JNIEnv *env, jclass clazz)
+{
+  // nothing to initialize: linking this proves the library has the sort
+}
+
+/**
+ * The records and their keys are copied into native memory, so that no
+ * critical section holds the garbage collection while the records sort.
+ */
+JNIEXPORT void JNICALL Java_org_apache_hadoop_util_NativeRecordSort_nativeSort
+  (JNIEnv *env, jclass clazz,
+    jbyteArray j_buffer, jint mstart, jint mend, jint max_rec, jint key_type)
+{
+  if (unlikely(!j_buffer)) {
+    THROW(env, "java/lang/NullPointerException", "buffer must not be null");
+    return;
+  }
+  if (unlikely(key_type < KEY_TEXT || key_type > KEY_LONG)) {
+    THROW(env, "java/lang/IllegalArgumentException", "Invalid key type");
+    return;
+  }
+  jsize buf_len = (*env)->GetArrayLength(env, j_buffer);
+  jint count = mend - mstart;
+  if (unlikely(mstart < 0 || count < 0 || max_rec < 0 || count > max_rec ||
+      (int64_t)max_rec * META_SIZE > buf_len)) {
+    THROW(env, "java/lang/IllegalArgumentException",
+      "Invalid metadata positions");
+    return;
+  }
+  if (count < 2) {
+    return;
+  }
+  const jint first = mstart % max_rec;
+
+  uint8_t *meta = malloc((size_t)count * META_SIZE);
+  sort_record *records = malloc(sizeof(sort_record) * (size_t)count);
+  jint *idx = malloc(sizeof(jint) * (size_t)count);
+  jint *tmp = malloc(sizeof(jint) * (size_t)count);
+  uint8_t *keys = NULL;
+  const char *error = NULL;
+  if (unlikely(!meta || !records || !idx || !tmp)) {
+    goto oom;
+  }
+  copy_meta(env, j_buffer, meta, first, count, max_rec, 0);
+
+  // describe the records of the positions, and size their keys
+  size_t keys_len = 0;
+  jint i;
+  for (i = 0; i < count; i++) {
+    jint kvoff = (jint)read_be32(meta + (size_t)i * META_SIZE +
+      META_INDEX * 4);
+    jint block = kvoff / META_INTS;
+    jint local = (block - first + max_rec) % max_rec;
+    if (unlikely(kvoff < 0 || kvoff % META_INTS != 0 || block >= max_rec ||
+        local >= count)) {
+      error = "A metadata index is out of the sorted positions";
+      goto done;
+    }
+    const uint8_t *m = meta + (size_t)local * META_SIZE;
+    jint keystart = (jint)read_be32(m + META_KEYSTART * 4);
+    jint keylen = (jint)read_be32(m + META_VALSTART * 4) - keystart;
+    if (unlikely(keystart < 0 || keylen < 0 ||
+        (int64_t)keystart + keylen > buf_len)) {
+      error = "A key is out of the buffer";
+      goto done;
+    }
+    records[i].partition = (jint)read_be32(m + META_PARTITION * 4);
+    records[i].keylen = keylen;
+    records[i].kvoff = kvoff;
+    records[i].key = keys_len;
+    keys_len += (size_t)keylen;
+    idx[i] = i;
+  }
+
+  keys = malloc(keys_len > 0 ? keys_len : 1);
+  if (unlikely(!keys)) {
+    goto oom;
+  }
+  for (i = 0; i < count; i++) {
+    const uint8_t *m = meta + (size_t)(((records[i].kvoff / META_INTS) -
+      first + max_rec) % max_rec) * META_SIZE;
+    (*env)->GetByteArrayRegion(env, j_buffer,
+        (jint)read_be32(m + META_KEYSTART * 4), records[i].keylen,
+        (jbyte *)keys + records[i].key);
+    if (unlikely(!check_key(key_type, keys + records[i].key,
+        records[i].keylen))) {
+      error = "A key is too short for its type";
+      goto done;
+    }
+  }
+
+  sort_context ctx;
+  ctx.keys = keys;
+  ctx.records = records;
+  ctx.key_type = key_type;
+  jint *order = merge_sort(&ctx, idx, tmp, count);
+  for (i = 0; i < count; i++) {
+    write_be32(meta + (size_t)i * META_SIZE + META_INDEX * 4,
+        (uint32_t)records[order[i]].kvoff);
+  }
+  copy_meta(env, j_buffer, meta, first, count, max_rec, 1);
+  goto done;
+
+oom:
+  THROW(env, "java/lang/OutOfMemoryError",
+    "Unable to allocate the records to sort");
+done:
+  free(keys);
+  free(tmp);
+  free(idx);
+  free(records);
+  free(meta);
+  if (unlikely(error != NULL)) {
+    THROW(env, "java/lang/IllegalArgumentException", error);
+  }
+}
+
+/**
+ * The records are copied into a native buffer, then into the output array,
+ * without any critical section.
+ */
+JNIEXPORT jlong JNICALL Java_org_apache_hadoop_util_NativeRecordSort_nativeSerialize
+  (JNIEnv *env, jclass clazz,
+    jbyteArray j_buffer, jint bufvoid, jintArray j_records,
+    jint start, jint end, jbyteArray j_out)
+{
+  if (unlikely(!j_buffer || !j_records || !j_out)) {
+    THROW(env, "java/lang/NullPointerException",
+      "buffers and records must not be null");
+    return 0;
+  }
+  jsize out_len = (*env)->GetArrayLength(env, j_out);
+  if (start >= end) {
+    return 0;
+  }
+
+  jint *records = malloc(sizeof(jint) * RECORD_INTS * (size_t)(end - start));
+  uint8_t *out = malloc(out_len > 0 ? (size_t)out_len : 1);
+  if (unlikely(!records || !out)) {
+    free(records);
+    free(out);
+    THROW(env, "java/lang/OutOfMemoryError",
+      "Unable to allocate the records to serialize");
+    return 0;
+  }
+  (*env)->GetIntArrayRegion(env, j_records, start * RECORD_INTS,
+      (end - start) * RECORD_INTS, records);
+
+  int valid = 1;
+  jint pos = 0;
+  jint r;
+  for (r = start; r < end; r++) {
+    const jint *rec = records + (size_t)(r - start) * RECORD_INTS;
+    jint keystart = rec[KEYSTART], keylen = rec[KEYLEN];
+    jint valstart = rec[VALSTART], vallen = rec[VALLEN];
+    if (unlikely(keystart < 0 || keylen < 0 ||
+        (int64_t)keystart + keylen > bufvoid ||
+        valstart < 0 || vallen < 0 || valstart > bufvoid ||
+        vallen > bufvoid)) {
+      valid = 0;
+      break;
+    }
+    int64_t size = (int64_t)vint_encoded_size(keylen) +
+      vint_encoded_size(vallen) + keylen + vallen;
+    if (pos + size > out_len) {
+      break;
+    }
+    pos += write_vint(out + pos, keylen);
+    pos += write_vint(out + pos, vallen);
+    (*env)->GetByteArrayRegion(env, j_buffer, keystart, keylen,
+        (jbyte *)out + pos);
+    pos += keylen;
+    if ((int64_t)valstart + vallen > bufvoid) {
+      // the value wraps around the end of the buffer
+      jint tail = bufvoid - valstart;
+      (*env)->GetByteArrayRegion(env, j_buffer, valstart, tail,
+          (jbyte *)out + pos);
+      (*env)->GetByteArrayRegion(env, j_buffer, 0, vallen - tail,
+          (jbyte *)out + pos + tail);
+    } else {
+      (*env)->GetByteArrayRegion(env, j_buffer, valstart, vallen,
+          (jbyte *)out + pos);
+    }
+    pos += vallen;
+  }
+
+  if (likely(valid)) {
+    (*env)->SetByteArrayRegion(env, j_out, 0, pos, (jbyte *)out);
+  }
+  free(records);
+  free(out);
+  if (unlikely(!valid)) {
+    THROW(env, "java/lang/IllegalArgumentException",
+      "A record is out of the buffer");
+    return 0;
+  }
+  return ((jlong)(r - start) << 32) | pos;
+}
+
+/**
+ * vim: sw=2: ts=2: et:
+ */
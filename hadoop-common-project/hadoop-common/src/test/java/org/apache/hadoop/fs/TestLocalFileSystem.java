@@ -21,6 +21,8 @@ import org.apache.hadoop.conf.Configuration;
 import static org.apache.hadoop.fs.FileSystemTestHelper.*;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -233,4 +235,40 @@ public class TestLocalFileSystem {
     assertTrue("Did not delete file", fs.delete(file1));
     assertTrue("Did not delete non-empty dir", fs.delete(dir1));
   }
+
+  /** Test the vectored read fallback on a stream without its own */
+  @Test
+  public void testReadVectored() throws IOException {
+    Path file = new Path(TEST_ROOT_DIR, "vectored");
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    FSDataOutputStream out = fileSys.create(file);
+    out.write(data);
+    out.close();
+
+    List<FileRange> ranges = Arrays.asList(new FileRange(5000, 100),
+        new FileRange(0, 10), new FileRange(4990, 20),
+        new FileRange(9999, 1), new FileRange(3, 0));
+    FSDataInputStream in = fileSys.open(file);
+    try {
+      in.readVectored(ranges);
+      for (FileRange range : ranges) {
+        assertArrayEquals(range.toString(),
+            Arrays.copyOfRange(data, (int) range.getOffset(),
+                (int) range.getEnd()), range.getData());
+      }
+      assertEquals(0, in.getPos());
+
+      try {
+        in.readVectored(Arrays.asList(new FileRange(9990, 20)));
+        fail("Read beyond the end of the file");
+      } catch (EOFException e) {
+        // Expected
+      }
+    } finally {
+      in.close();
+    }
+  }
 }
@@ -0,0 +1,303 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that {@link NativeRecordSort} sorts records in the order of the raw
+ * comparators of their keys, and writes them in the IFile record format.
+ */
+public class TestNativeRecordSort {
+  private static final Log LOG =
+    LogFactory.getLog(TestNativeRecordSort.class);
+  private static final int RECORDS = 20000;
+  private static final int PARTITIONS = 7;
+
+  private final Random r = new Random(0xCAFEL);
+
+  @Before
+  public void checkLoaded() {
+    assumeTrue(NativeRecordSort.isAvailable());
+  }
+
+  private static final int META_SIZE = NativeRecordSort.META_INTS * 4;
+
+  /**
+   * Serialized records, and their descriptions. The metadata blocks of the
+   * records wrap around the end of the buffer: the first are at its end,
+   * the last at its start, before the records.
+   */
+  private static class Records {
+    final byte[] buffer;
+    final int[] records;
+    final int mstart;
+    final int maxRec;
+
+    Records(byte[] buffer, int[] records) {
+      this(buffer, records, 0, 0);
+    }
+
+    Records(byte[] buffer, int[] records, int mstart, int maxRec) {
+      this.buffer = buffer;
+      this.records = records;
+      this.mstart = mstart;
+      this.maxRec = maxRec;
+    }
+  }
+
+  private Writable randomKey(Class<? extends Writable> keyClass) {
+    if (keyClass == Text.class) {
+      StringBuilder s = new StringBuilder();
+      for (int i = r.nextInt(20); i > 0; --i) {
+        // include multi-byte characters, and long keys now and then
+        s.append((char) (r.nextBoolean() ? 'a' + r.nextInt(4)
+                                         : 0xe0 + r.nextInt(0x200)));
+      }
+      if (r.nextInt(100) == 0) {
+        for (int i = 0; i < 300; ++i) {
+          s.append('z');
+        }
+      }
+      return new Text(s.toString());
+    } else if (keyClass == BytesWritable.class) {
+      byte[] b = new byte[r.nextInt(12)];
+      for (int i = 0; i < b.length; ++i) {
+        b[i] = (byte) (r.nextInt(4) - 2);
+      }
+      return new BytesWritable(b);
+    } else if (keyClass == IntWritable.class) {
+      return new IntWritable(r.nextInt(1000) - 500);
+    }
+    return new LongWritable(r.nextBoolean() ? r.nextLong()
+                                            : r.nextInt(1000) - 500);
+  }
+
+  private Records createRecords(Class<? extends Writable> keyClass)
+      throws IOException {
+    final int head = RECORDS / 2;
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.write(new byte[head * META_SIZE]);
+    int[] records = new int[RECORDS * NativeRecordSort.RECORD_INTS];
+    for (int i = 0; i < RECORDS; ++i) {
+      int rec = i * NativeRecordSort.RECORD_INTS;
+      records[rec + NativeRecordSort.PARTITION] = r.nextInt(PARTITIONS);
+      records[rec + NativeRecordSort.KEYSTART] = out.getLength();
+      randomKey(keyClass).write(out);
+      records[rec + NativeRecordSort.KEYLEN] =
+        out.getLength() - records[rec + NativeRecordSort.KEYSTART];
+      records[rec + NativeRecordSort.VALSTART] = out.getLength();
+      byte[] value = new byte[r.nextInt(200)];
+      r.nextBytes(value);
+      out.write(value);
+      records[rec + NativeRecordSort.VALLEN] = value.length;
+      records[rec + NativeRecordSort.INDEX] = i;
+    }
+    out.write(new byte[(META_SIZE - out.getLength() % META_SIZE) % META_SIZE +
+        (RECORDS - head) * META_SIZE]);
+    byte[] buffer = Arrays.copyOf(out.getData(), out.getLength());
+
+    final int maxRec = buffer.length / META_SIZE;
+    final int mstart = maxRec - (RECORDS - head);
+    IntBuffer meta = ByteBuffer.wrap(buffer).asIntBuffer();
+    for (int i = 0; i < RECORDS; ++i) {
+      int kvoff = ((mstart + i) % maxRec) * NativeRecordSort.META_INTS;
+      int rec = i * NativeRecordSort.RECORD_INTS;
+      meta.put(kvoff + NativeRecordSort.META_INDEX, kvoff);
+      meta.put(kvoff + NativeRecordSort.META_KEYSTART,
+          records[rec + NativeRecordSort.KEYSTART]);
+      meta.put(kvoff + NativeRecordSort.META_VALSTART,
+          records[rec + NativeRecordSort.VALSTART]);
+      meta.put(kvoff + NativeRecordSort.META_PARTITION,
+          records[rec + NativeRecordSort.PARTITION]);
+    }
+    return new Records(buffer, records, mstart, maxRec);
+  }
+
+  private void checkSort(Class<? extends Writable> keyClass)
+      throws IOException {
+    Records recs = createRecords(keyClass);
+    long start = System.nanoTime();
+    NativeRecordSort.sort(recs.buffer, recs.mstart, recs.mstart + RECORDS,
+        recs.maxRec, NativeRecordSort.getKeyType(keyClass));
+    LOG.info("Sorted " + RECORDS + " " + keyClass.getSimpleName() +
+        " keys in " + (System.nanoTime() - start) / 1000 + " us");
+
+    WritableComparator comparator = WritableComparator.get(
+        keyClass.asSubclass(org.apache.hadoop.io.WritableComparable.class));
+    IntBuffer meta = ByteBuffer.wrap(recs.buffer).asIntBuffer();
+    final int n = NativeRecordSort.RECORD_INTS;
+    int[] sorted = new int[RECORDS * n];
+    boolean[] seen = new boolean[RECORDS];
+    for (int i = 0; i < RECORDS; ++i) {
+      // each position refers to the block of one of the records
+      int kvoff = meta.get(((recs.mstart + i) % recs.maxRec) *
+          NativeRecordSort.META_INTS + NativeRecordSort.META_INDEX);
+      int index = (kvoff / NativeRecordSort.META_INTS - recs.mstart +
+          recs.maxRec) % recs.maxRec;
+      assertTrue(!seen[index]);
+      seen[index] = true;
+      System.arraycopy(recs.records, index * n, sorted, i * n, n);
+      if (i == 0) {
+        continue;
+      }
+      int p = (i - 1) * n;
+      int q = i * n;
+      int cmp = sorted[p + NativeRecordSort.PARTITION] -
+        sorted[q + NativeRecordSort.PARTITION];
+      if (cmp == 0) {
+        cmp = comparator.compare(recs.buffer,
+            sorted[p + NativeRecordSort.KEYSTART],
+            sorted[p + NativeRecordSort.KEYLEN], recs.buffer,
+            sorted[q + NativeRecordSort.KEYSTART],
+            sorted[q + NativeRecordSort.KEYLEN]);
+      }
+      assertTrue("Records " + (i - 1) + " and " + i + " out of order",
+          cmp <= 0);
+    }
+    checkSerialize(new Records(recs.buffer, sorted), recs.buffer.length);
+  }
+
+  /**
+   * Serialize the records a few at a time, and check them against the
+   * records read back.
+   */
+  private static void checkSerialize(Records recs, int bufvoid)
+      throws IOException {
+    final int count = recs.records.length / NativeRecordSort.RECORD_INTS;
+    DataOutputBuffer serialized = new DataOutputBuffer();
+    byte[] out = new byte[512];
+    int next = 0;
+    while (next < count) {
+      long written = NativeRecordSort.serialize(recs.buffer, bufvoid,
+          recs.records, next, count, out);
+      int records = (int) (written >>> 32);
+      if (records == 0) {
+        out = new byte[out.length * 2];
+        continue;
+      }
+      serialized.write(out, 0, (int) written);
+      next += records;
+    }
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(serialized.getData(), serialized.getLength());
+    for (int i = 0; i < count; ++i) {
+      int rec = i * NativeRecordSort.RECORD_INTS;
+      int keylen = WritableUtils.readVInt(in);
+      int vallen = WritableUtils.readVInt(in);
+      assertEquals(recs.records[rec + NativeRecordSort.KEYLEN], keylen);
+      assertEquals(recs.records[rec + NativeRecordSort.VALLEN], vallen);
+      byte[] key = new byte[keylen];
+      in.readFully(key);
+      int keystart = recs.records[rec + NativeRecordSort.KEYSTART];
+      assertArrayEquals(
+          Arrays.copyOfRange(recs.buffer, keystart, keystart + keylen), key);
+      byte[] value = new byte[vallen];
+      in.readFully(value);
+      byte[] expected = new byte[vallen];
+      int valstart = recs.records[rec + NativeRecordSort.VALSTART];
+      for (int j = 0; j < vallen; ++j) {
+        expected[j] = recs.buffer[(valstart + j) % bufvoid];
+      }
+      assertArrayEquals(expected, value);
+    }
+    assertEquals(serialized.getLength(), in.getPosition());
+  }
+
+  @Test
+  public void testText() throws IOException {
+    checkSort(Text.class);
+  }
+
+  @Test
+  public void testBytesWritable() throws IOException {
+    checkSort(BytesWritable.class);
+  }
+
+  @Test
+  public void testIntWritable() throws IOException {
+    checkSort(IntWritable.class);
+  }
+
+  @Test
+  public void testLongWritable() throws IOException {
+    checkSort(LongWritable.class);
+  }
+
+  /** A value wrapping around the end of the buffer is written whole. */
+  @Test
+  public void testWrappedValue() throws IOException {
+    byte[] buffer = new byte[64];
+    for (int i = 0; i < buffer.length; ++i) {
+      buffer[i] = (byte) i;
+    }
+    // a key at 8, and a 12 byte value from 40 wrapping to the start of a
+    // buffer ending at 48
+    int[] records = new int[NativeRecordSort.RECORD_INTS];
+    records[NativeRecordSort.KEYSTART] = 8;
+    records[NativeRecordSort.KEYLEN] = 4;
+    records[NativeRecordSort.VALSTART] = 40;
+    records[NativeRecordSort.VALLEN] = 12;
+    checkSerialize(new Records(buffer, records), 48);
+  }
+
+  @Test
+  public void testUnsupported() {
+    assertEquals(-1, NativeRecordSort.getKeyType(Writable.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyOutOfBuffer() {
+    // the blocks of two records at the end of the buffer, the key of the
+    // first running past it
+    byte[] buffer = new byte[64];
+    IntBuffer meta = ByteBuffer.wrap(buffer).asIntBuffer();
+    for (int kvoff = 8; kvoff < 16; kvoff += NativeRecordSort.META_INTS) {
+      meta.put(kvoff + NativeRecordSort.META_INDEX, kvoff);
+      meta.put(kvoff + NativeRecordSort.META_KEYSTART, 0);
+      meta.put(kvoff + NativeRecordSort.META_VALSTART, 8);
+    }
+    meta.put(8 + NativeRecordSort.META_KEYSTART, 60);
+    meta.put(8 + NativeRecordSort.META_VALSTART, 68);
+    NativeRecordSort.sort(buffer, 2, 4, 4, NativeRecordSort.KEY_LONG);
+  }
+}
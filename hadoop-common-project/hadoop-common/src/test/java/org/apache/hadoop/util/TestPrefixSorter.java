@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.junit.Test;
+
+/**
+ * Test {@link PrefixSorter}, and compare its speed with {@link QuickSort} on
+ * serialized {@link Text} keys.
+ */
+public class TestPrefixSorter {
+  private static final Log LOG = LogFactory.getLog(TestPrefixSorter.class);
+
+  /**
+   * Serialized Text keys, sorted through an index as the map output buffer
+   * does, with the first eight bytes of each key as its prefix.
+   */
+  private static class TextSortable implements PrefixIndexedSortable {
+    private final WritableComparator comparator =
+        WritableComparator.get(Text.class);
+    private final String[] keys;
+    private final int[] indices;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] prefixes;
+    private final byte[] bytes;
+    private long comparisons = 0;
+
+    TextSortable(String[] keys) throws IOException {
+      this.keys = keys;
+      indices = new int[keys.length];
+      offsets = new int[keys.length];
+      lengths = new int[keys.length];
+      prefixes = new long[keys.length];
+      DataOutputBuffer dob = new DataOutputBuffer();
+      Text t = new Text();
+      for (int i = 0; i < keys.length; ++i) {
+        indices[i] = i;
+        offsets[i] = dob.getLength();
+        t.set(keys[i]);
+        t.write(dob);
+        lengths[i] = dob.getLength() - offsets[i];
+      }
+      bytes = dob.getData();
+      for (int i = 0; i < keys.length; ++i) {
+        prefixes[i] = prefix(bytes, offsets[i], lengths[i]);
+      }
+    }
+
+    /** The first eight bytes of the key, unsigned */
+    private static long prefix(byte[] b, int s, int l) {
+      final int n = WritableUtils.decodeVIntSize(b[s]);
+      long prefix = 0;
+      for (int i = 0; i < 8; ++i) {
+        prefix <<= 8;
+        if (n + i < l) {
+          prefix |= b[s + n + i] & 0xFF;
+        }
+      }
+      return prefix ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public long getPrefix(int i) {
+      return prefixes[i];
+    }
+
+    @Override
+    public int compare(int i, int j) {
+      ++comparisons;
+      final int ii = indices[i];
+      final int ij = indices[j];
+      return comparator.compare(bytes, offsets[ii], lengths[ii],
+          bytes, offsets[ij], lengths[ij]);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+      int tmp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = tmp;
+      long ptmp = prefixes[i];
+      prefixes[i] = prefixes[j];
+      prefixes[j] = ptmp;
+    }
+
+    long getComparisons() {
+      return comparisons;
+    }
+
+    String[] getSorted() throws IOException {
+      String[] sorted = new String[indices.length];
+      DataInputBuffer dib = new DataInputBuffer();
+      Text t = new Text();
+      for (int i = 0; i < sorted.length; ++i) {
+        dib.reset(bytes, offsets[indices[i]], lengths[indices[i]]);
+        t.readFields(dib);
+        sorted[i] = t.toString();
+      }
+      return sorted;
+    }
+
+    String[] getExpected() {
+      String[] expected = keys.clone();
+      Arrays.sort(expected);
+      return expected;
+    }
+  }
+
+  /**
+   * Random keys of letters, a given fraction of which share a common
+   * prefix longer than eight bytes.
+   */
+  private static String[] randomKeys(Random r, int n, float sharedFraction) {
+    String[] keys = new String[n];
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; ++i) {
+      sb.setLength(0);
+      if (r.nextFloat() < sharedFraction) {
+        sb.append("sharedprefix");
+      }
+      int len = r.nextInt(20);
+      for (int j = 0; j < len; ++j) {
+        sb.append((char) ('a' + r.nextInt(26)));
+      }
+      keys[i] = sb.toString();
+    }
+    return keys;
+  }
+
+  private static void checkSort(IndexedSorter sorter, String[] keys)
+      throws IOException {
+    TextSortable s = new TextSortable(keys);
+    sorter.sort(s, 0, keys.length);
+    assertArrayEquals(s.getExpected(), s.getSorted());
+  }
+
+  @Test
+  public void testSort() throws Exception {
+    final long seed = new Random().nextLong();
+    LOG.info("seed: " + seed);
+    Random r = new Random(seed);
+    PrefixSorter sorter = new PrefixSorter();
+    checkSort(sorter, new String[] { "a" });
+    checkSort(sorter, randomKeys(r, 10, 0.5f));
+    checkSort(sorter, randomKeys(r, 10000, 0.0f));
+    checkSort(sorter, randomKeys(r, 10000, 0.5f));
+    checkSort(sorter, randomKeys(r, 10000, 1.0f));
+
+    // all equal, then sorted and reverse sorted keys
+    String[] keys = new String[1000];
+    Arrays.fill(keys, "samekey");
+    checkSort(sorter, keys);
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = String.format("%09d", i);
+    }
+    checkSort(sorter, keys);
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = String.format("%09d", keys.length - i);
+    }
+    checkSort(sorter, keys);
+  }
+
+  @Test
+  public void testNotPrefixSortable() throws Exception {
+    // plain sortables are sorted with QuickSort
+    final int[] values = { 5, 3, 9, 1, 7, 3 };
+    new PrefixSorter().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return values[i] - values[j];
+      }
+      @Override
+      public void swap(int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+      }
+    }, 0, values.length);
+    assertArrayEquals(new int[] { 1, 3, 3, 5, 7, 9 }, values);
+  }
+
+  /** @return the time taken to sort the keys, in milliseconds */
+  private static long timeSort(IndexedSorter sorter, TextSortable s) {
+    long start = System.currentTimeMillis();
+    sorter.sort(s, 0, s.keys.length);
+    return System.currentTimeMillis() - start;
+  }
+
+  @Test
+  public void testSpeed() throws Exception {
+    final int n = 500000;
+    String[] keys = randomKeys(new Random(0xDEADBEEFL), n, 0.1f);
+    // warm up
+    timeSort(new QuickSort(), new TextSortable(keys));
+    timeSort(new PrefixSorter(), new TextSortable(keys));
+
+    TextSortable quick = new TextSortable(keys);
+    long quickTime = timeSort(new QuickSort(), quick);
+    TextSortable prefix = new TextSortable(keys);
+    long prefixTime = timeSort(new PrefixSorter(), prefix);
+    assertArrayEquals(quick.getSorted(), prefix.getSorted());
+    LOG.info("Sort of " + n + " Text keys: QuickSort took " + quickTime
+        + "ms with " + quick.getComparisons() + " comparisons, PrefixSorter "
+        + prefixTime + "ms with " + prefix.getComparisons() + " comparisons");
+    // only the keys sharing a prefix of eight bytes are compared
+    assertTrue(prefix.getComparisons() * 10 < quick.getComparisons());
+    assertTrue("PrefixSorter took " + prefixTime + "ms, QuickSort "
+        + quickTime + "ms", prefixTime < quickTime);
+  }
+}
@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.RpcServerException;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Renews with a single call to a namenode the leases of the clients of all
+ * the {@link LeaseRenewer}s of the namenode, instead of a thread and a call
+ * for each user.
+ * <p>
+ * A single thread per namenode goes through the renewers whose renewal is
+ * due, the least recently renewed first, and renews the leases of their
+ * clients with {@link DFSClient#renewLeases(String[])}, through one of the
+ * clients. A call holds at most the maximum batch size of client names,
+ * except for the clients of a single renewer which are never split; the
+ * renewers left out are renewed by the next call, without waiting, and
+ * come first since they were renewed the least recently.
+ * <p>
+ * A renewer is dropped once it has no running client or its grace period
+ * is over, and the thread exits when no renewer is left.
+ * <p>
+ * The call is made with the credentials of the user of the client it goes
+ * through, for the clients of all the users. The namenode does not check
+ * that the user renewing a lease holds it, with {@link DFSClient#renewLease()}
+ * either, so the call allows nothing more than one call per user would;
+ * but the leases of a user are then renewed as long as any user of this
+ * process can reach the namenode. If the call fails, timing out included,
+ * the leases are renewed user by user, each with its own credentials, so
+ * that a user whose credentials are no longer valid does not stop the
+ * renewal of the others. If the call of a user times out, its clients are
+ * renewed one by one, and only the clients whose own call times out are
+ * aborted. The call goes through a client of a user whose last call did
+ * not fail, preferably the most recently renewed. A namenode which does not
+ * know the call has the leases renewed client by client, as without
+ * batching, until the thread exits.
+ */
+class BatchedLeaseRenewer {
+  static final Log LOG = LogFactory.getLog(BatchedLeaseRenewer.class);
+
+  /** The batched renewer of each namenode */
+  private static final Map<String, BatchedLeaseRenewer> INSTANCES =
+      new HashMap<String, BatchedLeaseRenewer>();
+
+  /** Get the batched renewer of a namenode */
+  static synchronized BatchedLeaseRenewer getInstance(final String authority,
+      final int maxBatchSize) {
+    BatchedLeaseRenewer r = INSTANCES.get(authority);
+    if (r == null) {
+      r = new BatchedLeaseRenewer(authority, maxBatchSize);
+      INSTANCES.put(authority, r);
+    }
+    return r;
+  }
+
+  private final String authority;
+  private final int maxBatchSize;
+  /** The renewers whose leases are renewed */
+  private final List<LeaseRenewer> renewers = new ArrayList<LeaseRenewer>();
+  private Daemon daemon = null;
+  /** False once the namenode rejected the batched call as unknown */
+  private volatile boolean batchSupported = true;
+  /** Held while renewing, so that a removed renewer is no longer renewed */
+  private final Object renewalLock = new Object();
+  /** The renewers whose last call failed, guarded by the renewal lock */
+  private final Set<LeaseRenewer> failing = new HashSet<LeaseRenewer>();
+
+  private BatchedLeaseRenewer(final String authority, final int maxBatchSize) {
+    this.authority = authority;
+    this.maxBatchSize = Math.max(maxBatchSize, 1);
+  }
+
+  /** Renew the leases of the clients of the given renewer. */
+  synchronized void add(final LeaseRenewer r) {
+    if (!renewers.contains(r)) {
+      r.setLastRenewed(System.currentTimeMillis());
+      renewers.add(r);
+    }
+    if (daemon == null || !daemon.isAlive()) {
+      // the namenode may have been upgraded since the last thread
+      batchSupported = true;
+      daemon = new Daemon(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            BatchedLeaseRenewer.this.run();
+          } catch (InterruptedException e) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug(BatchedLeaseRenewer.this + " is interrupted.", e);
+            }
+          }
+        }
+
+        @Override
+        public String toString() {
+          return String.valueOf(BatchedLeaseRenewer.this);
+        }
+      });
+      daemon.start();
+    }
+  }
+
+  /** Stop renewing the leases of the clients of the given renewer. */
+  void remove(final LeaseRenewer r) {
+    synchronized (renewalLock) {
+      failing.remove(r);
+      synchronized (this) {
+        renewers.remove(r);
+      }
+    }
+  }
+
+  /** Is the thread renewing leases? */
+  synchronized boolean isRunning() {
+    return daemon != null && daemon.isAlive();
+  }
+
+  /** Are the leases of the clients of the given renewer being renewed? */
+  synchronized boolean isRenewing(final LeaseRenewer r) {
+    return daemon != null && daemon.isAlive() && renewers.contains(r);
+  }
+
+  /**
+   * Drop the renewers which are done. The lock of this object is never
+   * held while taking the lock of a renewer, since the renewers call it
+   * with their lock held.
+   * @return the renewers due for renewal, the least recently renewed
+   *         first, or null if the thread should exit
+   */
+  private List<LeaseRenewer> getDueRenewers() {
+    final List<LeaseRenewer> copies;
+    synchronized (this) {
+      if (daemon != Thread.currentThread()) {
+        return null;
+      }
+      copies = new ArrayList<LeaseRenewer>(renewers);
+    }
+    final long now = System.currentTimeMillis();
+    final List<LeaseRenewer> due = new ArrayList<LeaseRenewer>();
+    for (LeaseRenewer r : copies) {
+      if (!r.removeIfDone(this)
+          && now - r.getLastRenewed() >= r.getRenewalTime()) {
+        due.add(r);
+      }
+    }
+    synchronized (this) {
+      if (renewers.isEmpty()) {
+        daemon = null;
+        return null;
+      }
+    }
+    Collections.sort(due, new Comparator<LeaseRenewer>() {
+      @Override
+      public int compare(final LeaseRenewer left, final LeaseRenewer right) {
+        final long l = left.getLastRenewed();
+        final long r = right.getLastRenewed();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    return due;
+  }
+
+  /**
+   * Drop a renewer which is done, called by the thread with the renewal
+   * lock and the renewer lock held.
+   */
+  synchronized void removeDone(final LeaseRenewer r) {
+    failing.remove(r);
+    renewers.remove(r);
+  }
+
+  private long getSleepPeriod() {
+    final List<LeaseRenewer> copies;
+    synchronized (this) {
+      copies = new ArrayList<LeaseRenewer>(renewers);
+    }
+    long sleep = LeaseRenewer.LEASE_RENEWER_SLEEP_DEFAULT;
+    for (LeaseRenewer r : copies) {
+      sleep = Math.min(sleep, r.getSleepPeriod());
+    }
+    return sleep;
+  }
+
+  private void run() throws InterruptedException {
+    while (!Thread.interrupted()) {
+      final boolean more;
+      synchronized (renewalLock) {
+        final List<LeaseRenewer> due = getDueRenewers();
+        if (due == null) {
+          return;
+        }
+        more = renew(due);
+      }
+      if (!more) {
+        Thread.sleep(getSleepPeriod());
+      }
+    }
+  }
+
+  /**
+   * Renew with a single call the leases of the first renewers, or user by
+   * user if the call fails.
+   * @return true if some of the renewers were left for the next call
+   */
+  private boolean renew(final List<LeaseRenewer> due) {
+    final List<String> names = new ArrayList<String>();
+    final Set<String> seen = new HashSet<String>();
+    final List<LeaseRenewer> batch = new ArrayList<LeaseRenewer>();
+    DFSClient caller = null;
+    LeaseRenewer callerRenewer = null;
+    for (LeaseRenewer r : due) {
+      final List<DFSClient> clients = r.getClientsToRenew();
+      if (!batch.isEmpty() && names.size() + clients.size() > maxBatchSize) {
+        break;
+      }
+      batch.add(r);
+      for (DFSClient c : clients) {
+        if (seen.add(c.getClientName())) {
+          names.add(c.getClientName());
+        }
+      }
+      // the last renewers were renewed the most recently
+      if (!clients.isEmpty() && (caller == null || !failing.contains(r))) {
+        caller = clients.get(0);
+        callerRenewer = r;
+      }
+    }
+
+    boolean renewed = false;
+    if (caller != null && batchSupported) {
+      try {
+        caller.renewLeases(names.toArray(new String[names.size()]));
+        failing.remove(callerRenewer);
+        renewed = true;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Leases renewed for " + names.size() + " clients of "
+              + batch.size() + " users by " + this);
+        }
+      } catch (IOException ie) {
+        if (isUnknownMethod(ie)) {
+          batchSupported = false;
+          LOG.info(this + ": the namenode does not support renewing many"
+              + " leases with a single call, renewing them client by client");
+        } else {
+          failing.add(callerRenewer);
+          LOG.warn("Failed to renew the leases of " + names + " with a single"
+              + " call through " + caller.getClientName()
+              + ". Renewing them user by user ...", ie);
+        }
+      }
+    }
+
+    final long now = System.currentTimeMillis();
+    for (LeaseRenewer r : batch) {
+      if (renewed) {
+        r.setLastRenewed(now);
+        continue;
+      }
+      try {
+        r.renew();
+        failing.remove(r);
+        r.setLastRenewed(now);
+      } catch (SocketTimeoutException ie) {
+        LOG.warn("Failed to renew the leases of " + r
+            + ". Renewing them client by client ...", ie);
+        if (renewClientByClient(r)) {
+          failing.remove(r);
+          r.setLastRenewed(now);
+        }
+      } catch (IOException ie) {
+        failing.add(r);
+        LOG.warn("Failed to renew the leases of " + r
+            + ". Will retry shortly ...", ie);
+      }
+    }
+    return batch.size() < due.size();
+  }
+
+  /**
+   * Renew the lease of each client of a renewer with a call of its own, and
+   * abort the clients whose call times out.
+   * @return false if a call failed otherwise, to retry shortly
+   */
+  private boolean renewClientByClient(final LeaseRenewer r) {
+    boolean done = true;
+    for (DFSClient c : r.getClientsToRenew()) {
+      try {
+        c.renewLease();
+      } catch (SocketTimeoutException ie) {
+        LOG.warn("Failed to renew the lease of " + c.getClientName()
+            + ". Aborting ...", ie);
+        c.abort();
+      } catch (IOException ie) {
+        failing.add(r);
+        done = false;
+        LOG.warn("Failed to renew the lease of " + c.getClientName()
+            + ". Will retry shortly ...", ie);
+      }
+    }
+    return done;
+  }
+
+  /** @return true if the namenode does not know the called method */
+  static boolean isUnknownMethod(final IOException e) {
+    if (!(e instanceof RemoteException)) {
+      return false;
+    }
+    final String className = ((RemoteException) e).getClassName();
+    final String message = e.getMessage();
+    return NoSuchMethodException.class.getName().equals(className)
+        || (RpcServerException.class.getName().equals(className)
+            && message != null && message.startsWith("Unknown method"));
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ":" + authority;
+  }
+}
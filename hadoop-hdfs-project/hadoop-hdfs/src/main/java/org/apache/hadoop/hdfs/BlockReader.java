@@ -19,6 +19,7 @@ package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * A BlockReader is responsible for reading a single block
@@ -35,6 +36,14 @@ public interface BlockReader {
    */
   int read(byte[] buf, int off, int len) throws IOException;
 
+  /**
+   * Read up to buf.remaining() bytes into the given buffer, with the
+   * semantics of {@link org.apache.hadoop.fs.ByteBufferReadable#read}.
+   * Readers which receive their data in direct buffers copy it to the
+   * caller's buffer without going through the Java heap.
+   */
+  int read(ByteBuffer buf) throws IOException;
+
   /**
    * Skip the given number of bytes
    */
@@ -331,39 +331,101 @@ class BlockReaderLocal implements BlockReader {
     if (!verifyChecksum) {
       return dataIn.read(buf, off, len);
     } else {
-      int dataRead = -1;
-      if (dataBuff.remaining() == 0) {
-        dataBuff.clear();
-        checksumBuff.clear();
-        dataRead = readIntoBuffer(dataIn, dataBuff);
-        readIntoBuffer(checksumIn, checksumBuff);
-        checksumBuff.flip();
-        dataBuff.flip();
-        checksum.verifyChunkedSums(dataBuff, checksumBuff, filename,
-            this.startOffset);
-      } else {
-        dataRead = dataBuff.remaining();
+      int nRead = prepareDataBuff(len);
+      if (nRead > 0) {
+        dataBuff.get(buf, off, nRead);
       }
-      if (dataRead > 0) {
-        int nRead = Math.min(dataRead - offsetFromChunkBoundary, len);
-        if (offsetFromChunkBoundary > 0) {
-          dataBuff.position(offsetFromChunkBoundary);
-          // Its either end of file or dataRead is greater than the
-          // offsetFromChunkBoundary
-          offsetFromChunkBoundary = 0;
-        }
-        if (nRead > 0) {
-          dataBuff.get(buf, off, nRead);
-          return nRead;
-        } else {
-          return 0;
-        }
-      } else {
-        return -1;
+      return nRead;
+    }
+  }
+
+  /**
+   * Without checksums, the block file is read straight into the buffer.
+   * With checksums, whole chunks are read into the buffer and verified
+   * there when possible, otherwise the data is copied from the verified
+   * chunks buffered by this reader.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("read into buffer of " + buf.remaining() + " bytes");
+    }
+    if (!verifyChecksum) {
+      return dataIn.getChannel().read(buf);
+    }
+    if (dataBuff.remaining() == 0 && offsetFromChunkBoundary == 0
+        && buf.remaining() >= bytesPerChecksum) {
+      return readChunksInto(buf);
+    }
+    int nRead = prepareDataBuff(buf.remaining());
+    if (nRead > 0) {
+      ByteBuffer slice = dataBuff.duplicate();
+      slice.limit(slice.position() + nRead);
+      buf.put(slice);
+      dataBuff.position(slice.position());
+    }
+    return nRead;
+  }
+
+  /**
+   * Read and verify the next chunks into dataBuff if it is empty.
+   * @return the number of bytes which can be read from dataBuff, at most
+   *         len, or -1 at the end of the block
+   */
+  private int prepareDataBuff(int len) throws IOException {
+    int dataRead = -1;
+    if (dataBuff.remaining() == 0) {
+      dataBuff.clear();
+      checksumBuff.clear();
+      dataRead = readIntoBuffer(dataIn, dataBuff);
+      readIntoBuffer(checksumIn, checksumBuff);
+      checksumBuff.flip();
+      dataBuff.flip();
+      checksum.verifyChunkedSums(dataBuff, checksumBuff, filename,
+          this.startOffset);
+    } else {
+      dataRead = dataBuff.remaining();
+    }
+    if (dataRead > 0) {
+      int nRead = Math.min(dataRead - offsetFromChunkBoundary, len);
+      if (offsetFromChunkBoundary > 0) {
+        dataBuff.position(offsetFromChunkBoundary);
+        // Its either end of file or dataRead is greater than the
+        // offsetFromChunkBoundary
+        offsetFromChunkBoundary = 0;
       }
+      return Math.max(nRead, 0);
+    } else {
+      return -1;
     }
   }
 
+  /**
+   * Read whole chunks into the given buffer and verify them there, up to
+   * the number of checksums checksumBuff can hold.
+   * @return the number of bytes read, or -1 at the end of the block
+   */
+  private int readChunksInto(ByteBuffer buf) throws IOException {
+    int chunks = Math.min(buf.remaining() / bytesPerChecksum,
+        checksumBuff.capacity() / checksumSize);
+    ByteBuffer chunkBuf = buf.slice();
+    chunkBuf.limit(chunks * bytesPerChecksum);
+    int dataRead = readIntoBuffer(dataIn, chunkBuf);
+    if (dataRead <= 0) {
+      return -1;
+    }
+    checksumBuff.clear();
+    checksumBuff.limit(
+        ((dataRead - 1) / bytesPerChecksum + 1) * checksumSize);
+    readIntoBuffer(checksumIn, checksumBuff);
+    checksumBuff.flip();
+    chunkBuf.flip();
+    checksum.verifyChunkedSums(chunkBuf, checksumBuff, filename,
+        this.startOffset);
+    buf.position(buf.position() + dataRead);
+    return dataRead;
+  }
+
   @Override
   public synchronized long skip(long n) throws IOException {
     if (LOG.isDebugEnabled()) {
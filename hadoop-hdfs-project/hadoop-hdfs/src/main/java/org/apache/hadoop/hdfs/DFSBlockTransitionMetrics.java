@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Timings of the block transitions of the files written by a client: the
+ * time from the last packet of a block being taken to be sent to the
+ * pipeline of the next block being ready to stream data.
+ * <ul>
+ * <li>blockTransitions: number of transitions from a block to the next</li>
+ * <li>blockTransitionTimeMillis: total time spent in transitions</li>
+ * <li>maxBlockTransitionTimeMillis: longest transition</li>
+ * <li>earlyAllocations: transitions for which the next block was allocated
+ * before the previous one was closed</li>
+ * </ul>
+ */
+@InterfaceAudience.Private
+public class DFSBlockTransitionMetrics {
+  private final AtomicLong blockTransitions = new AtomicLong();
+  private final AtomicLong blockTransitionTimeMillis = new AtomicLong();
+  private final AtomicLong maxBlockTransitionTimeMillis = new AtomicLong();
+  private final AtomicLong earlyAllocations = new AtomicLong();
+
+  void addBlockTransition(long millis, boolean early) {
+    blockTransitions.incrementAndGet();
+    blockTransitionTimeMillis.addAndGet(millis);
+    long max;
+    while ((max = maxBlockTransitionTimeMillis.get()) < millis
+        && !maxBlockTransitionTimeMillis.compareAndSet(max, millis)) {
+    }
+    if (early) {
+      earlyAllocations.incrementAndGet();
+    }
+  }
+
+  public long getBlockTransitions() {
+    return blockTransitions.get();
+  }
+
+  public long getBlockTransitionTimeMillis() {
+    return blockTransitionTimeMillis.get();
+  }
+
+  public long getMaxBlockTransitionTimeMillis() {
+    return maxBlockTransitionTimeMillis.get();
+  }
+
+  public long getEarlyAllocations() {
+    return earlyAllocations.get();
+  }
+}
@@ -35,6 +35,10 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
@@ -103,6 +107,7 @@ import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.SecretManager.InvalidToken;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.security.token.TokenRenewer;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.hdfs.security.token.block.InvalidBlockTokenException;
@@ -137,8 +142,22 @@ public class DFSClient implements java.io.Closeable {
   final int hdfsTimeout;    // timeout value for a DFS operation.
   final LeaseRenewer leaserenewer;
   final SocketCache socketCache;
+  final LocatedBlocksCache locatedBlocksCache;
+  final PacketBufferPool packetBufferPool;
+  final DFSBlockTransitionMetrics blockTransitionMetrics =
+      new DFSBlockTransitionMetrics();
+  final DFSGroupFlushMetrics groupFlushMetrics = new DFSGroupFlushMetrics();
   final Conf dfsClientConf;
 
+  /** Runs the hedged reads of all the clients of this JVM */
+  private static ThreadPoolExecutor hedgedReadThreadPool;
+  private static final DFSHedgedReadMetrics HEDGED_READ_METRICS =
+      new DFSHedgedReadMetrics();
+  private static final DFSLeaseRenewalMetrics LEASE_RENEWAL_METRICS =
+      new DFSLeaseRenewalMetrics();
+  /** Runs the parallel read-ahead of all the clients of this JVM */
+  private static ThreadPoolExecutor readAheadThreadPool;
+
   /**
    * DFSClient configuration 
    */
@@ -149,19 +168,35 @@ public class DFSClient implements java.io.Closeable {
     final int checksumType;
     final int bytesPerChecksum;
     final int writePacketSize;
+    final long writePacketPoolCapacity;
     final int socketTimeout;
     final int socketCacheCapacity;
+    final int socketCacheCapacityPerDatanode;
+    final long socketCacheExpiryMillis;
     /** Wait time window (in msec) if BlockMissingException is caught */
     final int timeWindow;
     final int nCachedConnRetry;
     final int nBlockWriteRetry;
     final int nBlockWriteLocateFollowingRetry;
+    final boolean blockWriteEarlyAllocation;
+    final boolean writeGroupFlush;
+    final boolean leaseRenewerBatch;
+    final int leaseRenewerBatchMaxSize;
     final long defaultBlockSize;
     final long prefetchSize;
     final short defaultReplication;
     final String taskId;
     final FsPermission uMask;
     final boolean useLegacyBlockReader;
+    final int hedgedReadThreadpoolSize;
+    final long hedgedReadThresholdMillis;
+    final int locatedBlocksCacheCapacity;
+    final long locatedBlocksCacheTtlMillis;
+    final int readAheadParallelism;
+    final int readAheadUnitSize;
+    final int readVectoredMergeGap;
+    final int readVectoredMaxMergedSize;
+    final int readVectoredParallelism;
 
     Conf(Configuration conf) {
       maxBlockAcquireFailures = conf.getInt(
@@ -180,6 +215,9 @@ public class DFSClient implements java.io.Closeable {
       /** dfs.write.packet.size is an internal config variable */
       writePacketSize = conf.getInt(DFS_CLIENT_WRITE_PACKET_SIZE_KEY,
           DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT);
+      writePacketPoolCapacity = conf.getLong(
+          DFS_CLIENT_WRITE_PACKET_POOL_CAPACITY_KEY,
+          DFS_CLIENT_WRITE_PACKET_POOL_CAPACITY_DEFAULT);
       defaultBlockSize = conf.getLongBytes(DFS_BLOCK_SIZE_KEY,
           DFS_BLOCK_SIZE_DEFAULT);
       defaultReplication = (short) conf.getInt(
@@ -187,6 +225,12 @@ public class DFSClient implements java.io.Closeable {
       taskId = conf.get("mapreduce.task.attempt.id", "NONMAPREDUCE");
       socketCacheCapacity = conf.getInt(DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY,
           DFS_CLIENT_SOCKET_CACHE_CAPACITY_DEFAULT);
+      socketCacheCapacityPerDatanode = conf.getInt(
+          DFS_CLIENT_SOCKET_CACHE_CAPACITY_PER_DATANODE_KEY,
+          DFS_CLIENT_SOCKET_CACHE_CAPACITY_PER_DATANODE_DEFAULT);
+      socketCacheExpiryMillis = conf.getLong(
+          DFS_CLIENT_SOCKET_CACHE_EXPIRY_MILLIS_KEY,
+          DFS_CLIENT_SOCKET_CACHE_EXPIRY_MILLIS_DEFAULT);
       prefetchSize = conf.getLong(DFS_CLIENT_READ_PREFETCH_SIZE_KEY,
           10 * defaultBlockSize);
       timeWindow = conf
@@ -198,10 +242,48 @@ public class DFSClient implements java.io.Closeable {
       nBlockWriteLocateFollowingRetry = conf
           .getInt(DFS_CLIENT_BLOCK_WRITE_LOCATEFOLLOWINGBLOCK_RETRIES_KEY,
               DFS_CLIENT_BLOCK_WRITE_LOCATEFOLLOWINGBLOCK_RETRIES_DEFAULT);
+      blockWriteEarlyAllocation = conf.getBoolean(
+          DFS_CLIENT_BLOCK_WRITE_EARLY_ALLOCATION_ENABLE_KEY,
+          DFS_CLIENT_BLOCK_WRITE_EARLY_ALLOCATION_ENABLE_DEFAULT);
+      writeGroupFlush = conf.getBoolean(
+          DFS_CLIENT_WRITE_GROUP_FLUSH_ENABLE_KEY,
+          DFS_CLIENT_WRITE_GROUP_FLUSH_ENABLE_DEFAULT);
+      leaseRenewerBatch = conf.getBoolean(
+          DFS_CLIENT_LEASE_RENEWER_BATCH_ENABLE_KEY,
+          DFS_CLIENT_LEASE_RENEWER_BATCH_ENABLE_DEFAULT);
+      leaseRenewerBatchMaxSize = conf.getInt(
+          DFS_CLIENT_LEASE_RENEWER_BATCH_MAX_SIZE_KEY,
+          DFS_CLIENT_LEASE_RENEWER_BATCH_MAX_SIZE_DEFAULT);
       uMask = FsPermission.getUMask(conf);
       useLegacyBlockReader = conf.getBoolean(
           DFS_CLIENT_USE_LEGACY_BLOCKREADER,
           DFS_CLIENT_USE_LEGACY_BLOCKREADER_DEFAULT);
+      hedgedReadThreadpoolSize = conf.getInt(
+          DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY,
+          DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT);
+      hedgedReadThresholdMillis = conf.getLong(
+          DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY,
+          DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT);
+      locatedBlocksCacheCapacity = conf.getInt(
+          DFS_CLIENT_LOCATEDBLOCKS_CACHE_CAPACITY_KEY,
+          DFS_CLIENT_LOCATEDBLOCKS_CACHE_CAPACITY_DEFAULT);
+      locatedBlocksCacheTtlMillis = conf.getLong(
+          DFS_CLIENT_LOCATEDBLOCKS_CACHE_TTL_MILLIS_KEY,
+          DFS_CLIENT_LOCATEDBLOCKS_CACHE_TTL_MILLIS_DEFAULT);
+      readAheadParallelism = conf.getInt(
+          DFS_CLIENT_READAHEAD_PARALLELISM_KEY,
+          DFS_CLIENT_READAHEAD_PARALLELISM_DEFAULT);
+      readAheadUnitSize = conf.getInt(DFS_CLIENT_READAHEAD_UNIT_SIZE_KEY,
+          DFS_CLIENT_READAHEAD_UNIT_SIZE_DEFAULT);
+      readVectoredMergeGap = conf.getInt(
+          DFS_CLIENT_READ_VECTORED_MERGE_GAP_KEY,
+          DFS_CLIENT_READ_VECTORED_MERGE_GAP_DEFAULT);
+      readVectoredMaxMergedSize = conf.getInt(
+          DFS_CLIENT_READ_VECTORED_MAX_MERGED_SIZE_KEY,
+          DFS_CLIENT_READ_VECTORED_MAX_MERGED_SIZE_DEFAULT);
+      readVectoredParallelism = conf.getInt(
+          DFS_CLIENT_READ_VECTORED_PARALLELISM_KEY,
+          DFS_CLIENT_READ_VECTORED_PARALLELISM_DEFAULT);
     }
 
     private int getChecksumType(Configuration conf) {
@@ -289,7 +371,14 @@ public class DFSClient implements java.io.Closeable {
         nameNodeAddr.getHostName() + ":" + nameNodeAddr.getPort();
     this.leaserenewer = LeaseRenewer.getInstance(authority, ugi, this);
     this.clientName = leaserenewer.getClientName(dfsClientConf.taskId);
-    this.socketCache = new SocketCache(dfsClientConf.socketCacheCapacity);
+    this.socketCache = new SocketCache(dfsClientConf.socketCacheCapacity,
+        dfsClientConf.socketCacheCapacityPerDatanode,
+        dfsClientConf.socketCacheExpiryMillis);
+    this.locatedBlocksCache = new LocatedBlocksCache(
+        dfsClientConf.locatedBlocksCacheCapacity,
+        dfsClientConf.locatedBlocksCacheTtlMillis);
+    this.packetBufferPool = new PacketBufferPool(
+        dfsClientConf.writePacketPoolCapacity);
     if (nameNodeAddr != null && rpcNamenode == null) {
       this.namenode = DFSUtil.createNamenode(nameNodeAddr, conf, ugi);
     } else if (nameNodeAddr == null && rpcNamenode != null) {
@@ -307,6 +396,97 @@ public class DFSClient implements java.io.Closeable {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Short circuit read is " + shortCircuitLocalReads);
     }
+    if (dfsClientConf.hedgedReadThreadpoolSize > 0) {
+      initHedgedReadThreadPool(dfsClientConf.hedgedReadThreadpoolSize);
+    }
+  }
+
+  /**
+   * Create the thread pool running the hedged reads, unless a client
+   * already did. If all its threads are busy, the hedged read is run by the
+   * thread of the reader.
+   */
+  private static synchronized void initHedgedReadThreadPool(int num) {
+    if (hedgedReadThreadPool != null) {
+      return;
+    }
+    hedgedReadThreadPool = new ThreadPoolExecutor(1, num, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new Daemon.DaemonFactory(),
+        new ThreadPoolExecutor.CallerRunsPolicy() {
+          @Override
+          public void rejectedExecution(Runnable runnable,
+              ThreadPoolExecutor e) {
+            LOG.info("Execution rejected, executing in current thread");
+            HEDGED_READ_METRICS.incHedgedReadOpsInCurThread();
+            super.rejectedExecution(runnable, e);
+          }
+        });
+    hedgedReadThreadPool.allowCoreThreadTimeOut(true);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Using hedged reads; pool threads=" + num);
+    }
+  }
+
+  /** @return true if positional reads are hedged */
+  boolean isHedgedReadsEnabled() {
+    return dfsClientConf.hedgedReadThreadpoolSize > 0;
+  }
+
+  long getHedgedReadThresholdMillis() {
+    return dfsClientConf.hedgedReadThresholdMillis;
+  }
+
+  static synchronized ThreadPoolExecutor getHedgedReadsThreadPool() {
+    return hedgedReadThreadPool;
+  }
+
+  /** @return the cache of the sockets to the datanodes */
+  public SocketCache getSocketCache() {
+    return socketCache;
+  }
+
+  /** @return the cache of the block locations of the files opened */
+  public LocatedBlocksCache getLocatedBlocksCache() {
+    return locatedBlocksCache;
+  }
+
+  /** @return the pool of the buffers of the packets written */
+  public PacketBufferPool getPacketBufferPool() {
+    return packetBufferPool;
+  }
+
+  /** @return the timings of the block transitions of the files written */
+  public DFSBlockTransitionMetrics getBlockTransitionMetrics() {
+    return blockTransitionMetrics;
+  }
+
+  /** @return the counters of the flushes of the files written */
+  public DFSGroupFlushMetrics getGroupFlushMetrics() {
+    return groupFlushMetrics;
+  }
+
+  /**
+   * @return the pool running the parallel read-ahead. The number of units
+   *         read at the same time is bounded by each stream.
+   */
+  static synchronized ExecutorService getReadAheadThreadPool() {
+    if (readAheadThreadPool == null) {
+      readAheadThreadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+          new Daemon.DaemonFactory());
+    }
+    return readAheadThreadPool;
+  }
+
+  /** @return the counters of the hedged reads of this JVM */
+  public static DFSHedgedReadMetrics getHedgedReadMetrics() {
+    return HEDGED_READ_METRICS;
+  }
+
+  /** @return the counters of the lease renewals of this JVM */
+  public static DFSLeaseRenewalMetrics getLeaseRenewalMetrics() {
+    return LEASE_RENEWAL_METRICS;
   }
 
   /**
@@ -380,11 +560,41 @@ public class DFSClient implements java.io.Closeable {
    **/
   boolean renewLease() throws IOException {
     if (clientRunning && !isFilesBeingWrittenEmpty()) {
-      namenode.renewLease(clientName);
+      try {
+        namenode.renewLease(clientName);
+      } catch (IOException e) {
+        LEASE_RENEWAL_METRICS.incFailedRenewals();
+        throw e;
+      }
+      LEASE_RENEWAL_METRICS.addRenewal(1, false);
       return true;
     }
     return false;
   }
+
+  /**
+   * Renew the leases of the given clients, of any user, with a single call
+   * to the namenode of this client.
+   */
+  void renewLeases(String[] clientNames) throws IOException {
+    try {
+      namenode.renewLeases(clientNames);
+    } catch (IOException e) {
+      LEASE_RENEWAL_METRICS.incFailedRenewals();
+      throw e;
+    }
+    LEASE_RENEWAL_METRICS.addRenewal(clientNames.length, true);
+  }
+
+  /** @return true if the leases are renewed by the batched renewer */
+  boolean isLeaseRenewalBatched() {
+    return dfsClientConf.leaseRenewerBatch;
+  }
+
+  /** @return the largest number of clients renewed with a single call */
+  int getLeaseRenewalMaxBatchSize() {
+    return dfsClientConf.leaseRenewerBatchMaxSize;
+  }
   
   /**
    * Close connections the Namenode.
@@ -448,6 +658,7 @@ public class DFSClient implements java.io.Closeable {
       closeAllFilesBeingWritten(false);
       clientRunning = false;
       leaserenewer.closeClient(this);
+      socketCache.clear();
       // close connections to the namenode
       closeConnectionToNamenode();
     }
@@ -893,6 +1104,7 @@ public class DFSClient implements java.io.Closeable {
     if(LOG.isDebugEnabled()) {
       LOG.debug(src + ": masked=" + masked);
     }
+    locatedBlocksCache.invalidate(src);
     final DFSOutputStream result = new DFSOutputStream(this, src, masked, flag,
         createParent, replication, blockSize, progress, buffersize,
         dfsClientConf.createChecksum());
@@ -942,6 +1154,7 @@ public class DFSClient implements java.io.Closeable {
       DataChecksum checksum = DataChecksum.newDataChecksum(
           dfsClientConf.checksumType,
           bytesPerChecksum);
+      locatedBlocksCache.invalidate(src);
       result = new DFSOutputStream(this, src, absPermission,
           flag, createParent, replication, blockSize, progress, buffersize,
           checksum);
@@ -991,6 +1204,7 @@ public class DFSClient implements java.io.Closeable {
   private DFSOutputStream callAppend(HdfsFileStatus stat, String src,
       int buffersize, Progressable progress) throws IOException {
     LocatedBlock lastBlock = null;
+    locatedBlocksCache.invalidate(src);
     try {
       lastBlock = namenode.append(src, clientName);
     } catch(RemoteException re) {
@@ -1064,6 +1278,8 @@ public class DFSClient implements java.io.Closeable {
   @Deprecated
   public boolean rename(String src, String dst) throws IOException {
     checkOpen();
+    locatedBlocksCache.invalidateTree(src);
+    locatedBlocksCache.invalidateTree(dst);
     try {
       return namenode.rename(src, dst);
     } catch(RemoteException re) {
@@ -1080,6 +1296,10 @@ public class DFSClient implements java.io.Closeable {
    */
   public void concat(String trg, String [] srcs) throws IOException {
     checkOpen();
+    locatedBlocksCache.invalidate(trg);
+    for (String src : srcs) {
+      locatedBlocksCache.invalidate(src);
+    }
     try {
       namenode.concat(trg, srcs);
     } catch(RemoteException re) {
@@ -1094,6 +1314,8 @@ public class DFSClient implements java.io.Closeable {
   public void rename(String src, String dst, Options.Rename... options)
       throws IOException {
     checkOpen();
+    locatedBlocksCache.invalidateTree(src);
+    locatedBlocksCache.invalidateTree(dst);
     try {
       namenode.rename2(src, dst, options);
     } catch(RemoteException re) {
@@ -1114,6 +1336,7 @@ public class DFSClient implements java.io.Closeable {
   @Deprecated
   public boolean delete(String src) throws IOException {
     checkOpen();
+    locatedBlocksCache.invalidateTree(src);
     return namenode.delete(src, true);
   }
 
@@ -1126,6 +1349,7 @@ public class DFSClient implements java.io.Closeable {
    */
   public boolean delete(String src, boolean recursive) throws IOException {
     checkOpen();
+    locatedBlocksCache.invalidateTree(src);
     try {
       return namenode.delete(src, recursive);
     } catch(RemoteException re) {
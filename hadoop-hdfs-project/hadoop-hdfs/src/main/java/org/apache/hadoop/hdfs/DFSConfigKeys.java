@@ -42,12 +42,38 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final String  DFS_CHECKSUM_TYPE_DEFAULT = "CRC32C";
   public static final String  DFS_CLIENT_WRITE_PACKET_SIZE_KEY = "dfs.client-write-packet-size";
   public static final int     DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT = 64*1024;
+  public static final String  DFS_CLIENT_WRITE_PACKET_POOL_CAPACITY_KEY = "dfs.client.write.packet.pool.capacity";
+  public static final long    DFS_CLIENT_WRITE_PACKET_POOL_CAPACITY_DEFAULT = 0;
+  public static final String  DFS_CLIENT_WRITE_GROUP_FLUSH_ENABLE_KEY = "dfs.client.write.group-flush.enable";
+  public static final boolean DFS_CLIENT_WRITE_GROUP_FLUSH_ENABLE_DEFAULT = false;
   public static final String  DFS_CLIENT_WRITE_REPLACE_DATANODE_ON_FAILURE_ENABLE_KEY = "dfs.client.block.write.replace-datanode-on-failure.enable";
   public static final boolean DFS_CLIENT_WRITE_REPLACE_DATANODE_ON_FAILURE_ENABLE_DEFAULT = true;
   public static final String  DFS_CLIENT_WRITE_REPLACE_DATANODE_ON_FAILURE_POLICY_KEY = "dfs.client.block.write.replace-datanode-on-failure.policy";
   public static final String  DFS_CLIENT_WRITE_REPLACE_DATANODE_ON_FAILURE_POLICY_DEFAULT = "DEFAULT";
   public static final String  DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY = "dfs.client.socketcache.capacity";
   public static final int     DFS_CLIENT_SOCKET_CACHE_CAPACITY_DEFAULT = 16;
+  public static final String  DFS_CLIENT_SOCKET_CACHE_CAPACITY_PER_DATANODE_KEY = "dfs.client.socketcache.capacity.per.datanode";
+  public static final int     DFS_CLIENT_SOCKET_CACHE_CAPACITY_PER_DATANODE_DEFAULT = 8;
+  public static final String  DFS_CLIENT_SOCKET_CACHE_EXPIRY_MILLIS_KEY = "dfs.client.socketcache.expiry.millis";
+  public static final long    DFS_CLIENT_SOCKET_CACHE_EXPIRY_MILLIS_DEFAULT = 750;
+  public static final String  DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY = "dfs.client.hedged.read.threadpool.size";
+  public static final int     DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT = 0;
+  public static final String  DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY = "dfs.client.hedged.read.threshold.millis";
+  public static final long    DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT = 500;
+  public static final String  DFS_CLIENT_LOCATEDBLOCKS_CACHE_CAPACITY_KEY = "dfs.client.locatedblocks.cache.capacity";
+  public static final int     DFS_CLIENT_LOCATEDBLOCKS_CACHE_CAPACITY_DEFAULT = 0;
+  public static final String  DFS_CLIENT_LOCATEDBLOCKS_CACHE_TTL_MILLIS_KEY = "dfs.client.locatedblocks.cache.ttl.millis";
+  public static final long    DFS_CLIENT_LOCATEDBLOCKS_CACHE_TTL_MILLIS_DEFAULT = 60 * 1000;
+  public static final String  DFS_CLIENT_READAHEAD_PARALLELISM_KEY = "dfs.client.readahead.parallelism";
+  public static final int     DFS_CLIENT_READAHEAD_PARALLELISM_DEFAULT = 0;
+  public static final String  DFS_CLIENT_READAHEAD_UNIT_SIZE_KEY = "dfs.client.readahead.unit.size";
+  public static final int     DFS_CLIENT_READAHEAD_UNIT_SIZE_DEFAULT = 4 * 1024 * 1024;
+  public static final String  DFS_CLIENT_READ_VECTORED_MERGE_GAP_KEY = "dfs.client.read.vectored.merge.gap";
+  public static final int     DFS_CLIENT_READ_VECTORED_MERGE_GAP_DEFAULT = 64 * 1024;
+  public static final String  DFS_CLIENT_READ_VECTORED_MAX_MERGED_SIZE_KEY = "dfs.client.read.vectored.max.merged.size";
+  public static final int     DFS_CLIENT_READ_VECTORED_MAX_MERGED_SIZE_DEFAULT = 1024 * 1024;
+  public static final String  DFS_CLIENT_READ_VECTORED_PARALLELISM_KEY = "dfs.client.read.vectored.parallelism";
+  public static final int     DFS_CLIENT_READ_VECTORED_PARALLELISM_DEFAULT = 4;
   
   public static final String  DFS_NAMENODE_BACKUP_ADDRESS_KEY = "dfs.namenode.backup.address";
   public static final String  DFS_NAMENODE_BACKUP_ADDRESS_DEFAULT = "localhost:50100";
@@ -58,6 +84,10 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final long    DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_DEFAULT = 1024*1024;
   public static final String  DFS_DATANODE_READAHEAD_BYTES_KEY = "dfs.datanode.readahead.bytes";
   public static final long    DFS_DATANODE_READAHEAD_BYTES_DEFAULT = 0;
+  public static final String  DFS_DATANODE_READAHEAD_ADAPTIVE_KEY = "dfs.datanode.readahead.adaptive";
+  public static final boolean DFS_DATANODE_READAHEAD_ADAPTIVE_DEFAULT = false;
+  public static final String  DFS_DATANODE_READAHEAD_MAX_BYTES_KEY = "dfs.datanode.readahead.max.bytes";
+  public static final long    DFS_DATANODE_READAHEAD_MAX_BYTES_DEFAULT = 16 * 1024 * 1024;
   public static final String  DFS_DATANODE_DROP_CACHE_BEHIND_WRITES_KEY = "dfs.datanode.drop.cache.behind.writes";
   public static final boolean DFS_DATANODE_DROP_CACHE_BEHIND_WRITES_DEFAULT = false;
   public static final String  DFS_DATANODE_SYNC_BEHIND_WRITES_KEY = "dfs.datanode.sync.behind.writes";
@@ -185,6 +215,12 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_CLIENT_BLOCK_WRITE_LOCATEFOLLOWINGBLOCK_RETRIES_DEFAULT = 5;
   public static final String  DFS_CLIENT_BLOCK_WRITE_RETRIES_KEY = "dfs.client.block.write.retries";
   public static final int     DFS_CLIENT_BLOCK_WRITE_RETRIES_DEFAULT = 3;
+  public static final String  DFS_CLIENT_BLOCK_WRITE_EARLY_ALLOCATION_ENABLE_KEY = "dfs.client.block.write.early-allocation.enable";
+  public static final boolean DFS_CLIENT_BLOCK_WRITE_EARLY_ALLOCATION_ENABLE_DEFAULT = false;
+  public static final String  DFS_CLIENT_LEASE_RENEWER_BATCH_ENABLE_KEY = "dfs.client.lease.renewer.batch.enable";
+  public static final boolean DFS_CLIENT_LEASE_RENEWER_BATCH_ENABLE_DEFAULT = false;
+  public static final String  DFS_CLIENT_LEASE_RENEWER_BATCH_MAX_SIZE_KEY = "dfs.client.lease.renewer.batch.max.size";
+  public static final int     DFS_CLIENT_LEASE_RENEWER_BATCH_MAX_SIZE_DEFAULT = 1000;
   public static final String  DFS_CLIENT_MAX_BLOCK_ACQUIRE_FAILURES_KEY = "dfs.client.max.block.acquire.failures";
   public static final int     DFS_CLIENT_MAX_BLOCK_ACQUIRE_FAILURES_DEFAULT = 3;
   public static final String  DFS_CLIENT_USE_LEGACY_BLOCKREADER = "dfs.client.use.legacy.blockreader";
@@ -199,6 +235,16 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_DATANODE_DIRECTORYSCAN_INTERVAL_DEFAULT = 21600;
   public static final String  DFS_DATANODE_DIRECTORYSCAN_THREADS_KEY = "dfs.datanode.directoryscan.threads";
   public static final int     DFS_DATANODE_DIRECTORYSCAN_THREADS_DEFAULT = 1;
+  public static final String  DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY = "dfs.datanode.directoryscan.incremental";
+  public static final boolean DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_DEFAULT = false;
+  public static final String  DFS_DATANODE_DIRECTORYSCAN_THROTTLE_KEY = "dfs.datanode.directoryscan.throttle.files.per.sec";
+  public static final long    DFS_DATANODE_DIRECTORYSCAN_THROTTLE_DEFAULT = 0;
+  public static final String  DFS_DATANODE_REPLICA_CACHE_ENABLED_KEY = "dfs.datanode.replica.cache.enabled";
+  public static final boolean DFS_DATANODE_REPLICA_CACHE_ENABLED_DEFAULT = false;
+  public static final String  DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_KEY = "dfs.datanode.replica.cache.verify.delay";
+  public static final int     DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_DEFAULT = 60;
+  public static final String  DFS_DATANODE_LAZY_PERSIST_MEMORY_KEY = "dfs.datanode.lazy-persist.memory";
+  public static final long    DFS_DATANODE_LAZY_PERSIST_MEMORY_DEFAULT = 0;
   public static final String  DFS_DATANODE_DNS_INTERFACE_KEY = "dfs.datanode.dns.interface";
   public static final String  DFS_DATANODE_DNS_INTERFACE_DEFAULT = "default";
   public static final String  DFS_DATANODE_DNS_NAMESERVER_KEY = "dfs.datanode.dns.nameserver";
@@ -215,6 +261,10 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_DATANODE_NUMBLOCKS_DEFAULT = 64;
   public static final String  DFS_DATANODE_SCAN_PERIOD_HOURS_KEY = "dfs.datanode.scan.period.hours";
   public static final int     DFS_DATANODE_SCAN_PERIOD_HOURS_DEFAULT = 0;
+  public static final String  DFS_DATANODE_SCAN_MAX_BANDWIDTHPERSEC_KEY = "dfs.datanode.scan.max.bandwidthPerSec";
+  public static final long    DFS_DATANODE_SCAN_MAX_BANDWIDTHPERSEC_DEFAULT = 8 * 1024 * 1024;
+  public static final String  DFS_DATANODE_SCAN_LOAD_ADAPTIVE_KEY = "dfs.datanode.scan.load-adaptive";
+  public static final boolean DFS_DATANODE_SCAN_LOAD_ADAPTIVE_DEFAULT = false;
   public static final String  DFS_DATANODE_SIMULATEDDATASTORAGE_KEY = "dfs.datanode.simulateddatastorage";
   public static final boolean DFS_DATANODE_SIMULATEDDATASTORAGE_DEFAULT = false;
   public static final String  DFS_DATANODE_SIMULATEDDATASTORAGE_CAPACITY_KEY = "dfs.datanode.simulateddatastorage.capacity";
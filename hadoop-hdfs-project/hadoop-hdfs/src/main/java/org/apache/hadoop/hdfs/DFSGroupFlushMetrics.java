@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Counters of the flushes of the streams written by a client. With group
+ * flush enabled, the concurrent callers of hflush and hsync on a stream
+ * share a flush, otherwise each call is a group of its own.
+ * <ul>
+ * <li>flushCalls: number of calls to hflush and hsync</li>
+ * <li>flushGroups: number of flushes sent to the pipeline for them</li>
+ * <li>maxFlushGroupSize: largest number of calls sharing a flush</li>
+ * </ul>
+ * The distributions of the group sizes and of the latencies of the calls
+ * are kept in histograms with power of two buckets, so their percentiles
+ * are upper bounds, within a factor of two of the exact values.
+ */
+@InterfaceAudience.Private
+public class DFSGroupFlushMetrics {
+  /** A histogram of positive values, with power of two buckets */
+  private static class Histogram {
+    private final AtomicLongArray counts = new AtomicLongArray(64);
+    private final AtomicLong total = new AtomicLong();
+
+    void add(long value) {
+      counts.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+      total.incrementAndGet();
+    }
+
+    /** @return the upper bound of the bucket holding the percentile */
+    long getPercentile(double percentile) {
+      long rank = (long) Math.ceil(total.get() * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank && seen > 0) {
+          return i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+      }
+      return 0;
+    }
+  }
+
+  private final AtomicLong flushCalls = new AtomicLong();
+  private final AtomicLong flushGroups = new AtomicLong();
+  private final AtomicLong maxFlushGroupSize = new AtomicLong();
+  private final Histogram groupSizes = new Histogram();
+  private final Histogram latenciesMicros = new Histogram();
+
+  void addFlushGroup(long size) {
+    flushGroups.incrementAndGet();
+    groupSizes.add(size);
+    long max;
+    while ((max = maxFlushGroupSize.get()) < size
+        && !maxFlushGroupSize.compareAndSet(max, size)) {
+    }
+  }
+
+  void addFlushCall(long latencyMicros) {
+    flushCalls.incrementAndGet();
+    latenciesMicros.add(Math.max(latencyMicros, 0));
+  }
+
+  public long getFlushCalls() {
+    return flushCalls.get();
+  }
+
+  public long getFlushGroups() {
+    return flushGroups.get();
+  }
+
+  public long getMaxFlushGroupSize() {
+    return maxFlushGroupSize.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the number of calls sharing a flush at the percentile
+   */
+  public long getFlushGroupSizePercentile(double percentile) {
+    return groupSizes.getPercentile(percentile);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the latency of the calls at the percentile, in microseconds
+   */
+  public long getFlushLatencyPercentileMicros(double percentile) {
+    return latenciesMicros.getPercentile(percentile);
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Counters of the hedged positional reads done by the clients of this JVM.
+ * <ul>
+ * <li>hedgedReadOps: reads for which a second, hedged read was started
+ * because the first datanode did not answer in time</li>
+ * <li>hedgedReadOpsWin: hedged reads which completed before the first
+ * read</li>
+ * <li>hedgedReadOpsInCurThread: hedged reads run in the thread of the
+ * reader, because the hedged read thread pool was exhausted</li>
+ * </ul>
+ */
+@InterfaceAudience.Private
+public class DFSHedgedReadMetrics {
+  private final AtomicLong hedgedReadOps = new AtomicLong();
+  private final AtomicLong hedgedReadOpsWin = new AtomicLong();
+  private final AtomicLong hedgedReadOpsInCurThread = new AtomicLong();
+
+  void incHedgedReadOps() {
+    hedgedReadOps.incrementAndGet();
+  }
+
+  void incHedgedReadOpsWin() {
+    hedgedReadOpsWin.incrementAndGet();
+  }
+
+  void incHedgedReadOpsInCurThread() {
+    hedgedReadOpsInCurThread.incrementAndGet();
+  }
+
+  public long getHedgedReadOps() {
+    return hedgedReadOps.get();
+  }
+
+  public long getHedgedReadWins() {
+    return hedgedReadOpsWin.get();
+  }
+
+  public long getHedgedReadOpsInCurThread() {
+    return hedgedReadOpsInCurThread.get();
+  }
+}
@@ -17,11 +17,16 @@
  */
 package org.apache.hadoop.hdfs;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,12 +34,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileRange;
 import org.apache.hadoop.fs.UnresolvedLinkException;
+import org.apache.hadoop.fs.VectoredReadable;
 import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
@@ -54,7 +68,8 @@ import org.apache.hadoop.security.token.Token;
  * negotiation of the namenode and various datanodes as necessary.
  ****************************************************************/
 @InterfaceAudience.Private
-public class DFSInputStream extends FSInputStream {
+public class DFSInputStream extends FSInputStream
+    implements ByteBufferReadable, VectoredReadable {
   private final SocketCache socketCache;
 
   private final DFSClient dfsClient;
@@ -70,6 +85,8 @@ public class DFSInputStream extends FSInputStream {
   private LocatedBlock currentLocatedBlock = null;
   private long pos = 0;
   private long blockEnd = -1;
+  /** Reads ahead of the sequential reads, if enabled */
+  private ParallelReadAhead readAhead = null;
 
   /**
    * This variable tracks the number of failures since the start of the
@@ -97,6 +114,8 @@ public class DFSInputStream extends FSInputStream {
 
   void addToDeadNodes(DatanodeInfo dnInfo) {
     deadNodes.put(dnInfo, dnInfo);
+    // the cached locations may be stale, the next open fetches them again
+    dfsClient.locatedBlocksCache.invalidate(src);
   }
   
   DFSInputStream(DFSClient dfsClient, String src, int buffersize, boolean verifyChecksum
@@ -109,14 +128,29 @@ public class DFSInputStream extends FSInputStream {
     prefetchSize = dfsClient.getConf().prefetchSize;
     timeWindow = dfsClient.getConf().timeWindow;
     nCachedConnRetry = dfsClient.getConf().nCachedConnRetry;
-    openInfo();
+    openInfo(true);
   }
 
   /**
    * Grab the open-file info from namenode
    */
   synchronized void openInfo() throws IOException, UnresolvedLinkException {
-    LocatedBlocks newInfo = DFSClient.callGetBlockLocations(dfsClient.namenode, src, 0, prefetchSize);
+    openInfo(false);
+  }
+
+  /**
+   * Grab the open-file info from the located blocks cache of the client
+   * if allowed and possible, otherwise from the namenode.
+   */
+  private synchronized void openInfo(boolean useCache)
+      throws IOException, UnresolvedLinkException {
+    LocatedBlocks newInfo = useCache
+        ? dfsClient.locatedBlocksCache.get(src) : null;
+    if (newInfo == null) {
+      newInfo = DFSClient.callGetBlockLocations(dfsClient.namenode, src, 0,
+          prefetchSize);
+      dfsClient.locatedBlocksCache.put(src, newInfo);
+    }
     if (DFSClient.LOG.isDebugEnabled()) {
       DFSClient.LOG.debug("newInfo = " + newInfo);
     }
@@ -456,6 +490,10 @@ public class DFSInputStream extends FSInputStream {
       closeBlockReader(blockReader);
       blockReader = null;
     }
+    if (readAhead != null) {
+      readAhead.close();
+      readAhead = null;
+    }
     super.close();
     closed = true;
   }
@@ -466,12 +504,83 @@ public class DFSInputStream extends FSInputStream {
     return ( ret <= 0 ) ? -1 : (oneByteBuf[0] & 0xff);
   }
 
+  /**
+   * Reads from a block reader into the buffer of a read call, so that the
+   * reads into a byte[] and into a ByteBuffer share the retry logic.
+   */
+  private interface ReaderStrategy {
+    /**
+     * Read up to len bytes at the given offset of the buffer.
+     * @return the number of bytes read, or -1 at the end of the block
+     */
+    int doRead(BlockReader blockReader, int off, int len)
+        throws IOException;
+
+    /** Copy data which was already read to the given offset of the buffer */
+    void copyFrom(byte[] src, int srcOff, int off, int len);
+  }
+
+  private static class ByteArrayStrategy implements ReaderStrategy {
+    private final byte[] buf;
+
+    ByteArrayStrategy(byte[] buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int doRead(BlockReader blockReader, int off, int len)
+        throws IOException {
+      return blockReader.read(buf, off, len);
+    }
+
+    @Override
+    public void copyFrom(byte[] src, int srcOff, int off, int len) {
+      System.arraycopy(src, srcOff, buf, off, len);
+    }
+  }
+
+  /**
+   * Reads into a ByteBuffer, from its position. The offset is ignored. A
+   * failed read restores the position, so that it can be retried.
+   */
+  private static class ByteBufferStrategy implements ReaderStrategy {
+    private final ByteBuffer buf;
+
+    ByteBufferStrategy(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int doRead(BlockReader blockReader, int off, int len)
+        throws IOException {
+      int oldpos = buf.position();
+      int oldlimit = buf.limit();
+      boolean success = false;
+      try {
+        buf.limit(oldpos + len);
+        int ret = blockReader.read(buf);
+        success = true;
+        return ret;
+      } finally {
+        if (!success) {
+          buf.position(oldpos);
+        }
+        buf.limit(oldlimit);
+      }
+    }
+
+    @Override
+    public void copyFrom(byte[] src, int srcOff, int off, int len) {
+      buf.put(src, srcOff, len);
+    }
+  }
+
   /* This is a used by regular read() and handles ChecksumExceptions.
    * name readBuffer() is chosen to imply similarity to readBuffer() in
    * ChecksumFileSystem
    */ 
-  private synchronized int readBuffer(byte buf[], int off, int len,
-      Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap)
+  private synchronized int readBuffer(ReaderStrategy reader, int off,
+      int len, Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap)
       throws IOException {
     IOException ioe;
     
@@ -486,7 +595,7 @@ public class DFSInputStream extends FSInputStream {
     while (true) {
       // retry as many times as seekToNewSource allows.
       try {
-        return blockReader.read(buf, off, len);
+        return reader.doRead(blockReader, off, len);
       } catch ( ChecksumException ce ) {
         DFSClient.LOG.warn("Found Checksum error for "
             + getCurrentBlock() + " from " + currentNode.getName()
@@ -527,6 +636,21 @@ public class DFSInputStream extends FSInputStream {
    */
   @Override
   public synchronized int read(byte buf[], int off, int len) throws IOException {
+    return readWithStrategy(new ByteArrayStrategy(buf), off, len);
+  }
+
+  /**
+   * Read into the given buffer. The data is moved from the block reader to
+   * the buffer without a copy through a byte[], unless the block reader
+   * only supports byte[] reads.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    return readWithStrategy(new ByteBufferStrategy(buf), 0, buf.remaining());
+  }
+
+  private synchronized int readWithStrategy(ReaderStrategy strategy, int off,
+      int len) throws IOException {
     dfsClient.checkOpen();
     if (closed) {
       throw new IOException("Stream closed");
@@ -535,6 +659,20 @@ public class DFSInputStream extends FSInputStream {
       = new HashMap<ExtendedBlock, Set<DatanodeInfo>>();
     failures = 0;
     if (pos < getFileLength()) {
+      ParallelReadAhead.Unit unit = getReadAheadUnit();
+      if (unit != null) {
+        int result = (int) Math.min(len,
+            unit.getOffset() + unit.getLength() - pos);
+        strategy.copyFrom(unit.getData(), (int) (pos - unit.getOffset()),
+            off, result);
+        pos += result;
+        // the block reader is not at the read position anymore
+        blockEnd = -1;
+        if (dfsClient.stats != null) {
+          dfsClient.stats.incrementBytesRead(result);
+        }
+        return result;
+      }
       int retries = 2;
       while (retries > 0) {
         try {
@@ -542,7 +680,7 @@ public class DFSInputStream extends FSInputStream {
             currentNode = blockSeekTo(pos);
           }
           int realLen = (int) Math.min(len, (blockEnd - pos + 1L));
-          int result = readBuffer(buf, off, realLen, corruptedBlockMap);
+          int result = readBuffer(strategy, off, realLen, corruptedBlockMap);
           
           if (result >= 0) {
             pos += result;
@@ -576,21 +714,84 @@ public class DFSInputStream extends FSInputStream {
     return -1;
   }
 
+  /**
+   * @return the unit read ahead holding the read position, or null if the
+   *         read ahead is disabled or failed to read it
+   */
+  private synchronized ParallelReadAhead.Unit getReadAheadUnit()
+      throws IOException {
+    int parallelism = dfsClient.getConf().readAheadParallelism;
+    if (parallelism <= 0 || locatedBlocks.isUnderConstruction()) {
+      return null;
+    }
+    if (readAhead == null) {
+      readAhead = new ParallelReadAhead(new ReadAheadSource(),
+          DFSClient.getReadAheadThreadPool(), parallelism,
+          dfsClient.getConf().readAheadUnitSize,
+          locatedBlocks.getFileLength());
+    }
+    return readAhead.getUnit(pos);
+  }
+
+  /**
+   * Reads the units of the parallel read-ahead. The reads run in other
+   * threads while the reader holds the lock of the stream, so they must
+   * not take it.
+   */
+  private class ReadAheadSource implements ParallelReadAhead.Source {
+    @Override
+    public LocatedBlock getBlockAt(long offset) throws IOException {
+      return DFSInputStream.this.getBlockAt(offset, false);
+    }
+
+    @Override
+    public void readRange(LocatedBlock block, int replica, long offsetInBlock,
+        byte[] buf, int len) throws IOException {
+      DatanodeInfo[] nodes = block.getLocations();
+      DatanodeInfo chosenNode = null;
+      for (int i = 0; i < nodes.length && chosenNode == null; i++) {
+        DatanodeInfo node = nodes[(replica + i) % nodes.length];
+        if (!deadNodes.containsKey(node)) {
+          chosenNode = node;
+        }
+      }
+      if (chosenNode == null) {
+        throw new IOException("No live replica of " + block.getBlock());
+      }
+      BlockReader reader = getBlockReader(
+          NetUtils.createSocketAddr(chosenNode.getName()), chosenNode, src,
+          block.getBlock(), block.getBlockToken(), offsetInBlock, len,
+          buffersize, verifyChecksum, dfsClient.clientName);
+      try {
+        int nread = reader.readAll(buf, 0, len);
+        if (nread != len) {
+          throw new IOException("truncated return from reader.read(): "
+              + "expected " + len + ", got " + nread);
+        }
+      } finally {
+        closeBlockReader(reader);
+      }
+    }
+  }
+
   /**
    * Add corrupted block replica into map.
    * @param corruptedBlockMap 
    */
   private void addIntoCorruptedBlockMap(ExtendedBlock blk, DatanodeInfo node, 
       Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap) {
-    Set<DatanodeInfo> dnSet = null;
-    if((corruptedBlockMap.containsKey(blk))) {
-      dnSet = corruptedBlockMap.get(blk);
-    }else {
-      dnSet = new HashSet<DatanodeInfo>();
-    }
-    if (!dnSet.contains(node)) {
-      dnSet.add(node);
-      corruptedBlockMap.put(blk, dnSet);
+    // hedged reads may add to the map concurrently
+    synchronized (corruptedBlockMap) {
+      Set<DatanodeInfo> dnSet = null;
+      if((corruptedBlockMap.containsKey(blk))) {
+        dnSet = corruptedBlockMap.get(blk);
+      }else {
+        dnSet = new HashSet<DatanodeInfo>();
+      }
+      if (!dnSet.contains(node)) {
+        dnSet.add(node);
+        corruptedBlockMap.put(blk, dnSet);
+      }
     }
   }
       
@@ -606,6 +807,7 @@ public class DFSInputStream extends FSInputStream {
       } catch (IOException ie) {
         String blockInfo = block.getBlock() + " file=" + src;
         if (failures >= dfsClient.getMaxBlockAcquireFailures()) {
+          dfsClient.locatedBlocksCache.invalidate(src);
           throw new BlockMissingException(src, "Could not obtain block: " + blockInfo,
                                           block.getStartOffset());
         }
@@ -645,21 +847,37 @@ public class DFSInputStream extends FSInputStream {
       byte[] buf, int offset,
       Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap)
       throws IOException {
-    //
-    // Connect to best DataNode for desired Block, with potential offset
-    //
-    int refetchToken = 1; // only need to get a new access token once
-    
     while (true) {
       // cached block locations may have been updated by chooseDataNode()
       // or fetchBlockAt(). Always get the latest list of locations at the 
       // start of the loop.
       block = getBlockAt(block.getStartOffset(), false);
       DNAddrPair retval = chooseDataNode(block);
-      DatanodeInfo chosenNode = retval.info;
-      InetSocketAddress targetAddr = retval.addr;
+      try {
+        actualGetFromOneDataNode(retval, block, start, end, buf, offset,
+            corruptedBlockMap);
+        return;
+      } catch (IOException e) {
+        // the datanode was put into the dead list, try another one
+      }
+    }
+  }
+
+  /**
+   * Read a byte range of a block from the given datanode.
+   * @throws IOException if the read failed. The datanode has then been put
+   *         into the dead list.
+   */
+  private void actualGetFromOneDataNode(DNAddrPair datanode,
+      LocatedBlock block, long start, long end, byte[] buf, int offset,
+      Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap)
+      throws IOException {
+    DatanodeInfo chosenNode = datanode.info;
+    InetSocketAddress targetAddr = datanode.addr;
+    int refetchToken = 1; // only need to get a new access token once
+
+    while (true) {
       BlockReader reader = null;
-          
       try {
         Token<BlockTokenIdentifier> blockToken = block.getBlockToken();
             
@@ -679,6 +897,8 @@ public class DFSInputStream extends FSInputStream {
                  e.getPos() + " from " + chosenNode.getName());
         // we want to remember what we have tried
         addIntoCorruptedBlockMap(block.getBlock(), chosenNode, corruptedBlockMap);
+        addToDeadNodes(chosenNode);
+        throw e;
       } catch (AccessControlException ex) {
         DFSClient.LOG.warn("Short circuit access failed ", ex);
         dfsClient.disableShortCircuit();
@@ -690,6 +910,7 @@ public class DFSInputStream extends FSInputStream {
               + " : " + e);
           refetchToken--;
           fetchBlockAt(block.getStartOffset());
+          block = getBlockAt(block.getStartOffset(), false);
           continue;
         } else {
           DFSClient.LOG.warn("Failed to connect to " + targetAddr + 
@@ -697,14 +918,149 @@ public class DFSInputStream extends FSInputStream {
           if (DFSClient.LOG.isDebugEnabled()) {
             DFSClient.LOG.debug("Connection failure ", e);
           }
+          addToDeadNodes(chosenNode);
+          throw e;
         }
       } finally {
         if (reader != null) {
           closeBlockReader(reader);
         }
       }
-      // Put chosen node into dead list, continue
-      addToDeadNodes(chosenNode);
+    }
+  }
+
+  /**
+   * Like {@link #fetchBlockByteRange}, but if the datanode does not answer
+   * within the hedged read threshold, a second read of the range is started
+   * on another datanode, and the data of whichever read completes first is
+   * used. Each read fills its own buffer, so that a read which lost the race
+   * cannot overwrite the result.
+   */
+  private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+      long end, byte[] buf, int offset,
+      Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap)
+      throws IOException {
+    DFSHedgedReadMetrics metrics = DFSClient.getHedgedReadMetrics();
+    CompletionService<byte[]> hedgedService =
+        new ExecutorCompletionService<byte[]>(
+            DFSClient.getHedgedReadsThreadPool());
+    List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+    // the datanodes being read from
+    Map<DatanodeInfo, DatanodeInfo> ignored =
+        new HashMap<DatanodeInfo, DatanodeInfo>();
+    Future<byte[]> firstRequest = null;
+    int len = (int) (end - start + 1);
+
+    while (true) {
+      block = getBlockAt(block.getStartOffset(), false);
+      if (futures.isEmpty()) {
+        // no read in progress: start one and give it the threshold to
+        // complete before hedging
+        DNAddrPair chosenNode = chooseDataNode(block);
+        ignored.put(chosenNode.info, chosenNode.info);
+        firstRequest = hedgedService.submit(getFromOneDataNode(chosenNode,
+            block, start, end, corruptedBlockMap));
+        futures.add(firstRequest);
+        Future<byte[]> future;
+        try {
+          future = hedgedService.poll(
+              dfsClient.getHedgedReadThresholdMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException("Interrupted while reading "
+              + block.getBlock());
+        }
+        if (future != null) {
+          futures.remove(future);
+          byte[] result = getResult(future);
+          if (result != null) {
+            System.arraycopy(result, 0, buf, offset, len);
+            return;
+          }
+          // the datanode failed, pick another one
+          continue;
+        }
+      }
+
+      // the read is slow: hedge it on a datanode which is not being read
+      // from, if any is left
+      DNAddrPair hedgeNode = null;
+      try {
+        DatanodeInfo info = bestNode(block.getLocations(), deadNodes,
+            ignored);
+        hedgeNode = new DNAddrPair(info,
+            NetUtils.createSocketAddr(info.getName()));
+      } catch (IOException ioe) {
+        if (DFSClient.LOG.isDebugEnabled()) {
+          DFSClient.LOG.debug("No datanode left to hedge the read of "
+              + block.getBlock());
+        }
+      }
+      if (hedgeNode != null) {
+        ignored.put(hedgeNode.info, hedgeNode.info);
+        futures.add(hedgedService.submit(getFromOneDataNode(hedgeNode,
+            block, start, end, corruptedBlockMap)));
+        metrics.incHedgedReadOps();
+      }
+
+      // use the first successful read
+      while (!futures.isEmpty()) {
+        Future<byte[]> future;
+        try {
+          future = hedgedService.take();
+        } catch (InterruptedException ie) {
+          cancelAll(futures);
+          throw new InterruptedIOException("Interrupted while reading "
+              + block.getBlock());
+        }
+        futures.remove(future);
+        byte[] result = getResult(future);
+        if (result != null) {
+          if (future != firstRequest) {
+            metrics.incHedgedReadOpsWin();
+          }
+          cancelAll(futures);
+          System.arraycopy(result, 0, buf, offset, len);
+          return;
+        }
+      }
+      // all the reads failed, start over with the remaining datanodes
+      ignored.clear();
+    }
+  }
+
+  private Callable<byte[]> getFromOneDataNode(final DNAddrPair datanode,
+      final LocatedBlock block, final long start, final long end,
+      final Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        byte[] buf = new byte[(int) (end - start + 1)];
+        actualGetFromOneDataNode(datanode, block, start, end, buf, 0,
+            corruptedBlockMap);
+        return buf;
+      }
+    };
+  }
+
+  /**
+   * @return the data read by a completed read, or null if it failed.
+   *         The failure was already logged by the read.
+   */
+  private static byte[] getResult(Future<byte[]> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private static void cancelAll(List<Future<byte[]>> futures) {
+    // do not interrupt the reads, their block readers close themselves
+    for (Future<byte[]> future : futures) {
+      future.cancel(false);
     }
   }
 
@@ -844,8 +1200,13 @@ public class DFSInputStream extends FSInputStream {
       long targetStart = position - blk.getStartOffset();
       long bytesToRead = Math.min(remaining, blk.getBlockSize() - targetStart);
       try {
-        fetchBlockByteRange(blk, targetStart, 
-            targetStart + bytesToRead - 1, buffer, offset, corruptedBlockMap);
+        if (dfsClient.isHedgedReadsEnabled()) {
+          hedgedFetchBlockByteRange(blk, targetStart,
+              targetStart + bytesToRead - 1, buffer, offset, corruptedBlockMap);
+        } else {
+          fetchBlockByteRange(blk, targetStart, 
+              targetStart + bytesToRead - 1, buffer, offset, corruptedBlockMap);
+        }
       } finally {
         // Check and report if any block replicas are corrupted.
         // BlockMissingException may be caught if all block replicas are
@@ -863,6 +1224,170 @@ public class DFSInputStream extends FSInputStream {
     }
     return realLen;
   }
+
+  /**
+   * A range of a block read with a single request for a vectored read,
+   * holding the data of one or more ranges of the read
+   */
+  private static class VectoredChunk {
+    private final LocatedBlock block;
+    private final long start;   // offset in the file
+    private long end;
+    private final List<FileRange> ranges = new ArrayList<FileRange>();
+
+    VectoredChunk(LocatedBlock block, long start, long end) {
+      this.block = block;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Copy the data read to the ranges, they may hold more data */
+    void copyToRanges(byte[] buf) {
+      for (FileRange range : ranges) {
+        long from = Math.max(start, range.getOffset());
+        long to = Math.min(end, range.getEnd());
+        System.arraycopy(buf, (int) (from - start), range.getData(),
+            (int) (from - range.getOffset()), (int) (to - from));
+      }
+    }
+  }
+
+  /**
+   * Read many ranges of the file. The ranges of a block separated by less
+   * than the merge gap are read with a single request, up to the maximum
+   * merged size, and the requests are sent to the datanodes concurrently,
+   * up to the configured parallelism. Each request retries and fails over
+   * to the other datanodes like a positional read.
+   */
+  @Override
+  public void readVectored(List<FileRange> ranges) throws IOException {
+    dfsClient.checkOpen();
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    failures = 0;
+    long filelen = getFileLength();
+    for (FileRange range : ranges) {
+      if (range.getEnd() > filelen) {
+        throw new EOFException("Cannot read " + range + " of " + src
+            + " of length " + filelen);
+      }
+      range.setData(new byte[range.getLength()]);
+    }
+    List<VectoredChunk> chunks = mergeRanges(ranges);
+    long bytesRead = 0;
+    for (VectoredChunk chunk : chunks) {
+      bytesRead += chunk.end - chunk.start;
+    }
+
+    int parallelism = dfsClient.getConf().readVectoredParallelism;
+    if (parallelism <= 1 || chunks.size() <= 1) {
+      for (VectoredChunk chunk : chunks) {
+        readChunk(chunk);
+      }
+    } else {
+      CompletionService<Void> service = new ExecutorCompletionService<Void>(
+          DFSClient.getReadAheadThreadPool());
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      Iterator<VectoredChunk> pending = chunks.iterator();
+      try {
+        while (pending.hasNext() || !futures.isEmpty()) {
+          while (pending.hasNext() && futures.size() < parallelism) {
+            final VectoredChunk chunk = pending.next();
+            futures.add(service.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                readChunk(chunk);
+                return null;
+              }
+            }));
+          }
+          Future<Void> future = service.take();
+          futures.remove(future);
+          future.get();
+        }
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted while reading "
+            + chunks.size() + " ranges of " + src);
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException("Failed to read " + chunks.size()
+            + " ranges of " + src, cause);
+      } finally {
+        for (Future<Void> future : futures) {
+          future.cancel(false);
+        }
+      }
+    }
+    if (dfsClient.stats != null) {
+      dfsClient.stats.incrementBytesRead(bytesRead);
+    }
+  }
+
+  /**
+   * Group the ranges into the chunks to read, in file order. A range
+   * spanning two blocks is split between chunks of both.
+   */
+  private List<VectoredChunk> mergeRanges(List<FileRange> ranges)
+      throws IOException {
+    int mergeGap = dfsClient.getConf().readVectoredMergeGap;
+    int maxMergedSize = dfsClient.getConf().readVectoredMaxMergedSize;
+    List<FileRange> sorted = new ArrayList<FileRange>(ranges);
+    Collections.sort(sorted, new Comparator<FileRange>() {
+      @Override
+      public int compare(FileRange r1, FileRange r2) {
+        return r1.getOffset() < r2.getOffset() ? -1
+            : (r1.getOffset() == r2.getOffset() ? 0 : 1);
+      }
+    });
+
+    List<VectoredChunk> chunks = new ArrayList<VectoredChunk>();
+    VectoredChunk chunk = null;
+    for (FileRange range : sorted) {
+      long pos = range.getOffset();
+      while (pos < range.getEnd()) {
+        LocatedBlock block = getBlockAt(pos, false);
+        long end = Math.min(range.getEnd(),
+            block.getStartOffset() + block.getBlockSize());
+        if (chunk != null
+            && chunk.block.getStartOffset() == block.getStartOffset()
+            && pos - chunk.end <= mergeGap
+            && Math.max(chunk.end, end) - chunk.start <= maxMergedSize) {
+          chunk.end = Math.max(chunk.end, end);
+        } else {
+          chunk = new VectoredChunk(block, pos, end);
+          chunks.add(chunk);
+        }
+        chunk.ranges.add(range);
+        pos = end;
+      }
+    }
+    return chunks;
+  }
+
+  private void readChunk(VectoredChunk chunk) throws IOException {
+    LocatedBlock blk = chunk.block;
+    long targetStart = chunk.start - blk.getStartOffset();
+    long targetEnd = chunk.end - blk.getStartOffset() - 1;
+    byte[] buf = new byte[(int) (chunk.end - chunk.start)];
+    Map<ExtendedBlock,Set<DatanodeInfo>> corruptedBlockMap
+      = new HashMap<ExtendedBlock, Set<DatanodeInfo>>();
+    try {
+      if (dfsClient.isHedgedReadsEnabled()) {
+        hedgedFetchBlockByteRange(blk, targetStart, targetEnd, buf, 0,
+            corruptedBlockMap);
+      } else {
+        fetchBlockByteRange(blk, targetStart, targetEnd, buf, 0,
+            corruptedBlockMap);
+      }
+    } finally {
+      reportCheckSumFailure(corruptedBlockMap, blk.getLocations().length);
+    }
+    chunk.copyToRanges(buf);
+  }
   
   /**
    * DFSInputStream reports checksum failure.
@@ -879,14 +1404,19 @@ public class DFSInputStream extends FSInputStream {
   private void reportCheckSumFailure(
       Map<ExtendedBlock, Set<DatanodeInfo>> corruptedBlockMap, 
       int dataNodeCount) {
-    if (corruptedBlockMap.isEmpty()) {
-      return;
+    ExtendedBlock blk;
+    Set<DatanodeInfo> dnSet;
+    synchronized (corruptedBlockMap) {
+      if (corruptedBlockMap.isEmpty()) {
+        return;
+      }
+      Iterator<Entry<ExtendedBlock, Set<DatanodeInfo>>> it = corruptedBlockMap
+          .entrySet().iterator();
+      Entry<ExtendedBlock, Set<DatanodeInfo>> entry = it.next();
+      blk = entry.getKey();
+      dnSet = new HashSet<DatanodeInfo>(entry.getValue());
+      corruptedBlockMap.clear();
     }
-    Iterator<Entry<ExtendedBlock, Set<DatanodeInfo>>> it = corruptedBlockMap
-        .entrySet().iterator();
-    Entry<ExtendedBlock, Set<DatanodeInfo>> entry = it.next();
-    ExtendedBlock blk = entry.getKey();
-    Set<DatanodeInfo> dnSet = entry.getValue();
     if (((dnSet.size() < dataNodeCount) && (dnSet.size() > 0))
         || ((dataNodeCount == 1) && (dnSet.size() == dataNodeCount))) {
       DatanodeInfo[] locs = new DatanodeInfo[dnSet.size()];
@@ -897,7 +1427,6 @@ public class DFSInputStream extends FSInputStream {
       LocatedBlock [] lblocks = { new LocatedBlock(blk, locs) };
       dfsClient.reportChecksumFailure(src, lblocks);
     }
-    corruptedBlockMap.clear();
   }
 
   @Override
@@ -1031,9 +1560,20 @@ public class DFSInputStream extends FSInputStream {
   static DatanodeInfo bestNode(DatanodeInfo nodes[], 
                                AbstractMap<DatanodeInfo, DatanodeInfo> deadNodes)
                                throws IOException {
+    return bestNode(nodes, deadNodes, null);
+  }
+
+  /**
+   * Pick the best node which is neither dead nor ignored.
+   */
+  static DatanodeInfo bestNode(DatanodeInfo nodes[], 
+                               Map<DatanodeInfo, DatanodeInfo> deadNodes,
+                               Map<DatanodeInfo, DatanodeInfo> ignoredNodes)
+                               throws IOException {
     if (nodes != null) { 
       for (int i = 0; i < nodes.length; i++) {
-        if (!deadNodes.containsKey(nodes[i])) {
+        if (!deadNodes.containsKey(nodes[i])
+            && (ignoredNodes == null || !ignoredNodes.containsKey(nodes[i]))) {
           return nodes[i];
         }
       }
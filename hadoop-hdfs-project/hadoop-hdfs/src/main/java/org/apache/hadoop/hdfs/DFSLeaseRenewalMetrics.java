@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Counters of the lease renewals of the clients of this JVM.
+ * <ul>
+ * <li>renewalCalls: calls to the namenode renewing leases</li>
+ * <li>batchedRenewalCalls: those of the calls renewing the leases of many
+ * clients at once</li>
+ * <li>leasesRenewed: clients whose lease was renewed</li>
+ * <li>maxRenewalBatchSize: largest number of clients renewed in a call</li>
+ * <li>failedRenewalCalls: calls which failed</li>
+ * </ul>
+ */
+@InterfaceAudience.Private
+public class DFSLeaseRenewalMetrics {
+  private final AtomicLong renewalCalls = new AtomicLong();
+  private final AtomicLong batchedRenewalCalls = new AtomicLong();
+  private final AtomicLong leasesRenewed = new AtomicLong();
+  private final AtomicLong maxRenewalBatchSize = new AtomicLong();
+  private final AtomicLong failedRenewalCalls = new AtomicLong();
+
+  void addRenewal(int clients, boolean batched) {
+    renewalCalls.incrementAndGet();
+    if (batched) {
+      batchedRenewalCalls.incrementAndGet();
+    }
+    leasesRenewed.addAndGet(clients);
+    long max;
+    while ((max = maxRenewalBatchSize.get()) < clients
+        && !maxRenewalBatchSize.compareAndSet(max, clients)) {
+    }
+  }
+
+  void incFailedRenewals() {
+    failedRenewalCalls.incrementAndGet();
+  }
+
+  public long getRenewalCalls() {
+    return renewalCalls.get();
+  }
+
+  public long getBatchedRenewalCalls() {
+    return batchedRenewalCalls.get();
+  }
+
+  public long getLeasesRenewed() {
+    return leasesRenewed.get();
+  }
+
+  public long getMaxRenewalBatchSize() {
+    return maxRenewalBatchSize.get();
+  }
+
+  public long getFailedRenewalCalls() {
+    return failedRenewalCalls.get();
+  }
+}
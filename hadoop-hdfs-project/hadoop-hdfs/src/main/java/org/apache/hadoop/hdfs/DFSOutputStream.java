@@ -129,6 +129,13 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
   private long initialFileSize = 0; // at time of file open
   private Progressable progress;
   private short blockReplication; // replication factor of file
+  private boolean lazyPersist = false; // datanodes may buffer replicas in memory
+  // group flush: the calls to hflush are numbered, and a single call at a
+  // time flushes the data written before all the calls which preceded it
+  private final Object flushGroupLock = new Object();
+  private long lastFlushCall = 0;    // number of the last call to hflush
+  private long lastFlushedCall = 0;  // last call whose data was acked
+  private boolean flushInProgress = false;
   
   private class Packet {
     long    seqno;               // sequencenumber of buffer in block
@@ -140,6 +147,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
     /** buffer for accumulating packet checksum and data */
     ByteBuffer buffer; // wraps buf, only one of these two may be non-null
     byte[]  buf;
+    int bufLen; // size of the packet, buf may be larger if it was pooled
 
     /**
      * buf is pointed into like follows:
@@ -169,6 +177,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       buffer = null;
       int packetSize = PacketHeader.PKT_HEADER_LEN + HdfsConstants.BYTES_IN_INTEGER;
       buf = new byte[packetSize];
+      bufLen = packetSize;
       
       checksumStart = dataStart = packetSize;
       checksumPos = checksumStart;
@@ -185,7 +194,8 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       currentSeqno++;
       
       buffer = null;
-      buf = new byte[pktSize];
+      buf = dfsClient.packetBufferPool.getBuffer(pktSize);
+      bufLen = pktSize;
       
       checksumStart = PacketHeader.PKT_HEADER_LEN;
       checksumPos = checksumStart;
@@ -195,7 +205,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
     }
 
     void writeData(byte[] inarray, int off, int len) {
-      if ( dataPos + len > buf.length) {
+      if ( dataPos + len > bufLen) {
         throw new BufferOverflowException();
       }
       System.arraycopy(inarray, off, buf, dataPos, len);
@@ -252,6 +262,19 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       return buffer;
     }
     
+    /**
+     * Give the buffer back to the pool, once the packet has been acked or
+     * is dropped. The packet cannot be used anymore.
+     */
+    void releaseBuffer() {
+      byte[] b = buffer != null ? buffer.array() : buf;
+      buffer = null;
+      buf = null;
+      if (b != null) {
+        dfsClient.packetBufferPool.returnBuffer(b);
+      }
+    }
+
     // get the packet's last byte's offset in the block
     long getLastByteOffsetBlock() {
       return offsetInBlock + dataPos - dataStart;
@@ -273,6 +296,36 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
     }
   }
 
+  /**
+   * A block allocated, and its pipeline set up, while the previous block of
+   * the file was being closed.
+   */
+  private static class NextBlock {
+    final ExtendedBlock block;
+    final Token<BlockTokenIdentifier> accessToken;
+    final DatanodeInfo[] nodes;
+    final Socket s;
+    final DataOutputStream blockStream;
+    final DataInputStream blockReplyStream;
+
+    NextBlock(ExtendedBlock block, Token<BlockTokenIdentifier> accessToken,
+        DatanodeInfo[] nodes, Socket s, DataOutputStream blockStream,
+        DataInputStream blockReplyStream) {
+      this.block = block;
+      this.accessToken = accessToken;
+      this.nodes = nodes;
+      this.s = s;
+      this.blockStream = blockStream;
+      this.blockReplyStream = blockReplyStream;
+    }
+
+    void close() {
+      IOUtils.closeStream(blockStream);
+      IOUtils.closeStream(blockReplyStream);
+      IOUtils.closeSocket(s);
+    }
+  }
+
   //
   // The DataStreamer class is responsible for sending data packets to the
   // datanodes in the pipeline. It retrieves a new blockid and block locations
@@ -301,6 +354,13 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
     private boolean isHflushed = false;
     /** Append on an existing block? */
     private final boolean isAppend;
+    /** Allocate the next block while the current one is being closed? */
+    private final boolean earlyAllocation =
+        dfsClient.getConf().blockWriteEarlyAllocation;
+    /** The block allocated while the current block is being closed */
+    private NextBlock nextBlock = null;
+    /** Start of the current block transition, 0 if there is none */
+    private long transitionStart = 0;
 
     /**
      * Default construction for file create
@@ -452,8 +512,14 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
             if(DFSClient.LOG.isDebugEnabled()) {
               DFSClient.LOG.debug("Allocating new block");
             }
-            nodes = nextBlockOutputStream(src);
+            boolean early = nextBlock != null;
+            nodes = early ? takeNextBlock() : nextBlockOutputStream(src);
             initDataStreaming();
+            if (transitionStart > 0) {
+              dfsClient.blockTransitionMetrics.addBlockTransition(
+                  System.currentTimeMillis() - transitionStart, early);
+              transitionStart = 0;
+            }
           } else if (stage == BlockConstructionStage.PIPELINE_SETUP_APPEND) {
             if(DFSClient.LOG.isDebugEnabled()) {
               DFSClient.LOG.debug("Append to block " + block);
@@ -472,6 +538,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
           }
 
           if (one.lastPacketInBlock) {
+            transitionStart = System.currentTimeMillis();
             // wait for all data packets have been successfully acked
             synchronized (dataQueue) {
               while (!streamerClosed && !hasError && 
@@ -526,6 +593,9 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
 
           // Is this block full?
           if (one.lastPacketInBlock) {
+            if (earlyAllocation) {
+              allocateNextBlock();
+            }
             // wait for the close packet has been acked
             synchronized (dataQueue) {
               while (!streamerClosed && !hasError && 
@@ -534,6 +604,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
               }
             }
             if (streamerClosed || hasError || !dfsClient.clientRunning) {
+              abandonNextBlock();
               continue;
             }
 
@@ -562,6 +633,10 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
     private void closeInternal() {
       closeResponder();       // close and join
       closeStream();
+      if (nextBlock != null) {
+        nextBlock.close();
+        nextBlock = null;
+      }
       streamerClosed = true;
       closed = true;
       synchronized (dataQueue) {
@@ -639,9 +714,15 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       private volatile boolean responderClosed = false;
       private DatanodeInfo[] targets = null;
       private boolean isLastPacketInBlock = false;
+      // the streamer may set up the pipeline of the next block while the
+      // close of this one is being acked
+      private final ExtendedBlock block;
+      private final DataInputStream blockReplyStream;
 
       ResponseProcessor (DatanodeInfo[] targets) {
         this.targets = targets;
+        this.block = DataStreamer.this.block;
+        this.blockReplyStream = DataStreamer.this.blockReplyStream;
       }
 
       public void run() {
@@ -696,6 +777,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
               ackQueue.removeFirst();
               dataQueue.notifyAll();
             }
+            one.releaseBuffer();
           } catch (Exception e) {
             if (!responderClosed) {
               if (e instanceof IOException) {
@@ -757,6 +839,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
             assert endOfBlockPacket.lastPacketInBlock;
             assert lastAckedSeqno == endOfBlockPacket.seqno - 1;
             lastAckedSeqno = endOfBlockPacket.seqno;
+            endOfBlockPacket.releaseBuffer();
             dataQueue.notifyAll();
           }
           endBlock();
@@ -996,11 +1079,115 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       return nodes;
     }
 
+    /**
+     * Allocate the next block and set up its pipeline while the close of the
+     * current block is being acked. This is only done when data for the next
+     * block is queued, so that no empty block is allocated at the end of the
+     * file. All the data of the current block has been acked, so that its
+     * length is final when the namenode commits it. If the next block cannot
+     * be set up now, it is allocated as usual once the current one is closed.
+     */
+    private void allocateNextBlock() throws IOException {
+      synchronized (dataQueue) {
+        if (dataQueue.isEmpty()) {
+          return;
+        }
+      }
+      LocatedBlock lb;
+      try {
+        DatanodeInfo[] w = excludedNodes.toArray(
+            new DatanodeInfo[excludedNodes.size()]);
+        lb = locateFollowingBlock(System.currentTimeMillis(),
+            w.length > 0 ? w : null);
+      } catch (IOException e) {
+        DFSClient.LOG.info("Could not allocate the block following " + block
+            + " before closing it", e);
+        return;
+      }
+      ExtendedBlock next = lb.getBlock();
+      next.setNumBytes(0);
+
+      // set the pipeline of the current block aside, its responder keeps
+      // reading the acks
+      final ExtendedBlock closingBlock = block;
+      final Token<BlockTokenIdentifier> closingToken = accessToken;
+      final BlockConstructionStage closingStage = stage;
+      final Socket closingSocket = s;
+      final DataOutputStream closingStream = blockStream;
+      final DataInputStream closingReplyStream = blockReplyStream;
+      s = null;
+      blockStream = null;
+      blockReplyStream = null;
+      boolean success = false;
+      try {
+        block = next;
+        accessToken = lb.getBlockToken();
+        stage = BlockConstructionStage.PIPELINE_SETUP_CREATE;
+        success = createBlockOutputStream(lb.getLocations(), 0L, false, false);
+        if (success) {
+          nextBlock = new NextBlock(next, accessToken, lb.getLocations(), s,
+              blockStream, blockReplyStream);
+        }
+      } finally {
+        block = closingBlock;
+        accessToken = closingToken;
+        stage = closingStage;
+        s = closingSocket;
+        blockStream = closingStream;
+        blockReplyStream = closingReplyStream;
+      }
+      if (!success) {
+        DFSClient.LOG.info("Abandoning block " + next);
+        dfsClient.namenode.abandonBlock(next, src, dfsClient.clientName);
+      }
+    }
+
+    /**
+     * Give up the block allocated early, so that the current block, which
+     * the namenode has committed, is the last block of the file again and
+     * its pipeline can be recovered.
+     */
+    private void abandonNextBlock() throws IOException {
+      if (nextBlock == null) {
+        return;
+      }
+      nextBlock.close();
+      ExtendedBlock next = nextBlock.block;
+      nextBlock = null;
+      if (!streamerClosed && dfsClient.clientRunning) {
+        DFSClient.LOG.info("Abandoning block " + next
+            + " allocated before the close of " + block);
+        dfsClient.namenode.abandonBlock(next, src, dfsClient.clientName);
+      }
+    }
+
+    /** Stream to the block allocated while the previous one was closed */
+    private DatanodeInfo[] takeNextBlock() {
+      block = nextBlock.block;
+      accessToken = nextBlock.accessToken;
+      s = nextBlock.s;
+      blockStream = nextBlock.blockStream;
+      blockReplyStream = nextBlock.blockReplyStream;
+      DatanodeInfo[] targets = nextBlock.nodes;
+      nextBlock = null;
+      return targets;
+    }
+
     // connects to the first datanode in the pipeline
     // Returns true if success, otherwise return failure.
     //
     private boolean createBlockOutputStream(DatanodeInfo[] nodes, long newGS,
         boolean recoveryFlag) {
+      return createBlockOutputStream(nodes, newGS, recoveryFlag, true);
+    }
+
+    // connects to the first datanode in the pipeline. If markError is false,
+    // a failure is not reported to the streamer: errorIndex, hasError and
+    // the last exception are left to the current pipeline.
+    // Returns true if success, otherwise return failure.
+    //
+    private boolean createBlockOutputStream(DatanodeInfo[] nodes, long newGS,
+        boolean recoveryFlag, boolean markError) {
       Status pipelineStatus = SUCCESS;
       String firstBadLink = "";
       if (DFSClient.LOG.isDebugEnabled()) {
@@ -1032,7 +1219,8 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
         // send the request
         new Sender(out).writeBlock(block, accessToken, dfsClient.clientName,
             nodes, null, recoveryFlag? stage.getRecoveryStage() : stage, 
-            nodes.length, block.getNumBytes(), bytesSent, newGS, checksum);
+            nodes.length, block.getNumBytes(), bytesSent, newGS, checksum,
+            lazyPersist);
 
         // receive ack for connect
         BlockOpResponseProto resp = BlockOpResponseProto.parseFrom(
@@ -1057,21 +1245,22 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       } catch (IOException ie) {
 
         DFSClient.LOG.info("Exception in createBlockOutputStream", ie);
-
-        // find the datanode that matches
-        if (firstBadLink.length() != 0) {
-          for (int i = 0; i < nodes.length; i++) {
-            if (nodes[i].getName().equals(firstBadLink)) {
-              errorIndex = i;
-              break;
+        result =  false;  // error
+        if (markError) {
+          // find the datanode that matches
+          if (firstBadLink.length() != 0) {
+            for (int i = 0; i < nodes.length; i++) {
+              if (nodes[i].getName().equals(firstBadLink)) {
+                errorIndex = i;
+                break;
+              }
             }
+          } else {
+            errorIndex = 0;
           }
-        } else {
-          errorIndex = 0;
+          hasError = true;
+          setLastException(ie);
         }
-        hasError = true;
-        setLastException(ie);
-        result =  false;  // error
       } finally {
         if (!result) {
           IOUtils.closeSocket(s);
@@ -1237,6 +1426,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
       int buffersize, DataChecksum checksum) 
       throws IOException {
     this(dfsClient, src, blockSize, progress, checksum, replication);
+    this.lazyPersist = flag.contains(CreateFlag.LAZY_PERSIST);
 
     computePacketChunkSize(dfsClient.getConf().writePacketSize,
         checksum.getBytesPerChecksum());
@@ -1413,7 +1603,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
 
   @Override
   @Deprecated
-  public synchronized void sync() throws IOException {
+  public void sync() throws IOException {
     hflush();
   }
   
@@ -1426,9 +1616,76 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
    * It is not guaranteed that data has been flushed to 
    * persistent store on the datanode. 
    * Block allocations are persisted on namenode.
+   *
+   * With group flush enabled, a call made while another flush is in
+   * progress waits for it, then shares the next flush with the other
+   * calls which waited.
    */
   @Override
   public void hflush() throws IOException {
+    long start = System.nanoTime();
+    if (dfsClient.getConf().writeGroupFlush) {
+      groupFlush();
+    } else {
+      flushOrSync();
+      dfsClient.groupFlushMetrics.addFlushGroup(1);
+    }
+    dfsClient.groupFlushMetrics.addFlushCall(
+        (System.nanoTime() - start) / 1000);
+  }
+
+  /**
+   * Flush the data written before this call, together with the concurrent
+   * calls. The first call flushes, the calls made meanwhile wait for it
+   * to complete; then one of them flushes for all of them, unless a flush
+   * started after they were made already covers their data.
+   */
+  private void groupFlush() throws IOException {
+    final long lastCallInGroup;
+    final long groupSize;
+    synchronized (flushGroupLock) {
+      final long call = ++lastFlushCall;
+      while (true) {
+        if (lastFlushedCall >= call) {
+          return;
+        }
+        if (!flushInProgress) {
+          break;
+        }
+        try {
+          flushGroupLock.wait();
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException(
+              "Interrupted while waiting for a flush in progress");
+        }
+      }
+      flushInProgress = true;
+      // the data of all the calls made so far is written, flush it
+      lastCallInGroup = lastFlushCall;
+      groupSize = lastCallInGroup - lastFlushedCall;
+    }
+    boolean flushed = false;
+    try {
+      flushOrSync();
+      flushed = true;
+    } finally {
+      synchronized (flushGroupLock) {
+        flushInProgress = false;
+        if (flushed) {
+          lastFlushedCall = lastCallInGroup;
+          dfsClient.groupFlushMetrics.addFlushGroup(groupSize);
+        }
+        // on failure the calls waiting flush by themselves and get the error
+        flushGroupLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Flush the data written so far, and wait for the datanodes to
+   * acknowledge it.
+   */
+  private void flushOrSync() throws IOException {
     dfsClient.checkOpen();
     isClosed();
     try {
@@ -1467,6 +1724,9 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
             "Empty flush should not occur with a currentPacket";
 
           // just discard the current packet since it is already been sent.
+          if (currentPacket != null) {
+            currentPacket.releaseBuffer();
+          }
           currentPacket = null;
         }
         // Restore state of stream. Record the last flush offset 
@@ -1526,7 +1786,7 @@ class DFSOutputStream extends FSOutputSummer implements Syncable {
    * Right now by default it is implemented as hflush
    */
   @Override
-  public synchronized void hsync() throws IOException {
+  public void hsync() throws IOException {
     hflush();
   }
 
@@ -61,7 +61,10 @@ import org.apache.hadoop.util.StringUtils;
  * </li>
  * <li>
  * A thread per namenode per user is used by the {@link LeaseRenewer}
- * to renew the leases.
+ * to renew the leases. If the first client of a renewer has batched
+ * renewals enabled, the renewer uses the {@link BatchedLeaseRenewer} of
+ * the namenode instead, which renews the leases of all the users with a
+ * single thread and call.
  * </li>
  * </ul>
  * </p>
@@ -75,7 +78,7 @@ class LeaseRenewer {
   /** Get a {@link LeaseRenewer} instance */
   static LeaseRenewer getInstance(final String authority,
       final UserGroupInformation ugi, final DFSClient dfsc) throws IOException {
-    final LeaseRenewer r = Factory.INSTANCE.get(authority, ugi);
+    final LeaseRenewer r = Factory.INSTANCE.get(authority, ugi, dfsc);
     r.addClient(dfsc);
     return r;
   }
@@ -134,11 +137,14 @@ class LeaseRenewer {
 
     /** Get a renewer. */
     private synchronized LeaseRenewer get(final String authority,
-        final UserGroupInformation ugi) {
+        final UserGroupInformation ugi, final DFSClient dfsc) {
       final Key k = new Key(authority, ugi);
       LeaseRenewer r = renewers.get(k);
       if (r == null) {
-        r = new LeaseRenewer(k);
+        r = new LeaseRenewer(k, dfsc.isLeaseRenewalBatched()
+            ? BatchedLeaseRenewer.getInstance(authority,
+                dfsc.getLeaseRenewalMaxBatchSize())
+            : null);
         renewers.put(k, r);
       }
       return r;
@@ -184,6 +190,10 @@ class LeaseRenewer {
   private long sleepPeriod;
 
   private final Factory.Key factorykey;
+  /** Renews the leases instead of the daemon, if not null */
+  private final BatchedLeaseRenewer batch;
+  /** The last time the batch renewed the leases */
+  private long lastRenewed;
 
   /** A list of clients corresponding to this renewer. */
   private final List<DFSClient> dfsclients = new ArrayList<DFSClient>();
@@ -195,8 +205,9 @@ class LeaseRenewer {
    */
   private final String instantiationTrace;
 
-  private LeaseRenewer(Factory.Key factorykey) {
+  private LeaseRenewer(Factory.Key factorykey, BatchedLeaseRenewer batch) {
     this.factorykey = factorykey;
+    this.batch = batch;
     unsyncSetGraceSleepPeriod(LEASE_RENEWER_GRACE_DEFAULT);
     
     if (LOG.isTraceEnabled()) {
@@ -208,7 +219,7 @@ class LeaseRenewer {
   }
 
   /** @return the renewal time in milliseconds. */
-  private synchronized long getRenewalTime() {
+  synchronized long getRenewalTime() {
     return renewal;
   }
 
@@ -246,7 +257,7 @@ class LeaseRenewer {
     return !dfsclients.isEmpty();
   }
 
-  private synchronized long getSleepPeriod() {
+  synchronized long getSleepPeriod() {
     return sleepPeriod;    
   }
 
@@ -266,8 +277,11 @@ class LeaseRenewer {
         half: LEASE_RENEWER_SLEEP_DEFAULT;
   }
 
-  /** Is the daemon running? */
+  /** Is the daemon, or the batch, renewing the leases? */
   synchronized boolean isRunning() {
+    if (batch != null) {
+      return batch.isRenewing(this);
+    }
     return daemon != null && daemon.isAlive();
   }
   
@@ -285,7 +299,9 @@ class LeaseRenewer {
   synchronized void put(final String src, final DFSOutputStream out,
       final DFSClient dfsc) {
     if (dfsc.isClientRunning()) {
-      if (!isRunning() || isRenewerExpired()) {
+      if (batch != null) {
+        batch.add(this);
+      } else if (!isRunning() || isRenewerExpired()) {
         //start a new deamon with a new id.
         final int id = ++currentId;
         daemon = new Daemon(new Runnable() {
@@ -374,6 +390,10 @@ class LeaseRenewer {
   }
 
   void interruptAndJoin() throws InterruptedException {
+    if (batch != null) {
+      batch.remove(this);
+      return;
+    }
     Daemon daemonCopy = null;
     synchronized (this) {
       if (isRunning()) {
@@ -390,7 +410,48 @@ class LeaseRenewer {
     }
   }
 
-  private void renew() throws IOException {
+  synchronized long getLastRenewed() {
+    return lastRenewed;
+  }
+
+  synchronized void setLastRenewed(final long lastRenewed) {
+    this.lastRenewed = lastRenewed;
+  }
+
+  /** @return the running clients which have files being written */
+  synchronized List<DFSClient> getClientsToRenew() {
+    final List<DFSClient> clients = new ArrayList<DFSClient>();
+    for(DFSClient c : dfsclients) {
+      if (c.isClientRunning() && !c.isFilesBeingWrittenEmpty()) {
+        clients.add(c);
+      }
+    }
+    return clients;
+  }
+
+  /** Abort all the clients, their leases could not be renewed. */
+  synchronized void abortClients() {
+    for(DFSClient c : dfsclients) {
+      c.abort();
+    }
+  }
+
+  /**
+   * Remove this renewer from the batch, and from the factory, if it has no
+   * running client or is expired.
+   * @return true if it was removed
+   */
+  synchronized boolean removeIfDone(final BatchedLeaseRenewer b) {
+    if (clientsRunning() && !isRenewerExpired()) {
+      return false;
+    }
+    b.removeDone(this);
+    Factory.INSTANCE.remove(this);
+    return true;
+  }
+
+  /** Renew the leases of the clients, each with its own call */
+  void renew() throws IOException {
     final List<DFSClient> copies;
     synchronized(this) {
       copies = new ArrayList<DFSClient>(dfsclients);
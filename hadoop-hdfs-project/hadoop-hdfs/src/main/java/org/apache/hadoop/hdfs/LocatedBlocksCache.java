@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+/**
+ * A bounded cache of the block locations fetched by a {@link DFSClient}
+ * when it opens a file, so that the files opened again and again, such as
+ * the side data of a job, are opened without a namenode RPC.
+ * <p>
+ * Only complete files are cached. An entry is trusted for a limited time,
+ * after which the locations are fetched again. It is dropped earlier if a
+ * read from the locations fails, or if the file is modified through the
+ * client. When the cache is full, the least recently used entry is evicted.
+ */
+@InterfaceAudience.Private
+public class LocatedBlocksCache {
+  private static class Entry {
+    final LocatedBlocks blocks;
+    final long expiryTime;
+
+    Entry(LocatedBlocks blocks, long expiryTime) {
+      this.blocks = blocks;
+      this.expiryTime = expiryTime;
+    }
+  }
+
+  private final int capacity;
+  private final long ttlMillis;
+  private final Map<String, Entry> map;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param capacity maximum number of files cached, 0 to disable the cache
+   * @param ttlMillis time the locations of a file are cached
+   */
+  LocatedBlocksCache(final int capacity, long ttlMillis) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  boolean isEnabled() {
+    return capacity > 0 && ttlMillis > 0;
+  }
+
+  /**
+   * @return a copy of the cached locations of the file, or null if they
+   *         are not cached or have expired
+   */
+  LocatedBlocks get(String src) {
+    if (!isEnabled()) {
+      return null;
+    }
+    synchronized (map) {
+      Entry e = map.get(src);
+      if (e != null) {
+        if (System.currentTimeMillis() < e.expiryTime) {
+          hits.incrementAndGet();
+          return copy(e.blocks);
+        }
+        map.remove(src);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Cache the locations just fetched for a file, if it is complete.
+   */
+  void put(String src, LocatedBlocks blocks) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (map) {
+      if (blocks == null || blocks.isUnderConstruction()
+          || !blocks.isLastBlockComplete()) {
+        map.remove(src);
+      } else {
+        map.put(src, new Entry(copy(blocks),
+            System.currentTimeMillis() + ttlMillis));
+      }
+    }
+  }
+
+  /** Drop the cached locations of the given file */
+  void invalidate(String src) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (map) {
+      if (map.remove(src) != null) {
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  /** Drop the cached locations of the given file or of the files under it */
+  void invalidateTree(String src) {
+    if (!isEnabled()) {
+      return;
+    }
+    String prefix = src.endsWith(Path.SEPARATOR) ? src : src + Path.SEPARATOR;
+    synchronized (map) {
+      for (Iterator<String> i = map.keySet().iterator(); i.hasNext();) {
+        String path = i.next();
+        if (path.equals(src) || path.startsWith(prefix)) {
+          i.remove();
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * The streams add blocks to their located blocks as they read, so each
+   * of them gets its own list.
+   */
+  private static LocatedBlocks copy(LocatedBlocks blocks) {
+    return new LocatedBlocks(blocks.getFileLength(),
+        blocks.isUnderConstruction(),
+        new ArrayList<LocatedBlock>(blocks.getLocatedBlocks()),
+        blocks.getLastLocatedBlock(), blocks.isLastBlockComplete());
+  }
+
+  /** @return the number of opens which used cached locations */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of opens which fetched the locations */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the number of entries dropped before they expired */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A bounded pool of the buffers of the packets written by the output
+ * streams of a {@link DFSClient}, so that a client writing at a high rate
+ * does not allocate a new buffer for every packet.
+ * <p>
+ * The buffers are grouped in size classes, multiples of
+ * {@link #SIZE_CLASS_GRANULARITY} bytes: a buffer may be larger than the
+ * requested size. A buffer is returned to the pool once its packet has been
+ * acked by the pipeline. When the free buffers would take more than the
+ * capacity of the pool, a returned buffer is left to the garbage collector.
+ */
+@InterfaceAudience.Private
+public class PacketBufferPool {
+  static final int SIZE_CLASS_GRANULARITY = 4096;
+
+  private final long capacity;
+  /** The free buffers, by size class */
+  private final Map<Integer, ArrayDeque<byte[]>> buffers =
+      new HashMap<Integer, ArrayDeque<byte[]>>();
+  /** Total size of the free buffers */
+  private long pooledBytes = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong drops = new AtomicLong();
+
+  /**
+   * @param capacity maximum total size in bytes of the free buffers, 0 to
+   *        disable the pool
+   */
+  PacketBufferPool(long capacity) {
+    this.capacity = capacity;
+  }
+
+  boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  private static int getSizeClass(int size) {
+    return (size + SIZE_CLASS_GRANULARITY - 1) / SIZE_CLASS_GRANULARITY
+        * SIZE_CLASS_GRANULARITY;
+  }
+
+  /**
+   * @return a buffer of at least the given size, whose content is
+   *         undefined
+   */
+  byte[] getBuffer(int size) {
+    if (!isEnabled()) {
+      return new byte[size];
+    }
+    int sizeClass = getSizeClass(size);
+    synchronized (this) {
+      ArrayDeque<byte[]> free = buffers.get(sizeClass);
+      if (free != null && !free.isEmpty()) {
+        pooledBytes -= sizeClass;
+        hits.incrementAndGet();
+        return free.pollLast();
+      }
+    }
+    misses.incrementAndGet();
+    return new byte[sizeClass];
+  }
+
+  /** Give back a buffer obtained from {@link #getBuffer(int)} */
+  void returnBuffer(byte[] buf) {
+    if (!isEnabled() || buf.length % SIZE_CLASS_GRANULARITY != 0) {
+      return;
+    }
+    synchronized (this) {
+      if (pooledBytes + buf.length > capacity) {
+        drops.incrementAndGet();
+        return;
+      }
+      ArrayDeque<byte[]> free = buffers.get(buf.length);
+      if (free == null) {
+        free = new ArrayDeque<byte[]>();
+        buffers.put(buf.length, free);
+      }
+      free.addLast(buf);
+      pooledBytes += buf.length;
+    }
+  }
+
+  /** @return the number of buffers taken from the pool */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of buffers allocated as the pool had none */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the number of buffers not kept as the pool was full */
+  public long getDrops() {
+    return drops.get();
+  }
+
+  /** @return the total size of the free buffers in the pool */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+}
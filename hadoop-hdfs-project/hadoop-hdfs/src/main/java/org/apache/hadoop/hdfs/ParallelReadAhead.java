@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+
+/**
+ * Reads ahead of a sequential reader, with several ranges of the file read
+ * concurrently and delivered in order.
+ * <p>
+ * The file is read in units, which never span two blocks. Up to the given
+ * parallelism, the units following the read position are read at the same
+ * time, from a different replica for each unit of a block, so that the
+ * reader is not limited by the bandwidth of a single disk. The data is
+ * read into a pool of as many buffers as units in flight.
+ * <p>
+ * A unit is read with a single attempt, which does not take the lock of
+ * the stream. If it fails, the stream reads the range itself, with its
+ * usual error handling. Not thread safe, the stream calls it with its
+ * lock held.
+ */
+@InterfaceAudience.Private
+class ParallelReadAhead {
+  /** Where the units are read from */
+  interface Source {
+    /** @return the block holding the given offset of the file */
+    LocatedBlock getBlockAt(long offset) throws IOException;
+
+    /**
+     * Read a range of a block from one of its replicas.
+     * @param replica index of the preferred replica, may be larger than
+     *        the number of replicas
+     */
+    void readRange(LocatedBlock block, int replica, long offsetInBlock,
+        byte[] buf, int len) throws IOException;
+  }
+
+  /** A range of the file being read ahead */
+  static class Unit {
+    private final long offset;
+    private final int length;
+    private final byte[] data;
+    private Future<Void> future;
+    private boolean failed = false;
+
+    private Unit(long offset, int length, byte[] data) {
+      this.offset = offset;
+      this.length = length;
+      this.data = data;
+    }
+
+    /** @return the offset in the file of the first byte of the unit */
+    long getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+
+    /** @return the data of the unit, from index 0 */
+    byte[] getData() {
+      return data;
+    }
+
+    private long getEnd() {
+      return offset + length;
+    }
+  }
+
+  private final Source source;
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final int unitSize;
+  private final long fileLength;
+  /** The units being read or read, in file order */
+  private final Deque<Unit> units = new ArrayDeque<Unit>();
+  private final Deque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+  /** Offset of the next unit to schedule */
+  private long nextOffset = -1;
+  /** Number of units scheduled in the current block */
+  private int unitsInBlock = 0;
+  private long curBlockStart = -1;
+
+  /**
+   * @param parallelism maximum number of units read at the same time
+   * @param unitSize maximum size of a unit
+   * @param fileLength the length of the file, nothing is read beyond it
+   */
+  ParallelReadAhead(Source source, ExecutorService executor,
+      int parallelism, int unitSize, long fileLength) {
+    this.source = source;
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.unitSize = unitSize;
+    this.fileLength = fileLength;
+  }
+
+  /**
+   * Get the unit holding the given position, waiting for it to be read.
+   * The units before the position are released, and the reading of the
+   * following units is started.
+   * @return the unit, or null if the position must be read by the caller
+   */
+  Unit getUnit(long pos) throws IOException {
+    if (pos >= fileLength) {
+      return null;
+    }
+    while (!units.isEmpty() && pos >= units.peekFirst().getEnd()) {
+      release(units.pollFirst());
+    }
+    if (units.isEmpty() || pos < units.peekFirst().getOffset()) {
+      // first read, or the reader seeked
+      reset(pos);
+    }
+    schedule();
+
+    Unit unit = units.peekFirst();
+    if (!unit.failed) {
+      try {
+        unit.future.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while reading ahead"
+            + " at offset " + unit.getOffset());
+      } catch (ExecutionException e) {
+        DFSClient.LOG.info("Failed to read ahead " + unit.getLength()
+            + " bytes at offset " + unit.getOffset() + ": " + e.getCause());
+        unit.failed = true;
+      }
+    }
+    return unit.failed ? null : unit;
+  }
+
+  /** Start reading the units up to the parallelism */
+  private void schedule() throws IOException {
+    while (units.size() < parallelism && nextOffset < fileLength) {
+      final LocatedBlock block = source.getBlockAt(nextOffset);
+      long blockEnd = block.getStartOffset() + block.getBlockSize();
+      if (block.getStartOffset() != curBlockStart) {
+        curBlockStart = block.getStartOffset();
+        unitsInBlock = 0;
+      }
+      final int len = (int) Math.min(unitSize,
+          Math.min(blockEnd, fileLength) - nextOffset);
+      final long offsetInBlock = nextOffset - block.getStartOffset();
+      final int replica = unitsInBlock++;
+      byte[] buf = freeBuffers.pollFirst();
+      if (buf == null) {
+        buf = new byte[unitSize];
+      }
+      final Unit unit = new Unit(nextOffset, len, buf);
+      unit.future = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          source.readRange(block, replica, offsetInBlock, unit.data, len);
+          return null;
+        }
+      });
+      units.addLast(unit);
+      nextOffset += len;
+    }
+  }
+
+  /** Drop all the units, and read ahead from the given position */
+  private void reset(long pos) {
+    close();
+    nextOffset = pos;
+    curBlockStart = -1;
+  }
+
+  private void release(Unit unit) {
+    if (unit.future.isDone()) {
+      freeBuffers.addLast(unit.data);
+    } else {
+      // the buffer may still be written to, leave it to the GC
+      unit.future.cancel(false);
+    }
+  }
+
+  /** Stop reading ahead */
+  void close() {
+    while (!units.isEmpty()) {
+      release(units.pollFirst());
+    }
+  }
+}
@@ -85,6 +85,8 @@ public class RemoteBlockReader extends FSInputChecker implements BlockReader {
   private boolean sentStatusCode = false;
   
   byte[] skipBuf = null;
+  /** Used to copy the data read to a direct buffer */
+  private byte[] copyBuf = null;
   ByteBuffer checksumBytes = null;
   /** Amount of unread data in the current received packet */
   int dataLeft = 0;
@@ -424,6 +426,31 @@ public class RemoteBlockReader extends FSInputChecker implements BlockReader {
     // in will be closed when its Socket is closed.
   }
   
+  /**
+   * This reader only reads into a byte[]. Heap buffers are read into
+   * directly, direct buffers through a copy.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (buf.hasArray()) {
+      int nRead = read(buf.array(), buf.arrayOffset() + buf.position(),
+          buf.remaining());
+      if (nRead > 0) {
+        buf.position(buf.position() + nRead);
+      }
+      return nRead;
+    }
+    int len = Math.min(buf.remaining(), 64 * 1024);
+    if (copyBuf == null || copyBuf.length < len) {
+      copyBuf = new byte[len];
+    }
+    int nRead = read(copyBuf, 0, len);
+    if (nRead > 0) {
+      buf.put(copyBuf, 0, nRead);
+    }
+    return nRead;
+  }
+
   @Override
   public void readFully(byte[] buf, int readOffset, int amtToRead)
       throws IOException {
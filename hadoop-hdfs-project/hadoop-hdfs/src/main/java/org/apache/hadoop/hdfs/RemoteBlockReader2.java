@@ -140,6 +140,30 @@ public class RemoteBlockReader2  implements BlockReader {
     return nRead;
   }
 
+  /**
+   * The data is copied from the packet, which was received in a direct
+   * buffer, so a direct buffer is filled without going through the heap.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (curPacketBuf == null ||
+        curDataSlice.remaining() == 0 && bytesNeededToFinish > 0) {
+      readNextPacket();
+    }
+    if (curDataSlice.remaining() == 0) {
+      // we're at EOF now
+      return -1;
+    }
+
+    int nRead = Math.min(curDataSlice.remaining(), buf.remaining());
+    ByteBuffer writeSlice = curDataSlice.duplicate();
+    writeSlice.limit(writeSlice.position() + nRead);
+    buf.put(writeSlice);
+    curDataSlice.position(writeSlice.position());
+
+    return nRead;
+  }
+
   private void readNextPacket() throws IOException {
     Preconditions.checkState(curHeader == null || !curHeader.isLastPacketInBlock());
     
@@ -168,7 +192,12 @@ public class RemoteBlockReader2  implements BlockReader {
         readChannelFully(in, curPacketBuf);
         curPacketBuf.flip();
         if (verifyChecksum) {
-          verifyPacketChecksums();
+          try {
+            verifyPacketChecksums();
+          } catch (ChecksumException ce) {
+            sendChecksumError(dnSock);
+            throw ce;
+          }
         }
       }
       bytesNeededToFinish -= curHeader.getDataLen();
@@ -359,6 +388,20 @@ public class RemoteBlockReader2  implements BlockReader {
     }
   }
 
+  /**
+   * Let the DN know that the data it sent failed the checksum verification,
+   * so that it verifies its replica. The connection is not reused after
+   * that, since the rest of the data is not read.
+   */
+  private void sendChecksumError(Socket sock) {
+    try {
+      writeReadResult(sock, Status.ERROR_CHECKSUM);
+    } catch (IOException e) {
+      LOG.debug("Could not send checksum error to datanode "
+          + sock.getInetAddress(), e);
+    }
+  }
+
   /**
    * Serialize the actual read result on the wire.
    */
@@ -18,59 +18,140 @@
 
 package org.apache.hadoop.hdfs;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.LinkedListMultimap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Daemon;
 
 /**
- * A cache of sockets.
+ * A cache of sockets to datanodes, kept open between the reads of a client
+ * so that a read does not pay for the setup of a TCP connection.
+ * <p>
+ * A datanode closes a connection which stays idle longer than its
+ * keepalive timeout. The cache does not give out the sockets idle for
+ * longer than the expiry time, which should be lower than that timeout,
+ * nor the sockets whose peer has closed the connection. A reaper thread,
+ * running while the cache is not empty, closes the expired sockets.
+ * <p>
+ * The most recently cached socket to an address is given out first. At
+ * most a given number of sockets to an address are kept, so that a few
+ * datanodes cannot take the whole cache, and the least recently cached
+ * socket is evicted when the cache is full.
  */
-class SocketCache {
+@InterfaceAudience.Private
+public class SocketCache {
   static final Log LOG = LogFactory.getLog(SocketCache.class);
 
-  private final LinkedListMultimap<SocketAddress, Socket> multimap;
+  private static class CachedSocket {
+    final Socket sock;
+    final long time;
+
+    CachedSocket(Socket sock, long time) {
+      this.sock = sock;
+      this.time = time;
+    }
+  }
+
+  private final LinkedListMultimap<SocketAddress, CachedSocket> multimap;
   private final int capacity;
+  private final int capacityPerAddress;
+  private final long expiryMillis;
+  private Daemon reaper = null;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
 
   /**
-   * Create a SocketCache with the given capacity.
+   * Create a SocketCache with the given capacity, whose sockets do not
+   * expire.
    * @param capacity  Max cache size.
    */
   public SocketCache(int capacity) {
+    this(capacity, capacity, 0);
+  }
+
+  /**
+   * Create a SocketCache.
+   * @param capacity  Max cache size.
+   * @param capacityPerAddress  Max number of sockets to a same address.
+   * @param expiryMillis  Time after which an unused socket is closed, 0 for
+   *                      no expiry.
+   */
+  public SocketCache(int capacity, int capacityPerAddress,
+      long expiryMillis) {
     multimap = LinkedListMultimap.create();
     this.capacity = capacity;
+    this.capacityPerAddress = capacityPerAddress;
+    this.expiryMillis = expiryMillis;
   }
 
   /**
    * Get a cached socket to the given address.
    * @param remote  Remote address the socket is connected to.
-   * @return  A socket with unknown state, possibly closed underneath. Or null.
+   * @return  A socket, not closed by the peer as far as can be told, and
+   *          not expired. Or null.
    */
   public synchronized Socket get(SocketAddress remote) {
-    List<Socket> socklist = multimap.get(remote);
-    if (socklist == null) {
-      return null;
-    }
-
-    Iterator<Socket> iter = socklist.iterator();
-    while (iter.hasNext()) {
-      Socket candidate = iter.next();
+    List<CachedSocket> socklist = multimap.get(remote);
+    long now = System.currentTimeMillis();
+    ListIterator<CachedSocket> iter = socklist.listIterator(socklist.size());
+    while (iter.hasPrevious()) {
+      CachedSocket candidate = iter.previous();
       iter.remove();
-      if (!candidate.isClosed()) {
-        return candidate;
+      if (isExpired(candidate, now)) {
+        expired.incrementAndGet();
+        IOUtils.closeSocket(candidate.sock);
+      } else if (candidate.sock.isClosed() || isClosedByPeer(candidate.sock)) {
+        stale.incrementAndGet();
+        IOUtils.closeSocket(candidate.sock);
+      } else {
+        hits.incrementAndGet();
+        return candidate.sock;
       }
     }
+    misses.incrementAndGet();
     return null;
   }
 
+  private boolean isExpired(CachedSocket cached, long now) {
+    return expiryMillis > 0 && now - cached.time >= expiryMillis;
+  }
+
+  /**
+   * Check whether the peer closed the connection, or sent unexpected data,
+   * with a read which does not block. The sockets which are not in
+   * non-blocking mode, such as the ones without a channel, are not checked.
+   */
+  private static boolean isClosedByPeer(Socket sock) {
+    SocketChannel channel = sock.getChannel();
+    if (channel == null || channel.isBlocking()) {
+      return false;
+    }
+    try {
+      return channel.read(ByteBuffer.allocate(1)) != 0;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
   /**
    * Give an unused socket to the cache.
    * @param sock socket not used by anyone.
@@ -85,11 +166,21 @@ class SocketCache {
       IOUtils.closeSocket(sock);
       return;
     }
+    if (capacity <= 0 || capacityPerAddress <= 0) {
+      IOUtils.closeSocket(sock);
+      return;
+    }
 
-    if (capacity == multimap.size()) {
+    List<CachedSocket> socklist = multimap.get(remoteAddr);
+    if (socklist.size() >= capacityPerAddress) {
+      evicted.incrementAndGet();
+      IOUtils.closeSocket(socklist.remove(0).sock);
+    } else if (capacity == multimap.size()) {
       evictOldest();
     }
-    multimap.put(remoteAddr, sock);
+    multimap.put(remoteAddr,
+        new CachedSocket(sock, System.currentTimeMillis()));
+    startReaper();
   }
 
   public synchronized int size() {
@@ -100,25 +191,116 @@ class SocketCache {
    * Evict the oldest entry in the cache.
    */
   private synchronized void evictOldest() {
-    Iterator<Entry<SocketAddress, Socket>> iter =
+    Iterator<Entry<SocketAddress, CachedSocket>> iter =
       multimap.entries().iterator();
     if (!iter.hasNext()) {
       throw new IllegalStateException("Cannot evict from empty cache!");
     }
-    Entry<SocketAddress, Socket> entry = iter.next();
+    Entry<SocketAddress, CachedSocket> entry = iter.next();
     iter.remove();
-    Socket sock = entry.getValue();
-    IOUtils.closeSocket(sock);
+    evicted.incrementAndGet();
+    IOUtils.closeSocket(entry.getValue().sock);
+  }
+
+  /**
+   * Close the expired sockets.
+   * @return whether the cache is empty
+   */
+  private synchronized boolean closeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry<SocketAddress, CachedSocket>> iter =
+      multimap.entries().iterator();
+    // the entries are in the order they were cached
+    while (iter.hasNext()) {
+      CachedSocket cached = iter.next().getValue();
+      if (!isExpired(cached, now)) {
+        break;
+      }
+      iter.remove();
+      expired.incrementAndGet();
+      IOUtils.closeSocket(cached.sock);
+    }
+    return multimap.isEmpty();
+  }
+
+  /** Start the reaper thread if it does not run */
+  private synchronized void startReaper() {
+    if (expiryMillis <= 0 || reaper != null) {
+      return;
+    }
+    reaper = new Daemon(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(Math.max(expiryMillis / 2, 1));
+            synchronized (SocketCache.this) {
+              if (reaper != Thread.currentThread() || closeExpired()) {
+                // the cache was cleared or is empty
+                if (reaper == Thread.currentThread()) {
+                  reaper = null;
+                }
+                return;
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          synchronized (SocketCache.this) {
+            if (reaper == Thread.currentThread()) {
+              reaper = null;
+            }
+          }
+        }
+      }
+    });
+    reaper.setName("SocketCache reaper");
+    reaper.start();
   }
 
   /**
    * Empty the cache, and close all sockets.
    */
   public synchronized void clear() {
-    for (Socket sock : multimap.values()) {
-      IOUtils.closeSocket(sock);
+    for (CachedSocket cached : multimap.values()) {
+      IOUtils.closeSocket(cached.sock);
     }
     multimap.clear();
+    if (reaper != null) {
+      reaper.interrupt();
+      reaper = null;
+    }
+  }
+
+  /** @return the number of sockets given out by the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of requests for which no socket was cached */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the fraction of the requests for which a socket was reused */
+  public float getReuseRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (float)h / total;
+  }
+
+  /** @return the number of sockets closed as they expired */
+  public long getExpired() {
+    return expired.get();
+  }
+
+  /** @return the number of cached sockets found closed by their peer */
+  public long getStale() {
+    return stale.get();
+  }
+
+  /** @return the number of sockets evicted as the cache was full */
+  public long getEvicted() {
+    return evicted.get();
   }
 
   protected void finalize() {
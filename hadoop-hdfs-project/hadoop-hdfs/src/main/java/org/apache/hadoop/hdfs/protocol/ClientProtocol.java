@@ -535,6 +535,18 @@ public interface ClientProtocol extends VersionedProtocol {
   public void renewLease(String clientName) throws AccessControlException,
       IOException;
 
+  /**
+   * Renew the leases of many clients at once, as {@link #renewLease(String)}
+   * does for each of them. Used by the clients of a process sharing a
+   * single lease renewer, so that they do not each call the namenode.
+   *
+   * @param clientNames the names of the clients whose leases are renewed
+   * @throws AccessControlException permission denied
+   * @throws IOException If an I/O error occurred
+   */
+  public void renewLeases(String[] clientNames)
+      throws AccessControlException, IOException;
+
   /**
    * Start lease recovery.
    * Lightweight NameNode operation to trigger lease recovery
@@ -75,6 +75,9 @@ public interface DataTransferProtocol {
    * @param minBytesRcvd minimum number of bytes received.
    * @param maxBytesRcvd maximum number of bytes received.
    * @param latestGenerationStamp the latest generation stamp of the block.
+   * @param requestedChecksum the checksum the client uses for the block.
+   * @param allowLazyPersist true if the datanodes may keep the replica in
+   *        memory and persist it to disk asynchronously.
    */
   public void writeBlock(final ExtendedBlock blk,
       final Token<BlockTokenIdentifier> blockToken,
@@ -86,7 +89,8 @@ public interface DataTransferProtocol {
       final long minBytesRcvd,
       final long maxBytesRcvd,
       final long latestGenerationStamp,
-      final DataChecksum requestedChecksum) throws IOException;
+      final DataChecksum requestedChecksum,
+      final boolean allowLazyPersist) throws IOException;
 
   /**
    * Transfer a block to another datanode.
@@ -104,7 +104,8 @@ public abstract class Receiver implements DataTransferProtocol {
         proto.getPipelineSize(),
         proto.getMinBytesRcvd(), proto.getMaxBytesRcvd(),
         proto.getLatestGenerationStamp(),
-        fromProto(proto.getRequestedChecksum()));
+        fromProto(proto.getRequestedChecksum()),
+        proto.getAllowLazyPersist());
   }
 
   /** Receive {@link Op#TRANSFER_BLOCK} */
@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.ReadaheadPool;
+import org.apache.hadoop.io.ReadaheadPool.ReadaheadRequest;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+/**
+ * Chooses the readahead and cache-drop policy of block reads from the
+ * access pattern observed on each block.
+ * <p>
+ * A read is sequential if it starts where the previous read of the same
+ * block stopped, or if it covers a long range. Sequential reads are read
+ * ahead with a window which starts at the initial size and doubles every
+ * time a readahead is issued, up to the maximum size, and carries over to
+ * the next read of the block. The pages behind a sequential reader are
+ * dropped from the OS buffer cache. All other reads are random: the kernel
+ * readahead is disabled for them and their pages are kept in the cache,
+ * since random workloads such as HBase are likely to read them again.
+ * <p>
+ * Bytes read which were covered by an earlier readahead are counted as
+ * readahead hits, bytes read ahead but never read before the sequential
+ * run ends are counted as waste.
+ */
+@InterfaceAudience.Private
+class AdaptiveReadahead {
+  /** Reads longer than this are sequential even without history */
+  static final long LONG_READ_THRESHOLD_BYTES = 256 * 1024;
+  /**
+   * A read starting within this distance of the end of the previous read
+   * of the block continues its sequential run. This allows for the
+   * alignment of reads to checksum chunks.
+   */
+  static final long SEQUENTIAL_GAP_BYTES = 64 * 1024;
+  /** Initial window used if no readahead length is configured */
+  static final long DEFAULT_INITIAL_WINDOW = 256 * 1024;
+  private static final long CACHE_DROP_INTERVAL_BYTES = 1024 * 1024; // 1MB
+  /** Maximum number of blocks for which the access history is kept */
+  private static final int MAX_HISTORY = 4096;
+
+  /** The state of a block at the end of its last read */
+  private static class History {
+    final long nextOffset;
+    final long window;
+    final long readaheadEnd;
+
+    History(long nextOffset, long window, long readaheadEnd) {
+      this.nextOffset = nextOffset;
+      this.window = window;
+      this.readaheadEnd = readaheadEnd;
+    }
+  }
+
+  private final ReadaheadPool readaheadPool;
+  private final long initialWindow;
+  private final long maxWindow;
+  private final DataNodeMetrics metrics;
+  private final Map<String, History> history =
+      new LinkedHashMap<String, History>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, History> e) {
+          if (size() > MAX_HISTORY) {
+            endRun(e.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+
+  /**
+   * @param readaheadPool pool issuing the readahead requests, null if
+   *        readahead is not available
+   * @param initialWindow initial readahead window of sequential reads,
+   *        {@link #DEFAULT_INITIAL_WINDOW} if not positive
+   * @param maxWindow maximum readahead window of sequential reads
+   */
+  AdaptiveReadahead(ReadaheadPool readaheadPool, long initialWindow,
+      long maxWindow, DataNodeMetrics metrics) {
+    this.readaheadPool = readaheadPool;
+    this.initialWindow = initialWindow > 0
+        ? initialWindow : DEFAULT_INITIAL_WINDOW;
+    this.maxWindow = Math.max(maxWindow, this.initialWindow);
+    this.metrics = metrics;
+  }
+
+  /**
+   * Start a read of a block.
+   * @param block the block being read
+   * @param offset offset of the first byte to read
+   * @param endOffset offset following the last byte to read
+   * @param maxOffset offset up to which the block may be read ahead
+   * @param fd the file descriptor of the block file
+   * @return the stream managing the OS cache for this read
+   */
+  Stream open(ExtendedBlock block, long offset, long endOffset,
+      long maxOffset, FileDescriptor fd) {
+    String key = block.getBlockPoolId() + ":" + block.getBlockId();
+    History last;
+    synchronized (history) {
+      last = history.remove(key);
+    }
+    Stream s;
+    if (last != null
+        && Math.abs(offset - last.nextOffset) <= SEQUENTIAL_GAP_BYTES) {
+      s = new Stream(key, block.toString(), fd, true, offset, maxOffset,
+          last.window, Math.max(offset, last.readaheadEnd));
+    } else {
+      if (last != null) {
+        endRun(last);
+      }
+      s = new Stream(key, block.toString(), fd,
+          endOffset - offset > LONG_READ_THRESHOLD_BYTES, offset, maxOffset,
+          initialWindow, offset);
+    }
+    metrics.incrReadaheadStreams(s.sequential);
+    return s;
+  }
+
+  /** Account for the bytes read ahead but not read in a sequential run */
+  private void endRun(History h) {
+    if (h.readaheadEnd > h.nextOffset) {
+      metrics.incrReadaheadWastedBytes(h.readaheadEnd - h.nextOffset);
+    }
+  }
+
+  /**
+   * Issue a readahead request.
+   * @return the pending request, or null if no readahead was issued
+   */
+  ReadaheadRequest submitReadahead(String identifier, FileDescriptor fd,
+      long off, long len) {
+    if (readaheadPool == null) {
+      return null;
+    }
+    return readaheadPool.submitReadahead(identifier, fd, off, len);
+  }
+
+  /**
+   * Manages the OS buffer cache for a single read of a block. Not thread
+   * safe, a stream is only used by the thread sending the block.
+   */
+  class Stream {
+    private final String key;
+    private final String identifier;
+    private final FileDescriptor fd;
+    private final boolean sequential;
+    private final long maxOffset;
+    private long window;
+    /** Offset following the last byte read ahead */
+    private long readaheadEnd;
+    private ReadaheadRequest curReadahead;
+    /** Read position at the previous call to {@link #readAt(long)} */
+    private long lastOffset;
+    private long lastCacheDropOffset;
+
+    private Stream(String key, String identifier, FileDescriptor fd,
+        boolean sequential, long offset, long maxOffset, long window,
+        long readaheadEnd) {
+      this.key = key;
+      this.identifier = identifier;
+      this.fd = fd;
+      this.sequential = sequential;
+      this.maxOffset = maxOffset;
+      this.window = window;
+      this.readaheadEnd = readaheadEnd;
+      this.lastOffset = offset;
+      this.lastCacheDropOffset = offset;
+    }
+
+    boolean isSequential() {
+      return sequential;
+    }
+
+    long getWindow() {
+      return window;
+    }
+
+    /** Advise the kernel of the access pattern of the block file */
+    void start() throws IOException {
+      NativeIO.posixFadviseIfPossible(fd, 0, 0, sequential
+          ? NativeIO.POSIX_FADV_SEQUENTIAL : NativeIO.POSIX_FADV_RANDOM);
+    }
+
+    /**
+     * Called before reading from the given offset. Reads ahead and drops
+     * the data behind the reader as needed.
+     */
+    void readAt(long offset) throws IOException {
+      long hit = Math.min(offset, readaheadEnd) - lastOffset;
+      if (hit > 0) {
+        metrics.incrReadaheadHitBytes(hit);
+      }
+      lastOffset = offset;
+      if (!sequential) {
+        return;
+      }
+
+      // read ahead once less than half of the window is left, so that
+      // the readahead is done before the reader gets there
+      if (readaheadEnd - offset < window / 2) {
+        long start = Math.max(offset, readaheadEnd);
+        long len = Math.min(offset + window, maxOffset) - start;
+        if (len > 0) {
+          ReadaheadRequest req = submitReadahead(identifier, fd, start, len);
+          if (req != null) {
+            curReadahead = req;
+            readaheadEnd = start + len;
+            metrics.incrReadaheadBytes(len);
+            window = Math.min(window * 2, maxWindow);
+          }
+        }
+      }
+
+      // drop what we've just read from the cache, since we aren't
+      // likely to need it again
+      if (offset >= lastCacheDropOffset + CACHE_DROP_INTERVAL_BYTES) {
+        NativeIO.posixFadviseIfPossible(fd, lastCacheDropOffset,
+            offset - lastCacheDropOffset, NativeIO.POSIX_FADV_DONTNEED);
+        lastCacheDropOffset = offset;
+      }
+    }
+
+    /**
+     * End the read. Must be called before closing the file descriptor.
+     * @param offset offset following the last byte read
+     */
+    void close(long offset) {
+      try {
+        readAt(offset);
+        if (sequential && offset > lastCacheDropOffset) {
+          NativeIO.posixFadviseIfPossible(fd, lastCacheDropOffset,
+              offset - lastCacheDropOffset, NativeIO.POSIX_FADV_DONTNEED);
+        }
+      } catch (IOException e) {
+        BlockSender.LOG.warn("Unable to drop cache on file close", e);
+      }
+      if (curReadahead != null) {
+        curReadahead.cancel();
+        curReadahead = null;
+      }
+      History h = new History(offset, window, Math.max(offset, readaheadEnd));
+      synchronized (history) {
+        history.put(key, h);
+      }
+    }
+  }
+}
@@ -23,12 +23,11 @@ import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -55,13 +54,18 @@ import org.apache.hadoop.io.IOUtils;
  * files are not corrupt.
  * This keeps track of blocks and their last verification times.
  * Currently it does not modify the metadata for block.
+ * <p>
+ * Blocks suspected to be corrupt are scanned first, then blocks which
+ * were never verified, then the blocks verified longest ago. A block read
+ * entirely by a client which verified its checksums counts as verified.
+ * The verification times are periodically saved to a
+ * {@link BlockScanProgress} file so that they survive restarts.
  */
 
 class BlockPoolSliceScanner {
   
   public static final Log LOG = LogFactory.getLog(BlockPoolSliceScanner.class);
   
-  private static final int MAX_SCAN_RATE = 8 * 1024 * 1024; // 8MB per sec
   private static final int MIN_SCAN_RATE = 1 * 1024 * 1024; // 1MB per sec
   
   static final long DEFAULT_SCAN_PERIOD_HOURS = 21*24L; // three weeks
@@ -69,10 +73,16 @@ class BlockPoolSliceScanner {
   
   private static final String dateFormatString = "yyyy-MM-dd HH:mm:ss,SSS";
   
+  /** Prefix of the text verification log written by earlier versions */
   static final String verificationLogFile = "dncp_block_verification.log";
-  static final int verficationLogLimit = 5; // * numBlocks.
+  /** Interval at which the scan progress is saved while scanning */
+  static final long PROGRESS_SAVE_INTERVAL_MS = 10 * 60 * 1000L;
+  /** Interval at which the bandwidth follows the foreground load */
+  private static final long THROTTLER_ADJUST_INTERVAL_MS = 1000L;
 
   private long scanPeriod = DEFAULT_SCAN_PERIOD_HOURS * 3600 * 1000;
+  private final long maxScanRate;
+  private final boolean loadAdaptive;
   private DataNode datanode;
   private final FSDatasetInterface dataset;
   
@@ -93,12 +103,21 @@ class BlockPoolSliceScanner {
   private long bytesLeft = 0; // Bytes to scan in this period
   private long totalBytesToScan = 0;
   
-  private LogFileHandler verificationLog;
+  /** File the verification times are saved to */
+  private File progressFile = null;
+  /** Directory of the verification log of earlier versions, if any */
+  private File legacyLogDir = null;
+  private boolean progressLoaded = false;
+  /** Set when verification times changed since the progress was saved */
+  private boolean progressChanged = false;
+  private long lastProgressSave = 0;
+  private volatile long lastThrottlerAdjustment = 0;
   
   private DataTransferThrottler throttler = null;
   
   private static enum ScanType {
     VERIFICATION_SCAN,     // scanned as part of periodic verfication
+    CLIENT_READ,           // verified by a client reading the whole block
     NONE,
   }
   
@@ -107,6 +126,8 @@ class BlockPoolSliceScanner {
     long lastScanTime = 0;
     ScanType lastScanType = ScanType.NONE; 
     boolean lastScanOk = true;
+    /** Set when an error suggests the block may be corrupt */
+    boolean suspect = false;
     
     BlockScanInfo(Block block) {
       this.block = block;
@@ -125,7 +146,17 @@ class BlockPoolSliceScanner {
       return (lastScanType == ScanType.NONE) ? 0 : lastScanTime;
     }
     
+    /** Blocks with a lower priority value are scanned first */
+    int getPriority() {
+      return suspect ? 0 : (lastScanType == ScanType.NONE ? 1 : 2);
+    }
+    
     public int compareTo(BlockScanInfo other) {
+      int p1 = getPriority();
+      int p2 = other.getPriority();
+      if (p1 != p2) {
+        return p1 < p2 ? -1 : 1;
+      }
       long t1 = lastScanTime;
       long t2 = other.lastScanTime;
       return ( t1 < t2 ) ? -1 : 
@@ -144,6 +175,12 @@ class BlockPoolSliceScanner {
       scanPeriod = DEFAULT_SCAN_PERIOD_HOURS;
     }
     scanPeriod *= 3600 * 1000;
+    maxScanRate = Math.max(MIN_SCAN_RATE, conf.getLong(
+        DFSConfigKeys.DFS_DATANODE_SCAN_MAX_BANDWIDTHPERSEC_KEY,
+        DFSConfigKeys.DFS_DATANODE_SCAN_MAX_BANDWIDTHPERSEC_DEFAULT));
+    loadAdaptive = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_SCAN_LOAD_ADAPTIVE_KEY,
+        DFSConfigKeys.DFS_DATANODE_SCAN_LOAD_ADAPTIVE_DEFAULT);
     LOG.info("Periodic Block Verification scan initialized with interval " + scanPeriod + ".");
   }
   
@@ -183,14 +220,15 @@ class BlockPoolSliceScanner {
     }
   }
   
-  /** Update blockMap by the given LogEntry */
-  private synchronized void updateBlockInfo(LogEntry e) {
-    BlockScanInfo info = blockMap.get(new Block(e.blockId, 0, e.genStamp));
+  /** Update blockMap by a previously saved verification time */
+  private synchronized void updateBlockInfo(long blockId, long genStamp,
+      long verificationTime) {
+    BlockScanInfo info = blockMap.get(new Block(blockId, 0, genStamp));
     
-    if(info != null && e.verificationTime > 0 && 
-        info.lastScanTime < e.verificationTime) {
+    if(info != null && verificationTime > 0 && 
+        info.lastScanTime < verificationTime) {
       delBlockInfo(info);
-      info.lastScanTime = e.verificationTime;
+      info.lastScanTime = verificationTime;
       info.lastScanType = ScanType.VERIFICATION_SCAN;
       addBlockInfo(info);
     }
@@ -212,32 +250,41 @@ class BlockPoolSliceScanner {
       addBlockInfo(info);
     }
 
-    /* Pick the first directory that has any existing scanner log.
-     * otherwise, pick the first directory.
+    /* Pick the first directory that has a progress file, otherwise the
+     * first directory with a verification log of an earlier version,
+     * otherwise the first directory.
      */
     File dir = null;
     List<FSVolumeInterface> volumes = dataset.getVolumes();
     for (FSVolumeInterface vol : volumes) {
       File bpDir = vol.getDirectory(blockPoolId);
-      if (LogFileHandler.isFilePresent(bpDir, verificationLogFile)) {
+      if (new File(bpDir, BlockScanProgress.FILE_NAME).exists()) {
         dir = bpDir;
         break;
       }
+      if (legacyLogDir == null
+          && LegacyLog.isFilePresent(bpDir, verificationLogFile)) {
+        legacyLogDir = bpDir;
+      }
     }
     if (dir == null) {
-      dir = volumes.get(0).getDirectory(blockPoolId);
-    }
-    
-    try {
-      // max lines will be updated later during initialization.
-      verificationLog = new LogFileHandler(dir, verificationLogFile, 100);
-    } catch (IOException e) {
-      LOG.warn("Could not open verfication log. " +
-               "Verification times are not stored.");
+      dir = legacyLogDir != null ? legacyLogDir
+          : volumes.get(0).getDirectory(blockPoolId);
     }
+    progressFile = new File(dir, BlockScanProgress.FILE_NAME);
     
     synchronized (this) {
-      throttler = new DataTransferThrottler(200, MAX_SCAN_RATE);
+      throttler = new DataTransferThrottler(200, maxScanRate) {
+        @Override
+        public void throttle(long numOfBytes) {
+          // follow changes of the foreground load while scanning a block
+          if (loadAdaptive && System.currentTimeMillis()
+              - lastThrottlerAdjustment >= THROTTLER_ADJUST_INTERVAL_MS) {
+            adjustThrottler();
+          }
+          super.throttle(numOfBytes);
+        }
+      };
     }
   }
 
@@ -282,6 +329,41 @@ class BlockPoolSliceScanner {
     }
   }
 
+  /**
+   * Mark a block as verified after a client read it entirely and
+   * verified its checksums, so that the scanner does not verify it again
+   * before the end of the scan period.
+   */
+  synchronized void verifiedByClient(Block block) {
+    BlockScanInfo info = isInitialized() ? blockMap.get(block) : null;
+    if (info != null) {
+      updateScanStatus(block, ScanType.CLIENT_READ, true);
+      // skip the block in the current run
+      if (processedBlocks != null
+          && processedBlocks.get(block.getBlockId()) == null) {
+        updateBytesLeft(-info.block.getNumBytes());
+        processedBlocks.put(block.getBlockId(), 1);
+      }
+    }
+  }
+
+  /** Mark a block as suspect so that it is scanned as soon as possible */
+  synchronized void markSuspectBlock(Block block) {
+    if (!isInitialized()) {
+      return;
+    }
+    BlockScanInfo info = blockMap.get(block);
+    if (info != null && !info.suspect) {
+      delBlockInfo(info);
+      info.suspect = true;
+      addBlockInfo(info);
+      if (processedBlocks != null) {
+        processedBlocks.remove(block.getBlockId());
+      }
+      LOG.info("Marked " + block + " as suspect");
+    }
+  }
+
   /** @return the last scan time */
   synchronized long getLastScanTime(Block block) {
     if (!isInitialized()) {
@@ -313,21 +395,12 @@ class BlockPoolSliceScanner {
       info = new BlockScanInfo(block);
     }
     
-    long now = System.currentTimeMillis();
     info.lastScanType = type;
-    info.lastScanTime = now;
+    info.lastScanTime = System.currentTimeMillis();
     info.lastScanOk = scanOk;
+    info.suspect = false;
     addBlockInfo(info);
-        
-    // Don't update meta data if the verification failed.
-    if (!scanOk) {
-      return;
-    }
-    
-    LogFileHandler log = verificationLog;
-    if (log != null) {
-      log.appendLine(now, block.getGenerationStamp(), block.getBlockId());
-    }
+    progressChanged = true;
   }
   
   private void handleScanFailure(ExtendedBlock block) {
@@ -380,10 +453,29 @@ class BlockPoolSliceScanner {
     }
   }
   
+  /**
+   * Set the bandwidth needed to scan the remaining bytes in the current
+   * period. If the scan is load adaptive, scan at the maximum rate while
+   * the datanode serves no foreground I/O, and slow down in proportion to
+   * the number of foreground transfers otherwise.
+   */
   private synchronized void adjustThrottler() {
-    long timeLeft = currentPeriodStart+scanPeriod - System.currentTimeMillis();
+    long now = System.currentTimeMillis();
+    long timeLeft = currentPeriodStart+scanPeriod - now;
     long bw = Math.max(bytesLeft*1000/timeLeft, MIN_SCAN_RATE);
-    throttler.setBandwidth(Math.min(bw, MAX_SCAN_RATE));
+    bw = Math.min(bw, maxScanRate);
+    if (loadAdaptive) {
+      int load = getForegroundLoad();
+      bw = (load == 0) ? maxScanRate : Math.max(bw / (1 + load), MIN_SCAN_RATE);
+    }
+    throttler.setBandwidth(bw);
+    lastThrottlerAdjustment = now;
+  }
+
+  /** @return the number of data transfers served by the datanode */
+  private int getForegroundLoad() {
+    // the xceiver count includes the thread accepting the transfers
+    return Math.max(0, datanode.getXceiverCount() - 1);
   }
   
   private void verifyBlock(ExtendedBlock block) {
@@ -485,7 +577,9 @@ class BlockPoolSliceScanner {
     }
     if ( block != null ) {
       verifyBlock(new ExtendedBlock(blockPoolId, block));
-      processedBlocks.put(block.getBlockId(), 1);
+      synchronized (this) {
+        processedBlocks.put(block.getBlockId(), 1);
+      }
     }
   }
   
@@ -495,100 +589,168 @@ class BlockPoolSliceScanner {
   }
 
   /**
-   * Reads the current and previous log files (if any) and marks the blocks
-   * processed if they were processed within last scan period. Copies the log
-   * records of recently scanned blocks from previous to current file. 
-   * Returns false if the process was interrupted because the thread is marked 
-   * to exit.
+   * Loads the verification times saved by a previous run on the first call,
+   * and marks the blocks processed if they were verified within the last
+   * scan period, in this run or before a restart, unless they are suspect.
+   * The other blocks are scanned in the order of their last verification.
+   * Returns false if the process was interrupted because the thread is
+   * marked to exit.
    */
   private boolean assignInitialVerificationTimes() {
     int numBlocks = 1;
-    LogFileHandler log = null;
     synchronized (this) {
-      log = verificationLog;
       numBlocks = Math.max(blockMap.size(), 1);
     }
 
+    if (!progressLoaded) {
+      if (!loadProgress()) {
+        return false;
+      }
+      progressLoaded = true;
+    }
+
+    // Blocks verified within the scan period, in this run or in the
+    // progress saved before a restart, are not verified again this period
     long now = System.currentTimeMillis();
-    LogFileHandler.Reader logReader[] = new LogFileHandler.Reader[2];
-    try {
-      if (log != null) {
-        logReader[0] = log.getCurrentFileReader();
-        logReader[1] = log.getPreviousFileReader();
+    synchronized (this) {
+      for (BlockScanInfo info : blockMap.values()) {
+        if (info.lastScanType != ScanType.NONE && !info.suspect
+            && now - info.lastScanTime < scanPeriod
+            && processedBlocks.get(info.block.getBlockId()) == null) {
+          updateBytesLeft(-info.block.getNumBytes());
+          processedBlocks.put(info.block.getBlockId(), 1);
+        }
+      }
+    }
+
+    /* Initially spread the block reads over half of 
+     * MIN_SCAN_PERIOD so that we don't keep scanning the 
+     * blocks too quickly when restarted.
+     */
+    long verifyInterval = (long) (Math.min( scanPeriod/2.0/numBlocks,
+                                            10*60*1000 ));
+    long lastScanTime = System.currentTimeMillis() - scanPeriod;
+    
+    /* Before this loop, entries in blockInfoSet that are not
+     * updated above have lastScanTime of <= 0 . Assign them times in
+     * the order of the set.
+     */    
+    synchronized (this) {
+      List<BlockScanInfo> unassigned = new ArrayList<BlockScanInfo>();
+      for (BlockScanInfo info : blockInfoSet) {
+        if (info.lastScanTime < 0) {
+          unassigned.add(info);
+        }
+      }
+      for (BlockScanInfo info : unassigned) {
+        delBlockInfo(info);        
+        info.lastScanTime = lastScanTime;
+        lastScanTime += verifyInterval;
+        addBlockInfo(info);
       }
-    } catch (IOException e) {
-      LOG.warn("Could not read previous verification times", e);
     }
     
+    return true;
+  }
+
+  /**
+   * Load the verification times from the progress file, or from the
+   * verification log of an earlier version if there is no progress file.
+   * Returns false if the process was interrupted because the thread is
+   * marked to exit.
+   */
+  private boolean loadProgress() {
+    List<BlockScanProgress.Entry> entries =
+        BlockScanProgress.load(progressFile);
+    if (entries != null) {
+      for (BlockScanProgress.Entry e : entries) {
+        updateBlockInfo(e.blockId, e.genStamp, e.verificationTime);
+      }
+      return true;
+    }
+    if (legacyLogDir == null) {
+      return true;
+    }
+
+    LegacyLog.Reader logReader[] = new LegacyLog.Reader[2];
     try {
-      for (LogFileHandler.Reader reader : logReader) {
-      // update verification times from the verificationLog.
-        while (logReader != null && reader.hasNext()) {
+      logReader[0] = new LegacyLog.Reader(
+          LegacyLog.getCurrentFile(legacyLogDir, verificationLogFile));
+      logReader[1] = new LegacyLog.Reader(
+          LegacyLog.getPreviousFile(legacyLogDir, verificationLogFile));
+      for (LegacyLog.Reader reader : logReader) {
+        while (reader.hasNext()) {
           if (!datanode.shouldRun
               || datanode.blockScanner.blockScannerThread.isInterrupted()) {
             return false;
           }
           LogEntry entry = LogEntry.parseEntry(reader.next());
           if (entry != null) {
-            updateBlockInfo(entry);
-            if (now - entry.verificationTime < scanPeriod) {
-              BlockScanInfo info = blockMap.get(new Block(entry.blockId, 0,
-                  entry.genStamp));
-              if (info != null) {
-                if (processedBlocks.get(entry.blockId) == null) {
-                  updateBytesLeft(-info.block.getNumBytes());
-                  processedBlocks.put(entry.blockId, 1);
-                }
-                if (reader.file == log.prevFile) {
-                  // write the log entry to current file
-                  // so that the entry is preserved for later runs.
-                  log.appendLine(entry.verificationTime, entry.genStamp,
-                      entry.blockId);
-                }
-              }
-            }
+            updateBlockInfo(entry.blockId, entry.genStamp,
+                entry.verificationTime);
           }
         }
       }
+    } catch (IOException e) {
+      LOG.warn("Could not read previous verification times", e);
     } finally {
       IOUtils.closeStream(logReader[0]);
       IOUtils.closeStream(logReader[1]);
     }
-    
-    /* Initially spread the block reads over half of 
-     * MIN_SCAN_PERIOD so that we don't keep scanning the 
-     * blocks too quickly when restarted.
-     */
-    long verifyInterval = (long) (Math.min( scanPeriod/2.0/numBlocks,
-                                            10*60*1000 ));
-    long lastScanTime = System.currentTimeMillis() - scanPeriod;
-    
-    /* Before this loop, entries in blockInfoSet that are not
-     * updated above have lastScanTime of <= 0 . Loop until first entry has
-     * lastModificationTime > 0.
-     */    
+
+    // the verification times are in the progress file from now on
     synchronized (this) {
-      if (!blockInfoSet.isEmpty()) {
-        BlockScanInfo info;
-        while ((info =  blockInfoSet.first()).lastScanTime < 0) {
-          delBlockInfo(info);        
-          info.lastScanTime = lastScanTime;
-          lastScanTime += verifyInterval;
-          addBlockInfo(info);
+      progressChanged = true;
+    }
+    if (saveProgress()) {
+      LegacyLog.delete(legacyLogDir, verificationLogFile);
+      legacyLogDir = null;
+    }
+    return true;
+  }
+
+  /**
+   * Save the verification times to the progress file if they changed.
+   * @return true if the progress file is up to date
+   */
+  private boolean saveProgress() {
+    List<BlockScanProgress.Entry> entries =
+        new ArrayList<BlockScanProgress.Entry>();
+    long now;
+    synchronized (this) {
+      now = System.currentTimeMillis();
+      if (!progressChanged) {
+        return true;
+      }
+      progressChanged = false;
+      for (BlockScanInfo info : blockMap.values()) {
+        if (info.lastScanType != ScanType.NONE) {
+          entries.add(new BlockScanProgress.Entry(info.block.getBlockId(),
+              info.block.getGenerationStamp(), info.lastScanTime));
         }
       }
     }
-    
-    return true;
+    try {
+      BlockScanProgress.save(progressFile, entries, now);
+      lastProgressSave = now;
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Could not save the block scan progress to "
+          + progressFile, e);
+      synchronized (this) {
+        progressChanged = true;
+      }
+      return false;
+    }
   }
   
   private synchronized void updateBytesLeft(long len) {
     bytesLeft += len;
   }
 
-  static File getCurrentFile(FSVolumeInterface vol, String bpid) throws IOException {
-    return LogFileHandler.getCurrentFile(vol.getDirectory(bpid),
-        BlockPoolSliceScanner.verificationLogFile);
+  static File getProgressFile(FSVolumeInterface vol, String bpid)
+      throws IOException {
+    return new File(vol.getDirectory(bpid), BlockScanProgress.FILE_NAME);
   }
   
   private synchronized void startNewPeriod() {
@@ -603,17 +765,12 @@ class BlockPoolSliceScanner {
   
   void scanBlockPoolSlice() {
     startNewPeriod();
-    if (processedBlocks != null) {
-      totalBlocksScannedInLastRun = processedBlocks.size();
-    }
-    // Create a new processedBlocks structure
-    processedBlocks = new HashMap<Long, Integer>();
-    if (verificationLog != null) {
-      try {
-        verificationLog.openCurFile();
-      } catch (FileNotFoundException ex) {
-        LOG.warn("Could not open current file");
+    synchronized (this) {
+      if (processedBlocks != null) {
+        totalBlocksScannedInLastRun = processedBlocks.size();
       }
+      // Create a new processedBlocks structure
+      processedBlocks = new HashMap<Long, Integer>();
     }
     if (!assignInitialVerificationTimes()) {
       return;
@@ -640,6 +797,9 @@ class BlockPoolSliceScanner {
         if (((now - getEarliestScanTime()) >= scanPeriod)
             || ((!blockInfoSet.isEmpty()) && !(this.isFirstBlockProcessed()))) {
           verifyFirstBlock();
+          if (now - lastProgressSave >= PROGRESS_SAVE_INTERVAL_MS) {
+            saveProgress();
+          }
         } else {
           if (LOG.isDebugEnabled()) {
             LOG.debug("All remaining blocks were processed recently, "
@@ -659,15 +819,8 @@ class BlockPoolSliceScanner {
     }
   }
   
-  private synchronized void cleanUp() {
-    if (verificationLog != null) {
-      try {
-        verificationLog.roll();
-      } catch (IOException ex) {
-        LOG.warn("Received exception: ", ex);
-        verificationLog.close();
-      }
-    }
+  private void cleanUp() {
+    saveProgress();
   }
 
   
@@ -709,7 +862,8 @@ class BlockPoolSliceScanner {
       if (!summaryOnly) {
         date.setTime(scanTime);
         String scanType = 
-          (info.lastScanType == ScanType.VERIFICATION_SCAN) ? "local" : "none"; 
+          (info.lastScanType == ScanType.VERIFICATION_SCAN) ? "local" :
+          ((info.lastScanType == ScanType.CLIENT_READ) ? "client" : "none");
         buffer.append(String.format("%-26s : status : %-6s type : %-6s" +
                                     " scan time : " +
                                     "%-15d %s\n", info.block, 
@@ -749,107 +903,33 @@ class BlockPoolSliceScanner {
   }
   
   /**
-   * This class takes care of log file used to store the last verification
-   * times of the blocks. It rolls the current file when it is too big etc.
-   * If there is an error while writing, it stops updating with an error
-   * message.
+   * Access to the text verification log written by earlier versions. The
+   * log consists of a current and a previous file.
    */
-  private static class LogFileHandler {
+  private static class LegacyLog {
     
     private static final String curFileSuffix = ".curr";
     private static final String prevFileSuffix = ".prev";
-    private final DateFormat dateFormat = new SimpleDateFormat(dateFormatString);
     
     static File getCurrentFile(File dir, String filePrefix) {
       return new File(dir, filePrefix + curFileSuffix);
     }
     
-    public Reader getPreviousFileReader() throws IOException {
-      return new Reader(prevFile);
-    }
-    
-    public Reader getCurrentFileReader() throws IOException {
-      return new Reader(curFile);
+    static File getPreviousFile(File dir, String filePrefix) {
+      return new File(dir, filePrefix + prevFileSuffix);
     }
 
     static boolean isFilePresent(File dir, String filePrefix) {
-      return new File(dir, filePrefix + curFileSuffix).exists() ||
-             new File(dir, filePrefix + prevFileSuffix).exists();
+      return getCurrentFile(dir, filePrefix).exists() ||
+             getPreviousFile(dir, filePrefix).exists();
     }
-    private File curFile;
-    private File prevFile;
-    
-    private PrintStream out;
-        
-    /**
-     * Opens the log file for appending.
-     * Note that rolling will happen only after "updateLineCount()" is 
-     * called. This is so that line count could be updated in a separate
-     * thread without delaying start up.
-     * 
-     * @param dir where the logs files are located.
-     * @param filePrefix prefix of the file.
-     * @param maxNumLines max lines in a file (its a soft limit).
-     * @throws IOException
-     */
-    LogFileHandler(File dir, String filePrefix, int maxNumLines) 
-                                                throws IOException {
-      curFile = new File(dir, filePrefix + curFileSuffix);
-      prevFile = new File(dir, filePrefix + prevFileSuffix);
-    }
-    
-    /**
-     * Append "\n" + line.
-     * If the log file need to be rolled, it will done after 
-     * appending the text.
-     * This does not throw IOException when there is an error while 
-     * appending. Currently does not throw an error even if rolling 
-     * fails (may be it should?).
-     * return true if append was successful.
-     */
-    synchronized boolean appendLine(String line) {
-      if (out == null) {
-        return false;
-      }
-      out.println();
-      out.print(line);
-      return true;
-    }
-    
-    boolean appendLine(long verificationTime, long genStamp, long blockId) {
-      return appendLine("date=\""
-          + dateFormat.format(new Date(verificationTime)) + "\"\t " + "time=\""
-          + verificationTime + "\"\t " + "genstamp=\"" + genStamp + "\"\t "
-          + "id=\"" + blockId + "\"");
-    }
-    
-    private synchronized void openCurFile() throws FileNotFoundException {
-      close();
-      out = new PrintStream(new FileOutputStream(curFile, true));
-    }
-    
-    private void roll() throws IOException {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("Rolling current file: " + curFile.getAbsolutePath()
-            + " to previous file: " + prevFile.getAbsolutePath());
-      }
-
-      if (!prevFile.delete() && prevFile.exists()) {
-        throw new IOException("Could not delete " + prevFile);
-      }
-      
-      close();
 
-      if (!curFile.renameTo(prevFile)) {
-        throw new IOException("Could not rename " + curFile + 
-                              " to " + prevFile);
-      }
-    }
-    
-    synchronized void close() {
-      if (out != null) {
-        out.close();
-        out = null;
+    static void delete(File dir, String filePrefix) {
+      for (File f : new File[] {getCurrentFile(dir, filePrefix),
+          getPreviousFile(dir, filePrefix)}) {
+        if (f.exists() && !f.delete()) {
+          LOG.warn("Could not delete " + f);
+        }
       }
     }
     
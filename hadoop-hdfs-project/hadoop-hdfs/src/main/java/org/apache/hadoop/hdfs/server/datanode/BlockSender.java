@@ -154,6 +154,8 @@ class BlockSender implements java.io.Closeable {
   private boolean shouldDropCacheBehindRead;
   private ReadaheadRequest curReadahead;
   private long lastCacheDropOffset;
+  /** Manages the OS cache when adaptive readahead is enabled */
+  private AdaptiveReadahead.Stream readaheadStream;
   private static final long CACHE_DROP_INTERVAL_BYTES = 1024 * 1024; // 1MB
   /**
    * Minimum length of read below which management of the OS
@@ -304,6 +306,11 @@ class BlockSender implements java.io.Closeable {
       } else {
         blockInFd = null;
       }
+      AdaptiveReadahead adaptiveReadahead = datanode.getAdaptiveReadahead();
+      if (adaptiveReadahead != null && blockInFd != null) {
+        readaheadStream = adaptiveReadahead.open(block, offset, endOffset,
+            Math.max(endOffset, replicaVisibleLength), blockInFd);
+      }
     } catch (IOException ioe) {
       IOUtils.closeStream(this);
       IOUtils.closeStream(blockIn);
@@ -315,7 +322,10 @@ class BlockSender implements java.io.Closeable {
    * close opened files.
    */
   public void close() throws IOException {
-    if (blockInFd != null && shouldDropCacheBehindRead && isLongRead()) {
+    if (readaheadStream != null) {
+      readaheadStream.close(offset);
+      readaheadStream = null;
+    } else if (blockInFd != null && shouldDropCacheBehindRead && isLongRead()) {
       // drop the last few MB of the file from cache
       try {
         NativeIO.posixFadviseIfPossible(
@@ -586,7 +596,10 @@ class BlockSender implements java.io.Closeable {
     
     lastCacheDropOffset = initialOffset;
 
-    if (isLongRead() && blockInFd != null) {
+    if (readaheadStream != null) {
+      // Advise the access pattern detected for this read.
+      readaheadStream.start();
+    } else if (isLongRead() && blockInFd != null) {
       // Advise that this file descriptor will be accessed sequentially.
       NativeIO.posixFadviseIfPossible(blockInFd, 0, 0, NativeIO.POSIX_FADV_SEQUENTIAL);
     }
@@ -652,6 +665,10 @@ class BlockSender implements java.io.Closeable {
    * and drop-behind.
    */
   private void manageOsCache() throws IOException {
+    if (readaheadStream != null) {
+      readaheadStream.readAt(offset);
+      return;
+    }
     if (!isLongRead() || blockInFd == null) {
       // don't manage cache manually for short-reads, like
       // HBase random read workloads.
@@ -699,6 +716,12 @@ class BlockSender implements java.io.Closeable {
     return sentEntireByteRange;
   }
 
+  /** @return true if the entire replica was sent */
+  boolean didSendEntireReplica() {
+    return sentEntireByteRange && initialOffset == 0
+        && endOffset >= replicaVisibleLength;
+  }
+
   /**
    * @return the checksum type that will be used with this block transfer.
    */
@@ -53,6 +53,8 @@ class DNConf {
   
 
   final long readaheadLength;
+  final boolean adaptiveReadahead;
+  final long readaheadMaxLength;
   final long heartBeatInterval;
   final long blockReportInterval;
   final long deleteReportInterval;
@@ -80,6 +82,12 @@ class DNConf {
     readaheadLength = conf.getLong(
         DFSConfigKeys.DFS_DATANODE_READAHEAD_BYTES_KEY,
         DFSConfigKeys.DFS_DATANODE_READAHEAD_BYTES_DEFAULT);
+    adaptiveReadahead = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_READAHEAD_ADAPTIVE_KEY,
+        DFSConfigKeys.DFS_DATANODE_READAHEAD_ADAPTIVE_DEFAULT);
+    readaheadMaxLength = conf.getLong(
+        DFSConfigKeys.DFS_DATANODE_READAHEAD_MAX_BYTES_KEY,
+        DFSConfigKeys.DFS_DATANODE_READAHEAD_MAX_BYTES_DEFAULT);
     dropCacheBehindWrites = conf.getBoolean(
         DFSConfigKeys.DFS_DATANODE_DROP_CACHE_BEHIND_WRITES_KEY,
         DFSConfigKeys.DFS_DATANODE_DROP_CACHE_BEHIND_WRITES_DEFAULT);
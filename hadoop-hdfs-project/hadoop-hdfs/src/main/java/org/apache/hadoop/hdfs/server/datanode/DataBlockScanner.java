@@ -114,12 +114,10 @@ public class DataBlockScanner implements Runnable {
   }
   
   /**
-   * Find next block pool id to scan. There should be only one current
-   * verification log file. Find which block pool contains the current
-   * verification log file and that is used as the starting block pool id. If no
-   * current files are found start with first block-pool in the blockPoolSet.
-   * However, if more than one current files are found, the one with latest 
-   * modification time is used to find the next block pool id.
+   * Find next block pool id to scan. On startup, the block pool with the
+   * most recently modified progress file is used as the starting block pool
+   * id. If no progress files are found start with first block-pool in the
+   * blockPoolSet. After that, the block pools are scanned in order.
    */
   private BlockPoolSliceScanner getNextBPScanner(String currentBpId) {
     
@@ -129,15 +127,17 @@ public class DataBlockScanner implements Runnable {
       waitForInit(currentBpId);
       synchronized (this) {
         if (getBlockPoolSetSize() > 0) {          
-          // Find nextBpId by finding the last modified current log file, if any
+          // On startup, find nextBpId by finding the last modified progress
+          // file, if any. The progress file is only written when it changed,
+          // so afterwards the block pools are scanned in turn.
           long lastScanTime = -1;
           Iterator<String> bpidIterator = blockPoolScannerMap.keySet()
               .iterator();
-          while (bpidIterator.hasNext()) {
+          while ("".equals(currentBpId) && bpidIterator.hasNext()) {
             String bpid = bpidIterator.next();
             for (FSDatasetInterface.FSVolumeInterface vol : dataset.getVolumes()) {
               try {
-                File currFile = BlockPoolSliceScanner.getCurrentFile(vol, bpid);
+                File currFile = BlockPoolSliceScanner.getProgressFile(vol, bpid);
                 if (currFile.exists()) {
                   long lastModified = currFile.lastModified();
                   if (lastScanTime < lastModified) {
@@ -203,6 +203,27 @@ public class DataBlockScanner implements Runnable {
     }
   }
   
+  /**
+   * Record that a client read the whole block and verified its checksums.
+   */
+  public void verifiedByClient(ExtendedBlock block) {
+    BlockPoolSliceScanner bpScanner = getBPScanner(block.getBlockPoolId());
+    if (bpScanner != null) {
+      bpScanner.verifiedByClient(block.getLocalBlock());
+    }
+  }
+
+  /**
+   * Request the verification of a block which may be corrupt ahead of
+   * the other blocks.
+   */
+  public void markSuspectBlock(ExtendedBlock block) {
+    BlockPoolSliceScanner bpScanner = getBPScanner(block.getBlockPoolId());
+    if (bpScanner != null) {
+      bpScanner.markSuspectBlock(block.getLocalBlock());
+    }
+  }
+
   public synchronized boolean isInitialized(String bpid) {
     BlockPoolSliceScanner bpScanner = getBPScanner(bpid);
     if (bpScanner != null) {
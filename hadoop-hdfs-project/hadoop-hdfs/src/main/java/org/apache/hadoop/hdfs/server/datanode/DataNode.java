@@ -41,6 +41,8 @@ import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_HTTP_ADDRESS_KEY
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_IPC_ADDRESS_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_KEYTAB_FILE_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_PLUGINS_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SCAN_PERIOD_HOURS_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SCAN_PERIOD_HOURS_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SIMULATEDDATASTORAGE_DEFAULT;
@@ -141,6 +143,7 @@ import org.apache.hadoop.hdfs.web.WebHdfsFileSystem;
 import org.apache.hadoop.hdfs.web.resources.Param;
 import org.apache.hadoop.http.HttpServer;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.ReadaheadPool;
 import org.apache.hadoop.ipc.ProtobufRpcEngine;
 import org.apache.hadoop.ipc.ProtocolSignature;
 import org.apache.hadoop.ipc.RPC;
@@ -386,6 +389,7 @@ public class DataNode extends Configured
   private DataStorage storage = null;
   private HttpServer infoServer = null;
   DataNodeMetrics metrics;
+  private AdaptiveReadahead adaptiveReadahead = null;
   private InetSocketAddress selfAddr;
   
   private volatile String hostName; // Host name of this datanode
@@ -620,6 +624,26 @@ public class DataNode extends Configured
     }
   }
   
+  /**
+   * Schedule a one-time {@link DirectoryScanner} run, e.g. to verify
+   * replicas that were loaded from a replica cache instead of the disk.
+   */
+  void scheduleDirectoryScan() {
+    final DirectoryScanner scanner;
+    synchronized (this) {
+      scanner = directoryScanner;
+    }
+    if (scanner == null) {
+      LOG.warn("Cannot verify replicas loaded from the replica cache " +
+               "because the directory scanner is disabled.");
+      return;
+    }
+    scanner.scheduleScan(conf.getInt(
+        DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_KEY,
+        DFS_DATANODE_REPLICA_CACHE_VERIFY_DELAY_DEFAULT)
+        * 1000L);
+  }
+
   private synchronized void shutdownDirectoryScanner() {
     if (directoryScanner != null) {
       directoryScanner.shutdown();
@@ -728,6 +752,10 @@ public class DataNode extends Configured
     initIpcServer(conf);
 
     metrics = DataNodeMetrics.create(conf, getMachineName());
+    if (dnConf.adaptiveReadahead) {
+      adaptiveReadahead = new AdaptiveReadahead(ReadaheadPool.getInstance(),
+          dnConf.readaheadLength, dnConf.readaheadMaxLength, metrics);
+    }
 
     blockPoolManager = new BlockPoolManager(conf);
   }
@@ -1066,6 +1094,11 @@ public class DataNode extends Configured
   DataNodeMetrics getMetrics() {
     return metrics;
   }
+
+  /** @return the adaptive readahead engine, or null if it is disabled */
+  AdaptiveReadahead getAdaptiveReadahead() {
+    return adaptiveReadahead;
+  }
   
   public static void setNewStorageID(DatanodeID dnId) {
     LOG.info("Datanode is " + dnId);
@@ -1530,7 +1563,7 @@ public class DataNode extends Configured
         }
 
         new Sender(out).writeBlock(b, accessToken, clientname, targets, srcNode,
-            stage, 0, 0, 0, 0, blockSender.getChecksum());
+            stage, 0, 0, 0, 0, blockSender.getChecksum(), false);
 
         // send data & checksum
         blockSender.sendBlock(out, baseStream, null);
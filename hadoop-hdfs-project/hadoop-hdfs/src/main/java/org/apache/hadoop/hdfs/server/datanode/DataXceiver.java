@@ -237,6 +237,15 @@ class DataXceiver extends Receiver implements Runnable {
             LOG.warn("Client " + s.getInetAddress() + " did not send a valid status " +
                      "code after reading. Will close connection.");
             IOUtils.closeStream(out);
+          } else if (stat.getStatus() == Status.CHECKSUM_OK
+              && blockSender.didSendEntireReplica()
+              && datanode.blockScanner != null) {
+            datanode.blockScanner.verifiedByClient(block);
+          } else if (stat.getStatus() == Status.ERROR_CHECKSUM
+              && datanode.blockScanner != null) {
+            LOG.info("Client " + s.getInetAddress()
+                + " reported a checksum error for " + block);
+            datanode.blockScanner.markSuspectBlock(block);
           }
         } catch (IOException ioe) {
           LOG.debug("Error reading client status response. Will close connection.", ioe);
@@ -261,6 +270,10 @@ class DataXceiver extends Receiver implements Runnable {
        */
       LOG.warn(dnR + ":Got exception while serving " + block + " to "
           + remoteAddress, ioe);
+      if (blockSender != null && datanode.blockScanner != null) {
+        // the error may come from a corrupt replica
+        datanode.blockScanner.markSuspectBlock(block);
+      }
       throw ioe;
     } finally {
       IOUtils.closeStream(blockSender);
@@ -282,7 +295,8 @@ class DataXceiver extends Receiver implements Runnable {
       final long minBytesRcvd,
       final long maxBytesRcvd,
       final long latestGenerationStamp,
-      DataChecksum requestedChecksum) throws IOException {
+      DataChecksum requestedChecksum,
+      final boolean allowLazyPersist) throws IOException {
     updateCurrentThreadName("Receiving block " + block + " client=" + clientname);
     final boolean isDatanode = clientname.length() == 0;
     final boolean isClient = !isDatanode;
@@ -341,7 +355,8 @@ class DataXceiver extends Receiver implements Runnable {
             s.getRemoteSocketAddress().toString(),
             s.getLocalSocketAddress().toString(),
             stage, latestGenerationStamp, minBytesRcvd, maxBytesRcvd,
-            clientname, srcDataNode, datanode, requestedChecksum);
+            clientname, srcDataNode, datanode, requestedChecksum,
+            allowLazyPersist);
       } else {
         datanode.data.recoverClose(block, latestGenerationStamp, minBytesRcvd);
       }
@@ -371,7 +386,8 @@ class DataXceiver extends Receiver implements Runnable {
 
           new Sender(mirrorOut).writeBlock(originalBlock, blockToken,
               clientname, targets, srcDataNode, stage, pipelineSize,
-              minBytesRcvd, maxBytesRcvd, latestGenerationStamp, requestedChecksum);
+              minBytesRcvd, maxBytesRcvd, latestGenerationStamp, requestedChecksum,
+              allowLazyPersist);
 
           mirrorOut.flush();
 
@@ -705,7 +721,7 @@ class DataXceiver extends Receiver implements Runnable {
       blockReceiver = new BlockReceiver(
           block, proxyReply, proxySock.getRemoteSocketAddress().toString(),
           proxySock.getLocalSocketAddress().toString(),
-          null, 0, 0, 0, "", null, datanode, remoteChecksum);
+          null, 0, 0, 0, "", null, datanode, remoteChecksum, false);
 
       // receive a block
       blockReceiver.receiveBlock(null, null, null, null, 
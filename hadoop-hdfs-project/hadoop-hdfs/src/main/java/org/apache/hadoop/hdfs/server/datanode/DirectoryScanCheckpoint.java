@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The state of a finalized block directory tree as of the last
+ * {@link DirectoryScanner} pass. For every directory the checkpoint records
+ * only the modification time and the number of entries, so that an
+ * incremental scan only has to stat the entries of directories that changed
+ * since. The entries of an unchanged directory are still listed, but are
+ * told apart by their names alone.
+ * <p>
+ * Directories are keyed by their path relative to the root of the tree,
+ * which allows the checkpoint to be persisted next to the tree and reused
+ * after a datanode restart. The checkpoint holds no file names: with the
+ * default of 64 blocks per directory, a volume of a million blocks needs
+ * some 16K directory entries, about 2MB of heap.
+ */
+@InterfaceAudience.Private
+class DirectoryScanCheckpoint {
+  private static final Log LOG =
+      LogFactory.getLog(DirectoryScanCheckpoint.class);
+
+  /** Name of the checkpoint file in the block pool current directory */
+  static final String FILE_NAME = "dirscanner.ckpt";
+  private static final int LAYOUT_VERSION = 2;
+
+  /**
+   * Directories modified within this window before the checkpoint was taken
+   * are always rescanned, since changes made in the same timestamp
+   * granularity as the previous scan would otherwise go unnoticed.
+   */
+  static final long RACY_WINDOW_MS = 2000L;
+
+  /** The recorded state of a single directory */
+  static class DirState {
+    final long mtime;
+    final int numEntries;
+
+    DirState(long mtime, int numEntries) {
+      this.mtime = mtime;
+      this.numEntries = numEntries;
+    }
+  }
+
+  private final Map<String, DirState> dirs;
+  private long checkpointTime;
+
+  DirectoryScanCheckpoint() {
+    this(0L);
+  }
+
+  DirectoryScanCheckpoint(long checkpointTime) {
+    this.dirs = new HashMap<String, DirState>();
+    this.checkpointTime = checkpointTime;
+  }
+
+  /** @return the time at which the recorded scan started */
+  long getCheckpointTime() {
+    return checkpointTime;
+  }
+
+  int size() {
+    return dirs.size();
+  }
+
+  void put(String relPath, DirState state) {
+    dirs.put(relPath, state);
+  }
+
+  /**
+   * Get the recorded state of a directory if it can be trusted.
+   * @param relPath path of the directory relative to the tree root
+   * @param mtime current modification time of the directory
+   * @param numEntries current number of entries in the directory
+   * @return the recorded state, or null if the directory must be rescanned
+   */
+  DirState getUnchanged(String relPath, long mtime, int numEntries) {
+    DirState state = dirs.get(relPath);
+    if (state == null || state.mtime != mtime
+        || state.numEntries != numEntries
+        || mtime + RACY_WINDOW_MS >= checkpointTime) {
+      return null;
+    }
+    return state;
+  }
+
+  /**
+   * Load a checkpoint from the given file.
+   * @return the checkpoint, or an empty one if the file does not exist
+   *         or cannot be read
+   */
+  static DirectoryScanCheckpoint load(File file) {
+    if (!file.exists()) {
+      return new DirectoryScanCheckpoint();
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      int version = in.readInt();
+      if (version != LAYOUT_VERSION) {
+        LOG.warn("Ignoring directory scan checkpoint " + file
+            + " with unexpected layout version " + version);
+        return new DirectoryScanCheckpoint();
+      }
+      DirectoryScanCheckpoint checkpoint =
+          new DirectoryScanCheckpoint(in.readLong());
+      int numDirs = in.readInt();
+      for (int i = 0; i < numDirs; i++) {
+        String relPath = Text.readString(in);
+        long mtime = in.readLong();
+        int numEntries = in.readInt();
+        checkpoint.put(relPath, new DirState(mtime, numEntries));
+      }
+      return checkpoint;
+    } catch (IOException ioe) {
+      LOG.warn("Failed to load directory scan checkpoint " + file
+          + ", the next scan will be a full scan", ioe);
+      return new DirectoryScanCheckpoint();
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+
+  /**
+   * Save the checkpoint to the given file. The checkpoint is first written
+   * to a temporary file which is then renamed, so a crash never leaves a
+   * partially written checkpoint behind.
+   */
+  void save(File file) throws IOException {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+    try {
+      out.writeInt(LAYOUT_VERSION);
+      out.writeLong(checkpointTime);
+      out.writeInt(dirs.size());
+      for (Map.Entry<String, DirState> entry : dirs.entrySet()) {
+        DirState state = entry.getValue();
+        Text.writeString(out, entry.getKey());
+        out.writeLong(state.mtime);
+        out.writeInt(state.numEntries);
+      }
+      out.close();
+      out = null;
+    } finally {
+      IOUtils.closeStream(out);
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Failed to delete " + file);
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Failed to rename " + tmp + " to " + file);
+    }
+  }
+}
@@ -27,12 +27,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,12 +45,19 @@ import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.datanode.DirectoryScanCheckpoint.DirState;
 import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.FSVolumeInterface;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
 import org.apache.hadoop.util.Daemon;
 
 /**
  * Periodically scans the data directories for block and block metadata files.
  * Reconciles the differences with block information maintained in the dataset.
+ * <p>
+ * In incremental mode the scanner keeps a {@link DirectoryScanCheckpoint} per
+ * block pool slice and only stats the entries of directories whose
+ * modification time or entry count changed since the previous scan. The
+ * entries of the other directories are told apart by their names.
  */
 @InterfaceAudience.Private
 public class DirectoryScanner implements Runnable {
@@ -59,11 +68,22 @@ public class DirectoryScanner implements Runnable {
   private final ExecutorService reportCompileThreadPool;
   private final ScheduledExecutorService masterThread;
   private final long scanPeriodMsecs;
+  private final boolean incremental;
+  private final long throttleFilesPerSec;
   private volatile boolean shouldRun = false;
   private boolean retainDiffs = false;
 
+  /** Checkpoints of the previous scan, keyed by checkpoint file path */
+  private final Map<String, DirectoryScanCheckpoint> checkpoints =
+      new ConcurrentHashMap<String, DirectoryScanCheckpoint>();
+
   ScanInfoPerBlockPool diffs = new ScanInfoPerBlockPool();
   Map<String, Stats> stats = new HashMap<String, Stats>();
+
+  /** Progress of the current scan, for reporting and testing */
+  final AtomicLong dirsScanned = new AtomicLong();
+  final AtomicLong dirsSkipped = new AtomicLong();
+  final AtomicLong filesScanned = new AtomicLong();
   
   /**
    * Allow retaining diffs for unit test and analysis
@@ -95,6 +115,43 @@ public class DirectoryScanner implements Runnable {
     }
   }
   
+  /**
+   * Limits the rate at which a volume scan examines files. Each file takes
+   * its share of a second, and a scan that was idle may run ahead by at most
+   * one second worth of files. Unlike
+   * {@link org.apache.hadoop.hdfs.util.DataTransferThrottler}, it has
+   * no accounting period, so rates of a few files per second are honoured.
+   */
+  static class FileRateThrottler {
+    private final long nanosPerFile;
+    /** The time at which the files examined so far are paid for */
+    private long nextFree;
+
+    FileRateThrottler(long filesPerSec) {
+      if (filesPerSec <= 0) {
+        throw new IllegalArgumentException("" + filesPerSec);
+      }
+      nanosPerFile = Math.max(1, 1000000000L / filesPerSec);
+      nextFree = System.nanoTime();
+    }
+
+    /**
+     * Sleep until the given number of files can be examined at the rate.
+     * @param files the number of files about to be examined
+     */
+    void throttle(long files) throws InterruptedException {
+      if (files <= 0) {
+        return;
+      }
+      long now = System.nanoTime();
+      nextFree = Math.max(nextFree, now - 1000000000L) + files * nanosPerFile;
+      long wait = nextFree - now;
+      if (wait > 0) {
+        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+      }
+    }
+  }
+
   static class ScanInfoPerBlockPool extends 
                      HashMap<String, LinkedList<ScanInfo>> {
     
@@ -229,6 +286,13 @@ public class DirectoryScanner implements Runnable {
         conf.getInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_KEY,
                     DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_DEFAULT);
 
+    incremental = 
+        conf.getBoolean(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY,
+            DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_DEFAULT);
+    throttleFilesPerSec =
+        conf.getLong(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THROTTLE_KEY,
+            DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THROTTLE_DEFAULT);
+
     reportCompileThreadPool = Executors.newFixedThreadPool(threads, 
         new Daemon.DaemonFactory());
     masterThread = new ScheduledThreadPoolExecutor(1,
@@ -240,11 +304,25 @@ public class DirectoryScanner implements Runnable {
     long offset = DFSUtil.getRandom().nextInt((int) (scanPeriodMsecs/1000L)) * 1000L; //msec
     long firstScanTime = System.currentTimeMillis() + offset;
     LOG.info("Periodic Directory Tree Verification scan starting at " 
-        + firstScanTime + " with interval " + scanPeriodMsecs);
+        + firstScanTime + " with interval " + scanPeriodMsecs
+        + (incremental ? " (incremental)" : ""));
     masterThread.scheduleAtFixedRate(this, offset, scanPeriodMsecs, 
                                      TimeUnit.MILLISECONDS);
   }
   
+  /**
+   * Schedule a one-time scan in addition to the periodic scans.
+   * @param delayMsecs delay before the scan starts
+   */
+  void scheduleScan(long delayMsecs) {
+    if (!shouldRun) {
+      return;
+    }
+    LOG.info("One-time Directory Tree Verification scan starting in "
+        + delayMsecs + " msecs");
+    masterThread.schedule(this, delayMsecs, TimeUnit.MILLISECONDS);
+  }
+
   // for unit test
   boolean getRunStatus() {
     return shouldRun;
@@ -253,6 +331,9 @@ public class DirectoryScanner implements Runnable {
   private void clear() {
     diffs.clear();
     stats.clear();
+    dirsScanned.set(0);
+    dirsSkipped.set(0);
+    filesScanned.set(0);
   }
 
   /**
@@ -327,7 +408,15 @@ public class DirectoryScanner implements Runnable {
    */
   void scan() {
     clear();
+    long start = System.currentTimeMillis();
     Map<String, ScanInfo[]> diskReport = getDiskReport();
+    LOG.info("Compiled disk report in " + (System.currentTimeMillis() - start)
+        + " ms: scanned " + dirsScanned + " directories and " + filesScanned
+        + " files, skipped " + dirsSkipped + " unchanged directories");
+    DataNodeMetrics metrics = datanode.getMetrics();
+    if (metrics != null) {
+      metrics.addDirectoryScan(System.currentTimeMillis() - start);
+    }
 
     // Hold FSDataset lock to prevent further changes to the block map
     synchronized(dataset) {
@@ -471,12 +560,19 @@ public class DirectoryScanner implements Runnable {
         && metaFile.endsWith(Block.METADATA_EXTENSION);
   }
 
-  private static class ReportCompiler 
+  private class ReportCompiler 
   implements Callable<ScanInfoPerBlockPool> {
-    private FSVolumeInterface volume;
+    private final FSVolumeInterface volume;
+    /** Throttles the files stat'ed on this volume, null if unthrottled */
+    private final FileRateThrottler throttler;
+    private long volDirsScanned = 0;
+    private long volDirsSkipped = 0;
+    private long volFilesScanned = 0;
 
     public ReportCompiler(FSVolumeInterface volume) {
       this.volume = volume;
+      this.throttler = throttleFilesPerSec > 0 ?
+          new FileRateThrottler(throttleFilesPerSec) : null;
     }
 
     @Override
@@ -486,23 +582,94 @@ public class DirectoryScanner implements Runnable {
       for (String bpid : bpList) {
         LinkedList<ScanInfo> report = new LinkedList<ScanInfo>();
         File bpFinalizedDir = volume.getFinalizedDir(bpid);
-        result.put(bpid, compileReport(volume, bpFinalizedDir, report));
+        if (incremental) {
+          compileIncrementalReport(bpFinalizedDir, report);
+        } else {
+          compileReport(volume, bpFinalizedDir, "", report, null, null);
+        }
+        result.put(bpid, report);
+      }
+      dirsScanned.addAndGet(volDirsScanned);
+      dirsSkipped.addAndGet(volDirsSkipped);
+      filesScanned.addAndGet(volFilesScanned);
+      DataNodeMetrics metrics = datanode.getMetrics();
+      if (metrics != null) {
+        metrics.addDirectoryScanProgress(volDirsScanned, volDirsSkipped,
+            volFilesScanned);
       }
       return result;
     }
 
-    /** Compile list {@link ScanInfo} for the blocks in the directory <dir> */
-    private LinkedList<ScanInfo> compileReport(FSVolumeInterface vol, File dir,
+    /**
+     * Compile the report for a block pool slice against the checkpoint of
+     * the previous scan, and record a new checkpoint.
+     */
+    private void compileIncrementalReport(File bpFinalizedDir,
         LinkedList<ScanInfo> report) {
-      File[] files;
+      File checkpointFile = new File(bpFinalizedDir.getParentFile(),
+          DirectoryScanCheckpoint.FILE_NAME);
+      String key = checkpointFile.getAbsolutePath();
+      DirectoryScanCheckpoint prev = checkpoints.get(key);
+      if (prev == null) {
+        prev = DirectoryScanCheckpoint.load(checkpointFile);
+      }
+      DirectoryScanCheckpoint next =
+          new DirectoryScanCheckpoint(System.currentTimeMillis());
+      compileReport(volume, bpFinalizedDir, "", report, prev, next);
+      checkpoints.put(key, next);
+      try {
+        next.save(checkpointFile);
+      } catch (IOException ioe) {
+        LOG.warn("Failed to save directory scan checkpoint "
+            + checkpointFile, ioe);
+      }
+    }
+
+    /**
+     * Compile list {@link ScanInfo} for the blocks in the directory <dir>.
+     * If a previous checkpoint is given, the entries of the directories it
+     * records as unchanged are reported from their names, without stat'ing
+     * them: the subdirectories are the entries named
+     * {@link DataStorage#BLOCK_SUBDIR_PREFIX}*.
+     * @param relPath path of <dir> relative to the finalized directory
+     * @param prev checkpoint of the previous scan, null for a full scan
+     * @param next checkpoint to record the scanned directories in, or null
+     */
+    private LinkedList<ScanInfo> compileReport(FSVolumeInterface vol, File dir,
+        String relPath, LinkedList<ScanInfo> report,
+        DirectoryScanCheckpoint prev, DirectoryScanCheckpoint next) {
+      // Read the modification time before listing, so that a concurrent
+      // change always leaves the recorded time behind the actual one
+      long mtime = dir.lastModified();
+      String[] names;
       try {
-        files = FileUtil.listFiles(dir);
+        names = FileUtil.list(dir);
       } catch (IOException ioe) {
         LOG.warn("Exception occured while compiling report: ", ioe);
         // Ignore this directory and proceed.
         return report;
       }
-      Arrays.sort(files);
+      final boolean unchanged = prev != null &&
+          prev.getUnchanged(relPath, mtime, names.length) != null;
+      if (unchanged) {
+        volDirsSkipped++;
+      } else {
+        volDirsScanned++;
+        volFilesScanned += names.length;
+      }
+      if (!unchanged && throttler != null) {
+        try {
+          throttler.throttle(names.length);
+        } catch (InterruptedException ie) {
+          // the scan is shutting down: finish it unthrottled
+          Thread.currentThread().interrupt();
+        }
+      }
+      Arrays.sort(names);
+      File[] files = new File[names.length];
+      for (int i = 0; i < names.length; i++) {
+        files[i] = new File(dir, names[i]);
+      }
       /*
        * Assumption: In the sorted list of files block file appears immediately
        * before block metadata file. This is true for the current naming
@@ -510,8 +677,10 @@ public class DirectoryScanner implements Runnable {
        * blk_<blockid>_<genstamp>.meta
        */
       for (int i = 0; i < files.length; i++) {
-        if (files[i].isDirectory()) {
-          compileReport(vol, files[i], report);
+        if (unchanged ? names[i].startsWith(DataStorage.BLOCK_SUBDIR_PREFIX)
+                      : files[i].isDirectory()) {
+          compileReport(vol, files[i], relPath + "/" + names[i], report,
+              prev, next);
           continue;
         }
         if (!Block.isBlockFilename(files[i])) {
@@ -527,7 +696,8 @@ public class DirectoryScanner implements Runnable {
 
         // Skip all the files that start with block name until
         // getting to the metafile for the block
-        while (i + 1 < files.length && files[i + 1].isFile()
+        while (i + 1 < files.length
+            && (unchanged || files[i + 1].isFile())
             && files[i + 1].getName().startsWith(blockFile.getName())) {
           i++;
           if (isBlockMetaFile(blockFile.getName(), files[i].getName())) {
@@ -537,6 +707,9 @@ public class DirectoryScanner implements Runnable {
         }
         report.add(new ScanInfo(blockId, blockFile, metaFile, vol));
       }
+      if (next != null) {
+        next.put(relPath, new DirState(mtime, names.length));
+      }
       return report;
     }
   }
@@ -18,7 +18,11 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -57,10 +61,12 @@ import org.apache.hadoop.hdfs.protocol.HdfsConstants;
 import org.apache.hadoop.hdfs.protocol.RecoveryInProgressException;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
 import org.apache.hadoop.hdfs.server.datanode.metrics.FSDatasetMBean;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryCommand.RecoveringBlock;
 import org.apache.hadoop.hdfs.server.protocol.ReplicaRecoveryInfo;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.metrics2.util.MBeans;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.DiskChecker;
@@ -110,6 +116,63 @@ class FSDataset implements FSDatasetInterface {
         }
       }
     }
+
+    /**
+     * Rebuild a directory tree recorded in a replica cache without listing
+     * the directories. The finalized replicas recorded for the tree are
+     * added to <code>replicas</code>.
+     */
+    private FSDir(File dir, DataInput in, FSVolume volume,
+        List<ReplicaInfo> replicas) throws IOException {
+      this.dir = dir;
+      this.children = null;
+      int numReplicas = in.readInt();
+      for (int i = 0; i < numReplicas; i++) {
+        long blockId = in.readLong();
+        long numBytes = in.readLong();
+        long genStamp = in.readLong();
+        replicas.add(new FinalizedReplica(blockId, numBytes, genStamp,
+            volume, dir));
+      }
+      numBlocks = numReplicas;
+      int numChildren = in.readInt();
+      if (numChildren > 0) {
+        children = new FSDir[numChildren];
+        for (int idx = 0; idx < numChildren; idx++) {
+          children[idx] = new FSDir(new File(dir, Text.readString(in)), in,
+              volume, replicas);
+        }
+      }
+    }
+
+    /**
+     * Record this directory tree and the replicas stored in it
+     * in a replica cache.
+     * @param replicasByDir finalized replicas grouped by their directory
+     */
+    private void write(DataOutput out,
+        Map<File, List<ReplicaInfo>> replicasByDir) throws IOException {
+      List<ReplicaInfo> replicas = replicasByDir.get(dir);
+      if (replicas == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(replicas.size());
+        for (ReplicaInfo r : replicas) {
+          out.writeLong(r.getBlockId());
+          out.writeLong(r.getNumBytes());
+          out.writeLong(r.getGenerationStamp());
+        }
+      }
+      if (children == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(children.length);
+        for (FSDir child : children) {
+          Text.writeString(out, child.dir.getName());
+          child.write(out, replicasByDir);
+        }
+      }
+    }
         
     private File addBlock(Block b, File src) throws IOException {
       //First try without creating subdirectories
@@ -284,12 +347,20 @@ class FSDataset implements FSDatasetInterface {
    * cluster represent a single block pool.
    */
   private class BlockPoolSlice {
+    /** Replica cache written on clean shutdown, in the current directory */
+    private static final String REPLICA_CACHE_FILE = "replicas";
+    /** Marker holding the generation of a complete replica cache */
+    private static final String REPLICA_CACHE_MARKER = "replicas.gen";
+    private static final int REPLICA_CACHE_VERSION = 1;
+
     private final String bpid;
     private final FSVolume volume; // volume to which this BlockPool belongs to
     private final File currentDir; // StorageDirectory/current/bpid/current
     private final FSDir finalizedDir; // directory store Finalized replica
     private final File rbwDir; // directory store RBW replica
     private final File tmpDir; // directory store Temporary replica
+    // finalized replicas loaded from the replica cache, null if none
+    private List<ReplicaInfo> cachedReplicas = null;
     
     // TODO:FEDERATION scalability issue - a thread per DU is needed
     private final DU dfsUsage;
@@ -323,7 +394,10 @@ class FSDataset implements FSDatasetInterface {
       if (rbwDir.exists() && !supportAppends) {
         FileUtil.fullyDelete(rbwDir);
       }
-      this.finalizedDir = new FSDir(finalizedDir);
+      FSDir cachedDir = replicaCacheEnabled ?
+          loadReplicaCache(finalizedDir) : null;
+      this.finalizedDir = cachedDir != null ?
+          cachedDir : new FSDir(finalizedDir);
       if (!rbwDir.mkdirs()) {  // create rbw directory if not exist
         if (!rbwDir.isDirectory()) {
           throw new IOException("Mkdirs failed to create " + rbwDir.toString());
@@ -393,11 +467,138 @@ class FSDataset implements FSDatasetInterface {
       DiskChecker.checkDir(rbwDir);
     }
       
-    void getVolumeMap(ReplicasMap volumeMap) throws IOException {
+    /**
+     * Add the replicas of this slice to the volume map
+     * @return true if the finalized replicas were loaded from
+     *         the replica cache rather than from the disk
+     */
+    boolean getVolumeMap(ReplicasMap volumeMap) throws IOException {
+      boolean fromCache = cachedReplicas != null;
       // add finalized replicas
-      finalizedDir.getVolumeMap(bpid, volumeMap, volume);
+      if (fromCache) {
+        for (ReplicaInfo replica : cachedReplicas) {
+          volumeMap.add(bpid, replica);
+        }
+        cachedReplicas = null;
+      } else {
+        finalizedDir.getVolumeMap(bpid, volumeMap, volume);
+      }
       // add rbw replicas
       addToReplicasMap(volumeMap, rbwDir, false);
+      return fromCache;
+    }
+
+    /**
+     * Load the finalized directory tree and its replicas from the replica
+     * cache written at the last clean shutdown. The cache is only used if
+     * its generation matches the marker. Both are removed before the cache
+     * is used, so that it can never be reused after an unclean shutdown.
+     * @return the directory tree, or null if there is no valid cache
+     */
+    private FSDir loadReplicaCache(File dir) {
+      File cacheFile = new File(currentDir, REPLICA_CACHE_FILE);
+      File markerFile = new File(currentDir, REPLICA_CACHE_MARKER);
+      if (!cacheFile.exists() || !markerFile.exists() || !dir.isDirectory()) {
+        return null;
+      }
+      DataInputStream in = null;
+      try {
+        long generation = readReplicaCacheMarker(markerFile);
+        if (!markerFile.delete()) {
+          throw new IOException("Failed to delete " + markerFile);
+        }
+        in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(cacheFile), HdfsConstants.IO_FILE_BUFFER_SIZE));
+        int version = in.readInt();
+        if (version != REPLICA_CACHE_VERSION || in.readLong() != generation) {
+          DataNode.LOG.warn("Ignoring stale replica cache " + cacheFile
+              + " with version " + version);
+          return null;
+        }
+        List<ReplicaInfo> replicas = new ArrayList<ReplicaInfo>();
+        FSDir tree = new FSDir(dir, in, volume, replicas);
+        cachedReplicas = replicas;
+        DataNode.LOG.info("Loaded " + replicas.size()
+            + " finalized replicas from replica cache " + cacheFile);
+        return tree;
+      } catch (IOException ioe) {
+        DataNode.LOG.warn("Failed to load replica cache " + cacheFile
+            + ", scanning " + dir + " instead", ioe);
+        return null;
+      } finally {
+        IOUtils.closeStream(in);
+        if (!cacheFile.delete()) {
+          DataNode.LOG.warn("Failed to delete replica cache " + cacheFile);
+        }
+      }
+    }
+
+    /**
+     * Save the finalized replicas of this slice and the directory tree
+     * holding them to the replica cache. The marker is written last, so
+     * that its presence implies a complete cache.
+     */
+    void saveReplicaCache(ReplicasMap volumeMap) throws IOException {
+      Map<File, List<ReplicaInfo>> replicasByDir =
+          new HashMap<File, List<ReplicaInfo>>();
+      int numReplicas = 0;
+      for (ReplicaInfo r : volumeMap.replicas(bpid)) {
+        if (r.getVolume() != volume
+            || r.getState() != ReplicaState.FINALIZED) {
+          continue;
+        }
+        List<ReplicaInfo> replicas = replicasByDir.get(r.getDir());
+        if (replicas == null) {
+          replicas = new ArrayList<ReplicaInfo>();
+          replicasByDir.put(r.getDir(), replicas);
+        }
+        replicas.add(r);
+        numReplicas++;
+      }
+
+      long generation = DFSUtil.getRandom().nextLong();
+      File cacheFile = new File(currentDir, REPLICA_CACHE_FILE);
+      File tmpFile = new File(currentDir, REPLICA_CACHE_FILE + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmpFile), HdfsConstants.IO_FILE_BUFFER_SIZE));
+      try {
+        out.writeInt(REPLICA_CACHE_VERSION);
+        out.writeLong(generation);
+        finalizedDir.write(out, replicasByDir);
+        out.close();
+        out = null;
+      } finally {
+        IOUtils.closeStream(out);
+      }
+      if (cacheFile.exists() && !cacheFile.delete()) {
+        throw new IOException("Failed to delete " + cacheFile);
+      }
+      if (!tmpFile.renameTo(cacheFile)) {
+        throw new IOException("Failed to rename " + tmpFile + " to "
+            + cacheFile);
+      }
+
+      File markerFile = new File(currentDir, REPLICA_CACHE_MARKER);
+      out = new DataOutputStream(new FileOutputStream(markerFile));
+      try {
+        out.writeLong(generation);
+        out.close();
+        out = null;
+      } finally {
+        IOUtils.closeStream(out);
+      }
+      DataNode.LOG.info("Saved " + numReplicas
+          + " finalized replicas to replica cache " + cacheFile);
+    }
+
+    private long readReplicaCacheMarker(File markerFile) throws IOException {
+      DataInputStream in = new DataInputStream(
+          new FileInputStream(markerFile));
+      try {
+        return in.readLong();
+      } finally {
+        in.close();
+      }
     }
 
     /**
@@ -658,9 +859,26 @@ class FSDataset implements FSDatasetInterface {
       }
     }
     
-    void getVolumeMap(String bpid, ReplicasMap volumeMap) throws IOException {
+    /**
+     * @return true if the finalized replicas were loaded from
+     *         the replica cache rather than from the disk
+     */
+    boolean getVolumeMap(String bpid, ReplicasMap volumeMap)
+        throws IOException {
       BlockPoolSlice bp = getBlockPoolSlice(bpid);
-      bp.getVolumeMap(volumeMap);
+      return bp.getVolumeMap(volumeMap);
+    }
+
+    void saveReplicaCache(String bpid, ReplicasMap volumeMap) {
+      BlockPoolSlice bp = map.get(bpid);
+      if (bp == null) {
+        return;
+      }
+      try {
+        bp.saveReplicaCache(volumeMap);
+      } catch (IOException ioe) {
+        DataNode.LOG.warn("Failed to save replica cache for " + bp, ioe);
+      }
     }
     
     /**
@@ -842,10 +1060,24 @@ class FSDataset implements FSDatasetInterface {
       }
     }
     
-    private void getVolumeMap(String bpid, ReplicasMap volumeMap)
+    /**
+     * @return the number of volumes whose finalized replicas were loaded
+     *         from the replica cache
+     */
+    private int getVolumeMap(String bpid, ReplicasMap volumeMap)
         throws IOException {
+      int numCached = 0;
+      for (FSVolumeInterface v : volumes) {
+        if (((FSVolume)v).getVolumeMap(bpid, volumeMap)) {
+          numCached++;
+        }
+      }
+      return numCached;
+    }
+
+    private void saveReplicaCaches(String bpid, ReplicasMap volumeMap) {
       for (FSVolumeInterface v : volumes) {
-        ((FSVolume)v).getVolumeMap(bpid, volumeMap);
+        ((FSVolume)v).saveReplicaCache(bpid, volumeMap);
       }
     }
       
@@ -988,6 +1220,14 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public synchronized Block getStoredBlock(String bpid, long blkid)
       throws IOException {
+    final RamReplicaStore.RamReplica ram = getRamReplica(bpid, blkid);
+    if (ram != null && !ram.isPersisted()) {
+      final long len = ram.getDataLength();
+      if (len >= 0) {
+        return new Block(blkid, len,
+            volumeMap.get(bpid, blkid).getGenerationStamp());
+      }
+    }
     File blockfile = getFile(bpid, blkid);
     if (blockfile == null) {
       return null;
@@ -1024,11 +1264,20 @@ class FSDataset implements FSDatasetInterface {
 
   @Override // FSDatasetInterface
   public boolean metaFileExists(ExtendedBlock b) throws IOException {
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    if (ram != null && ram.getMetaLength() >= 0) {
+      return true;
+    }
     return getMetaFile(b).exists();
   }
   
   @Override // FSDatasetInterface
   public long getMetaDataLength(ExtendedBlock b) throws IOException {
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    final long ramLength = ram == null ? -1 : ram.getMetaLength();
+    if (ramLength >= 0) {
+      return ramLength;
+    }
     File checksumFile = getMetaFile(b);
     return checksumFile.length();
   }
@@ -1036,6 +1285,14 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public MetaDataInputStream getMetaDataInputStream(ExtendedBlock b)
       throws IOException {
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    if (ram != null) {
+      final long length = ram.getMetaLength();
+      final InputStream in = ram.getMetaInputStream(0);
+      if (length >= 0 && in != null) {
+        return new MetaDataInputStream(in, length);
+      }
+    }
     File checksumFile = getMetaFile(b);
     return new MetaDataInputStream(new FileInputStream(checksumFile),
                                                     checksumFile.length());
@@ -1052,6 +1309,9 @@ class FSDataset implements FSDatasetInterface {
   private final Object statsLock = new Object();
 
   final boolean supportAppends;
+  final boolean replicaCacheEnabled;
+  /** Memory for replicas written in lazy-persist mode, null if disabled */
+  final RamReplicaStore lazyPersistStore;
 
   /**
    * An FSDataset has a directory where it loads its data files.
@@ -1065,6 +1325,14 @@ class FSDataset implements FSDatasetInterface {
     this.supportAppends = 
       conf.getBoolean(DFSConfigKeys.DFS_SUPPORT_APPEND_KEY,
                       DFSConfigKeys.DFS_SUPPORT_APPEND_DEFAULT);
+    this.replicaCacheEnabled =
+      conf.getBoolean(DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_KEY,
+                      DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_DEFAULT);
+    final long lazyPersistCapacity =
+      conf.getLong(DFSConfigKeys.DFS_DATANODE_LAZY_PERSIST_MEMORY_KEY,
+                   DFSConfigKeys.DFS_DATANODE_LAZY_PERSIST_MEMORY_DEFAULT);
+    this.lazyPersistStore = lazyPersistCapacity > 0 ?
+        new RamReplicaStore(lazyPersistCapacity, datanode.getMetrics()) : null;
     // The number of volumes required for operation is the total number 
     // of volumes minus the number of failed volumes we can tolerate.
     final int volFailuresTolerated =
@@ -1175,6 +1443,11 @@ class FSDataset implements FSDatasetInterface {
    */
   @Override // FSDatasetInterface
   public long getLength(ExtendedBlock b) throws IOException {
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    final long ramLength = ram == null ? -1 : ram.getDataLength();
+    if (ramLength >= 0) {
+      return ramLength;
+    }
     return getBlockFile(b).length();
   }
 
@@ -1202,6 +1475,10 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public InputStream getBlockInputStream(ExtendedBlock b)
       throws IOException {
+    final InputStream ramIn = getRamInputStream(b, 0);
+    if (ramIn != null) {
+      return ramIn;
+    }
     File f = getBlockFileNoExistsCheck(b);
     try {
       return new FileInputStream(f);
@@ -1232,6 +1509,10 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public InputStream getBlockInputStream(ExtendedBlock b,
       long seekOffset) throws IOException {
+    final InputStream ramIn = getRamInputStream(b, seekOffset);
+    if (ramIn != null) {
+      return ramIn;
+    }
     File blockFile = getBlockFileNoExistsCheck(b);
     RandomAccessFile blockInFile;
     try {
@@ -1247,6 +1528,36 @@ class FSDataset implements FSDatasetInterface {
     return new FileInputStream(blockInFile.getFD());
   }
 
+  /**
+   * Get the memory copy of a replica written in lazy-persist mode.
+   * @return the memory copy, or null if the replica is only on disk
+   */
+  private RamReplicaStore.RamReplica getRamReplica(String bpid, long blockId) {
+    return lazyPersistStore == null ? null
+        : lazyPersistStore.get(bpid, blockId);
+  }
+
+  private RamReplicaStore.RamReplica getRamReplica(ExtendedBlock b) {
+    return getRamReplica(b.getBlockPoolId(), b.getBlockId());
+  }
+
+  /**
+   * Open the block data of a replica from memory.
+   * @return the stream, or null if the replica is not in memory
+   */
+  private InputStream getRamInputStream(ExtendedBlock b, long seekOffset) {
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    final InputStream in = ram == null ? null
+        : ram.getDataInputStream(seekOffset);
+    if (in != null) {
+      final DataNodeMetrics metrics = datanode.getMetrics();
+      if (metrics != null) {
+        metrics.incrRamReplicaReads();
+      }
+    }
+    return in;
+  }
+
   /**
    * Get the meta info of a block stored in volumeMap. To find a block,
    * block pool Id, block Id and generation stamp must match.
@@ -1291,6 +1602,14 @@ class FSDataset implements FSDatasetInterface {
   public synchronized BlockInputStreams getTmpInputStreams(ExtendedBlock b, 
                           long blkOffset, long ckoff) throws IOException {
     ReplicaInfo info = getReplicaInfo(b);
+    final RamReplicaStore.RamReplica ram = getRamReplica(b);
+    if (ram != null) {
+      final InputStream dataIn = ram.getDataInputStream(blkOffset);
+      final InputStream checksumIn = ram.getMetaInputStream(ckoff);
+      if (dataIn != null && checksumIn != null) {
+        return new BlockInputStreams(dataIn, checksumIn);
+      }
+    }
     File blockFile = info.getBlockFile();
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
     if (blkOffset > 0) {
@@ -1406,7 +1725,8 @@ class FSDataset implements FSDatasetInterface {
       throw new IOException("The new generation stamp " + newGS + 
           " should be greater than the replica " + b + "'s generation stamp");
     }
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
+    ReplicaInfo replicaInfo = moveRamReplicaToDisk(b.getBlockPoolId(),
+        getReplicaInfo(b));
     DataNode.LOG.info("Appending to replica " + replicaInfo);
     if (replicaInfo.getState() != ReplicaState.FINALIZED) {
       throw new ReplicaNotFoundException(
@@ -1522,6 +1842,7 @@ class FSDataset implements FSDatasetInterface {
             ") are not the same.");
       }
     }
+    replicaInfo = moveRamReplicaToDisk(b.getBlockPoolId(), replicaInfo);
     
     // check block length
     if (replicaLen != expectedBlockLen) {
@@ -1595,6 +1916,12 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public synchronized ReplicaInPipelineInterface createRbw(ExtendedBlock b)
       throws IOException {
+    return createRbw(b, false);
+  }
+
+  @Override // FSDatasetInterface
+  public synchronized ReplicaInPipelineInterface createRbw(ExtendedBlock b,
+      boolean allowLazyPersist) throws IOException {
     ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
         b.getBlockId());
     if (replicaInfo != null) {
@@ -1608,6 +1935,11 @@ class FSDataset implements FSDatasetInterface {
     File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
     ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
         b.getGenerationStamp(), v, f.getParentFile());
+    if (allowLazyPersist && lazyPersistStore != null) {
+      // null if there is no room left, the replica is then written to disk
+      newReplicaInfo.setRamReplica(
+          lazyPersistStore.add(b.getBlockPoolId(), b.getBlockId()));
+    }
     volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
     return newReplicaInfo;
   }
@@ -1632,6 +1964,7 @@ class FSDataset implements FSDatasetInterface {
     // Stop the previous writer
     rbw.stopWriter();
     rbw.setWriter(Thread.currentThread());
+    moveRamReplicaToDisk(b.getBlockPoolId(), rbw);
 
     // check generation stamp
     long replicaGenerationStamp = rbw.getGenerationStamp();
@@ -1745,6 +2078,19 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public void adjustCrcChannelPosition(ExtendedBlock b, BlockWriteStreams streams, 
       int checksumSize) throws IOException {
+    if (streams.checksumOut instanceof
+        RamReplicaStore.RamReplica.RamOutputStream) {
+      RamReplicaStore.RamReplica.RamOutputStream out =
+          (RamReplicaStore.RamReplica.RamOutputStream) streams.checksumOut;
+      long oldPos = out.getPosition();
+      long newPos = oldPos - checksumSize;
+      if (DataNode.LOG.isDebugEnabled()) {
+        DataNode.LOG.debug("Changing meta offset of in-memory block " + b +
+            " from " + oldPos + " to " + newPos);
+      }
+      out.setPosition(newPos);
+      return;
+    }
     FileOutputStream file = (FileOutputStream) streams.checksumOut;
     FileChannel channel = file.getChannel();
     long oldPos = channel.position();
@@ -1807,13 +2153,152 @@ class FSDataset implements FSDatasetInterface {
             " for block " + replicaInfo);
       }
 
-      File dest = v.addBlock(bpid, replicaInfo, f);
-      newReplicaInfo = new FinalizedReplica(replicaInfo, v, dest.getParentFile());
+      final RamReplicaStore.RamReplica ram =
+          replicaInfo instanceof ReplicaInPipeline ?
+              ((ReplicaInPipeline)replicaInfo).getRamReplica() : null;
+      if (ram != null) {
+        // The replica stays in the rbw directory until its memory copy
+        // has been written out by the async disk service.
+        newReplicaInfo = new FinalizedReplica(replicaInfo, v,
+            replicaInfo.getDir());
+        asyncDiskService.persistAsync(v, bpid, replicaInfo.getBlockId());
+      } else {
+        File dest = v.addBlock(bpid, replicaInfo, f);
+        newReplicaInfo = new FinalizedReplica(replicaInfo, v, dest.getParentFile());
+      }
     }
     volumeMap.add(bpid, newReplicaInfo);
     return newReplicaInfo;
   }
 
+  /**
+   * Persist a finalized replica written in lazy-persist mode.
+   * Called by the async disk service. The files are written without
+   * holding the dataset lock; the replica is then moved to the finalized
+   * directory unless it was persisted, deleted or replaced meanwhile.
+   */
+  void persistLazyReplica(String bpid, long blockId) {
+    final RamReplicaStore.RamReplica ram;
+    final ReplicaInfo replicaInfo;
+    synchronized (this) {
+      ram = getRamReplica(bpid, blockId);
+      replicaInfo = volumeMap.get(bpid, blockId);
+      if (ram == null || ram.isPersisted() || replicaInfo == null
+          || replicaInfo.getState() != ReplicaState.FINALIZED) {
+        return;
+      }
+    }
+    final long start = System.currentTimeMillis();
+    try {
+      if (!ram.writeFiles(replicaInfo.getBlockFile(),
+          replicaInfo.getMetaFile())) {
+        return;
+      }
+      synchronized (this) {
+        commitLazyReplica(bpid, replicaInfo, ram);
+      }
+    } catch (IOException ioe) {
+      DataNode.LOG.warn("Failed to persist in-memory replica " + replicaInfo,
+          ioe);
+      return;
+    }
+    final DataNodeMetrics metrics = datanode.getMetrics();
+    if (metrics != null) {
+      metrics.addRamReplicaPersist(System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Move a lazy-persist replica whose files have been written to the
+   * finalized directory. The memory copy is kept to serve reads until
+   * it is evicted.
+   */
+  private synchronized void commitLazyReplica(String bpid,
+      ReplicaInfo replicaInfo, RamReplicaStore.RamReplica ram)
+      throws IOException {
+    if (ram.isPersisted()) {
+      return;
+    }
+    final ReplicaInfo current = volumeMap.get(bpid, replicaInfo.getBlockId());
+    if (current != replicaInfo) {
+      if (current == null) {
+        // deleted while its files were being written
+        replicaInfo.getBlockFile().delete();
+        replicaInfo.getMetaFile().delete();
+      }
+      return;
+    }
+    FSVolume v = (FSVolume)replicaInfo.getVolume();
+    File dest = v.addBlock(bpid, replicaInfo, replicaInfo.getBlockFile());
+    volumeMap.add(bpid, new FinalizedReplica(replicaInfo, v,
+        dest.getParentFile()));
+    lazyPersistStore.markPersisted(ram);
+  }
+
+  /**
+   * Persist a finalized lazy-persist replica now, instead of waiting for
+   * the async disk service.
+   * @return the current replica info
+   */
+  private synchronized ReplicaInfo persistLazyReplicaNow(String bpid,
+      ReplicaInfo replicaInfo) throws IOException {
+    final RamReplicaStore.RamReplica ram =
+        getRamReplica(bpid, replicaInfo.getBlockId());
+    if (ram == null || ram.isPersisted()
+        || replicaInfo.getState() != ReplicaState.FINALIZED) {
+      return replicaInfo;
+    }
+    if (ram.writeFiles(replicaInfo.getBlockFile(), replicaInfo.getMetaFile())) {
+      commitLazyReplica(bpid, replicaInfo, ram);
+    }
+    final ReplicaInfo current = volumeMap.get(bpid, replicaInfo.getBlockId());
+    return current != null ? current : replicaInfo;
+  }
+
+  /**
+   * Make sure a replica is entirely on disk and drop its memory copy, if
+   * any, before its files are modified by an append or a recovery.
+   * @return the current replica info
+   */
+  private synchronized ReplicaInfo moveRamReplicaToDisk(String bpid,
+      ReplicaInfo replicaInfo) throws IOException {
+    final RamReplicaStore.RamReplica ram =
+        getRamReplica(bpid, replicaInfo.getBlockId());
+    if (ram == null) {
+      return replicaInfo;
+    }
+    if (replicaInfo.getState() == ReplicaState.FINALIZED) {
+      replicaInfo = persistLazyReplicaNow(bpid, replicaInfo);
+      lazyPersistStore.remove(bpid, replicaInfo.getBlockId());
+    } else {
+      ram.spill(replicaInfo.getBlockFile(), replicaInfo.getMetaFile());
+    }
+    return replicaInfo;
+  }
+
+  /**
+   * Move all the lazy-persist replicas of a block pool which are not yet
+   * persisted to disk.
+   */
+  private synchronized void persistLazyReplicas(String bpid) {
+    if (lazyPersistStore == null) {
+      return;
+    }
+    for (RamReplicaStore.RamReplica ram :
+        lazyPersistStore.getUnpersisted(bpid)) {
+      final ReplicaInfo replicaInfo = volumeMap.get(bpid, ram.blockId);
+      if (replicaInfo == null) {
+        continue;
+      }
+      try {
+        moveRamReplicaToDisk(bpid, replicaInfo);
+      } catch (IOException ioe) {
+        DataNode.LOG.warn("Failed to persist in-memory replica "
+            + replicaInfo, ioe);
+      }
+    }
+  }
+
   /**
    * Remove the temporary block file (if any)
    */
@@ -2036,6 +2521,9 @@ class FSDataset implements FSDatasetInterface {
           v.clearPath(bpid, parent);
         }
         volumeMap.remove(bpid, invalidBlks[i]);
+        if (lazyPersistStore != null) {
+          lazyPersistStore.remove(bpid, invalidBlks[i].getBlockId());
+        }
       }
       File metaFile = DatanodeUtil.getMetaFile(f, invalidBlks[i].getGenerationStamp());
 
@@ -2162,6 +2650,14 @@ class FSDataset implements FSDatasetInterface {
     }
     
     if(volumes != null) {
+      synchronized(this) {
+        for (String bpid : volumeMap.getBlockPoolList()) {
+          persistLazyReplicas(bpid);
+          if (replicaCacheEnabled) {
+            volumes.saveReplicaCaches(bpid, volumeMap);
+          }
+        }
+      }
       volumes.shutdown();
     }
   }
@@ -2205,6 +2701,11 @@ class FSDataset implements FSDatasetInterface {
         // Block is not finalized - ignore the difference
         return;
       }
+      final RamReplicaStore.RamReplica ram = getRamReplica(bpid, blockId);
+      if (memBlockInfo != null && ram != null && !ram.isPersisted()) {
+        // Block is still in memory and is persisted asynchronously
+        return;
+      }
 
       final long diskGS = diskMetaFile != null && diskMetaFile.exists() ?
           Block.getGenerationStamp(diskMetaFile.getName()) :
@@ -2348,6 +2849,11 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public synchronized ReplicaRecoveryInfo initReplicaRecovery(
       RecoveringBlock rBlock) throws IOException {
+    final ReplicaInfo replicaInfo = volumeMap.get(
+        rBlock.getBlock().getBlockPoolId(), rBlock.getBlock().getBlockId());
+    if (replicaInfo != null) {
+      moveRamReplicaToDisk(rBlock.getBlock().getBlockPoolId(), replicaInfo);
+    }
     return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(),
         volumeMap, rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp());
   }
@@ -2505,17 +3011,39 @@ class FSDataset implements FSDatasetInterface {
     return replica.getVisibleLength();
   }
   
-  public synchronized void addBlockPool(String bpid, Configuration conf)
+  public void addBlockPool(String bpid, Configuration conf)
       throws IOException {
-    DataNode.LOG.info("Adding block pool " + bpid);
-    volumes.addBlockPool(bpid, conf);
-    volumeMap.initBlockPool(bpid);
-    volumes.getVolumeMap(bpid, volumeMap);
+    final long start = System.currentTimeMillis();
+    final int numCached;
+    synchronized(this) {
+      DataNode.LOG.info("Adding block pool " + bpid);
+      volumes.addBlockPool(bpid, conf);
+      volumeMap.initBlockPool(bpid);
+      numCached = volumes.getVolumeMap(bpid, volumeMap);
+    }
+    final long elapsed = System.currentTimeMillis() - start;
+    DataNode.LOG.info("Loaded replicas of block pool " + bpid + " in "
+        + elapsed + " ms, " + numCached + " volume(s) from replica cache");
+    DataNodeMetrics metrics = datanode.getMetrics();
+    if (metrics != null) {
+      metrics.addReplicaMapLoad(elapsed, numCached);
+    }
+    if (numCached > 0) {
+      // Verify the cached replicas against the disk in the background
+      datanode.scheduleDirectoryScan();
+    }
   }
   
   public synchronized void shutdownBlockPool(String bpid) {
     DataNode.LOG.info("Removing block pool " + bpid);
+    persistLazyReplicas(bpid);
+    if (replicaCacheEnabled) {
+      volumes.saveReplicaCaches(bpid, volumeMap);
+    }
     volumeMap.cleanUpBlockPool(bpid);
+    if (lazyPersistStore != null) {
+      lazyPersistStore.removeAll(bpid);
+    }
     volumes.removeBlockPool(bpid);
   }
   
@@ -2597,6 +3125,14 @@ class FSDataset implements FSDatasetInterface {
   @Override // FSDatasetInterface
   public BlockLocalPathInfo getBlockLocalPathInfo(ExtendedBlock block)
       throws IOException {
+    synchronized(this) {
+      // clients cache the path, so it must be the final location
+      final ReplicaInfo replicaInfo = volumeMap.get(block.getBlockPoolId(),
+          block.getBlockId());
+      if (replicaInfo != null) {
+        persistLazyReplicaNow(block.getBlockPoolId(), replicaInfo);
+      }
+    }
     File datafile = getBlockFile(block);
     File metafile = DatanodeUtil.getMetaFile(datafile, block.getGenerationStamp());
     BlockLocalPathInfo info = new BlockLocalPathInfo(block,
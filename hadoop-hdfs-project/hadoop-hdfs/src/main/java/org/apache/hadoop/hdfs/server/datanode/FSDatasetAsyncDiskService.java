@@ -160,6 +160,43 @@ class FSDatasetAsyncDiskService {
     execute(volume.getCurrentDir(), deletionTask);
   }
   
+  /**
+   * Write a replica buffered in memory by a lazy-persist write to the
+   * volume asynchronously, and move it to the finalized directory.
+   */
+  void persistAsync(FSDataset.FSVolume volume, String bpid, long blockId) {
+    execute(volume.getCurrentDir(),
+        new ReplicaLazyPersistTask(dataset, volume, bpid, blockId));
+  }
+
+  /** A task for persisting a replica held in memory. */
+  static class ReplicaLazyPersistTask implements Runnable {
+    final FSDataset dataset;
+    final FSDataset.FSVolume volume;
+    final String bpid;
+    final long blockId;
+
+    ReplicaLazyPersistTask(FSDataset dataset, FSDataset.FSVolume volume,
+        String bpid, long blockId) {
+      this.dataset = dataset;
+      this.volume = volume;
+      this.bpid = bpid;
+      this.blockId = blockId;
+    }
+
+    @Override
+    public String toString() {
+      // Called in AsyncDiskService.execute for displaying error messages.
+      return "persisting in-memory block " + bpid + " blk_" + blockId
+          + " to volume " + volume;
+    }
+
+    @Override
+    public void run() {
+      dataset.persistLazyReplica(bpid, blockId);
+    }
+  }
+
   /** A task for deleting a block file and its associated meta file, as well
    *  as decrement the dfs usage of the volume. 
    */
@@ -257,6 +257,18 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public ReplicaInPipelineInterface createRbw(ExtendedBlock b) throws IOException;
 
+  /**
+   * Creates a RBW replica and returns the meta info of the replica
+   * 
+   * @param b block
+   * @param allowLazyPersist true if the replica may be kept in memory and
+   *        persisted to disk asynchronously after it is finalized
+   * @return the meta info of the replica which is being written to
+   * @throws IOException if an error occurs
+   */
+  public ReplicaInPipelineInterface createRbw(ExtendedBlock b,
+      boolean allowLazyPersist) throws IOException;
+
   /**
    * Recovers a RBW replica and returns the meta info of the replica
    * 
@@ -0,0 +1,522 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * A bounded area of direct memory holding the replicas written in
+ * lazy-persist mode.
+ * <p>
+ * The data and checksums of such a replica are written to memory instead
+ * of its files in the rbw directory. Once the replica is finalized it is
+ * written to disk by a {@link FSDatasetAsyncDiskService} task, and its
+ * memory copy is kept to serve reads until the space is needed by another
+ * replica. A replica that runs out of memory while being written is
+ * spilled to its files and continues as an ordinary replica.
+ */
+@InterfaceAudience.Private
+class RamReplicaStore {
+  /** Memory is allocated to the replicas in chunks of this size */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final long capacity;
+  private final DataNodeMetrics metrics;
+  /** Bytes of memory allocated to the replicas, guarded by this */
+  private long used = 0;
+  /** The replicas in memory, least recently used first */
+  private final Map<String, RamReplica> replicas =
+      new LinkedHashMap<String, RamReplica>(16, 0.75f, true);
+
+  RamReplicaStore(long capacity, DataNodeMetrics metrics) {
+    this.capacity = capacity;
+    this.metrics = metrics;
+    if (metrics != null) {
+      metrics.setRamReplicaCapacity(capacity);
+    }
+  }
+
+  private static String key(String bpid, long blockId) {
+    return bpid + ":" + blockId;
+  }
+
+  long getCapacity() {
+    return capacity;
+  }
+
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Add a replica that is about to be written.
+   * @return the new replica, or null if there is no room left for it
+   */
+  synchronized RamReplica add(String bpid, long blockId) {
+    // room for the first data and checksum chunks
+    if (!makeRoom(2L * CHUNK_SIZE)) {
+      return null;
+    }
+    RamReplica r = new RamReplica(this, bpid, blockId);
+    replicas.put(key(bpid, blockId), r);
+    if (metrics != null) {
+      metrics.incrRamReplicasWritten();
+    }
+    return r;
+  }
+
+  /** @return the replica if it is in memory, null otherwise */
+  synchronized RamReplica get(String bpid, long blockId) {
+    return replicas.get(key(bpid, blockId));
+  }
+
+  /** @return the replicas of the block pool which are not yet persisted */
+  synchronized List<RamReplica> getUnpersisted(String bpid) {
+    List<RamReplica> result = new ArrayList<RamReplica>();
+    for (RamReplica r : replicas.values()) {
+      if (r.bpid.equals(bpid) && !r.isPersisted()) {
+        result.add(r);
+      }
+    }
+    return result;
+  }
+
+  /** Release the memory of a replica that was deleted or spilled to disk */
+  synchronized void remove(String bpid, long blockId) {
+    RamReplica r = replicas.remove(key(bpid, blockId));
+    if (r != null) {
+      release(r);
+    }
+  }
+
+  /** Release the memory of all the replicas of a block pool */
+  synchronized void removeAll(String bpid) {
+    for (Iterator<RamReplica> it = replicas.values().iterator();
+        it.hasNext();) {
+      RamReplica r = it.next();
+      if (r.bpid.equals(bpid)) {
+        it.remove();
+        release(r);
+      }
+    }
+  }
+
+  /** Make the replica a candidate for eviction */
+  synchronized void markPersisted(RamReplica r) {
+    r.persisted = true;
+    if (metrics != null) {
+      metrics.incrRamReplicasPersisted();
+    }
+  }
+
+  private void release(RamReplica r) {
+    r.inMemory = false;
+    used -= r.allocated;
+    r.allocated = 0;
+    if (metrics != null) {
+      metrics.setRamReplicaUsed(used);
+    }
+  }
+
+  /**
+   * Reserve a chunk of memory for the replica.
+   * @return true if the chunk was reserved, false if the replica has been
+   *         released or there is no room left
+   */
+  private synchronized boolean reserve(RamReplica r) {
+    if (!r.inMemory || !makeRoom(CHUNK_SIZE)) {
+      return false;
+    }
+    r.allocated += CHUNK_SIZE;
+    used += CHUNK_SIZE;
+    if (metrics != null) {
+      metrics.setRamReplicaUsed(used);
+    }
+    return true;
+  }
+
+  /**
+   * Evict persisted replicas, least recently used first, until the
+   * requested amount of memory is available.
+   * Readers that already opened an evicted replica keep their own
+   * reference to its memory, so eviction never invalidates a read.
+   */
+  private boolean makeRoom(long bytes) {
+    if (used + bytes <= capacity) {
+      return true;
+    }
+    for (Iterator<RamReplica> it = replicas.values().iterator();
+        it.hasNext() && used + bytes > capacity;) {
+      RamReplica r = it.next();
+      if (r.isPersisted()) {
+        it.remove();
+        release(r);
+        if (metrics != null) {
+          metrics.incrRamReplicasEvicted();
+        }
+      }
+    }
+    return used + bytes <= capacity;
+  }
+
+  /**
+   * A growable buffer made of direct memory chunks.
+   */
+  static class Buffer {
+    private final RamReplica replica;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long length = 0;
+
+    Buffer(RamReplica replica) {
+      this.replica = replica;
+    }
+
+    synchronized long length() {
+      return length;
+    }
+
+    /**
+     * Write the given bytes at the given position.
+     * @return false if more memory was needed and none is available
+     */
+    synchronized boolean write(long pos, byte[] b, int off, int len) {
+      long end = pos + len;
+      while ((long)chunks.size() * CHUNK_SIZE < end) {
+        if (!replica.store.reserve(replica)) {
+          return false;
+        }
+        chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+      }
+      while (len > 0) {
+        ByteBuffer chunk = chunks.get((int)(pos / CHUNK_SIZE)).duplicate();
+        int chunkOff = (int)(pos % CHUNK_SIZE);
+        int n = Math.min(len, CHUNK_SIZE - chunkOff);
+        chunk.position(chunkOff);
+        chunk.put(b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+      }
+      length = Math.max(length, end);
+      return true;
+    }
+
+    /**
+     * Read up to len bytes starting at the given position.
+     * @return the number of bytes read, or -1 at the end of the buffer
+     */
+    synchronized int read(long pos, byte[] b, int off, int len) {
+      if (pos >= length) {
+        return -1;
+      }
+      len = (int)Math.min(len, length - pos);
+      int read = 0;
+      while (read < len) {
+        ByteBuffer chunk = chunks.get((int)(pos / CHUNK_SIZE)).duplicate();
+        int chunkOff = (int)(pos % CHUNK_SIZE);
+        int n = Math.min(len - read, CHUNK_SIZE - chunkOff);
+        chunk.position(chunkOff);
+        chunk.get(b, off + read, n);
+        pos += n;
+        read += n;
+      }
+      return read;
+    }
+
+    /** Write the whole buffer to the given file and sync it */
+    synchronized void writeTo(File f) throws IOException {
+      FileOutputStream out = new FileOutputStream(f);
+      try {
+        FileChannel channel = out.getChannel();
+        long remaining = length;
+        for (ByteBuffer chunk : chunks) {
+          if (remaining <= 0) {
+            break;
+          }
+          ByteBuffer src = chunk.duplicate();
+          src.position(0);
+          src.limit((int)Math.min(remaining, CHUNK_SIZE));
+          remaining -= src.remaining();
+          while (src.hasRemaining()) {
+            channel.write(src);
+          }
+        }
+        channel.force(true);
+        out.close();
+        out = null;
+      } finally {
+        IOUtils.closeStream(out);
+      }
+    }
+  }
+
+  /** An input stream reading a {@link Buffer} */
+  static class BufferInputStream extends InputStream {
+    private final Buffer buf;
+    private long pos;
+
+    BufferInputStream(Buffer buf, long pos) {
+      this.buf = buf;
+      this.pos = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = buf.read(pos, b, off, len);
+      if (n > 0) {
+        pos += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, buf.length() - pos));
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(Integer.MAX_VALUE, Math.max(0, buf.length() - pos));
+    }
+  }
+
+  /**
+   * A replica held in memory, with its block data and checksums.
+   */
+  static class RamReplica {
+    private final RamReplicaStore store;
+    final String bpid;
+    final long blockId;
+    /** The memory copy, null once the replica has been spilled */
+    private volatile Buffer data;
+    private volatile Buffer meta;
+    /** Memory reserved by this replica, guarded by the store */
+    private long allocated = 0;
+    /** false once the memory of this replica has been released */
+    private volatile boolean inMemory = true;
+    /** true once the replica is persisted in the finalized directory */
+    private volatile boolean persisted = false;
+    /** true once the files of the replica have been written */
+    private boolean filesWritten = false;
+    private RamOutputStream dataOut = null;
+    private RamOutputStream metaOut = null;
+
+    RamReplica(RamReplicaStore store, String bpid, long blockId) {
+      this.store = store;
+      this.bpid = bpid;
+      this.blockId = blockId;
+      this.data = new Buffer(this);
+      this.meta = new Buffer(this);
+    }
+
+    boolean isInMemory() {
+      return inMemory;
+    }
+
+    boolean isPersisted() {
+      return persisted;
+    }
+
+    /** @return the length of the block data, or -1 if spilled */
+    long getDataLength() {
+      final Buffer b = data;
+      return b == null ? -1 : b.length();
+    }
+
+    /** @return the length of the checksums, or -1 if spilled */
+    long getMetaLength() {
+      final Buffer b = meta;
+      return b == null ? -1 : b.length();
+    }
+
+    /** @return a stream reading the block data, or null if spilled */
+    InputStream getDataInputStream(long offset) {
+      final Buffer b = data;
+      return b == null ? null : new BufferInputStream(b, offset);
+    }
+
+    /** @return a stream reading the checksums, or null if spilled */
+    InputStream getMetaInputStream(long offset) {
+      final Buffer b = meta;
+      return b == null ? null : new BufferInputStream(b, offset);
+    }
+
+    /**
+     * Create the streams to write a new replica to memory.
+     * @param checksum the checksum of the replica
+     * @param blockFile the block file to spill to if memory runs out
+     * @param metaFile the meta file to spill to if memory runs out
+     */
+    synchronized BlockWriteStreams createStreams(DataChecksum checksum,
+        File blockFile, File metaFile) {
+      dataOut = new RamOutputStream(data, blockFile);
+      metaOut = new RamOutputStream(meta, metaFile);
+      return new BlockWriteStreams(dataOut, metaOut, checksum);
+    }
+
+    /**
+     * Write the replica to the given files, unless it was already written.
+     * @return false if the replica was released before it could be written
+     */
+    synchronized boolean writeFiles(File blockFile, File metaFile)
+        throws IOException {
+      if (!filesWritten && inMemory) {
+        data.writeTo(blockFile);
+        meta.writeTo(metaFile);
+        filesWritten = true;
+      }
+      return filesWritten;
+    }
+
+    /**
+     * Move a replica that is being written or recovered to its files and
+     * release its memory. Streams that are still open continue to write
+     * to the files.
+     */
+    synchronized void spill(File blockFile, File metaFile) throws IOException {
+      if (!inMemory) {
+        return;
+      }
+      data.writeTo(blockFile);
+      meta.writeTo(metaFile);
+      if (dataOut != null) {
+        dataOut.switchToFile(blockFile);
+      }
+      if (metaOut != null) {
+        metaOut.switchToFile(metaFile);
+      }
+      data = null;
+      meta = null;
+      store.remove(bpid, blockId);
+      if (store.metrics != null) {
+        store.metrics.incrRamReplicasSpilled();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + "(" + bpid + ":" + blockId
+          + ", dataLength=" + getDataLength() + ", persisted=" + persisted
+          + ", inMemory=" + inMemory + ")";
+    }
+
+    /**
+     * A positioned output stream writing to a {@link Buffer}, or to the
+     * file of the replica once it has been spilled.
+     */
+    class RamOutputStream extends OutputStream {
+      private Buffer buf;
+      private final File file;
+      private long position = 0;
+      /** The file once spilled, written in place of the buffer */
+      private RandomAccessFile fileOut = null;
+      private boolean closed = false;
+
+      RamOutputStream(Buffer buf, File file) {
+        this.buf = buf;
+        this.file = file;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (RamReplica.this) {
+          if (closed) {
+            throw new IOException("Stream closed");
+          }
+          if (fileOut == null && !buf.write(position, b, off, len)) {
+            // out of memory, continue on disk
+            spill(dataOut.file, metaOut.file);
+          }
+          if (fileOut != null) {
+            fileOut.write(b, off, len);
+          }
+          position += len;
+        }
+      }
+
+      /** Set the position of the next write */
+      void setPosition(long newPos) throws IOException {
+        synchronized (RamReplica.this) {
+          if (fileOut != null) {
+            fileOut.seek(newPos);
+          }
+          position = newPos;
+        }
+      }
+
+      long getPosition() {
+        synchronized (RamReplica.this) {
+          return position;
+        }
+      }
+
+      private void switchToFile(File f) throws IOException {
+        if (closed || fileOut != null) {
+          return;
+        }
+        fileOut = new RandomAccessFile(f, "rw");
+        fileOut.seek(position);
+        buf = null;
+      }
+
+      @Override
+      public void close() throws IOException {
+        synchronized (RamReplica.this) {
+          closed = true;
+          if (fileOut != null) {
+            fileOut.close();
+          }
+        }
+      }
+    }
+  }
+}
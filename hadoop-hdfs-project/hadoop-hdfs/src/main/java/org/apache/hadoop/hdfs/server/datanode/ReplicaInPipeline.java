@@ -43,6 +43,8 @@ class ReplicaInPipeline extends ReplicaInfo
   private long bytesOnDisk;
   private byte[] lastChecksum;  
   private Thread writer;
+  /** The memory copy of a replica written in lazy-persist mode */
+  private volatile RamReplicaStore.RamReplica ramReplica;
   
   /**
    * Constructor for a zero length replica
@@ -96,6 +98,7 @@ class ReplicaInPipeline extends ReplicaInfo
     this.bytesAcked = from.getBytesAcked();
     this.bytesOnDisk = from.getBytesOnDisk();
     this.writer = from.writer;
+    this.ramReplica = from.ramReplica;
   }
 
   @Override
@@ -141,6 +144,20 @@ class ReplicaInPipeline extends ReplicaInfo
   public void setWriter(Thread writer) {
     this.writer = writer;
   }
+
+  /**
+   * Write this replica to memory instead of its files.
+   * @param ramReplica the memory copy of the replica
+   */
+  void setRamReplica(RamReplicaStore.RamReplica ramReplica) {
+    this.ramReplica = ramReplica;
+  }
+
+  /** @return the memory copy of the replica, or null if it is on disk */
+  RamReplicaStore.RamReplica getRamReplica() {
+    final RamReplicaStore.RamReplica r = ramReplica;
+    return r != null && r.isInMemory() ? r : null;
+  }
   
   @Override  // Object
   public boolean equals(Object o) {
@@ -172,6 +189,10 @@ class ReplicaInPipeline extends ReplicaInfo
       DataChecksum requestedChecksum) throws IOException {
     File blockFile = getBlockFile();
     File metaFile = getMetaFile();
+    final RamReplicaStore.RamReplica ram = getRamReplica();
+    if (isCreate && ram != null) {
+      return ram.createStreams(requestedChecksum, blockFile, metaFile);
+    }
     if (DataNode.LOG.isDebugEnabled()) {
       DataNode.LOG.debug("writeTo blockfile is " + blockFile +
                          " of size " + blockFile.length());
@@ -29,6 +29,7 @@ import org.apache.hadoop.metrics2.annotation.Metrics;
 import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.metrics2.lib.MetricsRegistry;
 import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableGaugeLong;
 import org.apache.hadoop.metrics2.lib.MutableRate;
 import org.apache.hadoop.metrics2.source.JvmMetrics;
 
@@ -64,6 +65,23 @@ public class DataNodeMetrics {
   
   @Metric MutableCounterLong volumeFailures;
 
+  @Metric MutableCounterLong directoryScanDirsScanned;
+  @Metric MutableCounterLong directoryScanDirsSkipped;
+  @Metric MutableCounterLong directoryScanFilesScanned;
+  @Metric MutableCounterLong replicaCacheLoads;
+  @Metric MutableCounterLong ramReplicasWritten;
+  @Metric MutableCounterLong ramReplicaReads;
+  @Metric MutableCounterLong ramReplicasPersisted;
+  @Metric MutableCounterLong ramReplicasEvicted;
+  @Metric MutableCounterLong ramReplicasSpilled;
+  @Metric MutableCounterLong readaheadSequentialStreams;
+  @Metric MutableCounterLong readaheadRandomStreams;
+  @Metric MutableCounterLong readaheadBytes;
+  @Metric MutableCounterLong readaheadHitBytes;
+  @Metric MutableCounterLong readaheadWastedBytes;
+  @Metric MutableGaugeLong ramReplicaCapacity;
+  @Metric MutableGaugeLong ramReplicaUsed;
+
   @Metric MutableRate readBlockOp;
   @Metric MutableRate writeBlockOp;
   @Metric MutableRate blockChecksumOp;
@@ -71,6 +89,9 @@ public class DataNodeMetrics {
   @Metric MutableRate replaceBlockOp;
   @Metric MutableRate heartbeats;
   @Metric MutableRate blockReports;
+  @Metric MutableRate directoryScans;
+  @Metric MutableRate replicaMapLoad;
+  @Metric MutableRate ramReplicaPersist;
 
   final MetricsRegistry registry = new MetricsRegistry("datanode");
   final String name;
@@ -167,6 +188,83 @@ public class DataNodeMetrics {
     volumeFailures.incr();
   }
 
+  public void addDirectoryScan(long latency) {
+    directoryScans.add(latency);
+  }
+
+  public void addDirectoryScanProgress(long dirsScanned, long dirsSkipped,
+      long filesScanned) {
+    directoryScanDirsScanned.incr(dirsScanned);
+    directoryScanDirsSkipped.incr(dirsSkipped);
+    directoryScanFilesScanned.incr(filesScanned);
+  }
+
+  /**
+   * Record the time taken to load the replicas of a block pool at startup
+   * @param numCached number of volumes loaded from the replica cache
+   */
+  public void addReplicaMapLoad(long latency, int numCached) {
+    replicaMapLoad.add(latency);
+    replicaCacheLoads.incr(numCached);
+  }
+
+  public void setRamReplicaCapacity(long bytes) {
+    ramReplicaCapacity.set(bytes);
+  }
+
+  public void setRamReplicaUsed(long bytes) {
+    ramReplicaUsed.set(bytes);
+  }
+
+  public void incrRamReplicasWritten() {
+    ramReplicasWritten.incr();
+  }
+
+  /** Increment for block reads served from memory */
+  public void incrRamReplicaReads() {
+    ramReplicaReads.incr();
+  }
+
+  public void incrRamReplicasPersisted() {
+    ramReplicasPersisted.incr();
+  }
+
+  public void incrRamReplicasEvicted() {
+    ramReplicasEvicted.incr();
+  }
+
+  /** Increment for in-memory replicas moved to disk before completion */
+  public void incrRamReplicasSpilled() {
+    ramReplicasSpilled.incr();
+  }
+
+  public void addRamReplicaPersist(long latency) {
+    ramReplicaPersist.add(latency);
+  }
+
+  /** Increment for block reads classified by the adaptive readahead */
+  public void incrReadaheadStreams(boolean sequential) {
+    if (sequential) {
+      readaheadSequentialStreams.incr();
+    } else {
+      readaheadRandomStreams.incr();
+    }
+  }
+
+  public void incrReadaheadBytes(long bytes) {
+    readaheadBytes.incr(bytes);
+  }
+
+  /** Increment for bytes read which had been read ahead */
+  public void incrReadaheadHitBytes(long bytes) {
+    readaheadHitBytes.incr(bytes);
+  }
+
+  /** Increment for bytes read ahead but never read */
+  public void incrReadaheadWastedBytes(long bytes) {
+    readaheadWastedBytes.incr(bytes);
+  }
+
   /** Increment for getBlockLocalPathInfo calls */
   public void incrBlocksGetLocalPathInfo() {
     blocksGetLocalPathInfo.incr();
@@ -2481,6 +2481,24 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     }
   }
 
+  /**
+   * Renew the leases held by the given clients, under a single lock
+   */
+  void renewLeases(String[] holders) throws IOException {
+    writeLock();
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Cannot renew leases for "
+            + holders.length + " clients", safeMode);
+      }
+      for (String holder : holders) {
+        leaseManager.renewLease(holder);
+      }
+    } finally {
+      writeUnlock();
+    }
+  }
+
   /**
    * Get a partial listing of the indicated directory
    *
@@ -3781,7 +3799,8 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     // check stored block state
     BlockInfo storedBlock = blockManager.getStoredBlock(ExtendedBlock.getLocalBlock(block));
     if (storedBlock == null || 
-        storedBlock.getBlockUCState() != BlockUCState.UNDER_CONSTRUCTION) {
+        (storedBlock.getBlockUCState() != BlockUCState.UNDER_CONSTRUCTION &&
+         storedBlock.getBlockUCState() != BlockUCState.COMMITTED)) {
         throw new IOException(block + 
             " does not exist or is not under Construction" + storedBlock);
     }
@@ -3792,6 +3811,15 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       throw new IOException("The file " + storedBlock + 
           " belonged to does not exist or it is not under construction.");
     }
+
+    // A client which allocated the next block early has its last block
+    // committed while the pipeline is closed. If the close fails, the client
+    // abandons the next block and recovers the pipeline of the committed one.
+    if (storedBlock.getBlockUCState() == BlockUCState.COMMITTED &&
+        storedBlock != file.getLastBlock()) {
+      throw new IOException(block + " is committed and is not the last block"
+          + " of the file " + storedBlock);
+    }
     
     // check lease
     INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction)file;
@@ -3889,6 +3917,15 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       LOG.warn(msg);
       throw new IOException(msg);
     }
+    if (blockinfo.getBlockUCState() == BlockUCState.COMMITTED &&
+        newBlock.getNumBytes() != blockinfo.getNumBytes()) {
+      String msg = "Update " + oldBlock + " (len = " +
+        blockinfo.getNumBytes() + ") to " + newBlock + " (len = " +
+        newBlock.getNumBytes() + "): the length of a committed block cannot"
+        + " change";
+      LOG.warn(msg);
+      throw new IOException(msg);
+    }
 
     // Update old block with the new generation stamp and new length
     blockinfo.setGenerationStamp(newBlock.getGenerationStamp());
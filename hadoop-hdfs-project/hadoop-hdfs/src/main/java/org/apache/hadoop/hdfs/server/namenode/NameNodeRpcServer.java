@@ -662,6 +662,11 @@ class NameNodeRpcServer implements NamenodeProtocols {
     namesystem.renewLease(clientName);        
   }
 
+  @Override // ClientProtocol
+  public void renewLeases(String[] clientNames) throws IOException {
+    namesystem.renewLeases(clientNames);
+  }
+
   @Override // ClientProtocol
   public DirectoryListing getListing(String src, byte[] startAfter,
       boolean needLocation)
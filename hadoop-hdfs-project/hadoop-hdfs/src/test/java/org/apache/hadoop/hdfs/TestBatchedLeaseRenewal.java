@@ -0,0 +1,313 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.RpcServerException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Test the renewal of the leases of the clients of many users by a single
+ * {@link BatchedLeaseRenewer}, with leases short enough for the namenode to
+ * recover the files of the clients which are not renewed.
+ */
+public class TestBatchedLeaseRenewal {
+  private static final Log LOG =
+      LogFactory.getLog(TestBatchedLeaseRenewal.class);
+  private static final int NUM_USERS = 5;
+  /** The clients renew their leases every half of it */
+  private static final int CLIENT_TIMEOUT_MS = 2000;
+  private static final long SOFT_LEASE_MS = 1000;
+  private static final long HARD_LEASE_MS = 3000;
+
+  private MiniDFSCluster cluster;
+
+  @Before
+  public void startCluster() throws IOException {
+    cluster = new MiniDFSCluster.Builder(new HdfsConfiguration())
+        .numDataNodes(1).build();
+    cluster.waitActive();
+    FileSystem fs = cluster.getFileSystem();
+    Path dir = new Path("/batched");
+    fs.mkdirs(dir);
+    fs.setPermission(dir, new FsPermission((short)0777));
+  }
+
+  @After
+  public void shutDownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  /** How the namenode of a client answers the lease renewals */
+  private static enum NameNode {
+    /** renews the leases */
+    CURRENT,
+    /** does not know the batched call */
+    OLD,
+    /** rejects the calls of the user */
+    EXPIRED_CREDENTIALS,
+    /** times out the batched call */
+    SLOW_BATCH
+  }
+
+  /**
+   * @return a namenode proxy which fails the renewals of the calls as the
+   *         given namenode would
+   */
+  private static ClientProtocol wrap(final ClientProtocol nn,
+      final NameNode kind) {
+    return (ClientProtocol) Proxy.newProxyInstance(
+        ClientProtocol.class.getClassLoader(),
+        new Class<?>[] {ClientProtocol.class, Closeable.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            final String name = method.getName();
+            if (kind == NameNode.OLD && name.equals("renewLeases")) {
+              throw new RemoteException(RpcServerException.class.getName(),
+                  "Unknown method renewLeases called on "
+                  + ClientProtocol.class.getName() + " protocol.");
+            }
+            if (kind == NameNode.SLOW_BATCH && name.equals("renewLeases")) {
+              throw new SocketTimeoutException("renewLeases timed out");
+            }
+            if (kind == NameNode.EXPIRED_CREDENTIALS
+                && name.startsWith("renewLease")) {
+              throw new IOException("The credentials have expired");
+            }
+            try {
+              return method.invoke(nn, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  private DFSClient newClient(UserGroupInformation ugi, int maxBatchSize)
+      throws Exception {
+    return newClient(ugi, maxBatchSize, null);
+  }
+
+  /**
+   * @param kind the namenode to wrap the proxy of the client in, or null for
+   *        a client connected to the namenode of the cluster
+   */
+  private DFSClient newClient(final UserGroupInformation ugi,
+      int maxBatchSize, final NameNode kind) throws Exception {
+    final Configuration conf =
+        new HdfsConfiguration(cluster.getConfiguration(0));
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_LEASE_RENEWER_BATCH_ENABLE_KEY,
+        true);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_LEASE_RENEWER_BATCH_MAX_SIZE_KEY,
+        maxBatchSize);
+    conf.setBoolean(CommonConfigurationKeys.IPC_CLIENT_PING_KEY, false);
+    conf.setInt(CommonConfigurationKeys.IPC_PING_INTERVAL_KEY,
+        CLIENT_TIMEOUT_MS);
+    final InetSocketAddress nnAddr =
+        new InetSocketAddress("localhost", cluster.getNameNodePort());
+    return ugi.doAs(new PrivilegedExceptionAction<DFSClient>() {
+      @Override
+      public DFSClient run() throws IOException {
+        if (kind == null) {
+          return new DFSClient(nnAddr, conf);
+        }
+        // the clients of all the wrapped namenodes share a batched renewer
+        return new DFSClient(null,
+            wrap(DFSUtil.createNamenode(nnAddr, conf, ugi), kind), conf, null);
+      }
+    });
+  }
+
+  /**
+   * Open a file for each of many users, and check that the leases of all
+   * of them are kept past the hard limit.
+   */
+  private void writeWithShortLeases(int maxBatchSize) throws Exception {
+    writeWithShortLeases(maxBatchSize, null, -1);
+  }
+
+  /**
+   * @param kind the namenode the clients see, null for the cluster one
+   * @param expiredUser the user whose renewals fail, whose leases are not
+   *        checked, or -1
+   */
+  private void writeWithShortLeases(int maxBatchSize, NameNode kind,
+      int expiredUser) throws Exception {
+    DFSClient[] clients = new DFSClient[NUM_USERS];
+    OutputStream[] outs = new OutputStream[NUM_USERS];
+    for (int i = 0; i < NUM_USERS; i++) {
+      UserGroupInformation ugi = UserGroupInformation.createUserForTesting(
+          "user" + i, new String[] {"group"});
+      clients[i] = newClient(ugi, maxBatchSize,
+          i == expiredUser ? NameNode.EXPIRED_CREDENTIALS : kind);
+      outs[i] = clients[i].create("/batched/file" + i, true);
+      outs[i].write(new byte[100]);
+      ((DFSOutputStream) outs[i]).hflush();
+    }
+    for (int i = 1; i < NUM_USERS; i++) {
+      // a renewer per user, all renewed by the same thread
+      assertTrue(clients[i].leaserenewer != clients[0].leaserenewer);
+    }
+
+    cluster.setLeasePeriod(SOFT_LEASE_MS, HARD_LEASE_MS);
+    Thread.sleep(3 * HARD_LEASE_MS);
+    for (int i = 0; i < NUM_USERS; i++) {
+      if (i == expiredUser) {
+        clients[i].abort();
+        continue;
+      }
+      outs[i].write(new byte[100]);
+      outs[i].close();
+      assertEquals(200, clients[i].getFileInfo("/batched/file" + i).getLen());
+      clients[i].close();
+    }
+  }
+
+  @Test
+  public void testBatchedRenewal() throws Exception {
+    DFSLeaseRenewalMetrics metrics = DFSClient.getLeaseRenewalMetrics();
+    long calls = metrics.getRenewalCalls();
+    long batched = metrics.getBatchedRenewalCalls();
+    long renewed = metrics.getLeasesRenewed();
+
+    writeWithShortLeases(1000);
+    calls = metrics.getRenewalCalls() - calls;
+    batched = metrics.getBatchedRenewalCalls() - batched;
+    renewed = metrics.getLeasesRenewed() - renewed;
+    LOG.info("Leases of " + NUM_USERS + " users renewed " + renewed
+        + " times with " + calls + " calls");
+    assertEquals(calls, batched);
+    assertTrue(batched > 0);
+    assertTrue(renewed > 2 * calls);
+    assertTrue(metrics.getMaxRenewalBatchSize() >= NUM_USERS);
+  }
+
+  @Test
+  public void testBatchSizeLimit() throws Exception {
+    DFSLeaseRenewalMetrics metrics = DFSClient.getLeaseRenewalMetrics();
+    long batched = metrics.getBatchedRenewalCalls();
+    long renewed = metrics.getLeasesRenewed();
+
+    writeWithShortLeases(2);
+    batched = metrics.getBatchedRenewalCalls() - batched;
+    renewed = metrics.getLeasesRenewed() - renewed;
+    // every user is renewed, at most two at a time
+    assertTrue(batched >= 3);
+    assertTrue(renewed <= 2 * batched);
+  }
+
+  @Test
+  public void testOldNameNode() throws Exception {
+    DFSLeaseRenewalMetrics metrics = DFSClient.getLeaseRenewalMetrics();
+    long calls = metrics.getRenewalCalls();
+    long batched = metrics.getBatchedRenewalCalls();
+    long failed = metrics.getFailedRenewalCalls();
+
+    writeWithShortLeases(1000, NameNode.OLD, -1);
+    calls = metrics.getRenewalCalls() - calls;
+    batched = metrics.getBatchedRenewalCalls() - batched;
+    failed = metrics.getFailedRenewalCalls() - failed;
+    // the batched call is tried once, then the leases are renewed client
+    // by client
+    assertEquals(0, batched);
+    assertEquals(1, failed);
+    assertTrue(calls >= NUM_USERS);
+
+    // a new thread tries the batched call again
+    final BatchedLeaseRenewer renewer =
+        BatchedLeaseRenewer.getInstance("null", 1000);
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return !renewer.isRunning();
+      }
+    }, 100, 10000);
+  }
+
+  /**
+   * The batched call goes with the credentials of one of the users, which
+   * must not stop the renewal of the leases of the others.
+   */
+  @Test
+  public void testExpiredCredentials() throws Exception {
+    DFSLeaseRenewalMetrics metrics = DFSClient.getLeaseRenewalMetrics();
+    long failed = metrics.getFailedRenewalCalls();
+    long calls = metrics.getRenewalCalls();
+    long batched = metrics.getBatchedRenewalCalls();
+
+    // the last user is the most recently renewed, so the first call goes
+    // with its credentials
+    writeWithShortLeases(1000, NameNode.CURRENT, NUM_USERS - 1);
+    failed = metrics.getFailedRenewalCalls() - failed;
+    calls = metrics.getRenewalCalls() - calls;
+    batched = metrics.getBatchedRenewalCalls() - batched;
+    LOG.info(failed + " failed renewal calls, " + calls + " renewal calls of"
+        + " which " + batched + " batched");
+    assertTrue(failed > 0);
+    assertTrue(calls > batched);
+  }
+
+  /**
+   * A batched call timing out must not abort the clients of the users in
+   * the batch, whose leases are then renewed user by user.
+   */
+  @Test
+  public void testBatchTimeout() throws Exception {
+    DFSLeaseRenewalMetrics metrics = DFSClient.getLeaseRenewalMetrics();
+    long calls = metrics.getRenewalCalls();
+    long batched = metrics.getBatchedRenewalCalls();
+
+    writeWithShortLeases(1000, NameNode.SLOW_BATCH, -1);
+    calls = metrics.getRenewalCalls() - calls;
+    batched = metrics.getBatchedRenewalCalls() - batched;
+    assertEquals(0, batched);
+    assertTrue(calls >= NUM_USERS);
+  }
+}
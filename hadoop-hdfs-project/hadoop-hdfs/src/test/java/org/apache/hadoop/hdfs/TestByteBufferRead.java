@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.junit.Test;
+
+/**
+ * Test the reads of {@link DFSInputStream} into a ByteBuffer, from the
+ * remote block readers.
+ */
+public class TestByteBufferRead {
+  private static final int BLOCK_SIZE = 4096;
+  private static final int FILE_SIZE = 3 * BLOCK_SIZE + 100;
+
+  private void doTestByteBufferRead(boolean legacyReader, boolean direct)
+      throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_USE_LEGACY_BLOCKREADER,
+        legacyReader);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/bytebuffer.dat");
+      byte[] expected = AppendTestUtil.randomBytes(0xDEADBEEFL, FILE_SIZE);
+      FSDataOutputStream out = fs.create(file);
+      out.write(expected);
+      out.close();
+
+      // reads of various sizes, across chunk and block boundaries
+      FSDataInputStream in = fs.open(file);
+      ByteBuffer buf = direct ? ByteBuffer.allocateDirect(FILE_SIZE)
+          : ByteBuffer.allocate(FILE_SIZE);
+      int[] sizes = {1, 7, 511, 513, BLOCK_SIZE, 2 * BLOCK_SIZE};
+      for (int i = 0; buf.position() < FILE_SIZE; i = (i + 1) % sizes.length) {
+        buf.limit(Math.min(buf.position() + sizes[i], buf.capacity()));
+        int pos = buf.position();
+        int n = in.read(buf);
+        assertEquals(pos + n, buf.position());
+        assertEquals(pos + n, in.getPos());
+      }
+      assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+      in.close();
+
+      byte[] actual = new byte[FILE_SIZE];
+      buf.flip();
+      buf.get(actual);
+      assertArrayEquals(expected, actual);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testDirectBufferRead() throws IOException {
+    doTestByteBufferRead(false, true);
+  }
+
+  @Test
+  public void testHeapBufferRead() throws IOException {
+    doTestByteBufferRead(false, false);
+  }
+
+  @Test
+  public void testDirectBufferReadLegacyReader() throws IOException {
+    doTestByteBufferRead(true, true);
+  }
+
+  /** A stream which does not implement ByteBufferReadable */
+  private static class PlainStream extends ByteArrayInputStream
+      implements Seekable, PositionedReadable {
+    PlainStream() {
+      super(new byte[1]);
+    }
+
+    @Override
+    public void seek(long pos) {
+    }
+
+    @Override
+    public long getPos() {
+      return 0;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) {
+      return false;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+      return -1;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset,
+        int length) {
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) {
+    }
+  }
+
+  @Test
+  public void testUnsupportedByteBufferRead() throws IOException {
+    FSDataInputStream in = new FSDataInputStream(new PlainStream());
+    try {
+      in.read(ByteBuffer.allocate(1));
+      fail("ByteBuffer read of a stream which does not support it");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+}
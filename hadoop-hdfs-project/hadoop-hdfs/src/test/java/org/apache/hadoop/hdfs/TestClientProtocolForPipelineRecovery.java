@@ -18,15 +18,20 @@
 package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.server.namenode.LeaseExpiredException;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocols;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.io.EnumSetWritable;
 import org.apache.hadoop.io.IOUtils;
 
 import org.junit.Test;
@@ -115,4 +120,61 @@ public class TestClientProtocolForPipelineRecovery {
       cluster.shutdown();
     }
   }
+
+  /**
+   * A client which allocated the next block before the previous one was
+   * closed recovers the pipeline of the previous, committed, block after
+   * abandoning the next one.
+   */
+  @Test public void testRecoverCommittedLastBlock() throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      NamenodeProtocols namenode = cluster.getNameNodeRpc();
+      String src = "/committed.dat";
+      String clientName = "testClient";
+      namenode.create(src, FsPermission.getDefault(), clientName,
+          new EnumSetWritable<CreateFlag>(EnumSet.of(CreateFlag.CREATE)),
+          true, (short)1, 1024L);
+      LocatedBlock first = namenode.addBlock(src, clientName, null, null);
+      ExtendedBlock firstBlock = first.getBlock();
+      firstBlock.setNumBytes(1024L);
+      // commits the first block, which has no replica yet
+      LocatedBlock second = namenode.addBlock(src, clientName, firstBlock,
+          null);
+
+      try {
+        namenode.updateBlockForPipeline(firstBlock, clientName);
+        Assert.fail("Cannot get a new GS for a committed block"
+            + " which is not the last block");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().contains("is not the last block"));
+      }
+
+      namenode.abandonBlock(second.getBlock(), src, clientName);
+      long oldGS = firstBlock.getGenerationStamp();
+      LocatedBlock lb = namenode.updateBlockForPipeline(
+          new ExtendedBlock(firstBlock), clientName);
+      long newGS = lb.getBlock().getGenerationStamp();
+      Assert.assertTrue(newGS > oldGS);
+
+      // the length of the committed block cannot change
+      try {
+        namenode.updatePipeline(clientName, firstBlock,
+            new ExtendedBlock(firstBlock.getBlockPoolId(),
+                firstBlock.getBlockId(), 2048L, newGS),
+            first.getLocations());
+        Assert.fail("Cannot change the length of a committed block");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().contains("cannot change"));
+      }
+      namenode.updatePipeline(clientName, firstBlock,
+          new ExtendedBlock(firstBlock.getBlockPoolId(),
+              firstBlock.getBlockId(), 1024L, newGS),
+          first.getLocations());
+    } finally {
+      cluster.shutdown();
+    }
+  }
 }
@@ -18,7 +18,9 @@
 package org.apache.hadoop.hdfs;
 
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -181,10 +183,10 @@ public class TestConnCache {
     assertEquals("NN socket evicted", null, cache.get(nnAddr));
     assertTrue("Evicted socket closed", nnSock.isClosed());
 
-    // Lookup the DN socks
-    for (Socket dnSock : dnSockets) {
-      assertEquals("Retrieve cached sockets", dnSock, cache.get(dnAddr));
-      dnSock.close();
+    // Lookup the DN socks, the most recently cached first
+    for (int i = dnSockets.length - 1; i >= 0; i--) {
+      assertEquals("Retrieve cached sockets", dnSockets[i], cache.get(dnAddr));
+      dnSockets[i].close();
     }
 
     assertEquals("Cache is empty", 0, cache.size());
@@ -231,6 +233,99 @@ public class TestConnCache {
     in.close();
   }
 
+  private static InetSocketAddress getDataNodeAddress(DFSClient client)
+      throws IOException {
+    LocatedBlock block =
+        client.getNamenode().getBlockLocations(
+            testFile.toString(), 0, FILE_SIZE)
+        .getLocatedBlocks().get(0);
+    return util.getDataNode(block).getSelfAddr();
+  }
+
+  /**
+   * Test the per-address capacity and the expiry of the SocketCache.
+   */
+  @Test
+  public void testSocketCacheLimits() throws Exception {
+    final long EXPIRY = 500;
+    SocketCache cache = new SocketCache(4, 2, EXPIRY);
+    DFSClient client = new DFSClient(
+        new InetSocketAddress("localhost", cluster.getNameNodePort()), conf);
+    InetSocketAddress dnAddr = getDataNodeAddress(client);
+
+    Socket[] dnSockets = new Socket[3];
+    for (int i = 0; i < dnSockets.length; ++i) {
+      dnSockets[i] = client.socketFactory.createSocket(
+          dnAddr.getAddress(), dnAddr.getPort());
+      cache.put(dnSockets[i]);
+    }
+    // only two sockets to the DN are kept
+    assertEquals(2, cache.size());
+    assertTrue("Evicted socket closed", dnSockets[0].isClosed());
+    assertEquals(1, cache.getEvicted());
+
+    // the reaper closes the expired sockets
+    Thread.sleep(2 * EXPIRY);
+    assertEquals(0, cache.size());
+    assertTrue(dnSockets[1].isClosed());
+    assertTrue(dnSockets[2].isClosed());
+    assertEquals(2, cache.getExpired());
+    assertNull(cache.get(dnAddr));
+    assertEquals(1, cache.getMisses());
+    client.close();
+  }
+
+  /**
+   * A cached socket closed by its peer is not given out.
+   */
+  @Test
+  public void testSocketClosedByPeer() throws Exception {
+    SocketCache cache = new SocketCache(4, 4, 0);
+    ServerSocket server = new ServerSocket(0);
+    try {
+      SocketChannel channel = SocketChannel.open(
+          new InetSocketAddress("localhost", server.getLocalPort()));
+      channel.configureBlocking(false);
+      Socket peer = server.accept();
+
+      cache.put(channel.socket());
+      assertSame(channel.socket(),
+          cache.get(channel.socket().getRemoteSocketAddress()));
+      cache.put(channel.socket());
+
+      peer.close();
+      Thread.sleep(100);
+      assertNull(cache.get(channel.socket().getRemoteSocketAddress()));
+      assertEquals(1, cache.getStale());
+      assertTrue(channel.socket().isClosed());
+    } finally {
+      server.close();
+    }
+  }
+
+  /**
+   * Positional reads reuse the sockets of the cache of the client.
+   */
+  @Test
+  public void testReuseRatio() throws Exception {
+    DFSClient client = new DFSClient(
+        new InetSocketAddress("localhost", cluster.getNameNodePort()), conf);
+    DFSInputStream in = client.open(testFile.toString());
+    byte[] dataBuf = new byte[BLOCK_SIZE];
+    for (int i = 0; i < 10; i++) {
+      assertEquals(BLOCK_SIZE, in.read(i % 3 * BLOCK_SIZE, dataBuf, 0,
+          BLOCK_SIZE));
+    }
+    in.close();
+    SocketCache cache = client.getSocketCache();
+    LOG.info("Socket reuse ratio " + cache.getReuseRatio() + ": "
+        + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+    assertEquals(1, cache.getMisses());
+    assertEquals(9, cache.getHits());
+    client.close();
+    assertEquals(0, cache.size());
+  }
+
   @AfterClass
   public static void teardownCluster() throws Exception {
     util.shutdown();
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the allocation of the next block of a file while the previous block
+ * is being closed, and compare the block transition times with and without
+ * it.
+ */
+public class TestEarlyBlockAllocation {
+  private static final Log LOG =
+      LogFactory.getLog(TestEarlyBlockAllocation.class);
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int NUM_BLOCKS = 6;
+
+  private static MiniDFSCluster cluster;
+  private static FileSystem fs;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static DFSClient newClient(boolean early) throws IOException {
+    Configuration conf = new HdfsConfiguration(cluster.getConfiguration(0));
+    conf.setBoolean(
+        DFSConfigKeys.DFS_CLIENT_BLOCK_WRITE_EARLY_ALLOCATION_ENABLE_KEY,
+        early);
+    return new DFSClient(new InetSocketAddress("localhost",
+        cluster.getNameNodePort()), conf);
+  }
+
+  /**
+   * Write a file with the given client, with writes of odd sizes, and check
+   * its content and blocks.
+   */
+  private static void writeAndCheck(DFSClient client, String src, int length)
+      throws IOException {
+    byte[] data = AppendTestUtil.randomBytes(length, length);
+    OutputStream out = client.create(src, true, (short)3, BLOCK_SIZE);
+    for (int off = 0; off < length; ) {
+      int len = Math.min(100 * 1024 + 7, length - off);
+      out.write(data, off, len);
+      off += len;
+    }
+    out.close();
+
+    LocatedBlocks blocks = client.getNamenode().getBlockLocations(src, 0,
+        Long.MAX_VALUE);
+    assertEquals(length, blocks.getFileLength());
+    assertEquals((length + BLOCK_SIZE - 1) / BLOCK_SIZE,
+        blocks.locatedBlockCount());
+    byte[] actual = new byte[length];
+    FSDataInputStream in = fs.open(new Path(src));
+    try {
+      in.readFully(0, actual);
+    } finally {
+      in.close();
+    }
+    assertArrayEquals(data, actual);
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    long[] times = new long[2];
+    for (int i = 0; i < 2; i++) {
+      boolean early = i == 1;
+      DFSClient client = newClient(early);
+      try {
+        writeAndCheck(client, "/write" + early,
+            NUM_BLOCKS * BLOCK_SIZE + 1000);
+        DFSBlockTransitionMetrics metrics = client.getBlockTransitionMetrics();
+        assertEquals(NUM_BLOCKS, metrics.getBlockTransitions());
+        if (early) {
+          assertTrue(metrics.getEarlyAllocations() > 0);
+        } else {
+          assertEquals(0, metrics.getEarlyAllocations());
+        }
+        times[i] = metrics.getBlockTransitionTimeMillis();
+      } finally {
+        client.close();
+      }
+    }
+    LOG.info("Average block transition time: " + times[0] / NUM_BLOCKS
+        + "ms, with early allocation " + times[1] / NUM_BLOCKS + "ms");
+  }
+
+  @Test
+  public void testFileEndingAtBlockBoundary() throws Exception {
+    DFSClient client = newClient(true);
+    try {
+      // no block is allocated after the last one
+      writeAndCheck(client, "/boundary", 3 * BLOCK_SIZE);
+      assertEquals(2, client.getBlockTransitionMetrics().getBlockTransitions());
+    } finally {
+      client.close();
+    }
+  }
+}
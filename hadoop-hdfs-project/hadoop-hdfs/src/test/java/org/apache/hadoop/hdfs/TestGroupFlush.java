@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the group flush of {@link DFSOutputStream}, and compare the number
+ * of flushes sent to the pipeline and the latency of hflush for many
+ * threads writing to and flushing the same file, with and without it.
+ */
+public class TestGroupFlush {
+  private static final Log LOG = LogFactory.getLog(TestGroupFlush.class);
+  private static final int NUM_THREADS = 16;
+  private static final int RECORDS_PER_THREAD = 50;
+  private static final int RECORD_SIZE = 100;
+
+  private static MiniDFSCluster cluster;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    cluster = new MiniDFSCluster.Builder(new HdfsConfiguration())
+        .numDataNodes(3).build();
+    cluster.waitActive();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static DFSClient newClient(boolean groupFlush) throws IOException {
+    Configuration conf = new HdfsConfiguration(cluster.getConfiguration(0));
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_WRITE_GROUP_FLUSH_ENABLE_KEY,
+        groupFlush);
+    return new DFSClient(new InetSocketAddress("localhost",
+        cluster.getNameNodePort()), conf);
+  }
+
+  /** A record made of the number of its thread */
+  private static byte[] record(int thread) {
+    byte[] record = new byte[RECORD_SIZE];
+    Arrays.fill(record, (byte) thread);
+    return record;
+  }
+
+  /**
+   * Write records from many threads, each flushing after every record.
+   * Check that the file holds all the records once the calls returned.
+   */
+  private static DFSGroupFlushMetrics writeConcurrently(boolean groupFlush,
+      final String file) throws Exception {
+    final DFSClient client = newClient(groupFlush);
+    try {
+      final FSDataOutputStream out = new FSDataOutputStream(
+          client.create(file, true), null);
+      final AtomicReference<Throwable> error =
+          new AtomicReference<Throwable>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < NUM_THREADS; i++) {
+        final byte[] record = record(i);
+        threads.add(new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < RECORDS_PER_THREAD; j++) {
+                long end;
+                synchronized (out) {
+                  out.write(record);
+                  end = out.getPos();
+                }
+                out.hflush();
+                if (j == RECORDS_PER_THREAD - 1) {
+                  // the flushed data is visible to the readers
+                  DFSInputStream in = client.open(file);
+                  assertTrue(in.getFileLength() >= end);
+                  in.close();
+                }
+              }
+            } catch (Throwable t) {
+              error.compareAndSet(null, t);
+            }
+          }
+        });
+      }
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertNull(error.get());
+      out.close();
+
+      // every record is in the file, unbroken
+      int[] counts = new int[NUM_THREADS];
+      FSDataInputStream in = new FSDataInputStream(client.open(file));
+      byte[] buf = new byte[RECORD_SIZE];
+      for (int i = 0; i < NUM_THREADS * RECORDS_PER_THREAD; i++) {
+        in.readFully(buf);
+        int thread = buf[0];
+        assertTrue(Arrays.equals(record(thread), buf));
+        counts[thread]++;
+      }
+      assertEquals(-1, in.read());
+      in.close();
+      for (int count : counts) {
+        assertEquals(RECORDS_PER_THREAD, count);
+      }
+      return client.getGroupFlushMetrics();
+    } finally {
+      client.close();
+    }
+  }
+
+  private static String describe(DFSGroupFlushMetrics metrics) {
+    return metrics.getFlushCalls() + " calls in " + metrics.getFlushGroups()
+        + " flushes, group size p50=" + metrics.getFlushGroupSizePercentile(50)
+        + " max=" + metrics.getMaxFlushGroupSize() + ", latency p50<="
+        + metrics.getFlushLatencyPercentileMicros(50) + "us p99<="
+        + metrics.getFlushLatencyPercentileMicros(99) + "us";
+  }
+
+  @Test
+  public void testConcurrentFlushes() throws Exception {
+    final int calls = NUM_THREADS * RECORDS_PER_THREAD;
+    DFSGroupFlushMetrics plain = writeConcurrently(false, "/plain");
+    assertEquals(calls, plain.getFlushCalls());
+    assertEquals(calls, plain.getFlushGroups());
+    assertEquals(1, plain.getMaxFlushGroupSize());
+
+    DFSGroupFlushMetrics grouped = writeConcurrently(true, "/grouped");
+    LOG.info(NUM_THREADS + " threads flushing after each record of "
+        + RECORD_SIZE + " bytes: without group flush " + describe(plain)
+        + "; with group flush " + describe(grouped));
+    assertEquals(calls, grouped.getFlushCalls());
+    assertTrue(grouped.getFlushGroups() < calls);
+    assertTrue(grouped.getMaxFlushGroupSize() > 1);
+  }
+
+  @Test
+  public void testSingleWriter() throws Exception {
+    DFSClient client = newClient(true);
+    try {
+      FSDataOutputStream out = new FSDataOutputStream(
+          client.create("/single", true), null);
+      for (int i = 0; i < 10; i++) {
+        out.write(record(i));
+        out.hflush();
+        DFSInputStream in = client.open("/single");
+        assertEquals((i + 1) * RECORD_SIZE, in.getFileLength());
+        in.close();
+      }
+      out.hsync();
+      out.close();
+      DFSGroupFlushMetrics metrics = client.getGroupFlushMetrics();
+      assertEquals(11, metrics.getFlushCalls());
+      assertEquals(11, metrics.getFlushGroups());
+      assertEquals(1, metrics.getMaxFlushGroupSize());
+      assertEquals(1, metrics.getFlushGroupSizePercentile(99));
+    } finally {
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.security.token.Token;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the hedged positional reads of {@link DFSInputStream}, and compare
+ * the latency of positional reads with and without hedging when a datanode
+ * is slow.
+ */
+public class TestHedgedReads {
+  private static final Log LOG = LogFactory.getLog(TestHedgedReads.class);
+  private static final int FILE_SIZE = 1024 * 1024;
+  private static final int READ_SIZE = 4096;
+  private static final int NUM_READS = 10;
+  /** Delay injected in the reads from the slow datanode */
+  private static final long SLOW_NODE_DELAY_MS = 500;
+  private static final long HEDGE_THRESHOLD_MS = 50;
+
+  private static MiniDFSCluster cluster;
+  private static Path file = new Path("/hedged");
+  private static byte[] data;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+    cluster.waitActive();
+    FileSystem fs = cluster.getFileSystem();
+    DFSTestUtil.createFile(fs, file, FILE_SIZE, (short)3, 0L);
+    DFSTestUtil.waitReplication(fs, file, (short)3);
+    data = new byte[FILE_SIZE];
+    FSDataInputStream in = fs.open(file);
+    try {
+      in.readFully(0, data);
+    } finally {
+      in.close();
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * @param hedged whether the client hedges its positional reads
+   * @param threshold the hedged read threshold in milliseconds
+   */
+  private static DFSClient newClient(boolean hedged, long threshold)
+      throws IOException {
+    Configuration conf = new HdfsConfiguration(cluster.getConfiguration(0));
+    // the reads which lost the race keep a thread until the slow datanode
+    // answers, leave enough threads for them so that no read runs in the
+    // calling thread. The pool is shared by all the clients of the JVM.
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY,
+        hedged ? 2 * NUM_READS : 0);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY,
+        threshold);
+    return new DFSClient(new InetSocketAddress("localhost",
+        cluster.getNameNodePort()), conf);
+  }
+
+  /**
+   * A stream on which the reads from the first datanode it connects to are
+   * delayed.
+   */
+  private static class SlowNodeInputStream extends DFSInputStream {
+    private DatanodeInfo slowNode;
+
+    SlowNodeInputStream(DFSClient client) throws IOException {
+      super(client, file.toString(), 4096, true);
+    }
+
+    @Override
+    protected BlockReader getBlockReader(InetSocketAddress dnAddr,
+        DatanodeInfo chosenNode, String file, ExtendedBlock block,
+        Token<BlockTokenIdentifier> blockToken, long startOffset, long len,
+        int bufferSize, boolean verifyChecksum, String clientName)
+        throws IOException {
+      synchronized (this) {
+        if (slowNode == null) {
+          slowNode = chosenNode;
+        }
+      }
+      if (chosenNode.equals(slowNode)) {
+        try {
+          Thread.sleep(SLOW_NODE_DELAY_MS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return super.getBlockReader(dnAddr, chosenNode, file, block,
+          blockToken, startOffset, len, bufferSize, verifyChecksum,
+          clientName);
+    }
+  }
+
+  /**
+   * Do random positional reads and check their data.
+   * @return the latencies of the reads in milliseconds
+   */
+  private static long[] preadRandomly(DFSInputStream in) throws IOException {
+    Random random = new Random(0xDEADBEEFL);
+    long[] latencies = new long[NUM_READS];
+    byte[] buf = new byte[READ_SIZE];
+    for (int i = 0; i < NUM_READS; i++) {
+      int pos = random.nextInt(FILE_SIZE - READ_SIZE);
+      long start = System.currentTimeMillis();
+      assertEquals(READ_SIZE, in.read(pos, buf, 0, READ_SIZE));
+      latencies[i] = System.currentTimeMillis() - start;
+      byte[] expected = new byte[READ_SIZE];
+      System.arraycopy(data, pos, expected, 0, READ_SIZE);
+      assertArrayEquals(expected, buf);
+    }
+    return latencies;
+  }
+
+  private static long max(long[] values) {
+    long max = Long.MIN_VALUE;
+    for (long v : values) {
+      max = Math.max(max, v);
+    }
+    return max;
+  }
+
+  private static long min(long[] values) {
+    long min = Long.MAX_VALUE;
+    for (long v : values) {
+      min = Math.min(min, v);
+    }
+    return min;
+  }
+
+  @Test
+  public void testHedgedReadLatencyWithSlowNode() throws Exception {
+    DFSHedgedReadMetrics metrics = DFSClient.getHedgedReadMetrics();
+
+    DFSClient client = newClient(false, HEDGE_THRESHOLD_MS);
+    long[] plain;
+    try {
+      DFSInputStream in = new SlowNodeInputStream(client);
+      plain = preadRandomly(in);
+      in.close();
+    } finally {
+      client.close();
+    }
+
+    client = newClient(true, HEDGE_THRESHOLD_MS);
+    long[] hedged;
+    long hedgedOps = metrics.getHedgedReadOps();
+    long wins = metrics.getHedgedReadWins();
+    long inCurThread = metrics.getHedgedReadOpsInCurThread();
+    try {
+      DFSInputStream in = new SlowNodeInputStream(client);
+      hedged = preadRandomly(in);
+      in.close();
+    } finally {
+      client.close();
+    }
+    LOG.info("Positional read latency with a datanode slowed down by "
+        + SLOW_NODE_DELAY_MS + "ms: without hedging min=" + min(plain)
+        + "ms max=" + max(plain) + "ms, with hedging after "
+        + HEDGE_THRESHOLD_MS + "ms min=" + min(hedged) + "ms max="
+        + max(hedged) + "ms");
+
+    // every read goes to the slow datanode first
+    assertTrue(min(plain) >= SLOW_NODE_DELAY_MS);
+    assertTrue(max(hedged) < SLOW_NODE_DELAY_MS);
+    assertEquals(hedgedOps + NUM_READS, metrics.getHedgedReadOps());
+    assertEquals(wins + NUM_READS, metrics.getHedgedReadWins());
+    assertEquals(inCurThread, metrics.getHedgedReadOpsInCurThread());
+  }
+
+  @Test
+  public void testNoHedgeWhenDatanodeIsFast() throws Exception {
+    DFSHedgedReadMetrics metrics = DFSClient.getHedgedReadMetrics();
+    DFSClient client = newClient(true, 60 * 1000L);
+    long hedgedOps = metrics.getHedgedReadOps();
+    try {
+      DFSInputStream in = client.open(file.toString());
+      preadRandomly(in);
+      in.close();
+    } finally {
+      client.close();
+    }
+    assertEquals(hedgedOps, metrics.getHedgedReadOps());
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the cache of the block locations of the files opened by
+ * {@link DFSClient}.
+ */
+public class TestLocatedBlocksCache {
+  private static final String NN_METRICS = "NameNodeActivity";
+  private static final long TTL = 2000;
+
+  private MiniDFSCluster cluster;
+  private DistributedFileSystem fs;
+  private DFSClient client;
+  private LocatedBlocksCache cache;
+
+  @Before
+  public void startCluster() throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_LOCATEDBLOCKS_CACHE_CAPACITY_KEY, 2);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_LOCATEDBLOCKS_CACHE_TTL_MILLIS_KEY,
+        TTL);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = (DistributedFileSystem)cluster.getFileSystem();
+    client = fs.dfs;
+    cache = client.getLocatedBlocksCache();
+  }
+
+  @After
+  public void shutDownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static long getBlockLocationsCalls() {
+    return getLongCounter("GetBlockLocations", getMetrics(NN_METRICS));
+  }
+
+  private void createFile(Path path, long seed) throws IOException {
+    DFSTestUtil.createFile(fs, path, 1024, (short)1, seed);
+  }
+
+  @Test
+  public void testRepeatedOpens() throws Exception {
+    Path path = new Path("/file");
+    createFile(path, 0L);
+    String expected = DFSTestUtil.readFile(fs, path);
+    long calls = getBlockLocationsCalls();
+    long hits = cache.getHits();
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(expected, DFSTestUtil.readFile(fs, path));
+    }
+    assertEquals(calls, getBlockLocationsCalls());
+    assertEquals(hits + 5, cache.getHits());
+
+    // the locations are fetched again once they expire
+    Thread.sleep(TTL);
+    long misses = cache.getMisses();
+    assertEquals(expected, DFSTestUtil.readFile(fs, path));
+    assertEquals(calls + 1, getBlockLocationsCalls());
+    assertEquals(misses + 1, cache.getMisses());
+  }
+
+  @Test
+  public void testModificationsInvalidate() throws Exception {
+    Path path = new Path("/dir/file");
+    createFile(path, 0L);
+    DFSTestUtil.readFile(fs, path);
+
+    // overwritten through the client: the new content is read
+    createFile(path, 1L);
+    String expected = DFSTestUtil.readFile(fs, path);
+    long hits = cache.getHits();
+    assertEquals(expected, DFSTestUtil.readFile(fs, path));
+    assertEquals(hits + 1, cache.getHits());
+
+    // renaming the parent directory drops the file
+    long invalidations = cache.getInvalidations();
+    fs.rename(new Path("/dir"), new Path("/dir2"));
+    assertEquals(invalidations + 1, cache.getInvalidations());
+    assertEquals(expected, DFSTestUtil.readFile(fs, new Path("/dir2/file")));
+  }
+
+  @Test
+  public void testFileUnderConstructionNotCached() throws Exception {
+    Path path = new Path("/open");
+    FSDataOutputStream out = fs.create(path);
+    out.write(new byte[100]);
+    out.hflush();
+    long hits = cache.getHits();
+    DFSTestUtil.readFile(fs, path);
+    DFSTestUtil.readFile(fs, path);
+    assertEquals(hits, cache.getHits());
+
+    out.write(new byte[100]);
+    out.close();
+    assertEquals(200, DFSTestUtil.readFile(fs, path).length());
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      createFile(new Path("/file" + i), i);
+      DFSTestUtil.readFile(fs, new Path("/file" + i));
+    }
+    // the least recently used file was evicted
+    long calls = getBlockLocationsCalls();
+    DFSTestUtil.readFile(fs, new Path("/file2"));
+    DFSTestUtil.readFile(fs, new Path("/file1"));
+    assertEquals(calls, getBlockLocationsCalls());
+    DFSTestUtil.readFile(fs, new Path("/file0"));
+    assertTrue(getBlockLocationsCalls() > calls);
+  }
+}
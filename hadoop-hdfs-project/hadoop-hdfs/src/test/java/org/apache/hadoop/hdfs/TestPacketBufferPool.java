@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+/**
+ * Test the pool of the packet buffers of {@link DFSClient}, and compare the
+ * memory allocated by a writer with and without it.
+ */
+public class TestPacketBufferPool {
+  private static final Log LOG = LogFactory.getLog(TestPacketBufferPool.class);
+  private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+  @Test
+  public void testPool() {
+    final int granularity = PacketBufferPool.SIZE_CLASS_GRANULARITY;
+    PacketBufferPool pool = new PacketBufferPool(3 * 2 * granularity);
+
+    // buffers are rounded up to their size class
+    byte[] buf = pool.getBuffer(granularity + 1);
+    assertEquals(2 * granularity, buf.length);
+    assertEquals(1, pool.getMisses());
+    pool.returnBuffer(buf);
+    assertEquals(2 * granularity, pool.getPooledBytes());
+    assertSame(buf, pool.getBuffer(2 * granularity));
+    assertEquals(1, pool.getHits());
+    assertEquals(granularity, pool.getBuffer(100).length);
+    assertEquals(2, pool.getMisses());
+
+    // the free buffers are bounded
+    byte[][] bufs = new byte[4][];
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = pool.getBuffer(2 * granularity);
+    }
+    for (byte[] b : bufs) {
+      pool.returnBuffer(b);
+    }
+    assertEquals(3 * 2 * granularity, pool.getPooledBytes());
+    assertEquals(1, pool.getDrops());
+
+    // buffers which were not allocated by the pool are not kept
+    pool.getBuffer(2 * granularity);
+    pool.returnBuffer(new byte[100]);
+    assertEquals(2 * 2 * granularity, pool.getPooledBytes());
+
+    PacketBufferPool disabled = new PacketBufferPool(0);
+    assertEquals(100, disabled.getBuffer(100).length);
+    disabled.returnBuffer(new byte[granularity]);
+    assertEquals(0, disabled.getPooledBytes());
+  }
+
+  /**
+   * Write a file and check its content.
+   * @return the bytes allocated by the writing thread, -1 if unknown
+   */
+  private static long writeAndCheck(FileSystem fs, DFSClient client,
+      String src) throws IOException {
+    byte[] data = AppendTestUtil.randomBytes(0L, FILE_SIZE);
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long start = getAllocatedBytes(threads);
+    OutputStream out = client.create(src, true);
+    for (int off = 0; off < FILE_SIZE; off += 4096) {
+      out.write(data, off, 4096);
+    }
+    out.close();
+    long end = getAllocatedBytes(threads);
+
+    byte[] actual = new byte[FILE_SIZE];
+    FSDataInputStream in = fs.open(new Path(src));
+    try {
+      in.readFully(0, actual);
+    } finally {
+      in.close();
+    }
+    assertArrayEquals(data, actual);
+    return start < 0 || end < 0 ? -1 : end - start;
+  }
+
+  private static long getAllocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1)
+        .build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      long[] allocated = new long[2];
+      for (int i = 0; i < 2; i++) {
+        boolean pooled = i == 1;
+        Configuration clientConf = new HdfsConfiguration(conf);
+        clientConf.setLong(
+            DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_CAPACITY_KEY,
+            pooled ? 8 * 1024 * 1024 : 0);
+        DFSClient client = new DFSClient(new InetSocketAddress("localhost",
+            cluster.getNameNodePort()), clientConf);
+        try {
+          // warm up, then measure
+          writeAndCheck(fs, client, "/warmup" + i);
+          allocated[i] = writeAndCheck(fs, client, "/file" + i);
+          PacketBufferPool pool = client.getPacketBufferPool();
+          if (pooled) {
+            assertTrue(pool.getHits() > 0);
+          } else {
+            assertEquals(0, pool.getHits() + pool.getMisses());
+          }
+        } finally {
+          client.close();
+        }
+      }
+      LOG.info("Bytes allocated by the writer of " + FILE_SIZE + " bytes: "
+          + allocated[0] + " without packet buffer pool, " + allocated[1]
+          + " with");
+      if (allocated[0] >= 0) {
+        assertTrue(allocated[1] * 2 < allocated[0]);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.security.token.Token;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the parallel read-ahead of {@link DFSInputStream}, and compare the
+ * throughput of a sequential reader with and without it.
+ */
+public class TestParallelReadAhead {
+  private static final Log LOG =
+      LogFactory.getLog(TestParallelReadAhead.class);
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int FILE_SIZE = 6 * BLOCK_SIZE + 1000;
+  private static final int UNIT_SIZE = 256 * 1024;
+  private static final int PARALLELISM = 4;
+  /** Bandwidth of a single block reader in the benchmark */
+  private static final long BYTES_PER_MS = 4 * 1024;
+
+  private static MiniDFSCluster cluster;
+  private static Path file = new Path("/readahead.dat");
+  private static byte[] data;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+    cluster.waitActive();
+    FileSystem fs = cluster.getFileSystem();
+    data = AppendTestUtil.randomBytes(0xDEADBEEFL, FILE_SIZE);
+    FSDataOutputStream out = fs.create(file, (short)3);
+    out.write(data);
+    out.close();
+    DFSTestUtil.waitReplication(fs, file, (short)3);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static DFSClient newClient(int parallelism) throws IOException {
+    Configuration conf = new HdfsConfiguration(cluster.getConfiguration(0));
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_READAHEAD_PARALLELISM_KEY,
+        parallelism);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_READAHEAD_UNIT_SIZE_KEY, UNIT_SIZE);
+    return new DFSClient(new InetSocketAddress("localhost",
+        cluster.getNameNodePort()), conf);
+  }
+
+  private static void checkData(byte[] actual, int from, int len) {
+    byte[] expected = new byte[len];
+    System.arraycopy(data, from, expected, 0, len);
+    byte[] read = new byte[len];
+    System.arraycopy(actual, 0, read, 0, len);
+    assertArrayEquals("data at offset " + from, expected, read);
+  }
+
+  /** Read the whole file with reads of odd sizes */
+  private static void readSequentially(DFSInputStream in) throws IOException {
+    byte[] buf = new byte[100 * 1024 + 7];
+    int pos = 0;
+    int n;
+    while ((n = in.read(buf, 0, buf.length)) > 0) {
+      checkData(buf, pos, n);
+      pos += n;
+    }
+    assertEquals(FILE_SIZE, pos);
+  }
+
+  @Test
+  public void testSequentialRead() throws Exception {
+    DFSClient client = newClient(PARALLELISM);
+    try {
+      DFSInputStream in = client.open(file.toString());
+      readSequentially(in);
+      in.close();
+
+      // reads into a direct buffer
+      FSDataInputStream stm = new FSDataInputStream(
+          client.open(file.toString()));
+      ByteBuffer buf = ByteBuffer.allocateDirect(FILE_SIZE);
+      while (buf.hasRemaining() && stm.read(buf) > 0) {
+      }
+      assertEquals(FILE_SIZE, buf.position());
+      byte[] actual = new byte[FILE_SIZE];
+      buf.flip();
+      buf.get(actual);
+      assertArrayEquals(data, actual);
+      stm.close();
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testSeeks() throws Exception {
+    DFSClient client = newClient(PARALLELISM);
+    try {
+      DFSInputStream in = client.open(file.toString());
+      Random random = new Random(0L);
+      byte[] buf = new byte[64 * 1024];
+      for (int i = 0; i < 50; i++) {
+        int pos = random.nextInt(FILE_SIZE);
+        in.seek(pos);
+        int n = in.read(buf, 0, random.nextInt(buf.length) + 1);
+        assertTrue(n > 0);
+        checkData(buf, pos, n);
+        assertEquals(pos + n, in.getPos());
+      }
+      in.close();
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Wraps a block reader to limit its bandwidth */
+  private static class ThrottledBlockReader implements BlockReader {
+    private final BlockReader reader;
+
+    ThrottledBlockReader(BlockReader reader) {
+      this.reader = reader;
+    }
+
+    private static int throttle(int n) throws IOException {
+      if (n > 0) {
+        try {
+          Thread.sleep(n / BYTES_PER_MS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      return throttle(reader.read(buf, off, len));
+    }
+
+    @Override
+    public int read(ByteBuffer buf) throws IOException {
+      return throttle(reader.read(buf));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      return reader.skip(n);
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+
+    @Override
+    public void readFully(byte[] buf, int off, int len) throws IOException {
+      BlockReaderUtil.readFully(this, buf, off, len);
+    }
+
+    @Override
+    public int readAll(byte[] buf, int offset, int len) throws IOException {
+      return BlockReaderUtil.readAll(this, buf, offset, len);
+    }
+
+    @Override
+    public Socket takeSocket() {
+      return reader.takeSocket();
+    }
+
+    @Override
+    public boolean hasSentStatusCode() {
+      return reader.hasSentStatusCode();
+    }
+  }
+
+  /** A stream whose block readers have the bandwidth of one disk */
+  private static class ThrottledInputStream extends DFSInputStream {
+    ThrottledInputStream(DFSClient client) throws IOException {
+      super(client, file.toString(), 4096, true);
+    }
+
+    @Override
+    protected BlockReader getBlockReader(InetSocketAddress dnAddr,
+        DatanodeInfo chosenNode, String file, ExtendedBlock block,
+        Token<BlockTokenIdentifier> blockToken, long startOffset, long len,
+        int bufferSize, boolean verifyChecksum, String clientName)
+        throws IOException {
+      return new ThrottledBlockReader(super.getBlockReader(dnAddr,
+          chosenNode, file, block, blockToken, startOffset, len, bufferSize,
+          verifyChecksum, clientName));
+    }
+  }
+
+  /** @return the time taken to read the file, in milliseconds */
+  private static long timeSequentialRead(int parallelism) throws IOException {
+    DFSClient client = newClient(parallelism);
+    try {
+      DFSInputStream in = new ThrottledInputStream(client);
+      long start = System.currentTimeMillis();
+      readSequentially(in);
+      long elapsed = System.currentTimeMillis() - start;
+      in.close();
+      return elapsed;
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    // warm up
+    timeSequentialRead(0);
+    timeSequentialRead(PARALLELISM);
+
+    long plain = timeSequentialRead(0);
+    long parallel = timeSequentialRead(PARALLELISM);
+    LOG.info("Sequential read of " + FILE_SIZE + " bytes with block readers"
+        + " limited to " + (BYTES_PER_MS * 1000 / 1024) + "KB/s: "
+        + (FILE_SIZE / 1024 * 1000 / Math.max(plain, 1)) + "KB/s without"
+        + " read-ahead, " + (FILE_SIZE / 1024 * 1000 / Math.max(parallel, 1))
+        + "KB/s with " + PARALLELISM + " units read ahead");
+    assertTrue("parallel read took " + parallel + "ms, plain read "
+        + plain + "ms", parallel * 2 < plain);
+  }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedExceptionAction;
 
 import org.apache.hadoop.conf.Configuration;
@@ -111,6 +112,40 @@ public class TestShortCircuitLocalRead {
     stm.close();
   }
 
+  /**
+   * Check the file content read into direct buffers, with reads of a few
+   * bytes and reads across chunk and block boundaries.
+   */
+  static void checkFileContentDirect(FileSystem fs, Path name,
+      byte[] expected, int readOffset) throws IOException {
+    FSDataInputStream stm = fs.open(name);
+    ByteBuffer actual = ByteBuffer.allocateDirect(expected.length - readOffset);
+    long skipped = stm.skip(readOffset);
+    Assert.assertEquals(skipped, readOffset);
+    // Read a small number of bytes first.
+    actual.limit(3);
+    int nread = stm.read(actual);
+    actual.limit(nread + 2);
+    nread += stm.read(actual);
+    // Read across chunk boundary
+    actual.limit(Math.min(actual.capacity(), nread + 517));
+    nread += stm.read(actual);
+    Assert.assertEquals(nread, actual.position());
+    // Now read rest of it
+    actual.limit(actual.capacity());
+    while (actual.hasRemaining()) {
+      int nbytes = stm.read(actual);
+      if (nbytes < 0) {
+        throw new EOFException("End of file reached before reading fully.");
+      }
+    }
+    byte[] data = new byte[actual.capacity()];
+    actual.flip();
+    actual.get(data);
+    checkData(data, readOffset, expected, "Read direct");
+    stm.close();
+  }
+
   /**
    * Test that file data can be read by reading the block file
    * directly from the local store.
@@ -144,6 +179,7 @@ public class TestShortCircuitLocalRead {
       stm.write(fileData);
       stm.close();
       checkFileContent(fs, file1, fileData, readOffset);
+      checkFileContentDirect(fs, file1, fileData, readOffset);
     } finally {
       fs.close();
       cluster.shutdown();
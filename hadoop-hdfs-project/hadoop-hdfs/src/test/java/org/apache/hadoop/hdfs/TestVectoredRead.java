@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileRange;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.security.token.Token;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the vectored reads of {@link DFSInputStream}, and compare the time
+ * taken to read many small ranges of a file with positional reads and with
+ * a vectored read.
+ */
+public class TestVectoredRead {
+  private static final Log LOG = LogFactory.getLog(TestVectoredRead.class);
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int FILE_SIZE = 3 * BLOCK_SIZE + 1000;
+  /** Delay injected in the setup of the block readers */
+  private static final long READER_SETUP_DELAY_MS = 20;
+
+  private static MiniDFSCluster cluster;
+  private static Path file = new Path("/vectored.dat");
+  private static byte[] data;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+    cluster.waitActive();
+    FileSystem fs = cluster.getFileSystem();
+    data = AppendTestUtil.randomBytes(0xDEADBEEFL, FILE_SIZE);
+    FSDataOutputStream out = fs.create(file, (short)3);
+    out.write(data);
+    out.close();
+    DFSTestUtil.waitReplication(fs, file, (short)3);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static DFSClient newClient(int mergeGap, int parallelism)
+      throws IOException {
+    Configuration conf = new HdfsConfiguration(cluster.getConfiguration(0));
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_READ_VECTORED_MERGE_GAP_KEY,
+        mergeGap);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_READ_VECTORED_PARALLELISM_KEY,
+        parallelism);
+    return new DFSClient(new InetSocketAddress("localhost",
+        cluster.getNameNodePort()), conf);
+  }
+
+  private static void checkData(List<FileRange> ranges) {
+    for (FileRange range : ranges) {
+      assertArrayEquals(range.toString(),
+          Arrays.copyOfRange(data, (int) range.getOffset(),
+              (int) range.getEnd()), range.getData());
+    }
+  }
+
+  /**
+   * A stream counting the block readers it creates, which take some time
+   * to set up.
+   */
+  private static class CountingInputStream extends DFSInputStream {
+    private final AtomicInteger readers = new AtomicInteger();
+
+    CountingInputStream(DFSClient client) throws IOException {
+      super(client, file.toString(), 4096, true);
+    }
+
+    @Override
+    protected BlockReader getBlockReader(InetSocketAddress dnAddr,
+        DatanodeInfo chosenNode, String file, ExtendedBlock block,
+        Token<BlockTokenIdentifier> blockToken, long startOffset, long len,
+        int bufferSize, boolean verifyChecksum, String clientName)
+        throws IOException {
+      readers.incrementAndGet();
+      try {
+        Thread.sleep(READER_SETUP_DELAY_MS);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return super.getBlockReader(dnAddr, chosenNode, file, block,
+          blockToken, startOffset, len, bufferSize, verifyChecksum,
+          clientName);
+    }
+  }
+
+  /** Ranges of 1KB every 8KB in each block */
+  private static List<FileRange> smallRanges(int perBlock) {
+    List<FileRange> ranges = new ArrayList<FileRange>();
+    for (int b = 0; b < 3; b++) {
+      for (int i = 0; i < perBlock; i++) {
+        ranges.add(new FileRange(b * BLOCK_SIZE + i * 8192, 1024));
+      }
+    }
+    return ranges;
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    DFSClient client = newClient(64 * 1024, 4);
+    try {
+      FSDataInputStream in = new FSDataInputStream(
+          client.open(file.toString()));
+      List<FileRange> ranges = Arrays.asList(
+          new FileRange(2 * BLOCK_SIZE + 100, 5000),
+          // spanning two blocks
+          new FileRange(BLOCK_SIZE - 100, 300),
+          // overlapping
+          new FileRange(BLOCK_SIZE - 50, 100),
+          new FileRange(0, 1),
+          new FileRange(10, 0),
+          new FileRange(FILE_SIZE - 1000, 1000),
+          new FileRange(500 * 1024, 2 * BLOCK_SIZE));
+      in.readVectored(ranges);
+      checkData(ranges);
+      assertEquals(0, in.getPos());
+
+      try {
+        in.readVectored(Arrays.asList(new FileRange(FILE_SIZE - 10, 11)));
+        fail("Read beyond the end of the file");
+      } catch (EOFException e) {
+        // expected
+      }
+      in.close();
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testMergedRanges() throws Exception {
+    final int perBlock = 20;
+    DFSClient client = newClient(64 * 1024, 4);
+    try {
+      CountingInputStream in = new CountingInputStream(client);
+      List<FileRange> ranges = smallRanges(perBlock);
+      in.readVectored(ranges);
+      checkData(ranges);
+      // one request for each block
+      assertEquals(3, in.readers.get());
+      in.close();
+    } finally {
+      client.close();
+    }
+
+    client = newClient(0, 1);
+    try {
+      CountingInputStream in = new CountingInputStream(client);
+      List<FileRange> ranges = smallRanges(perBlock);
+      in.readVectored(ranges);
+      checkData(ranges);
+      assertEquals(3 * perBlock, in.readers.get());
+      in.close();
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testReadTime() throws Exception {
+    DFSClient client = newClient(64 * 1024, 4);
+    try {
+      List<FileRange> ranges = smallRanges(10);
+      CountingInputStream in = new CountingInputStream(client);
+      long start = System.currentTimeMillis();
+      for (FileRange range : ranges) {
+        byte[] buf = new byte[range.getLength()];
+        in.readFully(range.getOffset(), buf);
+        range.setData(buf);
+      }
+      long pread = System.currentTimeMillis() - start;
+      checkData(ranges);
+      in.close();
+
+      ranges = smallRanges(10);
+      in = new CountingInputStream(client);
+      start = System.currentTimeMillis();
+      in.readVectored(ranges);
+      long vectored = System.currentTimeMillis() - start;
+      checkData(ranges);
+      in.close();
+
+      LOG.info("Read of " + ranges.size() + " ranges of 1KB with a block"
+          + " reader setup of " + READER_SETUP_DELAY_MS + "ms: " + pread
+          + "ms with positional reads, " + vectored + "ms with a vectored"
+          + " read");
+      assertTrue("vectored read took " + vectored + "ms, positional reads "
+          + pread + "ms", vectored * 4 < pread);
+    } finally {
+      client.close();
+    }
+  }
+}
@@ -61,13 +61,13 @@ public class TestOverReplicatedBlocks extends TestCase {
       ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, fileName);
       assertTrue(TestDatanodeBlockScanner.corruptReplica(block, 0));
       DataNodeProperties dnProps = cluster.stopDataNode(0);
-      // remove block scanner log to trigger block scanning
+      // remove block scanner progress to trigger block scanning
       File scanLog = new File(MiniDFSCluster.getFinalizedDir(
           cluster.getInstanceStorageDir(0, 0),
           cluster.getNamesystem().getBlockPoolId()).getParent().toString()
-          + "/../dncp_block_verification.log.prev");
+          + "/../dncp_block_verification.bin");
       //wait for one minute for deletion to succeed;
-      for(int i=0; !scanLog.delete(); i++) {
+      for(int i=0; scanLog.exists() && !scanLog.delete(); i++) {
         assertTrue("Could not delete log file in one minute", i < 60);
         try {
           Thread.sleep(1000);
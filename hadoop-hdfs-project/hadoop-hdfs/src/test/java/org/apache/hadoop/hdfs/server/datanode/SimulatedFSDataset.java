@@ -655,6 +655,12 @@ public class SimulatedFSDataset  implements FSDatasetInterface, Configurable{
     return createTemporary(b);
   }
 
+  @Override // FSDatasetInterface
+  public synchronized ReplicaInPipelineInterface createRbw(ExtendedBlock b,
+      boolean allowLazyPersist) throws IOException {
+    return createRbw(b);
+  }
+
   @Override // FSDatasetInterface
   public synchronized ReplicaInPipelineInterface createTemporary(ExtendedBlock b)
       throws IOException {
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.ReadaheadPool.ReadaheadRequest;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the detection of access patterns and the scaling of the readahead
+ * window by {@link AdaptiveReadahead}.
+ */
+public class TestAdaptiveReadahead {
+  private static final long KB = 1024;
+  private static final long MB = 1024 * KB;
+  private static final String METRICS_NAME = "TestAdaptiveReadahead";
+
+  private static DataNodeMetrics metrics;
+  private File file;
+  private FileInputStream in;
+  private FileDescriptor fd;
+  private final List<long[]> issued = new ArrayList<long[]>();
+  private AdaptiveReadahead engine;
+
+  @Before
+  public void setUp() throws Exception {
+    if (metrics == null) {
+      metrics = DataNodeMetrics.create(new Configuration(), METRICS_NAME);
+    }
+    file = File.createTempFile("TestAdaptiveReadahead", ".blk");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[1024]);
+    out.close();
+    in = new FileInputStream(file);
+    fd = in.getFD();
+    engine = new AdaptiveReadahead(null, 64 * KB, MB, metrics) {
+      @Override
+      ReadaheadRequest submitReadahead(String identifier, FileDescriptor fd,
+          final long off, final long len) {
+        issued.add(new long[] {off, len});
+        return new ReadaheadRequest() {
+          @Override
+          public void cancel() {
+          }
+
+          @Override
+          public long getOffset() {
+            return off;
+          }
+
+          @Override
+          public long getLength() {
+            return len;
+          }
+        };
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    in.close();
+    file.delete();
+  }
+
+  private static MetricsRecordBuilder getDataNodeMetrics() {
+    return getMetrics(metrics.name());
+  }
+
+  /** Read the given range as BlockSender does, in 64KB packets */
+  private static void read(AdaptiveReadahead.Stream s, long offset,
+      long endOffset) throws Exception {
+    s.start();
+    for (long pos = offset; pos < endOffset; pos += 64 * KB) {
+      s.readAt(pos);
+    }
+    s.close(endOffset);
+  }
+
+  @Test
+  public void testSequentialRead() throws Exception {
+    ExtendedBlock b = new ExtendedBlock("bp", 1L);
+    long hits = getLongCounter("ReadaheadHitBytes", getDataNodeMetrics());
+
+    AdaptiveReadahead.Stream s = engine.open(b, 0, 4 * MB, 8 * MB, fd);
+    assertTrue(s.isSequential());
+    read(s, 0, 4 * MB);
+
+    // the window doubles with every readahead, up to the maximum
+    assertEquals(64 * KB, issued.get(0)[1]);
+    assertEquals(128 * KB, issued.get(1)[1]);
+    assertEquals(MB, s.getWindow());
+    // every packet had been read ahead before it was read
+    assertEquals(hits + 4 * MB,
+        getLongCounter("ReadaheadHitBytes", getDataNodeMetrics()));
+
+    // a short read continuing the run is sequential and keeps the window
+    issued.clear();
+    s = engine.open(b, 4 * MB, 4 * MB + 128 * KB, 8 * MB, fd);
+    assertTrue(s.isSequential());
+    assertEquals(MB, s.getWindow());
+    read(s, 4 * MB, 4 * MB + 128 * KB);
+    for (long[] r : issued) {
+      assertTrue(r[0] + r[1] <= 8 * MB);
+    }
+  }
+
+  @Test
+  public void testRandomRead() throws Exception {
+    ExtendedBlock b = new ExtendedBlock("bp", 2L);
+    long random = getLongCounter("ReadaheadRandomStreams",
+        getDataNodeMetrics());
+
+    AdaptiveReadahead.Stream s = engine.open(b, 3 * MB, 3 * MB + 64 * KB,
+        8 * MB, fd);
+    assertFalse(s.isSequential());
+    read(s, 3 * MB, 3 * MB + 64 * KB);
+    s = engine.open(b, MB, MB + 64 * KB, 8 * MB, fd);
+    assertFalse(s.isSequential());
+    read(s, MB, MB + 64 * KB);
+
+    assertTrue(issued.isEmpty());
+    assertCounter("ReadaheadRandomStreams", random + 2, getDataNodeMetrics());
+  }
+
+  @Test
+  public void testWastedReadahead() throws Exception {
+    ExtendedBlock b = new ExtendedBlock("bp", 3L);
+    long wasted = getLongCounter("ReadaheadWastedBytes", getDataNodeMetrics());
+
+    AdaptiveReadahead.Stream s = engine.open(b, 0, MB, 8 * MB, fd);
+    read(s, 0, MB);
+    long readaheadEnd = 0;
+    for (long[] r : issued) {
+      readaheadEnd = Math.max(readaheadEnd, r[0] + r[1]);
+    }
+    assertTrue(readaheadEnd > MB);
+
+    // a jump ends the sequential run, what was read ahead beyond it is waste
+    s = engine.open(b, 6 * MB, 6 * MB + 64 * KB, 8 * MB, fd);
+    assertFalse(s.isSequential());
+    assertCounter("ReadaheadWastedBytes", wasted + readaheadEnd - MB,
+        getDataNodeMetrics());
+  }
+
+  @Test
+  public void testAdaptiveReadaheadOnDataNode() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_DATANODE_READAHEAD_ADAPTIVE_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/file");
+      DFSTestUtil.createFile(fs, path, 2 * MB, (short)1, 0L);
+
+      // a whole block read, followed by a random pread
+      DFSTestUtil.readFile(fs, path);
+      FSDataInputStream stm = fs.open(path);
+      try {
+        stm.readFully(MB, new byte[4096]);
+      } finally {
+        stm.close();
+      }
+
+      DataNode dn = cluster.getDataNodes().get(0);
+      MetricsRecordBuilder rb = getMetrics(dn.getMetrics().name());
+      assertTrue(getLongCounter("ReadaheadSequentialStreams", rb) > 0);
+      assertTrue(getLongCounter("ReadaheadRandomStreams", rb) > 0);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSCluster.DataNodeProperties;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.namenode.NameNodeAdapter;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Test the scan order, the client read verifications and the progress
+ * file of the {@link BlockPoolSliceScanner}.
+ */
+public class TestBlockPoolSliceScanner {
+  private static final Pattern REPORT_PATTERN = Pattern.compile(
+      "(blk_-?\\d+)_\\d+\\s*: status : \\S+\\s+type : (\\S+)\\s+"
+      + "scan time : (\\d+)");
+  private static final Pattern SCANS_PATTERN =
+      Pattern.compile("Scans since restart\\s*:\\s*(\\d+)");
+  private static final int TIMEOUT = 60000;
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private String bpid;
+
+  @Before
+  public void startCluster() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    bpid = cluster.getNamesystem().getBlockPoolId();
+  }
+
+  @After
+  public void shutDownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+  }
+
+  private DataNode getDataNode() {
+    return cluster.getDataNodes().get(0);
+  }
+
+  /**
+   * @return the scan type and time of the block in the block scanner
+   *         report, or null if the block is not listed
+   */
+  private String[] getScanStatus(ExtendedBlock block) {
+    StringBuilder buffer = new StringBuilder();
+    getDataNode().blockScanner.printBlockReport(buffer, false);
+    for (Matcher m = REPORT_PATTERN.matcher(buffer); m.find();) {
+      if (m.group(1).equals(block.getBlockName())) {
+        return new String[] {m.group(2), m.group(3)};
+      }
+    }
+    return null;
+  }
+
+  /** Wait until the block was verified after the given time */
+  private long waitForScan(final ExtendedBlock block, final String type,
+      final long after) throws Exception {
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        String[] status = getScanStatus(block);
+        return status != null && status[0].equals(type)
+            && Long.parseLong(status[1]) > after;
+      }
+    }, 500, TIMEOUT);
+    return Long.parseLong(getScanStatus(block)[1]);
+  }
+
+  /** @return the number of blocks verified since the datanode started */
+  private long getScansSinceRestart() {
+    StringBuilder buffer = new StringBuilder();
+    getDataNode().blockScanner.printBlockReport(buffer, true);
+    Matcher m = SCANS_PATTERN.matcher(buffer);
+    assertTrue(buffer.toString(), m.find());
+    return Long.parseLong(m.group(1));
+  }
+
+  private ExtendedBlock createFile(Path path) throws Exception {
+    DFSTestUtil.createFile(fs, path, 1024, (short)1, 0L);
+    // get the block from the namenode, reading it would verify it
+    return NameNodeAdapter.getBlockLocations(cluster.getNameNode(),
+        path.toString(), 0, 1024).get(0).getBlock();
+  }
+
+  /** @return the block pool directories of the datanode */
+  private List<File> getBlockPoolDirs() {
+    List<File> dirs = new ArrayList<File>();
+    for (int i = 0; i < 2; i++) {
+      File finalizedDir = MiniDFSCluster.getFinalizedDir(
+          cluster.getInstanceStorageDir(0, i), bpid);
+      dirs.add(finalizedDir.getParentFile().getParentFile());
+    }
+    return dirs;
+  }
+
+  private File getProgressFile() {
+    for (File dir : getBlockPoolDirs()) {
+      File f = new File(dir, BlockScanProgress.FILE_NAME);
+      if (f.exists()) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  /** @return the verification time saved for the block, or -1 */
+  private long getSavedVerificationTime(ExtendedBlock block) {
+    File f = getProgressFile();
+    List<BlockScanProgress.Entry> entries =
+        f == null ? null : BlockScanProgress.load(f);
+    if (entries != null) {
+      for (BlockScanProgress.Entry e : entries) {
+        if (e.blockId == block.getBlockId()) {
+          return e.verificationTime;
+        }
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void testProgressFile() throws Exception {
+    File dir = new File(System.getProperty("test.build.data", "/tmp"),
+        "TestBlockPoolSliceScanner");
+    assertTrue(dir.isDirectory() || dir.mkdirs());
+    File file = new File(dir, BlockScanProgress.FILE_NAME);
+    assertNull(BlockScanProgress.load(file));
+
+    List<BlockScanProgress.Entry> entries =
+        new ArrayList<BlockScanProgress.Entry>();
+    entries.add(new BlockScanProgress.Entry(42L, 1001L, 5000L));
+    entries.add(new BlockScanProgress.Entry(-7L, 1002L, 8000L));
+    entries.add(new BlockScanProgress.Entry(Long.MIN_VALUE, 1003L, 9000L));
+    entries.add(new BlockScanProgress.Entry(Long.MAX_VALUE, 1004L, 1L));
+    BlockScanProgress.save(file, entries, 10000L);
+
+    List<BlockScanProgress.Entry> loaded = BlockScanProgress.load(file);
+    assertEquals(4, loaded.size());
+    // sorted by block id
+    assertEquals(Long.MIN_VALUE, loaded.get(0).blockId);
+    assertEquals(1003L, loaded.get(0).genStamp);
+    assertEquals(9000L, loaded.get(0).verificationTime);
+    assertEquals(-7L, loaded.get(1).blockId);
+    assertEquals(42L, loaded.get(2).blockId);
+    assertEquals(5000L, loaded.get(2).verificationTime);
+    assertEquals(Long.MAX_VALUE, loaded.get(3).blockId);
+    assertEquals(1L, loaded.get(3).verificationTime);
+    assertTrue(file.delete());
+  }
+
+  @Test
+  public void testClientReadVerification() throws Exception {
+    Path path = new Path("/file");
+    ExtendedBlock block = createFile(path);
+    long scanTime = waitForScan(block, "local", 0);
+
+    // reading the whole block verifies it
+    DFSTestUtil.readFile(fs, path);
+    final long clientTime = waitForScan(block, "client", scanTime);
+
+    // the verification time is saved at the end of the next scan run
+    final ExtendedBlock b = block;
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return getSavedVerificationTime(b) == clientTime;
+      }
+    }, 500, TIMEOUT);
+  }
+
+  @Test
+  public void testSuspectBlockIsScanned() throws Exception {
+    ExtendedBlock block = createFile(new Path("/file"));
+    long scanTime = waitForScan(block, "local", 0);
+
+    // the block is verified again right away, within the scan period
+    getDataNode().blockScanner.markSuspectBlock(block);
+    waitForScan(block, "local", scanTime);
+  }
+
+  @Test
+  public void testLegacyVerificationLog() throws Exception {
+    ExtendedBlock block = createFile(new Path("/file"));
+    waitForScan(block, "local", 0);
+    DataNodeProperties dnProps = cluster.stopDataNode(0);
+
+    // replace the progress file with a verification log of an earlier version
+    List<File> dirs = getBlockPoolDirs();
+    for (File dir : dirs) {
+      File f = new File(dir, BlockScanProgress.FILE_NAME);
+      assertTrue(!f.exists() || f.delete());
+    }
+    long verificationTime = System.currentTimeMillis() - 3600 * 1000L;
+    final File legacyLog = new File(dirs.get(0),
+        BlockPoolSliceScanner.verificationLogFile + ".curr");
+    FileWriter out = new FileWriter(legacyLog);
+    out.write("\ndate=\"2012-01-01 00:00:00,000\"\t time=\"" + verificationTime
+        + "\"\t genstamp=\"" + block.getGenerationStamp() + "\"\t id=\""
+        + block.getBlockId() + "\"");
+    out.close();
+
+    cluster.restartDataNode(dnProps);
+    cluster.waitActive();
+
+    // the log is imported to the progress file, then deleted
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return !legacyLog.exists() && getProgressFile() != null;
+      }
+    }, 500, TIMEOUT);
+    // the block keeps the imported time until it is verified again
+    assertTrue(getSavedVerificationTime(block) >= verificationTime);
+  }
+
+  @Test
+  public void testNoVerificationAfterRestart() throws Exception {
+    final int numBlocks = 3;
+    final List<ExtendedBlock> blocks = new ArrayList<ExtendedBlock>();
+    final long[] scanTimes = new long[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks.add(createFile(new Path("/file" + i)));
+      scanTimes[i] = waitForScan(blocks.get(i), "local", 0);
+    }
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        for (int i = 0; i < numBlocks; i++) {
+          if (getSavedVerificationTime(blocks.get(i)) != scanTimes[i]) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }, 500, TIMEOUT);
+
+    cluster.restartDataNode(0);
+    cluster.waitActive();
+
+    // wait for the first run after the restart to complete
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        try {
+          return getDataNode().blockScanner != null
+              && getDataNode().blockScanner.getBlocksScannedInLastRun(bpid)
+                  >= numBlocks;
+        } catch (IOException e) {
+          return false;
+        }
+      }
+    }, 500, TIMEOUT);
+
+    // the blocks verified within the scan period were not read again
+    assertEquals(0, getScansSinceRestart());
+    for (int i = 0; i < numBlocks; i++) {
+      String[] status = getScanStatus(blocks.get(i));
+      assertEquals("local", status[0]);
+      assertEquals(scanTimes[i], Long.parseLong(status[1]));
+    }
+  }
+}
@@ -23,7 +23,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
@@ -42,6 +44,9 @@ import org.apache.hadoop.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+
 /** Test if a datanode can correctly upgrade itself */
 public class TestDatanodeRestart {
   // test finalized replicas persist across DataNode restarts
@@ -68,6 +73,52 @@ public class TestDatanodeRestart {
     }
   }
   
+  // test finalized replicas are loaded from the replica cache on restart
+  @Test public void testFinalizedReplicasFromReplicaCache() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 1024L);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 512);
+    conf.setBoolean(DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).build();
+    cluster.waitActive();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      final String TopDir = "/test";
+      DFSTestUtil util = new DFSTestUtil("TestReplicaCache", 5, 3, 8*1024);
+      util.createFiles(fs, TopDir, (short)1);
+      util.waitReplication(fs, TopDir, (short)1);
+      String bpid = cluster.getNamesystem().getBlockPoolId();
+      Map<Long, String> before = getReplicas(cluster.getDataNodes().get(0),
+          bpid);
+
+      cluster.restartDataNodes();
+      cluster.waitActive();
+      DataNode dn = cluster.getDataNodes().get(0);
+
+      // the replica map is restored from the caches, which are then removed
+      Assert.assertEquals(before, getReplicas(dn, bpid));
+      assertCounter("ReplicaCacheLoads", (long)dn.data.getVolumes().size(),
+          getMetrics(dn.getMetrics().name()));
+      for (FSVolumeInterface v : dn.data.getVolumes()) {
+        File bpCurrentDir = v.getFinalizedDir(bpid).getParentFile();
+        Assert.assertFalse(new File(bpCurrentDir, "replicas").exists());
+        Assert.assertFalse(new File(bpCurrentDir, "replicas.gen").exists());
+      }
+      util.checkFiles(fs, TopDir);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static Map<Long, String> getReplicas(DataNode dn, String bpid) {
+    Map<Long, String> replicas = new HashMap<Long, String>();
+    for (ReplicaInfo r : ((FSDataset)dn.data).volumeMap.replicas(bpid)) {
+      replicas.put(r.getBlockId(), r.getState() + " " + r.getNumBytes() + " "
+          + r.getGenerationStamp() + " " + r.getBlockFile());
+    }
+    return replicas;
+  }
+
   // test rbw replicas persist across DataNode restarts
   public void testRbwReplicas() throws IOException {
     Configuration conf = new HdfsConfiguration();
@@ -345,6 +345,144 @@ public class TestDirectoryScanner extends TestCase {
     }
   }
 
+  public void testIncrementalDirectoryScanner() throws Exception {
+    CONF.setBoolean(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY,
+        true);
+    try {
+      // Incremental scans must find the same differences as full scans
+      runTest(1);
+      runIncrementalTest();
+    } finally {
+      CONF.setBoolean(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY,
+          false);
+    }
+  }
+
+  public void testFileRateThrottler() throws Exception {
+    // one file per second is below the resolution of a byte throttler
+    DirectoryScanner.FileRateThrottler throttler =
+        new DirectoryScanner.FileRateThrottler(2);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      throttler.throttle(1);
+    }
+    assertTrue(System.currentTimeMillis() - start >= 1400);
+
+    // many small calls, and one large one
+    throttler = new DirectoryScanner.FileRateThrottler(1000);
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      throttler.throttle(1);
+    }
+    throttler.throttle(500);
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue("elapsed " + elapsed, elapsed >= 1400 && elapsed < 3000);
+
+    // an idle throttler runs ahead by at most one second
+    Thread.sleep(2000);
+    start = System.currentTimeMillis();
+    throttler.throttle(1500);
+    elapsed = System.currentTimeMillis() - start;
+    assertTrue("elapsed " + elapsed, elapsed >= 400 && elapsed < 1500);
+  }
+
+  public void testThrottledDirectoryScanner() throws Exception {
+    final long filesPerSec = 50;
+    CONF.setLong(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THROTTLE_KEY,
+        filesPerSec);
+    cluster = new MiniDFSCluster.Builder(CONF).build();
+    try {
+      cluster.waitActive();
+      bpid = cluster.getNamesystem().getBlockPoolId();
+      fds = (FSDataset) cluster.getDataNodes().get(0).getFSDataset();
+      scanner = new DirectoryScanner(cluster.getDataNodes().get(0), fds, CONF);
+      scanner.setRetainDiffs(true);
+      createFile("/tmp/t1", 10000);
+
+      long start = System.currentTimeMillis();
+      scanner.reconcile();
+      long elapsed = System.currentTimeMillis() - start;
+      long perVolume = scanner.filesScanned.get() / fds.getVolumes().size();
+      LOG.info("Scanned " + scanner.filesScanned + " files in " + elapsed
+          + " ms");
+      assertTrue(perVolume >= 100);
+      // each volume is throttled on its own, and may be scanned in parallel
+      assertTrue("elapsed " + elapsed,
+          elapsed >= perVolume * 1000 / filesPerSec * 9 / 10);
+    } finally {
+      CONF.setLong(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THROTTLE_KEY,
+          DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THROTTLE_DEFAULT);
+      scanner.shutdown();
+      cluster.shutdown();
+    }
+  }
+
+  /** Set the modification time of all the directories under dir */
+  private void setDirsLastModified(File dir, long time) {
+    for (File f : dir.listFiles()) {
+      if (f.isDirectory()) {
+        setDirsLastModified(f, time);
+      }
+    }
+    assertTrue(dir.setLastModified(time));
+  }
+
+  private void ageBlockDirs() throws IOException {
+    long oldTime = System.currentTimeMillis() - 60 * 1000L;
+    for (FSVolumeInterface vol : fds.getVolumes()) {
+      setDirsLastModified(vol.getFinalizedDir(bpid), oldTime);
+    }
+  }
+
+  private void runIncrementalTest() throws Exception {
+    cluster = new MiniDFSCluster.Builder(CONF).build();
+    try {
+      cluster.waitActive();
+      bpid = cluster.getNamesystem().getBlockPoolId();
+      fds = (FSDataset) cluster.getDataNodes().get(0).getFSDataset();
+      DataNode dn = cluster.getDataNodes().get(0);
+      scanner = new DirectoryScanner(dn, fds, CONF);
+      scanner.setRetainDiffs(true);
+
+      createFile("/tmp/t1", 10000);
+      long totalBlocks = 100;
+
+      // The first scan examines every directory and records a checkpoint
+      ageBlockDirs();
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertEquals(0, scanner.dirsSkipped.get());
+      assertTrue(scanner.dirsScanned.get() > 0);
+      File checkpointFile = new File(fds.getVolumes().get(0)
+          .getFinalizedDir(bpid).getParentFile(),
+          DirectoryScanCheckpoint.FILE_NAME);
+      assertTrue(checkpointFile.exists());
+
+      // Unchanged directories are not examined again
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertEquals(0, scanner.dirsScanned.get());
+      assertTrue(scanner.dirsSkipped.get() > 0);
+
+      // A changed directory is rescanned
+      long blockId = createBlockMetaFile();
+      totalBlocks++;
+      scan(totalBlocks, 1, 0, 0, 1, 0);
+      verifyAddition(blockId, DEFAULT_GEN_STAMP, 0);
+      assertEquals(1, scanner.dirsScanned.get());
+
+      // A new scanner starts from the persisted checkpoint
+      ageBlockDirs();
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      scanner.shutdown();
+      scanner = new DirectoryScanner(dn, fds, CONF);
+      scanner.setRetainDiffs(true);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertEquals(0, scanner.dirsScanned.get());
+    } finally {
+      scanner.shutdown();
+      cluster.shutdown();
+    }
+  }
+
   private void verifyAddition(long blockId, long genStamp, long size) {
     final ReplicaInfo replicainfo;
     replicainfo = fds.fetchReplicaInfo(bpid, blockId);
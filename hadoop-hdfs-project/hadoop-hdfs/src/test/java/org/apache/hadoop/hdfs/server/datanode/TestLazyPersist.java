@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options.CreateOpts;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Test writing replicas in lazy-persist mode, where the datanode buffers
+ * them in memory and persists them asynchronously.
+ */
+public class TestLazyPersist {
+  private static final int BLOCK_SIZE = 256 * 1024;
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private FileContext fc;
+
+  private void startCluster(long lazyPersistMemory) throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    conf.setLong(DFSConfigKeys.DFS_DATANODE_LAZY_PERSIST_MEMORY_KEY,
+        lazyPersistMemory);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    fc = FileContext.getFileContext(fs.getUri(), conf);
+  }
+
+  @After
+  public void shutDownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+  }
+
+  private byte[] writeFile(Path path, int length, boolean lazyPersist)
+      throws Exception {
+    EnumSet<CreateFlag> flags = EnumSet.of(CreateFlag.CREATE);
+    if (lazyPersist) {
+      flags.add(CreateFlag.LAZY_PERSIST);
+    }
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    FSDataOutputStream out = fc.create(path, flags,
+        CreateOpts.repFac((short)1), CreateOpts.blockSize(BLOCK_SIZE));
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return data;
+  }
+
+  private void checkFile(Path path, byte[] expected) throws Exception {
+    byte[] actual = new byte[expected.length];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, actual);
+    } finally {
+      in.close();
+    }
+    assertArrayEquals(expected, actual);
+  }
+
+  private DataNode getDataNode() {
+    return cluster.getDataNodes().get(0);
+  }
+
+  private void waitForPersisted(final long numReplicas) throws Exception {
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return getLongCounter("RamReplicasPersisted",
+            getMetrics(getDataNode().getMetrics().name())) == numReplicas;
+      }
+    }, 100, 30000);
+  }
+
+  /** Assert the replicas of the file are in the finalized directory */
+  private void checkFinalizedOnDisk(Path path) throws Exception {
+    FSDataset data = (FSDataset)getDataNode().data;
+    FSDataInputStream in = fs.open(path);
+    try {
+      for (LocatedBlock lb : DFSTestUtil.getAllBlocks(in)) {
+        File f = data.getFile(lb.getBlock().getBlockPoolId(),
+            lb.getBlock().getBlockId());
+        assertTrue(f + " is not finalized",
+            f.getParent().contains(DataStorage.STORAGE_DIR_FINALIZED));
+        assertEquals(lb.getBlock().getNumBytes(), f.length());
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testLazyPersistWrite() throws Exception {
+    startCluster(4 * 1024 * 1024);
+    Path path = new Path("/lazy");
+    byte[] data = writeFile(path, 2 * BLOCK_SIZE + 1000, true);
+
+    // served from memory while being persisted
+    checkFile(path, data);
+    DataNode dn = getDataNode();
+    assertCounter("RamReplicasWritten", 3L, getMetrics(dn.getMetrics().name()));
+    assertTrue(getLongCounter("RamReplicaReads",
+        getMetrics(dn.getMetrics().name())) > 0);
+
+    waitForPersisted(3);
+    checkFinalizedOnDisk(path);
+    checkFile(path, data);
+    assertCounter("RamReplicasSpilled", 0L,
+        getMetrics(dn.getMetrics().name()));
+  }
+
+  @Test
+  public void testWriteWithoutLazyPersist() throws Exception {
+    startCluster(4 * 1024 * 1024);
+    Path path = new Path("/regular");
+    byte[] data = writeFile(path, BLOCK_SIZE, false);
+    checkFile(path, data);
+    checkFinalizedOnDisk(path);
+    assertCounter("RamReplicasWritten", 0L,
+        getMetrics(getDataNode().getMetrics().name()));
+  }
+
+  @Test
+  public void testSpillWhenMemoryIsFull() throws Exception {
+    // not enough memory for a whole block
+    startCluster(2 * RamReplicaStore.CHUNK_SIZE);
+    Path path = new Path("/spilled");
+    byte[] data = writeFile(path, BLOCK_SIZE, true);
+    DataNode dn = getDataNode();
+    assertCounter("RamReplicasWritten", 1L, getMetrics(dn.getMetrics().name()));
+    assertCounter("RamReplicasSpilled", 1L, getMetrics(dn.getMetrics().name()));
+    checkFinalizedOnDisk(path);
+    checkFile(path, data);
+    assertEquals(0L, ((FSDataset)dn.data).lazyPersistStore.getUsed());
+  }
+
+  @Test
+  public void testEvictPersistedReplicas() throws Exception {
+    // memory for a single block and its checksums
+    startCluster(BLOCK_SIZE + 2 * RamReplicaStore.CHUNK_SIZE);
+    Path path1 = new Path("/lazy1");
+    byte[] data1 = writeFile(path1, BLOCK_SIZE, true);
+    waitForPersisted(1);
+
+    // the first replica is evicted to make room for the second one
+    Path path2 = new Path("/lazy2");
+    byte[] data2 = writeFile(path2, BLOCK_SIZE, true);
+    waitForPersisted(2);
+    DataNode dn = getDataNode();
+    assertCounter("RamReplicasEvicted", 1L, getMetrics(dn.getMetrics().name()));
+    assertCounter("RamReplicasSpilled", 0L, getMetrics(dn.getMetrics().name()));
+    checkFile(path1, data1);
+    checkFile(path2, data2);
+  }
+
+  @Test
+  public void testPersistOnDataNodeRestart() throws Exception {
+    startCluster(4 * 1024 * 1024);
+    Path path = new Path("/lazy");
+    byte[] data = writeFile(path, 2 * BLOCK_SIZE, true);
+
+    // replicas not yet persisted are written out on shutdown
+    cluster.restartDataNodes();
+    cluster.waitActive();
+    checkFinalizedOnDisk(path);
+    checkFile(path, data);
+  }
+}
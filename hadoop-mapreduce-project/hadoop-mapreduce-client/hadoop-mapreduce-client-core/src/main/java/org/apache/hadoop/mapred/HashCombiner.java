@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.Task.CombinerRunner;
+import org.apache.hadoop.mapred.Task.TaskReporter;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Combines the map outputs before they reach the collector sorting them.
+ * <p>
+ * The records are grouped by partition and by the bytes of their key in hash
+ * tables. When the tables hold more than
+ * {@link MRJobConfig#MAP_COMBINE_HASH_MEMORY_MB}, the combiner runs over each
+ * group, without sorting, and its outputs are given to the sorting collector.
+ * The combiner runs on parts of the values of a key, so it must be
+ * associative and commutative.
+ * <p>
+ * When a combination does not at least halve the records, the keys repeat
+ * too little for the tables to pay off: they are dropped and the following
+ * records go straight to the sorting collector.
+ */
+class HashCombiner<K, V> implements MapOutputCollector<K, V> {
+
+  private static final Log LOG = LogFactory.getLog(HashCombiner.class);
+
+  /** The combined records over the records, above which the tables stop */
+  private static final float MAX_OUTPUT_RATIO = 0.5f;
+  // the estimated memory of a group and of a value, beyond their bytes
+  private static final int GROUP_OVERHEAD = 96;
+  private static final int VALUE_OVERHEAD = 32;
+
+  private final MapOutputCollector<K, V> collector;
+  private final CombinerRunner<K, V> combinerRunner;
+  private final TaskReporter reporter;
+  private final long memoryLimit;
+
+  private final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+  private final DataOutputBuffer valueBuffer = new DataOutputBuffer();
+  private final Serializer<K> keySerializer;
+  private final Serializer<V> valueSerializer;
+  private final BytesWritable probe = new BytesWritable();
+
+  private final Map<BytesWritable, List<byte[]>>[] partitions;
+  private long memoryUsed = 0;
+  private long records = 0;
+  private long bytes = 0;
+  private boolean enabled = true;
+
+  private final Counters.Counter combineOutputCounter;
+  private final Counters.Counter inputBytesCounter;
+  private final Counters.Counter outputBytesCounter;
+  private final Counters.Counter mapOutputByteCounter;
+
+  @SuppressWarnings("unchecked")
+  HashCombiner(MapOutputCollector<K, V> collector,
+               CombinerRunner<K, V> combinerRunner,
+               MapOutputCollector.Context context) throws IOException {
+    this.collector = collector;
+    this.combinerRunner = combinerRunner;
+    this.reporter = context.getTaskReporter();
+    final JobConf job = context.getJobConf();
+    memoryLimit =
+      (long) job.getInt(MRJobConfig.MAP_COMBINE_HASH_MEMORY_MB, 16) << 20;
+    partitions = new Map[Math.max(1, job.getNumReduceTasks())];
+    for (int i = 0; i < partitions.length; ++i) {
+      partitions[i] = new HashMap<BytesWritable, List<byte[]>>();
+    }
+
+    SerializationFactory serializationFactory = new SerializationFactory(job);
+    keySerializer = serializationFactory.getSerializer(
+        (Class<K>) job.getMapOutputKeyClass());
+    keySerializer.open(keyBuffer);
+    valueSerializer = serializationFactory.getSerializer(
+        (Class<V>) job.getMapOutputValueClass());
+    valueSerializer.open(valueBuffer);
+
+    combineOutputCounter =
+      reporter.getCounter(TaskCounter.COMBINE_OUTPUT_RECORDS);
+    inputBytesCounter =
+      reporter.getCounter(TaskCounter.MAP_HASH_COMBINE_INPUT_BYTES);
+    outputBytesCounter =
+      reporter.getCounter(TaskCounter.MAP_HASH_COMBINE_OUTPUT_BYTES);
+    mapOutputByteCounter = reporter.getCounter(TaskCounter.MAP_OUTPUT_BYTES);
+    LOG.info("Combining the map outputs in hash tables of up to " +
+        memoryLimit + " bytes");
+  }
+
+  /** The collector is initialized when it is created. */
+  @Override
+  public void init(MapOutputCollector.Context context) {
+  }
+
+  @Override
+  public void collect(K key, V value, int partition)
+      throws IOException, InterruptedException {
+    if (!enabled) {
+      collector.collect(key, value, partition);
+      return;
+    }
+    keyBuffer.reset();
+    keySerializer.serialize(key);
+    valueBuffer.reset();
+    valueSerializer.serialize(value);
+
+    final Map<BytesWritable, List<byte[]>> groups = partitions[partition];
+    probe.set(keyBuffer.getData(), 0, keyBuffer.getLength());
+    List<byte[]> values = groups.get(probe);
+    if (values == null) {
+      values = new ArrayList<byte[]>(2);
+      groups.put(new BytesWritable(
+          Arrays.copyOf(keyBuffer.getData(), keyBuffer.getLength())), values);
+      memoryUsed += keyBuffer.getLength() + GROUP_OVERHEAD;
+    }
+    values.add(Arrays.copyOf(valueBuffer.getData(), valueBuffer.getLength()));
+    memoryUsed += valueBuffer.getLength() + VALUE_OVERHEAD;
+    ++records;
+    bytes += keyBuffer.getLength() + valueBuffer.getLength();
+
+    if (memoryUsed > memoryLimit) {
+      combine();
+    }
+  }
+
+  /** Combine the tables into the sorting collector, and empty them */
+  private void combine() throws IOException, InterruptedException {
+    final long outputRecordsBefore = combineOutputCounter.getValue();
+    final long outputBytesBefore = mapOutputByteCounter.getValue();
+    try {
+      for (int p = 0; p < partitions.length; ++p) {
+        if (partitions[p].isEmpty()) {
+          continue;
+        }
+        combinerRunner.combine(new GroupIterator(partitions[p].entrySet()),
+            new PartitionCollector(p));
+        partitions[p].clear();
+      }
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cannot run the combiner", e);
+    }
+    final long outputRecords =
+      combineOutputCounter.getValue() - outputRecordsBefore;
+    final long outputBytes = mapOutputByteCounter.getValue() - outputBytesBefore;
+    inputBytesCounter.increment(bytes);
+    outputBytesCounter.increment(outputBytes);
+    LOG.info("Combined " + records + " records of " + bytes + " bytes into " +
+        outputRecords + " records of " + outputBytes + " bytes");
+
+    if (outputRecords > records * MAX_OUTPUT_RATIO) {
+      enabled = false;
+      LOG.info("The map output keys repeat too little, collecting the" +
+          " following records without combining them first");
+    }
+    memoryUsed = 0;
+    records = 0;
+    bytes = 0;
+  }
+
+  @Override
+  public void flush()
+      throws IOException, InterruptedException, ClassNotFoundException {
+    if (records > 0) {
+      combine();
+    }
+    collector.flush();
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    collector.close();
+  }
+
+  /** Gives the outputs of the combiner to the sorting collector */
+  private class PartitionCollector implements OutputCollector<K, V> {
+    private final int partition;
+
+    PartitionCollector(int partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public void collect(K key, V value) throws IOException {
+      combineOutputCounter.increment(1);
+      try {
+        collector.collect(key, value, partition);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted collecting the combined records",
+            e);
+      }
+    }
+  }
+
+  /** The records of a partition, the values of a key next to each other */
+  private static class GroupIterator implements RawKeyValueIterator {
+    private final Iterator<Map.Entry<BytesWritable, List<byte[]>>> groups;
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private final Progress progress = new Progress();
+    private List<byte[]> values = null;
+    private int nextValue = 0;
+
+    GroupIterator(Iterable<Map.Entry<BytesWritable, List<byte[]>>> groups) {
+      this.groups = groups.iterator();
+    }
+
+    @Override
+    public boolean next() {
+      if (values == null || nextValue == values.size()) {
+        if (!groups.hasNext()) {
+          return false;
+        }
+        Map.Entry<BytesWritable, List<byte[]>> group = groups.next();
+        key.reset(group.getKey().getBytes(), group.getKey().getLength());
+        values = group.getValue();
+        nextValue = 0;
+      } else {
+        // the reader may have moved through the key
+        key.reset(key.getData(), 0, key.getLength());
+      }
+      byte[] v = values.get(nextValue++);
+      value.reset(v, v.length);
+      return true;
+    }
+
+    @Override
+    public DataInputBuffer getKey() {
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue() {
+      return value;
+    }
+
+    @Override
+    public Progress getProgress() {
+      return progress;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -265,6 +265,17 @@ public class IFile {
       ++numRecordsWritten;
       decompressedBytesWritten += length;
     }
+
+    /**
+     * Append records already serialized in the format of this file: the
+     * vint lengths of the key and of the value of each, then their bytes.
+     */
+    public void appendRecords(byte[] b, int off, int len, int records)
+        throws IOException {
+      out.write(b, off, len);
+      decompressedBytesWritten += len;
+      numRecordsWritten += records;
+    }
     
     public long getRawLength() {
       return decompressedBytesWritten;
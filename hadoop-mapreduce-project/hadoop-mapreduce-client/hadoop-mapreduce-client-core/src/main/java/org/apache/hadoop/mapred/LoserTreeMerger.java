@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.task.reduce.InMemoryReader;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Merges in-memory segments in a single pass with a tournament tree of
+ * losers.
+ * <p>
+ * The records are parsed in place in the arrays holding the shuffled map
+ * outputs, and the key and value returned for each record point into them,
+ * without going through the streams of the readers. Each internal node of
+ * the tree keeps the segment which lost the match played there, so that
+ * replacing the winner takes one comparison per level of the tree, against
+ * about two for the heap of {@link Merger}. When the comparator of the keys
+ * has a known normalized form, the first bytes of each key are kept as a
+ * {@link SortKeyPrefix}, and most matches compare two longs.
+ * <p>
+ * Records with equal keys are returned in the order of their segments.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class LoserTreeMerger<K, V> implements RawKeyValueIterator {
+  private static final Log LOG = LogFactory.getLog(LoserTreeMerger.class);
+
+  /** The current record of a segment */
+  private static class Cursor {
+    final byte[] data;
+    final int end;
+    int pos;
+    int keyOffset;
+    int keyLength;
+    int valueOffset;
+    int valueLength;
+    long prefix;
+    boolean eof = false;
+
+    Cursor(byte[] data, int start, int end) {
+      this.data = data;
+      this.pos = start;
+      this.end = end;
+    }
+  }
+
+  private final List<Merger.Segment<K, V>> segments;
+  private final RawComparator<K> comparator;
+  private final SortKeyPrefix keyPrefix;
+  private final Cursor[] cursors;
+  /**
+   * tree[0] is the segment of the current record, tree[1..k-1] are the
+   * losers of the matches. The segment k is a sentinel, lower than all
+   * records, used while building the tree.
+   */
+  private final int[] tree;
+  private final int k;
+  private final DataInputBuffer key = new DataInputBuffer();
+  private final DataInputBuffer value = new DataInputBuffer();
+  private final Progress mergeProgress;
+  private final float progPerByte;
+  private long totalBytesProcessed = 0;
+  private boolean started = false;
+
+  /**
+   * @param segments the segments to merge, read by {@link InMemoryReader}s.
+   *        They are closed as soon as they are read.
+   * @param mergePhase the progress of the merge, or null
+   */
+  public LoserTreeMerger(List<Merger.Segment<K, V>> segments,
+                         RawComparator<K> comparator, Progress mergePhase)
+      throws IOException {
+    this.segments = segments;
+    this.comparator = comparator;
+    this.keyPrefix = SortKeyPrefix.get(comparator);
+    this.mergeProgress = mergePhase != null ? mergePhase : new Progress();
+    k = segments.size();
+    cursors = new Cursor[k];
+    tree = new int[Math.max(k, 1)];
+
+    long totalBytes = 0;
+    for (int i = 0; i < k; ++i) {
+      Merger.Segment<K, V> segment = segments.get(i);
+      if (!(segment.getReader() instanceof InMemoryReader)) {
+        throw new IllegalArgumentException("Segment " + i + " is not read" +
+            " from memory");
+      }
+      InMemoryReader<K, V> reader = (InMemoryReader<K, V>) segment.getReader();
+      segment.init(null);
+      cursors[i] = new Cursor(reader.getData(), reader.getStart(),
+                              reader.getEnd());
+      totalBytes += reader.getEnd() - reader.getStart();
+      advance(i);
+    }
+    progPerByte = totalBytes == 0 ? 0 : 1.0f / (float) totalBytes;
+
+    // play the leaves against the sentinel, from the last one
+    for (int t = 0; t < tree.length; ++t) {
+      tree[t] = k;
+    }
+    for (int i = k - 1; i >= 0; --i) {
+      adjust(i);
+    }
+    LOG.info("Merging " + k + " in-memory segments of total size: " +
+             totalBytes + " bytes");
+  }
+
+  /** Move the cursor of a segment to its next record */
+  private void advance(int s) throws IOException {
+    final Cursor c = cursors[s];
+    final int start = c.pos;
+    if (c.pos >= c.end) {
+      throw new IOException("Segment " + s + " ends without an EOF marker");
+    }
+    final byte[] b = c.data;
+    final int keyLength = WritableComparator.readVInt(b, c.pos);
+    c.pos += WritableUtils.decodeVIntSize(b[c.pos]);
+    final int valueLength = WritableComparator.readVInt(b, c.pos);
+    c.pos += WritableUtils.decodeVIntSize(b[c.pos]);
+    if (keyLength == IFile.EOF_MARKER && valueLength == IFile.EOF_MARKER) {
+      c.eof = true;
+      totalBytesProcessed += c.pos - start;
+      segments.get(s).close();
+      return;
+    }
+    if (keyLength < 0 || valueLength < 0 ||
+        c.pos + keyLength + valueLength > c.end) {
+      throw new IOException("Segment " + s + ": invalid record at offset " +
+          start + " with key-length " + keyLength + " and value-length " +
+          valueLength);
+    }
+    c.keyOffset = c.pos;
+    c.keyLength = keyLength;
+    c.valueOffset = c.pos + keyLength;
+    c.valueLength = valueLength;
+    c.pos = c.valueOffset + valueLength;
+    if (keyPrefix != null) {
+      c.prefix = keyPrefix.prefix(b, c.keyOffset, keyLength) ^ Long.MIN_VALUE;
+    }
+    totalBytesProcessed += c.pos - start;
+  }
+
+  /** @return whether the record of segment a comes before the one of b */
+  private boolean lessThan(int a, int b) {
+    if (a == k || b == k) {
+      return a == k;
+    }
+    final Cursor ca = cursors[a];
+    final Cursor cb = cursors[b];
+    if (ca.eof || cb.eof) {
+      return !ca.eof;
+    }
+    if (keyPrefix != null && ca.prefix != cb.prefix) {
+      return ca.prefix < cb.prefix;
+    }
+    final int cmp = comparator.compare(ca.data, ca.keyOffset, ca.keyLength,
+                                       cb.data, cb.keyOffset, cb.keyLength);
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  /** Replay the matches from the leaf of segment s to the root */
+  private void adjust(int s) {
+    for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+      if (lessThan(tree[t], s)) {
+        final int loser = s;
+        s = tree[t];
+        tree[t] = loser;
+      }
+    }
+    tree[0] = s;
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (k == 0) {
+      mergeProgress.set(1.0f);
+      return false;
+    }
+    if (started) {
+      final int s = tree[0];
+      if (!cursors[s].eof) {
+        advance(s);
+        adjust(s);
+      }
+    }
+    started = true;
+    final Cursor c = cursors[tree[0]];
+    if (c.eof) {
+      // the segments may be followed by a checksum
+      mergeProgress.set(1.0f);
+      return false;
+    }
+    mergeProgress.set(totalBytesProcessed * progPerByte);
+    key.reset(c.data, c.keyOffset, c.keyLength);
+    value.reset(c.data, c.valueOffset, c.valueLength);
+    return true;
+  }
+
+  @Override
+  public DataInputBuffer getKey() throws IOException {
+    return key;
+  }
+
+  @Override
+  public DataInputBuffer getValue() throws IOException {
+    return value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (int i = 0; i < k; ++i) {
+      if (!cursors[i].eof) {
+        cursors[i].eof = true;
+        segments.get(i).close();
+      }
+    }
+  }
+
+  @Override
+  public Progress getProgress() {
+    return mergeProgress;
+  }
+}
@@ -26,8 +26,15 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,10 +48,13 @@ import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.serializer.Deserializer;
@@ -63,11 +73,16 @@ import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitIndex;
 import org.apache.hadoop.mapreduce.task.MapContextImpl;
 import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.NativeRecordSort;
+import org.apache.hadoop.util.PrefixIndexedSortable;
+import org.apache.hadoop.util.PrefixSorter;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.QuickSort;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /** A Map task. */
 class MapTask extends Task {
   /**
@@ -388,9 +403,10 @@ class MapTask extends Task {
     LOG.info("numReduceTasks: " + numReduceTasks);
     MapOutputCollector collector = null;
     if (numReduceTasks > 0) {
-      collector = new MapOutputBuffer(umbilical, job, reporter);
+      collector = createSortingCollector(job, reporter);
     } else { 
-      collector = new DirectMapOutputCollector(umbilical, job, reporter);
+      collector = new DirectMapOutputCollector();
+      collector.init(new MapOutputCollector.Context(this, job, reporter));
     }
     MapRunnable<INKEY,INVALUE,OUTKEY,OUTVALUE> runner =
       ReflectionUtils.newInstance(job.getMapRunnerClass(), job);
@@ -623,6 +639,76 @@ class MapTask extends Task {
     }
   }
   
+  /**
+   * Create the collector sorting the map outputs for the reduces: the first
+   * of the configured collectors which initializes.
+   */
+  @SuppressWarnings("unchecked")
+  <K, V> MapOutputCollector<K, V> createSortingCollector(
+      JobConf job, TaskReporter reporter
+      ) throws IOException, ClassNotFoundException {
+    MapOutputCollector.Context context =
+      new MapOutputCollector.Context(this, job, reporter);
+    Class<?> defaultCollector = job.getBoolean(JobContext.IO_SORT_OFFHEAP,
+        false) ? OffHeapMapOutputBuffer.class : MapOutputBuffer.class;
+    Class<?>[] collectorClasses = job.getClasses(
+        JobContext.MAP_OUTPUT_COLLECTOR_CLASS_ATTR, defaultCollector);
+    if (collectorClasses.length == 0) {
+      collectorClasses = new Class<?>[] { defaultCollector };
+    }
+    int remainingCollectors = collectorClasses.length;
+    Exception lastException = null;
+    for (Class<?> clazz : collectorClasses) {
+      MapOutputCollector<K, V> collector;
+      try {
+        if (!MapOutputCollector.class.isAssignableFrom(clazz)) {
+          throw new IOException("Invalid output collector class: " +
+              clazz.getName() + " (does not implement MapOutputCollector)");
+        }
+        collector = ReflectionUtils.newInstance(
+            clazz.asSubclass(MapOutputCollector.class), job);
+        collector.init(context);
+        LOG.info("Map output collector class = " +
+            collector.getClass().getName());
+      } catch (Exception e) {
+        String msg = "Unable to initialize MapOutputCollector " +
+          clazz.getName();
+        if (--remainingCollectors > 0) {
+          msg += " (" + remainingCollectors + " more collector(s) to try)";
+        }
+        lastException = e;
+        LOG.warn(msg, e);
+        continue;
+      }
+      return hashCombining(collector, context);
+    }
+    throw new IOException("Initialization of all the collectors failed. " +
+        "Error in last collector was: " + lastException.getMessage(),
+        lastException);
+  }
+
+  /**
+   * @return a collector combining the map outputs in hash tables before the
+   *         given one, if the job asks for it and has a combiner
+   */
+  private <K, V> MapOutputCollector<K, V> hashCombining(
+      MapOutputCollector<K, V> collector, MapOutputCollector.Context context
+      ) throws IOException, ClassNotFoundException {
+    JobConf job = context.getJobConf();
+    if (!job.getBoolean(JobContext.MAP_COMBINE_HASH, false)) {
+      return collector;
+    }
+    TaskReporter reporter = context.getTaskReporter();
+    CombinerRunner<K,V> combinerRunner = CombinerRunner.create(job,
+        getTaskID(), reporter.getCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+        reporter, null);
+    if (combinerRunner == null) {
+      LOG.warn(JobContext.MAP_COMBINE_HASH + " is set without combiner");
+      return collector;
+    }
+    return new HashCombiner<K, V>(collector, combinerRunner, context);
+  }
+
   private class NewOutputCollector<K,V>
     extends org.apache.hadoop.mapreduce.RecordWriter<K,V> {
     private final MapOutputCollector<K,V> collector;
@@ -635,7 +721,7 @@ class MapTask extends Task {
                        TaskUmbilicalProtocol umbilical,
                        TaskReporter reporter
                        ) throws IOException, ClassNotFoundException {
-      collector = new MapOutputBuffer<K,V>(umbilical, job, reporter);
+      collector = createSortingCollector(job, reporter);
       partitions = jobContext.getNumReduceTasks();
       if (partitions > 1) {
         partitioner = (org.apache.hadoop.mapreduce.Partitioner<K,V>)
@@ -730,33 +816,23 @@ class MapTask extends Task {
     output.close(mapperContext);
   }
 
-  interface MapOutputCollector<K, V> {
-
-    public void collect(K key, V value, int partition
-                        ) throws IOException, InterruptedException;
-    public void close() throws IOException, InterruptedException;
-    
-    public void flush() throws IOException, InterruptedException, 
-                               ClassNotFoundException;
-        
-  }
-
-  class DirectMapOutputCollector<K, V>
+  static class DirectMapOutputCollector<K, V>
     implements MapOutputCollector<K, V> {
  
     private RecordWriter<K, V> out = null;
 
     private TaskReporter reporter = null;
 
-    private final Counters.Counter mapOutputRecordCounter;
-    private final Counters.Counter fileOutputByteCounter;
-    private final List<Statistics> fsStats;
+    private Counters.Counter mapOutputRecordCounter;
+    private Counters.Counter fileOutputByteCounter;
+    private List<Statistics> fsStats;
 
     @SuppressWarnings("unchecked")
-    public DirectMapOutputCollector(TaskUmbilicalProtocol umbilical,
-        JobConf job, TaskReporter reporter) throws IOException {
-      this.reporter = reporter;
-      String finalName = getOutputName(getPartition());
+    public void init(MapOutputCollector.Context context
+                    ) throws IOException, ClassNotFoundException {
+      this.reporter = context.getTaskReporter();
+      JobConf job = context.getJobConf();
+      String finalName = getOutputName(context.getMapTask().getPartition());
       FileSystem fs = FileSystem.get(job);
 
       OutputFormat<K, V> outputFormat = job.getOutputFormat();   
@@ -810,70 +886,51 @@ class MapTask extends Task {
     }
   }
 
-  private class MapOutputBuffer<K extends Object, V extends Object>
-      implements MapOutputCollector<K, V>, IndexedSortable {
-    final int partitions;
-    final JobConf job;
-    final TaskReporter reporter;
-    final Class<K> keyClass;
-    final Class<V> valClass;
-    final RawComparator<K> comparator;
-    final SerializationFactory serializationFactory;
-    final Serializer<K> keySerializer;
-    final Serializer<V> valSerializer;
-    final CombinerRunner<K,V> combinerRunner;
-    final CombineOutputCollector<K, V> combineCollector;
+  /**
+   * The configuration, counters and spill files shared by the collectors
+   * which sort the map outputs in memory, spill them to disk and merge the
+   * spills into the map output file.
+   */
+  abstract static class SpillingMapOutputCollector<K extends Object,
+      V extends Object> implements MapOutputCollector<K, V> {
+    MapTask mapTask;
+    int partitions;
+    JobConf job;
+    TaskReporter reporter;
+    Class<K> keyClass;
+    Class<V> valClass;
+    RawComparator<K> comparator;
+    SerializationFactory serializationFactory;
+    CombinerRunner<K,V> combinerRunner;
+    CombineOutputCollector<K, V> combineCollector;
 
     // Compression for map-outputs
-    final CompressionCodec codec;
-
-    // k/v accounting
-    final IntBuffer kvmeta; // metadata overlay on backing store
-    int kvstart;            // marks origin of spill metadata
-    int kvend;              // marks end of spill metadata
-    int kvindex;            // marks end of fully serialized records
-
-    int equator;            // marks origin of meta/serialization
-    int bufstart;           // marks beginning of spill
-    int bufend;             // marks beginning of collectable
-    int bufmark;            // marks end of record
-    int bufindex;           // marks end of collected
-    int bufvoid;            // marks the point where we should stop
-                            // reading at the end of the buffer
-
-    byte[] kvbuffer;        // main output buffer
-    private final byte[] b0 = new byte[0];
+    CompressionCodec codec;
 
-    private static final int INDEX = 0;            // index offset in acct
-    private static final int VALSTART = 1;         // val offset in acct
-    private static final int KEYSTART = 2;         // key offset in acct
-    private static final int PARTITION = 3;        // partition offset in acct
-    private static final int NMETA = 4;            // num meta ints
-    private static final int METASIZE = NMETA * 4; // size in bytes
+    // key prefix accounting, null if the keys are sorted without prefixes
+    SortKeyPrefix keyPrefix;
+    int partitionBits;
+    IndexedSorter sorter;
 
     // spill accounting
-    final int maxRec;
-    final int softLimit;
-    boolean spillInProgress;;
-    int bufferRemaining;
     volatile Throwable sortSpillException = null;
-
     int numSpills = 0;
-    final int minSpillsForCombine;
-    final IndexedSorter sorter;
-    final ReentrantLock spillLock = new ReentrantLock();
-    final Condition spillDone = spillLock.newCondition();
-    final Condition spillReady = spillLock.newCondition();
-    final BlockingBuffer bb = new BlockingBuffer();
-    volatile boolean spillThreadRunning = false;
-    final SpillThread spillThread = new SpillThread();
+    int minSpillsForCombine;
 
-    final FileSystem rfs;
+    // threads sorting, spilling and merging the partitions in parallel, null
+    // if the partitions are processed one at a time
+    ExecutorService sortPool;
+    int sortThreads;
+
+    FileSystem rfs;
 
     // Counters
-    final Counters.Counter mapOutputByteCounter;
-    final Counters.Counter mapOutputRecordCounter;
-    final Counters.Counter fileOutputByteCounter;
+    Counters.Counter mapOutputByteCounter;
+    Counters.Counter mapOutputRecordCounter;
+    Counters.Counter fileOutputByteCounter;
+    Counters.Counter spillCounter;
+    Counters.Counter spillMillisCounter;
+    Counters.Counter mergeMillisCounter;
 
     final ArrayList<SpillRecord> indexCacheList =
       new ArrayList<SpillRecord>();
@@ -882,59 +939,32 @@ class MapTask extends Task {
     private static final int INDEX_CACHE_MEMORY_LIMIT_DEFAULT = 1024 * 1024;
 
     @SuppressWarnings("unchecked")
-    public MapOutputBuffer(TaskUmbilicalProtocol umbilical, JobConf job,
-                           TaskReporter reporter
-                           ) throws IOException, ClassNotFoundException {
-      this.job = job;
-      this.reporter = reporter;
+    public void init(MapOutputCollector.Context context)
+        throws IOException, ClassNotFoundException {
+      mapTask = context.getMapTask();
+      job = context.getJobConf();
+      reporter = context.getTaskReporter();
       partitions = job.getNumReduceTasks();
       rfs = ((LocalFileSystem)FileSystem.getLocal(job)).getRaw();
-
-      //sanity checks
-      final float spillper =
-        job.getFloat(JobContext.MAP_SORT_SPILL_PERCENT, (float)0.8);
-      final int sortmb = job.getInt(JobContext.IO_SORT_MB, 100);
       indexCacheMemoryLimit = job.getInt(JobContext.INDEX_CACHE_MEMORY_LIMIT,
                                          INDEX_CACHE_MEMORY_LIMIT_DEFAULT);
-      if (spillper > (float)1.0 || spillper <= (float)0.0) {
-        throw new IOException("Invalid \"" + JobContext.MAP_SORT_SPILL_PERCENT +
-            "\": " + spillper);
-      }
-      if ((sortmb & 0x7FF) != sortmb) {
-        throw new IOException(
-            "Invalid \"" + JobContext.IO_SORT_MB + "\": " + sortmb);
-      }
-      sorter = ReflectionUtils.newInstance(job.getClass("map.sort.class",
-            QuickSort.class, IndexedSorter.class), job);
-      // buffers and accounting
-      int maxMemUsage = sortmb << 20;
-      maxMemUsage -= maxMemUsage % METASIZE;
-      kvbuffer = new byte[maxMemUsage];
-      bufvoid = kvbuffer.length;
-      kvmeta = ByteBuffer.wrap(kvbuffer).asIntBuffer();
-      setEquator(0);
-      bufstart = bufend = bufindex = equator;
-      kvstart = kvend = kvindex;
 
-      maxRec = kvmeta.capacity() / NMETA;
-      softLimit = (int)(kvbuffer.length * spillper);
-      bufferRemaining = softLimit;
-      if (LOG.isInfoEnabled()) {
-        LOG.info(JobContext.IO_SORT_MB + ": " + sortmb);
-        LOG.info("soft limit at " + softLimit);
-        LOG.info("bufstart = " + bufstart + "; bufvoid = " + bufvoid);
-        LOG.info("kvstart = " + kvstart + "; length = " + maxRec);
-      }
+      // sort
+      comparator = job.getOutputKeyComparator();
+      keyPrefix =
+        sortsByKeyPrefix() && job.getBoolean(JobContext.MAP_SORT_KEY_PREFIX,
+                                             false)
+        ? SortKeyPrefix.get(comparator)
+        : null;
+      partitionBits = 32 - Integer.numberOfLeadingZeros(partitions - 1);
+      sorter = ReflectionUtils.newInstance(job.getClass("map.sort.class",
+            null == keyPrefix ? QuickSort.class : PrefixSorter.class,
+            IndexedSorter.class), job);
 
       // k/v serialization
-      comparator = job.getOutputKeyComparator();
       keyClass = (Class<K>)job.getMapOutputKeyClass();
       valClass = (Class<V>)job.getMapOutputValueClass();
       serializationFactory = new SerializationFactory(job);
-      keySerializer = serializationFactory.getSerializer(keyClass);
-      keySerializer.open(bb);
-      valSerializer = serializationFactory.getSerializer(valClass);
-      valSerializer.open(bb);
 
       // output counters
       mapOutputByteCounter = reporter.getCounter(TaskCounter.MAP_OUTPUT_BYTES);
@@ -942,6 +972,9 @@ class MapTask extends Task {
         reporter.getCounter(TaskCounter.MAP_OUTPUT_RECORDS);
       fileOutputByteCounter = reporter
           .getCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES);
+      spillCounter = reporter.getCounter(TaskCounter.MAP_SPILLS);
+      spillMillisCounter = reporter.getCounter(TaskCounter.MAP_SPILL_MILLIS);
+      mergeMillisCounter = reporter.getCounter(TaskCounter.MAP_MERGE_MILLIS);
 
       // compression
       if (job.getCompressMapOutput()) {
@@ -955,432 +988,1732 @@ class MapTask extends Task {
       // combiner
       final Counters.Counter combineInputCounter =
         reporter.getCounter(TaskCounter.COMBINE_INPUT_RECORDS);
-      combinerRunner = CombinerRunner.create(job, getTaskID(), 
+      combinerRunner = CombinerRunner.create(job, mapTask.getTaskID(), 
                                              combineInputCounter,
                                              reporter, null);
       if (combinerRunner != null) {
         final Counters.Counter combineOutputCounter =
           reporter.getCounter(TaskCounter.COMBINE_OUTPUT_RECORDS);
-        combineCollector= new CombineOutputCollector<K,V>(combineOutputCounter, reporter, conf);
+        combineCollector = new CombineOutputCollector<K,V>(
+            combineOutputCounter, reporter, job);
       } else {
         combineCollector = null;
       }
-      spillInProgress = false;
       minSpillsForCombine = job.getInt(JobContext.MAP_COMBINE_MIN_SPILLS, 3);
-      spillThread.setDaemon(true);
-      spillThread.setName("SpillThread");
-      spillLock.lock();
-      try {
-        spillThread.start();
-        while (!spillThreadRunning) {
-          spillDone.await();
-        }
-      } catch (InterruptedException e) {
-        throw new IOException("Spill thread failed to initialize", e);
-      } finally {
-        spillLock.unlock();
+
+      sortThreads = job.getInt(JobContext.MAP_SORT_THREADS, 1);
+      if (sortThreads > 1 && partitions > 1) {
+        sortPool = Executors.newFixedThreadPool(sortThreads,
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("SortThread #%d").build());
+        LOG.info("Sorting, spilling and merging up to " + sortThreads +
+            " partitions in parallel");
       }
-      if (sortSpillException != null) {
-        throw new IOException("Spill thread failed to initialize",
-            sortSpillException);
+    }
+
+    /** Whether the keys may be sorted by their prefixes first */
+    boolean sortsByKeyPrefix() {
+      return true;
+    }
+
+    public void close() {
+      if (sortPool != null) {
+        sortPool.shutdownNow();
+        sortPool = null;
       }
     }
 
     /**
-     * Serialize the key, value to intermediate storage.
-     * When this method returns, kvindex must refer to sufficient unused
-     * storage to store one METADATA.
+     * A computation on each partition, run by the sort threads, whose
+     * results are consumed in partition order.
      */
-    public synchronized void collect(K key, V value, final int partition
-                                     ) throws IOException {
-      reporter.progress();
-      if (key.getClass() != keyClass) {
-        throw new IOException("Type mismatch in key from map: expected "
-                              + keyClass.getName() + ", received "
-                              + key.getClass().getName());
-      }
-      if (value.getClass() != valClass) {
-        throw new IOException("Type mismatch in value from map: expected "
-                              + valClass.getName() + ", received "
-                              + value.getClass().getName());
-      }
-      if (partition < 0 || partition >= partitions) {
-        throw new IOException("Illegal partition for " + key + " (" +
-            partition + ")");
-      }
-      checkSpillException();
-      bufferRemaining -= METASIZE;
-      if (bufferRemaining <= 0) {
-        // start spill if the thread is not running and the soft limit has been
-        // reached
-        spillLock.lock();
-        try {
-          do {
-            if (!spillInProgress) {
-              final int kvbidx = 4 * kvindex;
-              final int kvbend = 4 * kvend;
-              // serialized, unspilled bytes always lie between kvindex and
-              // bufindex, crossing the equator. Note that any void space
-              // created by a reset must be included in "used" bytes
-              final int bUsed = distanceTo(kvbidx, bufindex);
-              final boolean bufsoftlimit = bUsed >= softLimit;
-              if ((kvbend + METASIZE) % kvbuffer.length !=
-                  equator - (equator % METASIZE)) {
-                // spill finished, reclaim space
-                resetSpill();
-                bufferRemaining = Math.min(
-                    distanceTo(bufindex, kvbidx) - 2 * METASIZE,
-                    softLimit - bUsed) - METASIZE;
-                continue;
-              } else if (bufsoftlimit && kvindex != kvend) {
-                // spill records, if any collected; check latter, as it may
-                // be possible for metadata alignment to hit spill pcnt
-                startSpill();
-                final int avgRec = (int)
-                  (mapOutputByteCounter.getCounter() /
-                  mapOutputRecordCounter.getCounter());
-                // leave at least half the split buffer for serialization data
-                // ensure that kvindex >= bufindex
-                final int distkvi = distanceTo(bufindex, kvbidx);
-                final int newPos = (bufindex +
-                  Math.max(2 * METASIZE - 1,
-                          Math.min(distkvi / 2,
-                                   distkvi / (METASIZE + avgRec) * METASIZE)))
-                  % kvbuffer.length;
-                setEquator(newPos);
-                bufmark = bufindex = newPos;
-                final int serBound = 4 * kvend;
-                // bytes remaining before the lock must be held and limits
-                // checked is the minimum of three arcs: the metadata space, the
-                // serialization space, and the soft limit
-                bufferRemaining = Math.min(
-                    // metadata max
-                    distanceTo(bufend, newPos),
-                    Math.min(
-                      // serialization max
-                      distanceTo(newPos, serBound),
-                      // soft limit
-                      softLimit)) - 2 * METASIZE;
+    interface PartitionTask<T> {
+      T run(int partition) throws Exception;
+      void consume(int partition, T result) throws IOException;
+    }
+
+    /**
+     * Run a task on all the partitions with the sort threads. At most
+     * sortThreads partitions are computed ahead of the one being consumed,
+     * which bounds the results held at a time.
+     */
+    <T> void runPartitionTasks(final PartitionTask<T> task)
+        throws IOException, InterruptedException {
+      final Deque<Future<T>> pending = new ArrayDeque<Future<T>>();
+      int next = 0;
+      try {
+        for (int i = 0; i < partitions; ++i) {
+          while (next < partitions && pending.size() < sortThreads) {
+            final int partition = next++;
+            pending.addLast(sortPool.submit(new Callable<T>() {
+              @Override
+              public T call() throws Exception {
+                return task.run(partition);
               }
+            }));
+          }
+          final T result;
+          try {
+            result = pending.removeFirst().get();
+          } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+              throw (IOException)cause;
             }
-          } while (false);
-        } finally {
-          spillLock.unlock();
+            if (cause instanceof InterruptedException) {
+              throw (InterruptedException)cause;
+            }
+            throw new IOException("Failed to process partition " + i, cause);
+          }
+          task.consume(i, result);
+          reporter.progress();
         }
-      }
-
-      try {
-        // serialize key bytes into buffer
-        int keystart = bufindex;
-        keySerializer.serialize(key);
-        if (bufindex < keystart) {
-          // wrapped the key; must make contiguous
-          bb.shiftBufferedKey();
-          keystart = 0;
+      } finally {
+        for (Future<T> f : pending) {
+          f.cancel(true);
         }
-        // serialize value bytes into buffer
-        final int valstart = bufindex;
-        valSerializer.serialize(value);
-        // It's possible for records to have zero length, i.e. the serializer
-        // will perform no writes. To ensure that the boundary conditions are
-        // checked and that the kvindex invariant is maintained, perform a
-        // zero-length write into the buffer. The logic monitoring this could be
-        // moved into collect, but this is cleaner and inexpensive. For now, it
-        // is acceptable.
-        bb.write(b0, 0, 0);
+      }
+    }
 
-        // the record must be marked after the preceding write, as the metadata
-        // for this record are not yet written
-        int valend = bb.markRecord();
+    /**
+     * The counters of the records a sort thread spills and combines for a
+     * partition. The task counters are not safe for concurrent updates, so
+     * the thread consuming the partitions adds them to the task counters.
+     */
+    class PartitionCounters {
+      final Counters.Counter spilledRecords = new Counters.Counter();
+      final Counters.Counter combineInputRecords = new Counters.Counter();
+      final Counters.Counter combineOutputRecords = new Counters.Counter();
+
+      /** @return a combiner for the exclusive use of a sort thread */
+      CombinerRunner<K,V> newCombinerRunner() throws ClassNotFoundException {
+        return CombinerRunner.create(job, mapTask.getTaskID(),
+            combineInputRecords, reporter, null);
+      }
 
-        mapOutputRecordCounter.increment(1);
-        mapOutputByteCounter.increment(
-            distanceTo(keystart, valend, bufvoid));
+      CombineOutputCollector<K,V> newCombineCollector() {
+        return new CombineOutputCollector<K,V>(combineOutputRecords,
+            reporter, job);
+      }
 
-        // write accounting info
-        kvmeta.put(kvindex + INDEX, kvindex);
-        kvmeta.put(kvindex + PARTITION, partition);
-        kvmeta.put(kvindex + KEYSTART, keystart);
-        kvmeta.put(kvindex + VALSTART, valstart);
-        // advance kvindex
-        kvindex = (kvindex - NMETA + kvmeta.capacity()) % kvmeta.capacity();
-      } catch (MapBufferTooSmallException e) {
-        LOG.info("Record too large for in-memory buffer: " + e.getMessage());
-        spillSingleRecord(key, value, partition);
-        mapOutputRecordCounter.increment(1);
-        return;
+      /** Add the counts to the task counters, from the consuming thread. */
+      void addToTask() {
+        mapTask.spilledRecordsCounter.increment(spilledRecords.getValue());
+        reporter.getCounter(TaskCounter.COMBINE_INPUT_RECORDS).increment(
+            combineInputRecords.getValue());
+        reporter.getCounter(TaskCounter.COMBINE_OUTPUT_RECORDS).increment(
+            combineOutputRecords.getValue());
       }
     }
 
     /**
-     * Set the point from which meta and serialization data expand. The meta
-     * indices are aligned with the buffer, so metadata never spans the ends of
-     * the circular buffer.
+     * Compute the sort prefix of a record: its partition in the high bits,
+     * followed by the first bits of its normalized key. The sign bit is
+     * flipped, so that the prefixes compare as signed longs.
      */
-    private void setEquator(int pos) {
-      equator = pos;
-      // set index prior to first entry, aligned at meta boundary
-      final int aligned = pos - (pos % METASIZE);
-      kvindex =
-        ((aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
-      if (LOG.isInfoEnabled()) {
-        LOG.info("(EQUATOR) " + pos + " kvi " + kvindex +
+    long prefixFor(int partition, byte[] b, int keystart, int keylen) {
+      final long key = keyPrefix.prefix(b, keystart, keylen);
+      final long prefix = 0 == partitionBits
+        ? key
+        : ((long)partition << (64 - partitionBits)) | (key >>> partitionBits);
+      return prefix ^ Long.MIN_VALUE;
+    }
+
+    void checkSpillException() throws IOException {
+      final Throwable lspillException = sortSpillException;
+      if (lspillException != null) {
+        if (lspillException instanceof Error) {
+          final String logMsg = "Task " + mapTask.getTaskID() + " failed : " +
+            StringUtils.stringifyException(lspillException);
+          mapTask.reportFatalError(mapTask.getTaskID(), lspillException,
+                                   logMsg);
+        }
+        throw new IOException("Spill failed", lspillException);
+      }
+    }
+
+    /**
+     * Record the index of a spill file written since the given time, in
+     * memory or in a spill index file.
+     */
+    void finishSpill(SpillRecord spillRec, long spillStart)
+        throws IOException {
+      if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
+        // create spill index file
+        Path indexFilename =
+            mapTask.mapOutputFile.getSpillIndexFileForWrite(numSpills,
+                partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH);
+        spillRec.writeToFile(indexFilename, job);
+      } else {
+        indexCacheList.add(spillRec);
+        totalIndexCacheMemory +=
+          spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
+      }
+      ++numSpills;
+      spillCounter.increment(1);
+      spillMillisCounter.increment(System.currentTimeMillis() - spillStart);
+    }
+
+    /**
+     * Handles the degenerate case where serialization fails to fit in
+     * the in-memory buffer, so we must spill the record from collect
+     * directly to a spill file. Consider this "losing".
+     * @param size the approximate size of the spill file
+     */
+    void spillSingleRecord(final K key, final V value,
+                           int partition, long size) throws IOException {
+      final long spillStart = System.currentTimeMillis();
+      FSDataOutputStream out = null;
+      try {
+        // create spill file
+        final SpillRecord spillRec = new SpillRecord(partitions);
+        final Path filename =
+            mapTask.mapOutputFile.getSpillFileForWrite(numSpills, size);
+        out = rfs.create(filename);
+
+        // we don't run the combiner for a single record
+        IndexRecord rec = new IndexRecord();
+        for (int i = 0; i < partitions; ++i) {
+          IFile.Writer<K, V> writer = null;
+          try {
+            long segmentStart = out.getPos();
+            // Create a new codec, don't care!
+            writer = new IFile.Writer<K,V>(job, out, keyClass, valClass, codec,
+                                            mapTask.spilledRecordsCounter);
+
+            if (i == partition) {
+              final long recordStart = out.getPos();
+              writer.append(key, value);
+              // Note that our map byte count will not be accurate with
+              // compression
+              mapOutputByteCounter.increment(out.getPos() - recordStart);
+            }
+            writer.close();
+
+            // record offsets
+            rec.startOffset = segmentStart;
+            rec.rawLength = writer.getRawLength();
+            rec.partLength = writer.getCompressedLength();
+            spillRec.putIndex(rec, i);
+
+            writer = null;
+          } catch (IOException e) {
+            if (null != writer) writer.close();
+            throw e;
+          }
+        }
+        finishSpill(spillRec, spillStart);
+      } finally {
+        if (out != null) out.close();
+      }
+    }
+
+    void mergeParts() throws IOException, InterruptedException, 
+                                     ClassNotFoundException {
+      // get the approximate size of the final output/index files
+      long finalOutFileSize = 0;
+      long finalIndexFileSize = 0;
+      final Path[] filename = new Path[numSpills];
+      final TaskAttemptID mapId = mapTask.getTaskID();
+
+      for(int i = 0; i < numSpills; i++) {
+        filename[i] = mapTask.mapOutputFile.getSpillFile(i);
+        finalOutFileSize += rfs.getFileStatus(filename[i]).getLen();
+      }
+      if (numSpills == 1) { //the spill is the final output
+        sameVolRename(filename[0],
+            mapTask.mapOutputFile.getOutputFileForWriteInVolume(filename[0]));
+        if (indexCacheList.size() == 0) {
+          sameVolRename(mapTask.mapOutputFile.getSpillIndexFile(0),
+            mapTask.mapOutputFile.getOutputIndexFileForWriteInVolume(
+                filename[0]));
+        } else {
+          indexCacheList.get(0).writeToFile(
+            mapTask.mapOutputFile.getOutputIndexFileForWriteInVolume(
+                filename[0]), job);
+        }
+        mapTask.sortPhase.complete();
+        return;
+      }
+
+      // read in paged indices
+      for (int i = indexCacheList.size(); i < numSpills; ++i) {
+        Path indexFileName = mapTask.mapOutputFile.getSpillIndexFile(i);
+        indexCacheList.add(new SpillRecord(indexFileName, job));
+      }
+
+      //make correction in the length to include the sequence file header
+      //lengths for each partition
+      finalOutFileSize += partitions * APPROX_HEADER_LENGTH;
+      finalIndexFileSize = partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH;
+      Path finalOutputFile =
+          mapTask.mapOutputFile.getOutputFileForWrite(finalOutFileSize);
+      Path finalIndexFile =
+          mapTask.mapOutputFile.getOutputIndexFileForWrite(finalIndexFileSize);
+
+      //The output stream for the final single output file
+      FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
+
+      if (numSpills == 0) {
+        //create dummy files
+        IndexRecord rec = new IndexRecord();
+        SpillRecord sr = new SpillRecord(partitions);
+        try {
+          for (int i = 0; i < partitions; i++) {
+            long segmentStart = finalOut.getPos();
+            Writer<K, V> writer =
+              new Writer<K, V>(job, finalOut, keyClass, valClass, codec, null);
+            writer.close();
+            rec.startOffset = segmentStart;
+            rec.rawLength = writer.getRawLength();
+            rec.partLength = writer.getCompressedLength();
+            sr.putIndex(rec, i);
+          }
+          sr.writeToFile(finalIndexFile, job);
+        } finally {
+          finalOut.close();
+        }
+        mapTask.sortPhase.complete();
+        return;
+      }
+      {
+        // Divide sort phase into sub-phases
+        mapTask.sortPhase.addPhases(partitions);
+        Merger.considerFinalMergeForProgress();
+        
+        final SpillRecord spillRec = new SpillRecord(partitions);
+        if (sortPool != null) {
+          mergePartsInParallel(filename, finalOut, spillRec);
+        } else {
+          IndexRecord rec = new IndexRecord();
+          for (int parts = 0; parts < partitions; parts++) {
+            //write merged output to disk
+            long segmentStart = finalOut.getPos();
+            Writer<K, V> writer =
+                new Writer<K, V>(job, finalOut, keyClass, valClass, codec,
+                                 mapTask.spilledRecordsCounter);
+            mergePartition(parts, filename, new Path(mapId.toString()),
+                writer, combinerRunner, combineCollector,
+                mapTask.spilledRecordsCounter, mapTask.sortPhase.phase());
+
+            //close
+            writer.close();
+
+            mapTask.sortPhase.startNextPhase();
+
+            // record offsets
+            rec.startOffset = segmentStart;
+            rec.rawLength = writer.getRawLength();
+            rec.partLength = writer.getCompressedLength();
+            spillRec.putIndex(rec, parts);
+          }
+        }
+        spillRec.writeToFile(finalIndexFile, job);
+        finalOut.close();
+        for(int i = 0; i < numSpills; i++) {
+          rfs.delete(filename[i],true);
+        }
+      }
+    }
+
+    /**
+     * Merge a partition of the spills into the given writer.
+     * @param tmpDir where the intermediate merges are written
+     * @param readsCounter counts the records read by the merge
+     */
+    private void mergePartition(int parts, Path[] filename, Path tmpDir,
+        Writer<K, V> writer, CombinerRunner<K,V> combiner,
+        CombineOutputCollector<K,V> collector,
+        Counters.Counter readsCounter, Progress mergePhase)
+        throws IOException, InterruptedException, ClassNotFoundException {
+      //create the segments to be merged
+      List<Segment<K,V>> segmentList =
+        new ArrayList<Segment<K, V>>(numSpills);
+      for(int i = 0; i < numSpills; i++) {
+        IndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+        Segment<K,V> s =
+          new Segment<K,V>(job, rfs, filename[i], indexRecord.startOffset,
+                           indexRecord.partLength, codec, true);
+        segmentList.add(i, s);
+
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("MapId=" + mapTask.getTaskID() + " Reducer=" + parts +
+              "Spill =" + i + "(" + indexRecord.startOffset + "," +
+              indexRecord.rawLength + ", " + indexRecord.partLength + ")");
+        }
+      }
+
+      int mergeFactor = job.getInt(JobContext.IO_SORT_FACTOR, 100);
+      // sort the segments only if there are intermediate merges
+      boolean sortSegments = segmentList.size() > mergeFactor;
+      //merge
+      @SuppressWarnings("unchecked")
+      RawKeyValueIterator kvIter = Merger.merge(job, rfs,
+                     keyClass, valClass, codec,
+                     segmentList, mergeFactor, tmpDir,
+                     job.getOutputKeyComparator(), reporter, sortSegments,
+                     null, readsCounter, mergePhase);
+
+      if (combiner == null || numSpills < minSpillsForCombine) {
+        Merger.writeFile(kvIter, writer, reporter, job);
+      } else {
+        collector.setWriter(writer);
+        combiner.combine(kvIter, collector);
+      }
+    }
+
+    /**
+     * Merge the partitions with the sort threads, each into a file of its
+     * own, and append the files to the map output in partition order.
+     */
+    private void mergePartsInParallel(final Path[] filename,
+        final FSDataOutputStream finalOut, final SpillRecord spillRec)
+        throws IOException, InterruptedException {
+      final IndexRecord rec = new IndexRecord();
+      final byte[] buf = new byte[job.getInt("io.file.buffer.size", 4096)];
+      runPartitionTasks(new PartitionTask<MergedPartition>() {
+        @Override
+        public MergedPartition run(int parts) throws Exception {
+          long size = APPROX_HEADER_LENGTH;
+          for (int i = 0; i < numSpills; i++) {
+            size += indexCacheList.get(i).getIndex(parts).partLength;
+          }
+          // spill numbers past the last spill are free
+          final Path partFile =
+            mapTask.mapOutputFile.getSpillFileForWrite(numSpills + parts, size);
+          final FSDataOutputStream out = rfs.create(partFile);
+          final PartitionCounters counters = new PartitionCounters();
+          Writer<K, V> writer = null;
+          try {
+            writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
+                                      counters.spilledRecords);
+            final CombinerRunner<K,V> combiner = counters.newCombinerRunner();
+            mergePartition(parts, filename,
+                new Path(mapTask.getTaskID() + "_" + parts), writer, combiner,
+                null == combiner ? null : counters.newCombineCollector(),
+                counters.spilledRecords, null);
+            writer.close();
+            final MergedPartition part = new MergedPartition(
+                writer.getRawLength(), writer.getCompressedLength(), counters);
+            writer = null;
+            return part;
+          } finally {
+            if (writer != null) writer.close();
+            out.close();
+          }
+        }
+
+        @Override
+        public void consume(int parts, MergedPartition part)
+            throws IOException {
+          final Path partFile = mapTask.mapOutputFile.getSpillFile(
+              numSpills + parts);
+          rec.startOffset = finalOut.getPos();
+          rec.rawLength = part.rawLength;
+          rec.partLength = part.partLength;
+          final FSDataInputStream in = rfs.open(partFile);
+          try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+              finalOut.write(buf, 0, n);
+            }
+          } finally {
+            in.close();
+          }
+          rfs.delete(partFile, true);
+          spillRec.putIndex(rec, parts);
+          part.counters.addToTask();
+          mapTask.sortPhase.startNextPhase();
+        }
+      });
+    }
+
+    /** A partition of the map output, merged by a sort thread */
+    private class MergedPartition {
+      final long rawLength;
+      final long partLength;
+      final PartitionCounters counters;
+
+      MergedPartition(long rawLength, long partLength,
+          PartitionCounters counters) {
+        this.rawLength = rawLength;
+        this.partLength = partLength;
+        this.counters = counters;
+      }
+    }
+    
+    /**
+     * Rename srcPath to dstPath on the same volume. This is the same
+     * as RawLocalFileSystem's rename method, except that it will not
+     * fall back to a copy, and it will create the target directory
+     * if it doesn't exist.
+     */
+    private void sameVolRename(Path srcPath,
+        Path dstPath) throws IOException {
+      RawLocalFileSystem rfs = (RawLocalFileSystem)this.rfs;
+      File src = rfs.pathToFile(srcPath);
+      File dst = rfs.pathToFile(dstPath);
+      if (!dst.getParentFile().exists()) {
+        if (!dst.getParentFile().mkdirs()) {
+          throw new IOException("Unable to rename " + src + " to "
+              + dst + ": couldn't create parent directory"); 
+        }
+      }
+      
+      if (!src.renameTo(dst)) {
+        throw new IOException("Unable to rename " + src + " to " + dst);
+      }
+    }
+  }
+
+  static class MapOutputBuffer<K extends Object, V extends Object>
+      extends SpillingMapOutputCollector<K, V>
+      implements PrefixIndexedSortable {
+    Serializer<K> keySerializer;
+    Serializer<V> valSerializer;
+
+    // k/v accounting
+    IntBuffer kvmeta;       // metadata overlay on backing store
+    int kvstart;            // marks origin of spill metadata
+    int kvend;              // marks end of spill metadata
+    int kvindex;            // marks end of fully serialized records
+
+    int equator;            // marks origin of meta/serialization
+    int bufstart;           // marks beginning of spill
+    int bufend;             // marks beginning of collectable
+    int bufmark;            // marks end of record
+    int bufindex;           // marks end of collected
+    int bufvoid;            // marks the point where we should stop
+                            // reading at the end of the buffer
+
+    byte[] kvbuffer;        // main output buffer
+    private final byte[] b0 = new byte[0];
+
+    // prefix of the record at each meta position, if the keys have any
+    long[] kvprefix;
+
+    static final int INDEX = 0;            // index offset in acct
+    static final int VALSTART = 1;         // val offset in acct
+    static final int KEYSTART = 2;         // key offset in acct
+    static final int PARTITION = 3;        // partition offset in acct
+    static final int NMETA = 4;            // num meta ints
+    private static final int METASIZE = NMETA * 4; // size in bytes
+
+    // spill accounting
+    int maxRec;
+    int softLimit;
+    boolean spillInProgress;;
+    int bufferRemaining;
+
+    final ReentrantLock spillLock = new ReentrantLock();
+    final Condition spillDone = spillLock.newCondition();
+    final Condition spillReady = spillLock.newCondition();
+    final BlockingBuffer bb = new BlockingBuffer();
+    volatile boolean spillThreadRunning = false;
+    final SpillThread spillThread = new SpillThread();
+
+    @Override
+    public void init(MapOutputCollector.Context context
+                     ) throws IOException, ClassNotFoundException {
+      super.init(context);
+
+      //sanity checks
+      final float spillper =
+        job.getFloat(JobContext.MAP_SORT_SPILL_PERCENT, (float)0.8);
+      final int sortmb = job.getInt(JobContext.IO_SORT_MB, 100);
+      if (spillper > (float)1.0 || spillper <= (float)0.0) {
+        throw new IOException("Invalid \"" + JobContext.MAP_SORT_SPILL_PERCENT +
+            "\": " + spillper);
+      }
+      if ((sortmb & 0x7FF) != sortmb) {
+        throw new IOException(
+            "Invalid \"" + JobContext.IO_SORT_MB + "\": " + sortmb);
+      }
+      // buffers and accounting
+      int maxMemUsage = sortmb << 20;
+      if (keyPrefix != null) {
+        // a prefix takes half the size of the metadata of its record, which
+        // may fill the whole buffer
+        maxMemUsage = maxMemUsage / 3 * 2;
+      }
+      maxMemUsage -= maxMemUsage % METASIZE;
+      kvbuffer = new byte[maxMemUsage];
+      bufvoid = kvbuffer.length;
+      kvmeta = ByteBuffer.wrap(kvbuffer).asIntBuffer();
+      setEquator(0);
+      bufstart = bufend = bufindex = equator;
+      kvstart = kvend = kvindex;
+
+      maxRec = kvmeta.capacity() / NMETA;
+      kvprefix = null == keyPrefix ? null : new long[maxRec];
+      softLimit = (int)(kvbuffer.length * spillper);
+      bufferRemaining = softLimit;
+      if (LOG.isInfoEnabled()) {
+        LOG.info(JobContext.IO_SORT_MB + ": " + sortmb);
+        LOG.info("soft limit at " + softLimit);
+        LOG.info("bufstart = " + bufstart + "; bufvoid = " + bufvoid);
+        LOG.info("kvstart = " + kvstart + "; length = " + maxRec);
+      }
+
+      // k/v serialization
+      keySerializer = serializationFactory.getSerializer(keyClass);
+      keySerializer.open(bb);
+      valSerializer = serializationFactory.getSerializer(valClass);
+      valSerializer.open(bb);
+
+      spillInProgress = false;
+      spillThread.setDaemon(true);
+      spillThread.setName("SpillThread");
+      spillLock.lock();
+      try {
+        spillThread.start();
+        while (!spillThreadRunning) {
+          spillDone.await();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Spill thread failed to initialize", e);
+      } finally {
+        spillLock.unlock();
+      }
+      if (sortSpillException != null) {
+        throw new IOException("Spill thread failed to initialize",
+            sortSpillException);
+      }
+    }
+
+    /**
+     * Serialize the key, value to intermediate storage.
+     * When this method returns, kvindex must refer to sufficient unused
+     * storage to store one METADATA.
+     */
+    public synchronized void collect(K key, V value, final int partition
+                                     ) throws IOException {
+      reporter.progress();
+      if (key.getClass() != keyClass) {
+        throw new IOException("Type mismatch in key from map: expected "
+                              + keyClass.getName() + ", received "
+                              + key.getClass().getName());
+      }
+      if (value.getClass() != valClass) {
+        throw new IOException("Type mismatch in value from map: expected "
+                              + valClass.getName() + ", received "
+                              + value.getClass().getName());
+      }
+      if (partition < 0 || partition >= partitions) {
+        throw new IOException("Illegal partition for " + key + " (" +
+            partition + ")");
+      }
+      checkSpillException();
+      bufferRemaining -= METASIZE;
+      if (bufferRemaining <= 0) {
+        // start spill if the thread is not running and the soft limit has been
+        // reached
+        spillLock.lock();
+        try {
+          do {
+            if (!spillInProgress) {
+              final int kvbidx = 4 * kvindex;
+              final int kvbend = 4 * kvend;
+              // serialized, unspilled bytes always lie between kvindex and
+              // bufindex, crossing the equator. Note that any void space
+              // created by a reset must be included in "used" bytes
+              final int bUsed = distanceTo(kvbidx, bufindex);
+              final boolean bufsoftlimit = bUsed >= softLimit;
+              if ((kvbend + METASIZE) % kvbuffer.length !=
+                  equator - (equator % METASIZE)) {
+                // spill finished, reclaim space
+                resetSpill();
+                bufferRemaining = Math.min(
+                    distanceTo(bufindex, kvbidx) - 2 * METASIZE,
+                    softLimit - bUsed) - METASIZE;
+                continue;
+              } else if (bufsoftlimit && kvindex != kvend) {
+                // spill records, if any collected; check latter, as it may
+                // be possible for metadata alignment to hit spill pcnt
+                startSpill();
+                final int avgRec = (int)
+                  (mapOutputByteCounter.getCounter() /
+                  mapOutputRecordCounter.getCounter());
+                // leave at least half the split buffer for serialization data
+                // ensure that kvindex >= bufindex
+                final int distkvi = distanceTo(bufindex, kvbidx);
+                final int newPos = (bufindex +
+                  Math.max(2 * METASIZE - 1,
+                          Math.min(distkvi / 2,
+                                   distkvi / (METASIZE + avgRec) * METASIZE)))
+                  % kvbuffer.length;
+                setEquator(newPos);
+                bufmark = bufindex = newPos;
+                final int serBound = 4 * kvend;
+                // bytes remaining before the lock must be held and limits
+                // checked is the minimum of three arcs: the metadata space, the
+                // serialization space, and the soft limit
+                bufferRemaining = Math.min(
+                    // metadata max
+                    distanceTo(bufend, newPos),
+                    Math.min(
+                      // serialization max
+                      distanceTo(newPos, serBound),
+                      // soft limit
+                      softLimit)) - 2 * METASIZE;
+              }
+            }
+          } while (false);
+        } finally {
+          spillLock.unlock();
+        }
+      }
+
+      try {
+        // serialize key bytes into buffer
+        int keystart = bufindex;
+        keySerializer.serialize(key);
+        if (bufindex < keystart) {
+          // wrapped the key; must make contiguous
+          bb.shiftBufferedKey();
+          keystart = 0;
+        }
+        // serialize value bytes into buffer
+        final int valstart = bufindex;
+        valSerializer.serialize(value);
+        // It's possible for records to have zero length, i.e. the serializer
+        // will perform no writes. To ensure that the boundary conditions are
+        // checked and that the kvindex invariant is maintained, perform a
+        // zero-length write into the buffer. The logic monitoring this could be
+        // moved into collect, but this is cleaner and inexpensive. For now, it
+        // is acceptable.
+        bb.write(b0, 0, 0);
+
+        // the record must be marked after the preceding write, as the metadata
+        // for this record are not yet written
+        int valend = bb.markRecord();
+
+        mapOutputRecordCounter.increment(1);
+        mapOutputByteCounter.increment(
+            distanceTo(keystart, valend, bufvoid));
+
+        // write accounting info
+        kvmeta.put(kvindex + INDEX, kvindex);
+        kvmeta.put(kvindex + PARTITION, partition);
+        kvmeta.put(kvindex + KEYSTART, keystart);
+        kvmeta.put(kvindex + VALSTART, valstart);
+        if (kvprefix != null) {
+          kvprefix[kvindex / NMETA] =
+            prefixFor(partition, kvbuffer, keystart, valstart - keystart);
+        }
+        // advance kvindex
+        kvindex = (kvindex - NMETA + kvmeta.capacity()) % kvmeta.capacity();
+      } catch (MapBufferTooSmallException e) {
+        LOG.info("Record too large for in-memory buffer: " + e.getMessage());
+        spillSingleRecord(key, value, partition,
+            kvbuffer.length + partitions * APPROX_HEADER_LENGTH);
+        mapOutputRecordCounter.increment(1);
+        return;
+      }
+    }
+
+    /**
+     * Set the point from which meta and serialization data expand. The meta
+     * indices are aligned with the buffer, so metadata never spans the ends of
+     * the circular buffer.
+     */
+    private void setEquator(int pos) {
+      equator = pos;
+      // set index prior to first entry, aligned at meta boundary
+      final int aligned = pos - (pos % METASIZE);
+      kvindex =
+        ((aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
+      if (LOG.isInfoEnabled()) {
+        LOG.info("(EQUATOR) " + pos + " kvi " + kvindex +
             "(" + (kvindex * 4) + ")");
       }
     }
 
     /**
-     * The spill is complete, so set the buffer and meta indices to be equal to
-     * the new equator to free space for continuing collection. Note that when
-     * kvindex == kvend == kvstart, the buffer is empty.
+     * The spill is complete, so set the buffer and meta indices to be equal to
+     * the new equator to free space for continuing collection. Note that when
+     * kvindex == kvend == kvstart, the buffer is empty.
+     */
+    private void resetSpill() {
+      final int e = equator;
+      bufstart = bufend = e;
+      final int aligned = e - (e % METASIZE);
+      // set start/end to point to first meta record
+      kvstart = kvend =
+        ((aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
+      if (LOG.isInfoEnabled()) {
+        LOG.info("(RESET) equator " + e + " kv " + kvstart + "(" +
+          (kvstart * 4) + ")" + " kvi " + kvindex + "(" + (kvindex * 4) + ")");
+      }
+    }
+
+    /**
+     * Compute the distance in bytes between two indices in the serialization
+     * buffer.
+     * @see #distanceTo(int,int,int)
+     */
+    final int distanceTo(final int i, final int j) {
+      return distanceTo(i, j, kvbuffer.length);
+    }
+
+    /**
+     * Compute the distance between two indices in the circular buffer given the
+     * max distance.
+     */
+    int distanceTo(final int i, final int j, final int mod) {
+      return i <= j
+        ? j - i
+        : mod - i + j;
+    }
+
+    /**
+     * For the given meta position, return the dereferenced position in the
+     * integer array. Each meta block contains several integers describing
+     * record data in its serialized form, but the INDEX is not necessarily
+     * related to the proximate metadata. The index value at the referenced int
+     * position is the start offset of the associated metadata block. So the
+     * metadata INDEX at metapos may point to the metadata described by the
+     * metadata block at metapos + k, which contains information about that
+     * serialized record.
+     */
+    int offsetFor(int metapos) {
+      return kvmeta.get(metapos * NMETA + INDEX);
+    }
+
+    /**
+     * Get the key prefix at logical index i MOD offset capacity.
+     * @see PrefixIndexedSortable#getPrefix
+     */
+    public long getPrefix(final int mi) {
+      return null == kvprefix ? 0L : kvprefix[mi % maxRec];
+    }
+
+    /**
+     * Compare logical range, st i, j MOD offset capacity.
+     * Compare by key prefix if any, then by partition, then by key.
+     * @see IndexedSortable#compare
+     */
+    public int compare(final int mi, final int mj) {
+      return compare(comparator, mi, mj);
+    }
+
+    private int compare(RawComparator<K> keyComparator, int mi, int mj) {
+      if (kvprefix != null) {
+        final long pi = kvprefix[mi % maxRec];
+        final long pj = kvprefix[mj % maxRec];
+        if (pi != pj) {
+          return pi < pj ? -1 : 1;
+        }
+      }
+      final int kvi = offsetFor(mi % maxRec);
+      final int kvj = offsetFor(mj % maxRec);
+      final int kvip = kvmeta.get(kvi + PARTITION);
+      final int kvjp = kvmeta.get(kvj + PARTITION);
+      // sort by partition
+      if (kvip != kvjp) {
+        return kvip - kvjp;
+      }
+      // sort by key
+      return keyComparator.compare(kvbuffer,
+          kvmeta.get(kvi + KEYSTART),
+          kvmeta.get(kvi + VALSTART) - kvmeta.get(kvi + KEYSTART),
+          kvbuffer,
+          kvmeta.get(kvj + KEYSTART),
+          kvmeta.get(kvj + VALSTART) - kvmeta.get(kvj + KEYSTART));
+    }
+
+    /**
+     * Swap logical indices st i, j MOD offset capacity.
+     * @see IndexedSortable#swap
+     */
+    public void swap(final int mi, final int mj) {
+      final int kvi = (mi % maxRec) * NMETA + INDEX;
+      final int kvj = (mj % maxRec) * NMETA + INDEX;
+      int tmp = kvmeta.get(kvi);
+      kvmeta.put(kvi, kvmeta.get(kvj));
+      kvmeta.put(kvj, tmp);
+      if (kvprefix != null) {
+        final int pi = mi % maxRec;
+        final int pj = mj % maxRec;
+        final long ptmp = kvprefix[pi];
+        kvprefix[pi] = kvprefix[pj];
+        kvprefix[pj] = ptmp;
+      }
+    }
+
+    /**
+     * Inner class managing the spill of serialized records to disk.
+     */
+    protected class BlockingBuffer extends DataOutputStream {
+
+      public BlockingBuffer() {
+        super(new Buffer());
+      }
+
+      /**
+       * Mark end of record. Note that this is required if the buffer is to
+       * cut the spill in the proper place.
+       */
+      public int markRecord() {
+        bufmark = bufindex;
+        return bufindex;
+      }
+
+      /**
+       * Set position from last mark to end of writable buffer, then rewrite
+       * the data between last mark and kvindex.
+       * This handles a special case where the key wraps around the buffer.
+       * If the key is to be passed to a RawComparator, then it must be
+       * contiguous in the buffer. This recopies the data in the buffer back
+       * into itself, but starting at the beginning of the buffer. Note that
+       * this method should <b>only</b> be called immediately after detecting
+       * this condition. To call it at any other time is undefined and would
+       * likely result in data loss or corruption.
+       * @see #markRecord()
+       */
+      protected void shiftBufferedKey() throws IOException {
+        // spillLock unnecessary; both kvend and kvindex are current
+        int headbytelen = bufvoid - bufmark;
+        bufvoid = bufmark;
+        final int kvbidx = 4 * kvindex;
+        final int kvbend = 4 * kvend;
+        final int avail =
+          Math.min(distanceTo(0, kvbidx), distanceTo(0, kvbend));
+        if (bufindex + headbytelen < avail) {
+          System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, bufindex);
+          System.arraycopy(kvbuffer, bufvoid, kvbuffer, 0, headbytelen);
+          bufindex += headbytelen;
+          bufferRemaining -= kvbuffer.length - bufvoid;
+        } else {
+          byte[] keytmp = new byte[bufindex];
+          System.arraycopy(kvbuffer, 0, keytmp, 0, bufindex);
+          bufindex = 0;
+          out.write(kvbuffer, bufmark, headbytelen);
+          out.write(keytmp);
+        }
+      }
+    }
+
+    public class Buffer extends OutputStream {
+      private final byte[] scratch = new byte[1];
+
+      @Override
+      public void write(int v)
+          throws IOException {
+        scratch[0] = (byte)v;
+        write(scratch, 0, 1);
+      }
+
+      /**
+       * Attempt to write a sequence of bytes to the collection buffer.
+       * This method will block if the spill thread is running and it
+       * cannot write.
+       * @throws MapBufferTooSmallException if record is too large to
+       *    deserialize into the collection buffer.
+       */
+      @Override
+      public void write(byte b[], int off, int len)
+          throws IOException {
+        // must always verify the invariant that at least METASIZE bytes are
+        // available beyond kvindex, even when len == 0
+        bufferRemaining -= len;
+        if (bufferRemaining <= 0) {
+          // writing these bytes could exhaust available buffer space or fill
+          // the buffer to soft limit. check if spill or blocking are necessary
+          boolean blockwrite = false;
+          spillLock.lock();
+          try {
+            do {
+              checkSpillException();
+
+              final int kvbidx = 4 * kvindex;
+              final int kvbend = 4 * kvend;
+              // ser distance to key index
+              final int distkvi = distanceTo(bufindex, kvbidx);
+              // ser distance to spill end index
+              final int distkve = distanceTo(bufindex, kvbend);
+
+              // if kvindex is closer than kvend, then a spill is neither in
+              // progress nor complete and reset since the lock was held. The
+              // write should block only if there is insufficient space to
+              // complete the current write, write the metadata for this record,
+              // and write the metadata for the next record. If kvend is closer,
+              // then the write should block if there is too little space for
+              // either the metadata or the current write. Note that collect
+              // ensures its metadata requirement with a zero-length write
+              blockwrite = distkvi <= distkve
+                ? distkvi <= len + 2 * METASIZE
+                : distkve <= len || distanceTo(bufend, kvbidx) < 2 * METASIZE;
+
+              if (!spillInProgress) {
+                if (blockwrite) {
+                  if ((kvbend + METASIZE) % kvbuffer.length !=
+                      equator - (equator % METASIZE)) {
+                    // spill finished, reclaim space
+                    // need to use meta exclusively; zero-len rec & 100% spill
+                    // pcnt would fail
+                    resetSpill(); // resetSpill doesn't move bufindex, kvindex
+                    bufferRemaining = Math.min(
+                        distkvi - 2 * METASIZE,
+                        softLimit - distanceTo(kvbidx, bufindex)) - len;
+                    continue;
+                  }
+                  // we have records we can spill; only spill if blocked
+                  if (kvindex != kvend) {
+                    startSpill();
+                    // Blocked on this write, waiting for the spill just
+                    // initiated to finish. Instead of repositioning the marker
+                    // and copying the partial record, we set the record start
+                    // to be the new equator
+                    setEquator(bufmark);
+                  } else {
+                    // We have no buffered records, and this record is too large
+                    // to write into kvbuffer. We must spill it directly from
+                    // collect
+                    final int size = distanceTo(bufstart, bufindex) + len;
+                    setEquator(0);
+                    bufstart = bufend = bufindex = equator;
+                    kvstart = kvend = kvindex;
+                    bufvoid = kvbuffer.length;
+                    throw new MapBufferTooSmallException(size + " bytes");
+                  }
+                }
+              }
+
+              if (blockwrite) {
+                // wait for spill
+                try {
+                  while (spillInProgress) {
+                    reporter.progress();
+                    spillDone.await();
+                  }
+                } catch (InterruptedException e) {
+                    throw new IOException(
+                        "Buffer interrupted while waiting for the writer", e);
+                }
+              }
+            } while (blockwrite);
+          } finally {
+            spillLock.unlock();
+          }
+        }
+        // here, we know that we have sufficient space to write
+        if (bufindex + len > bufvoid) {
+          final int gaplen = bufvoid - bufindex;
+          System.arraycopy(b, off, kvbuffer, bufindex, gaplen);
+          len -= gaplen;
+          off += gaplen;
+          bufindex = 0;
+        }
+        System.arraycopy(b, off, kvbuffer, bufindex, len);
+        bufindex += len;
+      }
+    }
+
+    public void flush() throws IOException, ClassNotFoundException,
+           InterruptedException {
+      LOG.info("Starting flush of map output");
+      spillLock.lock();
+      try {
+        while (spillInProgress) {
+          reporter.progress();
+          spillDone.await();
+        }
+        checkSpillException();
+
+        final int kvbend = 4 * kvend;
+        if ((kvbend + METASIZE) % kvbuffer.length !=
+            equator - (equator % METASIZE)) {
+          // spill finished
+          resetSpill();
+        }
+        if (kvindex != kvend) {
+          kvend = (kvindex + NMETA) % kvmeta.capacity();
+          bufend = bufmark;
+          if (LOG.isInfoEnabled()) {
+            LOG.info("Spilling map output");
+            LOG.info("bufstart = " + bufstart + "; bufend = " + bufmark +
+                     "; bufvoid = " + bufvoid);
+            LOG.info("kvstart = " + kvstart + "(" + (kvstart * 4) +
+                     "); kvend = " + kvend + "(" + (kvend * 4) +
+                     "); length = " + (distanceTo(kvend, kvstart,
+                           kvmeta.capacity()) + 1) + "/" + maxRec);
+          }
+          sortAndSpill();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for the writer", e);
+      } finally {
+        spillLock.unlock();
+      }
+      assert !spillLock.isHeldByCurrentThread();
+      // shut down spill thread and wait for it to exit. Since the preceding
+      // ensures that it is finished with its work (and sortAndSpill did not
+      // throw), we elect to use an interrupt instead of setting a flag.
+      // Spilling simultaneously from this thread while the spill thread
+      // finishes its work might be both a useful way to extend this and also
+      // sufficient motivation for the latter approach.
+      try {
+        spillThread.interrupt();
+        spillThread.join();
+      } catch (InterruptedException e) {
+        throw new IOException("Spill failed", e);
+      }
+      // release sort buffer before the merge
+      kvbuffer = null;
+      final long mergeStart = System.currentTimeMillis();
+      mergeParts();
+      mergeMillisCounter.increment(System.currentTimeMillis() - mergeStart);
+      Path outputPath = mapTask.mapOutputFile.getOutputFile();
+      fileOutputByteCounter.increment(rfs.getFileStatus(outputPath).getLen());
+    }
+
+    protected class SpillThread extends Thread {
+
+      @Override
+      public void run() {
+        spillLock.lock();
+        spillThreadRunning = true;
+        try {
+          while (true) {
+            spillDone.signal();
+            while (!spillInProgress) {
+              spillReady.await();
+            }
+            try {
+              spillLock.unlock();
+              sortAndSpill();
+            } catch (Throwable t) {
+              sortSpillException = t;
+            } finally {
+              spillLock.lock();
+              if (bufend < bufstart) {
+                bufvoid = kvbuffer.length;
+              }
+              kvstart = kvend;
+              bufstart = bufend;
+              spillInProgress = false;
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          spillLock.unlock();
+          spillThreadRunning = false;
+        }
+      }
+    }
+
+    private void startSpill() {
+      assert !spillInProgress;
+      kvend = (kvindex + NMETA) % kvmeta.capacity();
+      bufend = bufmark;
+      spillInProgress = true;
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Spilling map output");
+        LOG.info("bufstart = " + bufstart + "; bufend = " + bufmark +
+                 "; bufvoid = " + bufvoid);
+        LOG.info("kvstart = " + kvstart + "(" + (kvstart * 4) +
+                 "); kvend = " + kvend + "(" + (kvend * 4) +
+                 "); length = " + (distanceTo(kvend, kvstart,
+                       kvmeta.capacity()) + 1) + "/" + maxRec);
+      }
+      spillReady.signal();
+    }
+
+    private void sortAndSpill() throws IOException, ClassNotFoundException,
+                                       InterruptedException {
+      final long spillStart = System.currentTimeMillis();
+      //approximate the length of the output file to be the length of the
+      //buffer + header lengths for the partitions
+      final long size = (bufend >= bufstart
+          ? bufend - bufstart
+          : (bufvoid - bufend) + bufstart) +
+                  partitions * APPROX_HEADER_LENGTH;
+      FSDataOutputStream out = null;
+      try {
+        // create spill file
+        final SpillRecord spillRec = new SpillRecord(partitions);
+        final Path filename =
+            mapTask.mapOutputFile.getSpillFileForWrite(numSpills, size);
+        out = rfs.create(filename);
+
+        final int mstart = kvend / NMETA;
+        final int mend = 1 + // kvend is a valid record
+          (kvstart >= kvend
+          ? kvstart
+          : kvmeta.capacity() + kvstart) / NMETA;
+        spillRecords(out, spillRec, mstart, mend);
+
+        LOG.info("Finished spill " + numSpills);
+        finishSpill(spillRec, spillStart);
+      } finally {
+        if (out != null) out.close();
+      }
+    }
+
+    /**
+     * Sort the records of a range of meta positions, and write them to the
+     * spill file partition by partition.
      */
-    private void resetSpill() {
-      final int e = equator;
-      bufstart = bufend = e;
-      final int aligned = e - (e % METASIZE);
-      // set start/end to point to first meta record
-      kvstart = kvend =
-        ((aligned - METASIZE + kvbuffer.length) % kvbuffer.length) / 4;
-      if (LOG.isInfoEnabled()) {
-        LOG.info("(RESET) equator " + e + " kv " + kvstart + "(" +
-          (kvstart * 4) + ")" + " kvi " + kvindex + "(" + (kvindex * 4) + ")");
+    void spillRecords(FSDataOutputStream out, SpillRecord spillRec,
+        int mstart, int mend) throws IOException, ClassNotFoundException,
+                                     InterruptedException {
+      if (sortPool != null) {
+        sortAndSpillInParallel(out, spillRec, mstart, mend);
+        return;
+      }
+      sorter.sort(MapOutputBuffer.this, mstart, mend, reporter);
+      int spindex = mstart;
+      final IndexRecord rec = new IndexRecord();
+      for (int i = 0; i < partitions; ++i) {
+        IFile.Writer<K, V> writer = null;
+        try {
+          long segmentStart = out.getPos();
+          writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
+                                    mapTask.spilledRecordsCounter);
+          final int spstart = spindex;
+          while (spindex < mend &&
+              kvmeta.get(offsetFor(spindex % maxRec)
+                        + PARTITION) == i) {
+            ++spindex;
+          }
+          spillRange(writer, spstart, spindex, combinerRunner,
+                     combineCollector);
+
+          // close the writer
+          writer.close();
+
+          // record offsets
+          rec.startOffset = segmentStart;
+          rec.rawLength = writer.getRawLength();
+          rec.partLength = writer.getCompressedLength();
+          spillRec.putIndex(rec, i);
+
+          writer = null;
+        } finally {
+          if (null != writer) writer.close();
+        }
       }
     }
 
     /**
-     * Compute the distance in bytes between two indices in the serialization
-     * buffer.
-     * @see #distanceTo(int,int,int)
+     * Write the records of a range of sorted meta positions, all of the same
+     * partition.
      */
-    final int distanceTo(final int i, final int j) {
-      return distanceTo(i, j, kvbuffer.length);
+    void spillRange(IFile.Writer<K, V> writer, int start, int end,
+        CombinerRunner<K,V> combiner, CombineOutputCollector<K,V> collector)
+        throws IOException, InterruptedException, ClassNotFoundException {
+      if (combiner == null) {
+        // spill directly
+        final DataInputBuffer key = new DataInputBuffer();
+        final InMemValBytes value = new InMemValBytes();
+        for (int i = start; i < end; ++i) {
+          final int kvoff = offsetFor(i % maxRec);
+          key.reset(kvbuffer, kvmeta.get(kvoff + KEYSTART),
+                    (kvmeta.get(kvoff + VALSTART) -
+                     kvmeta.get(kvoff + KEYSTART)));
+          getVBytesForOffset(kvoff, value);
+          writer.append(key, value);
+        }
+      } else if (start != end) {
+        // Note: we would like to avoid the combiner if we've fewer
+        // than some threshold of records for a partition
+        collector.setWriter(writer);
+        combiner.combine(new MRResultIterator(start, end), collector);
+      }
     }
 
     /**
-     * Compute the distance between two indices in the circular buffer given the
-     * max distance.
+     * Group the records of a spill by partition, then sort and serialize the
+     * partitions with the sort threads, each into a buffer of its own, and
+     * write the buffers to the spill file in partition order.
      */
-    int distanceTo(final int i, final int j, final int mod) {
-      return i <= j
-        ? j - i
-        : mod - i + j;
+    private void sortAndSpillInParallel(final FSDataOutputStream out,
+        final SpillRecord spillRec, int mstart, int mend)
+        throws IOException, InterruptedException {
+      final int[] bounds = groupByPartition(mstart, mend);
+      final IndexRecord rec = new IndexRecord();
+      runPartitionTasks(new PartitionTask<SpilledPartition>() {
+        @Override
+        public SpilledPartition run(int i) throws Exception {
+          final int start = bounds[i];
+          final int end = bounds[i + 1];
+          sorter.sort(new PartitionSortable(), start, end, reporter);
+          final DataOutputBuffer buf = new DataOutputBuffer();
+          final PartitionCounters counters = new PartitionCounters();
+          IFile.Writer<K, V> writer = new Writer<K, V>(job,
+              new FSDataOutputStream(buf, null), keyClass, valClass, codec,
+              counters.spilledRecords);
+          try {
+            final CombinerRunner<K,V> combiner = counters.newCombinerRunner();
+            spillRange(writer, start, end, combiner,
+                null == combiner ? null : counters.newCombineCollector());
+            writer.close();
+            final SpilledPartition part =
+              new SpilledPartition(buf, writer.getRawLength(), counters);
+            writer = null;
+            return part;
+          } finally {
+            if (null != writer) writer.close();
+          }
+        }
+
+        @Override
+        public void consume(int i, SpilledPartition part) throws IOException {
+          rec.startOffset = out.getPos();
+          rec.rawLength = part.rawLength;
+          rec.partLength = part.data.getLength();
+          out.write(part.data.getData(), 0, part.data.getLength());
+          spillRec.putIndex(rec, i);
+          part.counters.addToTask();
+        }
+      });
+    }
+
+    /** A partition of a spill, serialized by a sort thread */
+    private class SpilledPartition {
+      final DataOutputBuffer data;
+      final long rawLength;
+      final PartitionCounters counters;
+
+      SpilledPartition(DataOutputBuffer data, long rawLength,
+          PartitionCounters counters) {
+        this.data = data;
+        this.rawLength = rawLength;
+        this.counters = counters;
+      }
     }
 
     /**
-     * For the given meta position, return the dereferenced position in the
-     * integer array. Each meta block contains several integers describing
-     * record data in its serialized form, but the INDEX is not necessarily
-     * related to the proximate metadata. The index value at the referenced int
-     * position is the start offset of the associated metadata block. So the
-     * metadata INDEX at metapos may point to the metadata described by the
-     * metadata block at metapos + k, which contains information about that
-     * serialized record.
+     * Reorder the meta positions of a spill so that the records of each
+     * partition are contiguous, in partition order.
+     * @return the first meta position of each partition, followed by the
+     *         end of the last one
      */
-    int offsetFor(int metapos) {
-      return kvmeta.get(metapos * NMETA + INDEX);
+    private int[] groupByPartition(int mstart, int mend) {
+      final int[] bounds = new int[partitions + 1];
+      for (int i = mstart; i < mend; ++i) {
+        ++bounds[partitionOf(i) + 1];
+      }
+      bounds[0] = mstart;
+      for (int p = 0; p < partitions; ++p) {
+        bounds[p + 1] += bounds[p];
+      }
+      // move each record to the next free position of its partition
+      final int[] next = new int[partitions];
+      System.arraycopy(bounds, 0, next, 0, partitions);
+      for (int p = 0; p < partitions; ++p) {
+        while (next[p] < bounds[p + 1]) {
+          final int q = partitionOf(next[p]);
+          if (q != p) {
+            swap(next[p], next[q]);
+          }
+          ++next[q];
+        }
+      }
+      return bounds;
+    }
+
+    private int partitionOf(int mi) {
+      return kvmeta.get(offsetFor(mi % maxRec) + PARTITION);
     }
 
     /**
-     * Compare logical range, st i, j MOD offset capacity.
-     * Compare by partition, then by key.
-     * @see IndexedSortable#compare
+     * Sorts the records of a partition with a comparator of its own, so that
+     * the partitions can be sorted at the same time.
      */
-    public int compare(final int mi, final int mj) {
-      final int kvi = offsetFor(mi % maxRec);
-      final int kvj = offsetFor(mj % maxRec);
-      final int kvip = kvmeta.get(kvi + PARTITION);
-      final int kvjp = kvmeta.get(kvj + PARTITION);
-      // sort by partition
-      if (kvip != kvjp) {
-        return kvip - kvjp;
+    private class PartitionSortable implements PrefixIndexedSortable {
+      private final RawComparator<K> partComparator =
+        job.getOutputKeyComparator();
+
+      public long getPrefix(int i) {
+        return MapOutputBuffer.this.getPrefix(i);
+      }
+
+      public int compare(int i, int j) {
+        return MapOutputBuffer.this.compare(partComparator, i, j);
+      }
+
+      public void swap(int i, int j) {
+        MapOutputBuffer.this.swap(i, j);
+      }
+    }
+
+    /**
+     * Given an offset, populate vbytes with the associated set of
+     * deserialized value bytes. Should only be called during a spill.
+     */
+    private void getVBytesForOffset(int kvoff, InMemValBytes vbytes) {
+      vbytes.reset(kvbuffer, kvmeta.get(kvoff + VALSTART), valLength(kvoff));
+    }
+
+    /**
+     * The length of the value at the given offset. Should only be called
+     * during a spill.
+     */
+    int valLength(int kvoff) {
+      // get the keystart for the next serialized value to be the end
+      // of this value. If this is the last value in the buffer, use bufend
+      final int nextindex = kvoff == kvend
+        ? bufend
+        : kvmeta.get(
+            (kvoff - NMETA + kvmeta.capacity() + KEYSTART) % kvmeta.capacity());
+      // calculate the length of the value
+      return (nextindex >= kvmeta.get(kvoff + VALSTART))
+        ? nextindex - kvmeta.get(kvoff + VALSTART)
+        : (bufvoid - kvmeta.get(kvoff + VALSTART)) + nextindex;
+    }
+
+    /**
+     * Inner class wrapping valuebytes, used for appendRaw.
+     */
+    protected class InMemValBytes extends DataInputBuffer {
+      private byte[] buffer;
+      private int start;
+      private int length;
+
+      public void reset(byte[] buffer, int start, int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
+
+        if (start + length > bufvoid) {
+          this.buffer = new byte[this.length];
+          final int taillen = bufvoid - start;
+          System.arraycopy(buffer, start, this.buffer, 0, taillen);
+          System.arraycopy(buffer, 0, this.buffer, taillen, length-taillen);
+          this.start = 0;
+        }
+
+        super.reset(this.buffer, this.start, this.length);
+      }
+    }
+
+    protected class MRResultIterator implements RawKeyValueIterator {
+      private final DataInputBuffer keybuf = new DataInputBuffer();
+      private final InMemValBytes vbytes = new InMemValBytes();
+      private final int end;
+      private int current;
+      public MRResultIterator(int start, int end) {
+        this.end = end;
+        current = start - 1;
+      }
+      public boolean next() throws IOException {
+        return ++current < end;
+      }
+      public DataInputBuffer getKey() throws IOException {
+        final int kvoff = offsetFor(current % maxRec);
+        keybuf.reset(kvbuffer, kvmeta.get(kvoff + KEYSTART),
+            kvmeta.get(kvoff + VALSTART) - kvmeta.get(kvoff + KEYSTART));
+        return keybuf;
+      }
+      public DataInputBuffer getValue() throws IOException {
+        getVBytesForOffset(offsetFor(current % maxRec), vbytes);
+        return vbytes;
+      }
+      public Progress getProgress() {
+        return null;
+      }
+      public void close() { }
+    }
+  } // MapOutputBuffer
+
+  /**
+   * A collector sorting and spilling the map outputs with the native-hadoop
+   * library. It collects the records as {@link MapOutputBuffer} does, then
+   * sorts the records of a spill by partition and key, and serializes the
+   * records of each partition for the spill file, in native code.
+   * <p>
+   * Only the keys {@link NativeRecordSort} supports, sorted by their default
+   * comparators, are sorted natively: for other jobs, or when the library is
+   * not loaded, init fails so that the next configured collector is used.
+   * <p>
+   * The sort reorders the metadata of the records in place, in the buffer of
+   * io.sort.mb. Beyond it, the collector keeps the descriptions of
+   * {@link #SPILL_CHUNK_RECORDS} records and a buffer of serialized records
+   * on the heap, and the native sort holds the metadata and keys of the
+   * records of a spill in native memory while they sort.
+   */
+  static class NativeMapOutputBuffer<K extends Object, V extends Object>
+      extends MapOutputBuffer<K, V> {
+    // size of the buffer the records are serialized into for the spill file
+    private static final int SPILL_BUFFER_SIZE = 128 * 1024;
+    // number of records described to NativeRecordSort at a time
+    private static final int SPILL_CHUNK_RECORDS = 1024;
+
+    private int keyType;
+    // the records being serialized, as described to NativeRecordSort
+    private final int[] spillMeta =
+      new int[SPILL_CHUNK_RECORDS * NativeRecordSort.RECORD_INTS];
+    private byte[] spillBuffer;
+
+    @Override
+    public void init(MapOutputCollector.Context context
+                     ) throws IOException, ClassNotFoundException {
+      if (!NativeRecordSort.isAvailable()) {
+        throw new IOException("The native record sort is not loaded");
+      }
+      final JobConf conf = context.getJobConf();
+      final Class<?> mapKeyClass = conf.getMapOutputKeyClass();
+      keyType = NativeRecordSort.getKeyType(mapKeyClass);
+      if (keyType < 0) {
+        throw new IOException("Keys of " + mapKeyClass.getName() +
+            " are not sorted natively");
+      }
+      final Class<?> comparatorClass =
+        conf.getOutputKeyComparator().getClass();
+      if (comparatorClass != WritableComparator.get(
+            mapKeyClass.asSubclass(WritableComparable.class)).getClass()) {
+        throw new IOException("Keys sorted by " + comparatorClass.getName() +
+            " are not sorted natively");
+      }
+      super.init(context);
+      spillBuffer = new byte[SPILL_BUFFER_SIZE];
+    }
+
+    @Override
+    boolean sortsByKeyPrefix() {
+      return false;
+    }
+
+    @Override
+    void spillRecords(FSDataOutputStream out, SpillRecord spillRec,
+        int mstart, int mend) throws IOException, ClassNotFoundException,
+                                     InterruptedException {
+      NativeRecordSort.sort(kvbuffer, mstart, mend, maxRec, keyType);
+
+      int spindex = mstart;
+      final IndexRecord rec = new IndexRecord();
+      for (int i = 0; i < partitions; ++i) {
+        IFile.Writer<K, V> writer = null;
+        try {
+          long segmentStart = out.getPos();
+          writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
+                                    mapTask.spilledRecordsCounter);
+          final int spstart = spindex;
+          while (spindex < mend &&
+              kvmeta.get(offsetFor(spindex % maxRec) + PARTITION) == i) {
+            ++spindex;
+          }
+          if (combinerRunner == null) {
+            writeRecords(writer, spstart, spindex);
+          } else {
+            spillRange(writer, spstart, spindex,
+                       combinerRunner, combineCollector);
+          }
+
+          // close the writer
+          writer.close();
+
+          // record offsets
+          rec.startOffset = segmentStart;
+          rec.rawLength = writer.getRawLength();
+          rec.partLength = writer.getCompressedLength();
+          spillRec.putIndex(rec, i);
+
+          writer = null;
+        } finally {
+          if (null != writer) writer.close();
+        }
       }
-      // sort by key
-      return comparator.compare(kvbuffer,
-          kvmeta.get(kvi + KEYSTART),
-          kvmeta.get(kvi + VALSTART) - kvmeta.get(kvi + KEYSTART),
-          kvbuffer,
-          kvmeta.get(kvj + KEYSTART),
-          kvmeta.get(kvj + VALSTART) - kvmeta.get(kvj + KEYSTART));
     }
 
-    /**
-     * Swap logical indices st i, j MOD offset capacity.
-     * @see IndexedSortable#swap
-     */
-    public void swap(final int mi, final int mj) {
-      final int kvi = (mi % maxRec) * NMETA + INDEX;
-      final int kvj = (mj % maxRec) * NMETA + INDEX;
-      int tmp = kvmeta.get(kvi);
-      kvmeta.put(kvi, kvmeta.get(kvj));
-      kvmeta.put(kvj, tmp);
+    /**
+     * Write the records of the sort positions from start to end, serialized
+     * natively, describing them {@link #SPILL_CHUNK_RECORDS} at a time.
+     */
+    private void writeRecords(IFile.Writer<K, V> writer, int start, int end)
+        throws IOException {
+      final int n = NativeRecordSort.RECORD_INTS;
+      for (int chunk = start; chunk < end; chunk += SPILL_CHUNK_RECORDS) {
+        final int count = Math.min(end - chunk, SPILL_CHUNK_RECORDS);
+        for (int i = 0; i < count; ++i) {
+          final int kvoff = offsetFor((chunk + i) % maxRec);
+          final int keystart = kvmeta.get(kvoff + KEYSTART);
+          final int valstart = kvmeta.get(kvoff + VALSTART);
+          final int rec = i * n;
+          spillMeta[rec + NativeRecordSort.PARTITION] =
+            kvmeta.get(kvoff + PARTITION);
+          spillMeta[rec + NativeRecordSort.KEYSTART] = keystart;
+          spillMeta[rec + NativeRecordSort.KEYLEN] = valstart - keystart;
+          spillMeta[rec + NativeRecordSort.VALSTART] = valstart;
+          spillMeta[rec + NativeRecordSort.VALLEN] = valLength(kvoff);
+          spillMeta[rec + NativeRecordSort.INDEX] = kvoff;
+        }
+        int next = 0;
+        while (next < count) {
+          final long written = NativeRecordSort.serialize(kvbuffer, bufvoid,
+              spillMeta, next, count, spillBuffer);
+          final int records = (int) (written >>> 32);
+          if (records == 0) {
+            // the next record is larger than the buffer
+            final int rec = next * n;
+            spillBuffer = new byte[Math.max(2 * spillBuffer.length,
+                spillMeta[rec + NativeRecordSort.KEYLEN] +
+                spillMeta[rec + NativeRecordSort.VALLEN] + 10)];
+            continue;
+          }
+          writer.appendRecords(spillBuffer, 0, (int) written, records);
+          next += records;
+          reporter.progress();
+        }
+      }
+    }
+  } // NativeMapOutputBuffer
+
+  /**
+   * A collector keeping the serialized map outputs and their metadata in
+   * direct buffers, outside of the Java heap, so that a large sort buffer
+   * neither grows the heap of the task nor its garbage collections.
+   * <p>
+   * The memory of the sort buffer is split into two banks: the records are
+   * collected into one while the other is sorted and spilled. A bank is
+   * allocated on demand, in segments holding either records or metadata, and
+   * is spilled when it is full. Records larger than a segment are spilled on
+   * their own.
+   */
+  static class OffHeapMapOutputBuffer<K extends Object,
+      V extends Object>
+      extends SpillingMapOutputCollector<K, V> {
+    private static final int INDEX = 0;     // record at this sort position
+    private static final int PARTITION = 1; // partition of the record
+    private static final int SEGMENT = 2;   // segment holding the record
+    private static final int KEYSTART = 3;  // key offset in the segment
+    private static final int KEYLEN = 4;    // key length
+    private static final int VALLEN = 5;    // value length, after the key
+    private static final int PREFIX = 6;    // key prefix, moves with INDEX
+    private static final int NMETA = 8;     // num meta ints
+    private static final int METASIZE = NMETA * 4; // size in bytes
+
+    Serializer<K> keySerializer;
+    Serializer<V> valSerializer;
+    // a record is serialized on the heap, then copied into the active bank
+    private final DataOutputBuffer record = new DataOutputBuffer();
+
+    int segmentSize;
+    int maxSegments;           // per bank
+    int metaPerSegment;
+    private Bank active;       // bank collecting the records
+    private Bank standby;      // the other bank
+    private Bank spilling;     // bank being spilled, if any
+
+    final ReentrantLock spillLock = new ReentrantLock();
+    final Condition spillDone = spillLock.newCondition();
+    final Condition spillReady = spillLock.newCondition();
+    final SpillThread spillThread = new SpillThread();
+
+    @Override
+    public void init(MapOutputCollector.Context context
+                     ) throws IOException, ClassNotFoundException {
+      super.init(context);
+
+      //sanity checks
+      final int sortmb = job.getInt(JobContext.IO_SORT_MB, 100);
+      final int segmentkb =
+        job.getInt(JobContext.IO_SORT_OFFHEAP_SEGMENT_KB, 4096);
+      if (sortmb <= 0) {
+        throw new IOException(
+            "Invalid \"" + JobContext.IO_SORT_MB + "\": " + sortmb);
+      }
+      if (segmentkb <= 0 || segmentkb > (Integer.MAX_VALUE >> 10)) {
+        throw new IOException("Invalid \"" +
+            JobContext.IO_SORT_OFFHEAP_SEGMENT_KB + "\": " + segmentkb);
+      }
+      segmentSize = segmentkb << 10;
+      // each bank holds at least a segment of records and one of metadata
+      maxSegments = (int)Math.max(2, ((long)sortmb << 19) / segmentSize);
+      metaPerSegment = segmentSize / METASIZE;
+      active = new Bank();
+      standby = new Bank();
+      if (LOG.isInfoEnabled()) {
+        LOG.info(JobContext.IO_SORT_MB + ": " + sortmb + " off heap, in 2 " +
+            "banks of up to " + maxSegments + " segments of " + segmentSize +
+            " bytes");
+      }
+
+      // k/v serialization
+      keySerializer = serializationFactory.getSerializer(keyClass);
+      keySerializer.open(record);
+      valSerializer = serializationFactory.getSerializer(valClass);
+      valSerializer.open(record);
+
+      spillThread.setDaemon(true);
+      spillThread.setName("SpillThread");
+      spillThread.start();
     }
 
     /**
-     * Inner class managing the spill of serialized records to disk.
+     * Serialize the key, value into the active bank, and spill it if it is
+     * full.
      */
-    protected class BlockingBuffer extends DataOutputStream {
-
-      public BlockingBuffer() {
-        super(new Buffer());
+    public synchronized void collect(K key, V value, final int partition
+                                     ) throws IOException {
+      reporter.progress();
+      if (key.getClass() != keyClass) {
+        throw new IOException("Type mismatch in key from map: expected "
+                              + keyClass.getName() + ", received "
+                              + key.getClass().getName());
       }
-
-      /**
-       * Mark end of record. Note that this is required if the buffer is to
-       * cut the spill in the proper place.
-       */
-      public int markRecord() {
-        bufmark = bufindex;
-        return bufindex;
+      if (value.getClass() != valClass) {
+        throw new IOException("Type mismatch in value from map: expected "
+                              + valClass.getName() + ", received "
+                              + value.getClass().getName());
+      }
+      if (partition < 0 || partition >= partitions) {
+        throw new IOException("Illegal partition for " + key + " (" +
+            partition + ")");
       }
+      checkSpillException();
 
-      /**
-       * Set position from last mark to end of writable buffer, then rewrite
-       * the data between last mark and kvindex.
-       * This handles a special case where the key wraps around the buffer.
-       * If the key is to be passed to a RawComparator, then it must be
-       * contiguous in the buffer. This recopies the data in the buffer back
-       * into itself, but starting at the beginning of the buffer. Note that
-       * this method should <b>only</b> be called immediately after detecting
-       * this condition. To call it at any other time is undefined and would
-       * likely result in data loss or corruption.
-       * @see #markRecord()
-       */
-      protected void shiftBufferedKey() throws IOException {
-        // spillLock unnecessary; both kvend and kvindex are current
-        int headbytelen = bufvoid - bufmark;
-        bufvoid = bufmark;
-        final int kvbidx = 4 * kvindex;
-        final int kvbend = 4 * kvend;
-        final int avail =
-          Math.min(distanceTo(0, kvbidx), distanceTo(0, kvbend));
-        if (bufindex + headbytelen < avail) {
-          System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, bufindex);
-          System.arraycopy(kvbuffer, bufvoid, kvbuffer, 0, headbytelen);
-          bufindex += headbytelen;
-          bufferRemaining -= kvbuffer.length - bufvoid;
-        } else {
-          byte[] keytmp = new byte[bufindex];
-          System.arraycopy(kvbuffer, 0, keytmp, 0, bufindex);
-          bufindex = 0;
-          out.write(kvbuffer, bufmark, headbytelen);
-          out.write(keytmp);
+      record.reset();
+      keySerializer.serialize(key);
+      final int keylen = record.getLength();
+      valSerializer.serialize(value);
+      final int len = record.getLength();
+      if (len > segmentSize) {
+        LOG.info("Record too large for off-heap segment: " + len + " bytes");
+        spillSingleRecord(key, value, partition,
+            len + partitions * APPROX_HEADER_LENGTH);
+        mapOutputRecordCounter.increment(1);
+        return;
+      }
+      if (!active.add(partition, record.getData(), keylen, len)) {
+        startSpill();
+        if (!active.add(partition, record.getData(), keylen, len)) {
+          throw new IOException("Record of " + len +
+              " bytes does not fit in an empty bank");
         }
       }
+      mapOutputRecordCounter.increment(1);
+      mapOutputByteCounter.increment(len);
     }
 
-    public class Buffer extends OutputStream {
-      private final byte[] scratch = new byte[1];
-
-      @Override
-      public void write(int v)
-          throws IOException {
-        scratch[0] = (byte)v;
-        write(scratch, 0, 1);
-      }
-
-      /**
-       * Attempt to write a sequence of bytes to the collection buffer.
-       * This method will block if the spill thread is running and it
-       * cannot write.
-       * @throws MapBufferTooSmallException if record is too large to
-       *    deserialize into the collection buffer.
-       */
-      @Override
-      public void write(byte b[], int off, int len)
-          throws IOException {
-        // must always verify the invariant that at least METASIZE bytes are
-        // available beyond kvindex, even when len == 0
-        bufferRemaining -= len;
-        if (bufferRemaining <= 0) {
-          // writing these bytes could exhaust available buffer space or fill
-          // the buffer to soft limit. check if spill or blocking are necessary
-          boolean blockwrite = false;
-          spillLock.lock();
-          try {
-            do {
-              checkSpillException();
-
-              final int kvbidx = 4 * kvindex;
-              final int kvbend = 4 * kvend;
-              // ser distance to key index
-              final int distkvi = distanceTo(bufindex, kvbidx);
-              // ser distance to spill end index
-              final int distkve = distanceTo(bufindex, kvbend);
-
-              // if kvindex is closer than kvend, then a spill is neither in
-              // progress nor complete and reset since the lock was held. The
-              // write should block only if there is insufficient space to
-              // complete the current write, write the metadata for this record,
-              // and write the metadata for the next record. If kvend is closer,
-              // then the write should block if there is too little space for
-              // either the metadata or the current write. Note that collect
-              // ensures its metadata requirement with a zero-length write
-              blockwrite = distkvi <= distkve
-                ? distkvi <= len + 2 * METASIZE
-                : distkve <= len || distanceTo(bufend, kvbidx) < 2 * METASIZE;
-
-              if (!spillInProgress) {
-                if (blockwrite) {
-                  if ((kvbend + METASIZE) % kvbuffer.length !=
-                      equator - (equator % METASIZE)) {
-                    // spill finished, reclaim space
-                    // need to use meta exclusively; zero-len rec & 100% spill
-                    // pcnt would fail
-                    resetSpill(); // resetSpill doesn't move bufindex, kvindex
-                    bufferRemaining = Math.min(
-                        distkvi - 2 * METASIZE,
-                        softLimit - distanceTo(kvbidx, bufindex)) - len;
-                    continue;
-                  }
-                  // we have records we can spill; only spill if blocked
-                  if (kvindex != kvend) {
-                    startSpill();
-                    // Blocked on this write, waiting for the spill just
-                    // initiated to finish. Instead of repositioning the marker
-                    // and copying the partial record, we set the record start
-                    // to be the new equator
-                    setEquator(bufmark);
-                  } else {
-                    // We have no buffered records, and this record is too large
-                    // to write into kvbuffer. We must spill it directly from
-                    // collect
-                    final int size = distanceTo(bufstart, bufindex) + len;
-                    setEquator(0);
-                    bufstart = bufend = bufindex = equator;
-                    kvstart = kvend = kvindex;
-                    bufvoid = kvbuffer.length;
-                    throw new MapBufferTooSmallException(size + " bytes");
-                  }
-                }
-              }
-
-              if (blockwrite) {
-                // wait for spill
-                try {
-                  while (spillInProgress) {
-                    reporter.progress();
-                    spillDone.await();
-                  }
-                } catch (InterruptedException e) {
-                    throw new IOException(
-                        "Buffer interrupted while waiting for the writer", e);
-                }
-              }
-            } while (blockwrite);
-          } finally {
-            spillLock.unlock();
-          }
+    /**
+     * Hand the active bank to the spill thread, once it is done with the
+     * other one, and collect into the other one.
+     */
+    private void startSpill() throws IOException {
+      spillLock.lock();
+      try {
+        while (spilling != null) {
+          reporter.progress();
+          spillDone.await();
         }
-        // here, we know that we have sufficient space to write
-        if (bufindex + len > bufvoid) {
-          final int gaplen = bufvoid - bufindex;
-          System.arraycopy(b, off, kvbuffer, bufindex, gaplen);
-          len -= gaplen;
-          off += gaplen;
-          bufindex = 0;
+        checkSpillException();
+        spilling = active;
+        active = standby;
+        standby = spilling;
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Spilling map output: " + spilling.records +
+              " records of " + spilling.bytes + " bytes");
         }
-        System.arraycopy(b, off, kvbuffer, bufindex, len);
-        bufindex += len;
+        spillReady.signal();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for the spill", e);
+      } finally {
+        spillLock.unlock();
       }
     }
 
@@ -1389,183 +2722,106 @@ class MapTask extends Task {
       LOG.info("Starting flush of map output");
       spillLock.lock();
       try {
-        while (spillInProgress) {
+        while (spilling != null) {
           reporter.progress();
           spillDone.await();
         }
         checkSpillException();
-
-        final int kvbend = 4 * kvend;
-        if ((kvbend + METASIZE) % kvbuffer.length !=
-            equator - (equator % METASIZE)) {
-          // spill finished
-          resetSpill();
-        }
-        if (kvindex != kvend) {
-          kvend = (kvindex + NMETA) % kvmeta.capacity();
-          bufend = bufmark;
-          if (LOG.isInfoEnabled()) {
-            LOG.info("Spilling map output");
-            LOG.info("bufstart = " + bufstart + "; bufend = " + bufmark +
-                     "; bufvoid = " + bufvoid);
-            LOG.info("kvstart = " + kvstart + "(" + (kvstart * 4) +
-                     "); kvend = " + kvend + "(" + (kvend * 4) +
-                     "); length = " + (distanceTo(kvend, kvstart,
-                           kvmeta.capacity()) + 1) + "/" + maxRec);
-          }
-          sortAndSpill();
+        if (active.records > 0) {
+          LOG.info("Spilling map output: " + active.records +
+              " records of " + active.bytes + " bytes");
+          sortAndSpill(active);
         }
       } catch (InterruptedException e) {
-        throw new IOException("Interrupted while waiting for the writer", e);
+        throw new IOException("Interrupted while waiting for the spill", e);
       } finally {
         spillLock.unlock();
       }
-      assert !spillLock.isHeldByCurrentThread();
-      // shut down spill thread and wait for it to exit. Since the preceding
-      // ensures that it is finished with its work (and sortAndSpill did not
-      // throw), we elect to use an interrupt instead of setting a flag.
-      // Spilling simultaneously from this thread while the spill thread
-      // finishes its work might be both a useful way to extend this and also
-      // sufficient motivation for the latter approach.
+      // the spill thread is waiting for a bank, see MapOutputBuffer#flush
       try {
         spillThread.interrupt();
         spillThread.join();
       } catch (InterruptedException e) {
         throw new IOException("Spill failed", e);
       }
-      // release sort buffer before the merge
-      kvbuffer = null;
+      // release the direct memory before the merge
+      active = null;
+      standby = null;
+      final long mergeStart = System.currentTimeMillis();
       mergeParts();
-      Path outputPath = mapOutputFile.getOutputFile();
+      mergeMillisCounter.increment(System.currentTimeMillis() - mergeStart);
+      Path outputPath = mapTask.mapOutputFile.getOutputFile();
       fileOutputByteCounter.increment(rfs.getFileStatus(outputPath).getLen());
     }
 
-    public void close() { }
-
     protected class SpillThread extends Thread {
 
       @Override
       public void run() {
         spillLock.lock();
-        spillThreadRunning = true;
         try {
           while (true) {
-            spillDone.signal();
-            while (!spillInProgress) {
+            while (null == spilling) {
               spillReady.await();
             }
+            final Bank bank = spilling;
             try {
               spillLock.unlock();
-              sortAndSpill();
+              sortAndSpill(bank);
             } catch (Throwable t) {
               sortSpillException = t;
             } finally {
               spillLock.lock();
-              if (bufend < bufstart) {
-                bufvoid = kvbuffer.length;
-              }
-              kvstart = kvend;
-              bufstart = bufend;
-              spillInProgress = false;
+              bank.reset();
+              spilling = null;
+              spillDone.signal();
             }
-          }
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-        } finally {
-          spillLock.unlock();
-          spillThreadRunning = false;
-        }
-      }
-    }
-
-    private void checkSpillException() throws IOException {
-      final Throwable lspillException = sortSpillException;
-      if (lspillException != null) {
-        if (lspillException instanceof Error) {
-          final String logMsg = "Task " + getTaskID() + " failed : " +
-            StringUtils.stringifyException(lspillException);
-          reportFatalError(getTaskID(), lspillException, logMsg);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          spillLock.unlock();
         }
-        throw new IOException("Spill failed", lspillException);
-      }
-    }
-
-    private void startSpill() {
-      assert !spillInProgress;
-      kvend = (kvindex + NMETA) % kvmeta.capacity();
-      bufend = bufmark;
-      spillInProgress = true;
-      if (LOG.isInfoEnabled()) {
-        LOG.info("Spilling map output");
-        LOG.info("bufstart = " + bufstart + "; bufend = " + bufmark +
-                 "; bufvoid = " + bufvoid);
-        LOG.info("kvstart = " + kvstart + "(" + (kvstart * 4) +
-                 "); kvend = " + kvend + "(" + (kvend * 4) +
-                 "); length = " + (distanceTo(kvend, kvstart,
-                       kvmeta.capacity()) + 1) + "/" + maxRec);
       }
-      spillReady.signal();
     }
 
-    private void sortAndSpill() throws IOException, ClassNotFoundException,
-                                       InterruptedException {
-      //approximate the length of the output file to be the length of the
-      //buffer + header lengths for the partitions
-      final long size = (bufend >= bufstart
-          ? bufend - bufstart
-          : (bufvoid - bufend) + bufstart) +
-                  partitions * APPROX_HEADER_LENGTH;
+    private void sortAndSpill(Bank bank) throws IOException,
+        ClassNotFoundException, InterruptedException {
+      final long spillStart = System.currentTimeMillis();
+      final long size = bank.bytes + partitions * APPROX_HEADER_LENGTH;
       FSDataOutputStream out = null;
       try {
         // create spill file
         final SpillRecord spillRec = new SpillRecord(partitions);
         final Path filename =
-            mapOutputFile.getSpillFileForWrite(numSpills, size);
+            mapTask.mapOutputFile.getSpillFileForWrite(numSpills, size);
         out = rfs.create(filename);
 
-        final int mstart = kvend / NMETA;
-        final int mend = 1 + // kvend is a valid record
-          (kvstart >= kvend
-          ? kvstart
-          : kvmeta.capacity() + kvstart) / NMETA;
-        sorter.sort(MapOutputBuffer.this, mstart, mend, reporter);
-        int spindex = mstart;
+        sorter.sort(bank, 0, bank.records, reporter);
+        int spindex = 0;
         final IndexRecord rec = new IndexRecord();
-        final InMemValBytes value = new InMemValBytes();
         for (int i = 0; i < partitions; ++i) {
           IFile.Writer<K, V> writer = null;
           try {
             long segmentStart = out.getPos();
             writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
-                                      spilledRecordsCounter);
+                                      mapTask.spilledRecordsCounter);
+            final int spstart = spindex;
+            while (spindex < bank.records &&
+                bank.get(bank.get(spindex, INDEX), PARTITION) == i) {
+              ++spindex;
+            }
             if (combinerRunner == null) {
               // spill directly
-              DataInputBuffer key = new DataInputBuffer();
-              while (spindex < mend &&
-                  kvmeta.get(offsetFor(spindex % maxRec) + PARTITION) == i) {
-                final int kvoff = offsetFor(spindex % maxRec);
-                key.reset(kvbuffer, kvmeta.get(kvoff + KEYSTART),
-                          (kvmeta.get(kvoff + VALSTART) -
-                           kvmeta.get(kvoff + KEYSTART)));
-                getVBytesForOffset(kvoff, value);
-                writer.append(key, value);
-                ++spindex;
-              }
-            } else {
-              int spstart = spindex;
-              while (spindex < mend &&
-                  kvmeta.get(offsetFor(spindex % maxRec)
-                            + PARTITION) == i) {
-                ++spindex;
-              }
-              // Note: we would like to avoid the combiner if we've fewer
-              // than some threshold of records for a partition
-              if (spstart != spindex) {
-                combineCollector.setWriter(writer);
-                RawKeyValueIterator kvIter =
-                  new MRResultIterator(spstart, spindex);
-                combinerRunner.combine(kvIter, combineCollector);
+              final RawKeyValueIterator kvIter =
+                bank.new BankIterator(spstart, spindex);
+              while (kvIter.next()) {
+                writer.append(kvIter.getKey(), kvIter.getValue());
               }
+            } else if (spstart != spindex) {
+              combineCollector.setWriter(writer);
+              combinerRunner.combine(bank.new BankIterator(spstart, spindex),
+                  combineCollector);
             }
 
             // close the writer
@@ -1582,317 +2838,218 @@ class MapTask extends Task {
             if (null != writer) writer.close();
           }
         }
-
-        if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
-          // create spill index file
-          Path indexFilename =
-              mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
-                  * MAP_OUTPUT_INDEX_RECORD_LENGTH);
-          spillRec.writeToFile(indexFilename, job);
-        } else {
-          indexCacheList.add(spillRec);
-          totalIndexCacheMemory +=
-            spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
-        }
         LOG.info("Finished spill " + numSpills);
-        ++numSpills;
+        finishSpill(spillRec, spillStart);
       } finally {
         if (out != null) out.close();
       }
     }
 
     /**
-     * Handles the degenerate case where serialization fails to fit in
-     * the in-memory buffer, so we must spill the record from collect
-     * directly to a spill file. Consider this "losing".
+     * Segments of direct memory holding the collected records and their
+     * metadata. A bank is used by one thread at a time: the collecting thread
+     * while it is active, the spilling thread while it is spilled.
      */
-    private void spillSingleRecord(final K key, final V value,
-                                   int partition) throws IOException {
-      long size = kvbuffer.length + partitions * APPROX_HEADER_LENGTH;
-      FSDataOutputStream out = null;
-      try {
-        // create spill file
-        final SpillRecord spillRec = new SpillRecord(partitions);
-        final Path filename =
-            mapOutputFile.getSpillFileForWrite(numSpills, size);
-        out = rfs.create(filename);
-
-        // we don't run the combiner for a single record
-        IndexRecord rec = new IndexRecord();
-        for (int i = 0; i < partitions; ++i) {
-          IFile.Writer<K, V> writer = null;
-          try {
-            long segmentStart = out.getPos();
-            // Create a new codec, don't care!
-            writer = new IFile.Writer<K,V>(job, out, keyClass, valClass, codec,
-                                            spilledRecordsCounter);
-
-            if (i == partition) {
-              final long recordStart = out.getPos();
-              writer.append(key, value);
-              // Note that our map byte count will not be accurate with
-              // compression
-              mapOutputByteCounter.increment(out.getPos() - recordStart);
-            }
-            writer.close();
-
-            // record offsets
-            rec.startOffset = segmentStart;
-            rec.rawLength = writer.getRawLength();
-            rec.partLength = writer.getCompressedLength();
-            spillRec.putIndex(rec, i);
-
-            writer = null;
-          } catch (IOException e) {
-            if (null != writer) writer.close();
-            throw e;
-          }
+    private class Bank implements PrefixIndexedSortable {
+      private final List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+      private final List<ByteBuffer> meta = new ArrayList<ByteBuffer>();
+      private final List<IntBuffer> metaInts = new ArrayList<IntBuffer>();
+      // segments allocated, but not used since the last spill
+      private final List<ByteBuffer> spare = new ArrayList<ByteBuffer>();
+      private int allocated = 0;
+      private int dataPos = 0;  // position of the next record in the last
+                                // data segment
+      int records = 0;
+      long bytes = 0;
+      // keys copied out of the bank for the comparator
+      private byte[] keyi = new byte[64];
+      private byte[] keyj = new byte[64];
+
+      /** @return a free segment, or null if the bank is full */
+      private ByteBuffer newSegment() {
+        if (!spare.isEmpty()) {
+          // a spare data segment may be reused for metadata, whose int view
+          // starts at the position of the buffer
+          final ByteBuffer segment = spare.remove(spare.size() - 1);
+          segment.clear();
+          return segment;
         }
-        if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
-          // create spill index file
-          Path indexFilename =
-              mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
-                  * MAP_OUTPUT_INDEX_RECORD_LENGTH);
-          spillRec.writeToFile(indexFilename, job);
-        } else {
-          indexCacheList.add(spillRec);
-          totalIndexCacheMemory +=
-            spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
+        if (allocated == maxSegments) {
+          return null;
         }
-        ++numSpills;
-      } finally {
-        if (out != null) out.close();
+        ++allocated;
+        return ByteBuffer.allocateDirect(segmentSize);
       }
-    }
-
-    /**
-     * Given an offset, populate vbytes with the associated set of
-     * deserialized value bytes. Should only be called during a spill.
-     */
-    private void getVBytesForOffset(int kvoff, InMemValBytes vbytes) {
-      // get the keystart for the next serialized value to be the end
-      // of this value. If this is the last value in the buffer, use bufend
-      final int nextindex = kvoff == kvend
-        ? bufend
-        : kvmeta.get(
-            (kvoff - NMETA + kvmeta.capacity() + KEYSTART) % kvmeta.capacity());
-      // calculate the length of the value
-      int vallen = (nextindex >= kvmeta.get(kvoff + VALSTART))
-        ? nextindex - kvmeta.get(kvoff + VALSTART)
-        : (bufvoid - kvmeta.get(kvoff + VALSTART)) + nextindex;
-      vbytes.reset(kvbuffer, kvmeta.get(kvoff + VALSTART), vallen);
-    }
-
-    /**
-     * Inner class wrapping valuebytes, used for appendRaw.
-     */
-    protected class InMemValBytes extends DataInputBuffer {
-      private byte[] buffer;
-      private int start;
-      private int length;
-
-      public void reset(byte[] buffer, int start, int length) {
-        this.buffer = buffer;
-        this.start = start;
-        this.length = length;
 
-        if (start + length > bufvoid) {
-          this.buffer = new byte[this.length];
-          final int taillen = bufvoid - start;
-          System.arraycopy(buffer, start, this.buffer, 0, taillen);
-          System.arraycopy(buffer, 0, this.buffer, taillen, length-taillen);
-          this.start = 0;
+      /**
+       * Copy a serialized record into the bank.
+       * @return false if the bank is full
+       */
+      boolean add(int partition, byte[] b, int keylen, int len) {
+        if (records == meta.size() * metaPerSegment) {
+          final ByteBuffer segment = newSegment();
+          if (null == segment) {
+            return false;
+          }
+          meta.add(segment);
+          metaInts.add(segment.asIntBuffer());
         }
-
-        super.reset(this.buffer, this.start, this.length);
+        if (data.isEmpty() || dataPos + len > segmentSize) {
+          final ByteBuffer segment = newSegment();
+          if (null == segment) {
+            return false;
+          }
+          data.add(segment);
+          dataPos = 0;
+        }
+        final ByteBuffer segment = data.get(data.size() - 1);
+        segment.position(dataPos);
+        segment.put(b, 0, len);
+
+        final IntBuffer m = metaInts.get(records / metaPerSegment);
+        final int off = (records % metaPerSegment) * NMETA;
+        m.put(off + INDEX, records);
+        m.put(off + PARTITION, partition);
+        m.put(off + SEGMENT, data.size() - 1);
+        m.put(off + KEYSTART, dataPos);
+        m.put(off + KEYLEN, keylen);
+        m.put(off + VALLEN, len - keylen);
+        if (keyPrefix != null) {
+          final long prefix = prefixFor(partition, b, 0, keylen);
+          m.put(off + PREFIX, (int)(prefix >>> 32));
+          m.put(off + PREFIX + 1, (int)prefix);
+        }
+        dataPos += len;
+        ++records;
+        bytes += len;
+        return true;
       }
-    }
 
-    protected class MRResultIterator implements RawKeyValueIterator {
-      private final DataInputBuffer keybuf = new DataInputBuffer();
-      private final InMemValBytes vbytes = new InMemValBytes();
-      private final int end;
-      private int current;
-      public MRResultIterator(int start, int end) {
-        this.end = end;
-        current = start - 1;
-      }
-      public boolean next() throws IOException {
-        return ++current < end;
-      }
-      public DataInputBuffer getKey() throws IOException {
-        final int kvoff = offsetFor(current % maxRec);
-        keybuf.reset(kvbuffer, kvmeta.get(kvoff + KEYSTART),
-            kvmeta.get(kvoff + VALSTART) - kvmeta.get(kvoff + KEYSTART));
-        return keybuf;
-      }
-      public DataInputBuffer getValue() throws IOException {
-        getVBytesForOffset(offsetFor(current % maxRec), vbytes);
-        return vbytes;
-      }
-      public Progress getProgress() {
-        return null;
+      /** Release the records, keeping the segments for the next ones */
+      void reset() {
+        spare.addAll(data);
+        spare.addAll(meta);
+        data.clear();
+        meta.clear();
+        metaInts.clear();
+        dataPos = 0;
+        records = 0;
+        bytes = 0;
       }
-      public void close() { }
-    }
 
-    private void mergeParts() throws IOException, InterruptedException, 
-                                     ClassNotFoundException {
-      // get the approximate size of the final output/index files
-      long finalOutFileSize = 0;
-      long finalIndexFileSize = 0;
-      final Path[] filename = new Path[numSpills];
-      final TaskAttemptID mapId = getTaskID();
+      int get(int i, int field) {
+        return metaInts.get(i / metaPerSegment).get(
+            (i % metaPerSegment) * NMETA + field);
+      }
 
-      for(int i = 0; i < numSpills; i++) {
-        filename[i] = mapOutputFile.getSpillFile(i);
-        finalOutFileSize += rfs.getFileStatus(filename[i]).getLen();
+      private void put(int i, int field, int value) {
+        metaInts.get(i / metaPerSegment).put(
+            (i % metaPerSegment) * NMETA + field, value);
       }
-      if (numSpills == 1) { //the spill is the final output
-        sameVolRename(filename[0],
-            mapOutputFile.getOutputFileForWriteInVolume(filename[0]));
-        if (indexCacheList.size() == 0) {
-          sameVolRename(mapOutputFile.getSpillIndexFile(0),
-            mapOutputFile.getOutputIndexFileForWriteInVolume(filename[0]));
-        } else {
-          indexCacheList.get(0).writeToFile(
-            mapOutputFile.getOutputIndexFileForWriteInVolume(filename[0]), job);
+
+      /**
+       * Copy bytes of a record out of the bank.
+       * @return the given array, or a larger one if it is too small
+       */
+      byte[] read(int r, int start, int len, byte[] buf) {
+        if (buf.length < len) {
+          buf = new byte[Math.max(len, 2 * buf.length)];
         }
-        sortPhase.complete();
-        return;
+        final ByteBuffer segment = data.get(get(r, SEGMENT));
+        segment.position(start);
+        segment.get(buf, 0, len);
+        return buf;
       }
 
-      // read in paged indices
-      for (int i = indexCacheList.size(); i < numSpills; ++i) {
-        Path indexFileName = mapOutputFile.getSpillIndexFile(i);
-        indexCacheList.add(new SpillRecord(indexFileName, job));
+      public long getPrefix(int i) {
+        if (null == keyPrefix) {
+          return 0L;
+        }
+        return ((long)get(i, PREFIX) << 32) |
+          (get(i, PREFIX + 1) & 0xFFFFFFFFL);
       }
 
-      //make correction in the length to include the sequence file header
-      //lengths for each partition
-      finalOutFileSize += partitions * APPROX_HEADER_LENGTH;
-      finalIndexFileSize = partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH;
-      Path finalOutputFile =
-          mapOutputFile.getOutputFileForWrite(finalOutFileSize);
-      Path finalIndexFile =
-          mapOutputFile.getOutputIndexFileForWrite(finalIndexFileSize);
-
-      //The output stream for the final single output file
-      FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
-
-      if (numSpills == 0) {
-        //create dummy files
-        IndexRecord rec = new IndexRecord();
-        SpillRecord sr = new SpillRecord(partitions);
-        try {
-          for (int i = 0; i < partitions; i++) {
-            long segmentStart = finalOut.getPos();
-            Writer<K, V> writer =
-              new Writer<K, V>(job, finalOut, keyClass, valClass, codec, null);
-            writer.close();
-            rec.startOffset = segmentStart;
-            rec.rawLength = writer.getRawLength();
-            rec.partLength = writer.getCompressedLength();
-            sr.putIndex(rec, i);
+      /**
+       * Compare by key prefix if any, then by partition, then by key.
+       * @see IndexedSortable#compare
+       */
+      public int compare(int i, int j) {
+        if (keyPrefix != null) {
+          final long pi = getPrefix(i);
+          final long pj = getPrefix(j);
+          if (pi != pj) {
+            return pi < pj ? -1 : 1;
           }
-          sr.writeToFile(finalIndexFile, job);
-        } finally {
-          finalOut.close();
         }
-        sortPhase.complete();
-        return;
+        final int ri = get(i, INDEX);
+        final int rj = get(j, INDEX);
+        final int rip = get(ri, PARTITION);
+        final int rjp = get(rj, PARTITION);
+        // sort by partition
+        if (rip != rjp) {
+          return rip - rjp;
+        }
+        // sort by key
+        final int li = get(ri, KEYLEN);
+        final int lj = get(rj, KEYLEN);
+        keyi = read(ri, get(ri, KEYSTART), li, keyi);
+        keyj = read(rj, get(rj, KEYSTART), lj, keyj);
+        return comparator.compare(keyi, 0, li, keyj, 0, lj);
       }
-      {
-        sortPhase.addPhases(partitions); // Divide sort phase into sub-phases
-        Merger.considerFinalMergeForProgress();
-        
-        IndexRecord rec = new IndexRecord();
-        final SpillRecord spillRec = new SpillRecord(partitions);
-        for (int parts = 0; parts < partitions; parts++) {
-          //create the segments to be merged
-          List<Segment<K,V>> segmentList =
-            new ArrayList<Segment<K, V>>(numSpills);
-          for(int i = 0; i < numSpills; i++) {
-            IndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-            Segment<K,V> s =
-              new Segment<K,V>(job, rfs, filename[i], indexRecord.startOffset,
-                               indexRecord.partLength, codec, true);
-            segmentList.add(i, s);
-
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("MapId=" + mapId + " Reducer=" + parts +
-                  "Spill =" + i + "(" + indexRecord.startOffset + "," +
-                  indexRecord.rawLength + ", " + indexRecord.partLength + ")");
-            }
-          }
 
-          int mergeFactor = job.getInt(JobContext.IO_SORT_FACTOR, 100);
-          // sort the segments only if there are intermediate merges
-          boolean sortSegments = segmentList.size() > mergeFactor;
-          //merge
-          @SuppressWarnings("unchecked")
-          RawKeyValueIterator kvIter = Merger.merge(job, rfs,
-                         keyClass, valClass, codec,
-                         segmentList, mergeFactor,
-                         new Path(mapId.toString()),
-                         job.getOutputKeyComparator(), reporter, sortSegments,
-                         null, spilledRecordsCounter, sortPhase.phase());
-
-          //write merged output to disk
-          long segmentStart = finalOut.getPos();
-          Writer<K, V> writer =
-              new Writer<K, V>(job, finalOut, keyClass, valClass, codec,
-                               spilledRecordsCounter);
-          if (combinerRunner == null || numSpills < minSpillsForCombine) {
-            Merger.writeFile(kvIter, writer, reporter, job);
-          } else {
-            combineCollector.setWriter(writer);
-            combinerRunner.combine(kvIter, combineCollector);
+      /**
+       * Swap the records at the given sort positions.
+       * @see IndexedSortable#swap
+       */
+      public void swap(int i, int j) {
+        int tmp = get(i, INDEX);
+        put(i, INDEX, get(j, INDEX));
+        put(j, INDEX, tmp);
+        if (keyPrefix != null) {
+          for (int field = PREFIX; field < PREFIX + 2; ++field) {
+            tmp = get(i, field);
+            put(i, field, get(j, field));
+            put(j, field, tmp);
           }
+        }
+      }
 
-          //close
-          writer.close();
-
-          sortPhase.startNextPhase();
-          
-          // record offsets
-          rec.startOffset = segmentStart;
-          rec.rawLength = writer.getRawLength();
-          rec.partLength = writer.getCompressedLength();
-          spillRec.putIndex(rec, parts);
+      /** Iterates over the records of a range of sort positions */
+      class BankIterator implements RawKeyValueIterator {
+        private final DataInputBuffer keybuf = new DataInputBuffer();
+        private final DataInputBuffer valbuf = new DataInputBuffer();
+        private byte[] key = new byte[64];
+        private byte[] val = new byte[64];
+        private final int end;
+        private int current;
+        BankIterator(int start, int end) {
+          this.end = end;
+          current = start - 1;
         }
-        spillRec.writeToFile(finalIndexFile, job);
-        finalOut.close();
-        for(int i = 0; i < numSpills; i++) {
-          rfs.delete(filename[i],true);
+        public boolean next() throws IOException {
+          return ++current < end;
         }
-      }
-    }
-    
-    /**
-     * Rename srcPath to dstPath on the same volume. This is the same
-     * as RawLocalFileSystem's rename method, except that it will not
-     * fall back to a copy, and it will create the target directory
-     * if it doesn't exist.
-     */
-    private void sameVolRename(Path srcPath,
-        Path dstPath) throws IOException {
-      RawLocalFileSystem rfs = (RawLocalFileSystem)this.rfs;
-      File src = rfs.pathToFile(srcPath);
-      File dst = rfs.pathToFile(dstPath);
-      if (!dst.getParentFile().exists()) {
-        if (!dst.getParentFile().mkdirs()) {
-          throw new IOException("Unable to rename " + src + " to "
-              + dst + ": couldn't create parent directory"); 
+        public DataInputBuffer getKey() throws IOException {
+          final int r = get(current, INDEX);
+          final int len = get(r, KEYLEN);
+          key = read(r, get(r, KEYSTART), len, key);
+          keybuf.reset(key, 0, len);
+          return keybuf;
         }
-      }
-      
-      if (!src.renameTo(dst)) {
-        throw new IOException("Unable to rename " + src + " to " + dst);
+        public DataInputBuffer getValue() throws IOException {
+          final int r = get(current, INDEX);
+          final int len = get(r, VALLEN);
+          val = read(r, get(r, KEYSTART) + get(r, KEYLEN), len, val);
+          valbuf.reset(val, 0, len);
+          return valbuf;
+        }
+        public Progress getProgress() {
+          return null;
+        }
+        public void close() { }
       }
     }
-  } // MapOutputBuffer
+  } // OffHeapMapOutputBuffer
   
   /**
    * Exception indicating that the allocated sort buffer is insufficient
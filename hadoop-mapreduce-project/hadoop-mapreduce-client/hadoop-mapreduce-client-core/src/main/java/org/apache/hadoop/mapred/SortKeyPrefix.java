@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Computes a fixed-width prefix of serialized map output keys, whose
+ * unsigned order is consistent with the raw comparator of the keys. Keys
+ * with equal prefixes must still be compared with the comparator.
+ */
+abstract class SortKeyPrefix {
+
+  /**
+   * @return the first 64 bits of the normalized key in the given bytes,
+   *         to be compared as an unsigned long
+   */
+  abstract long prefix(byte[] b, int s, int l);
+
+  /**
+   * Get the prefix of the keys sorted by the given comparator.
+   * @return the prefix, or null if the comparator is not known to order the
+   *         keys by their normalized bytes
+   */
+  static SortKeyPrefix get(RawComparator<?> comparator) {
+    // the comparators of subclasses may order the keys differently
+    final Class<?> c = comparator.getClass();
+    if (c == Text.Comparator.class) {
+      return TEXT;
+    } else if (c == BytesWritable.Comparator.class) {
+      return BYTES;
+    } else if (c == IntWritable.Comparator.class) {
+      return INT;
+    } else if (c == LongWritable.Comparator.class) {
+      return LONG;
+    }
+    return null;
+  }
+
+  /** The first 8 bytes of the given range, padded with zeros */
+  private static long bytesPrefix(byte[] b, int s, int l) {
+    long prefix = 0;
+    final int n = Math.min(l, 8);
+    for (int i = 0; i < n; ++i) {
+      prefix = (prefix << 8) | (b[s + i] & 0xFF);
+    }
+    return prefix << ((8 - n) << 3);
+  }
+
+  private static final SortKeyPrefix TEXT = new SortKeyPrefix() {
+    @Override
+    long prefix(byte[] b, int s, int l) {
+      final int n = WritableUtils.decodeVIntSize(b[s]);
+      return bytesPrefix(b, s + n, l - n);
+    }
+  };
+
+  private static final SortKeyPrefix BYTES = new SortKeyPrefix() {
+    @Override
+    long prefix(byte[] b, int s, int l) {
+      return bytesPrefix(b, s + 4, l - 4);
+    }
+  };
+
+  private static final SortKeyPrefix INT = new SortKeyPrefix() {
+    @Override
+    long prefix(byte[] b, int s, int l) {
+      final int v = WritableComparator.readInt(b, s) ^ Integer.MIN_VALUE;
+      return (v & 0xFFFFFFFFL) << 32;
+    }
+  };
+
+  private static final SortKeyPrefix LONG = new SortKeyPrefix() {
+    @Override
+    long prefix(byte[] b, int s, int l) {
+      return WritableComparator.readLong(b, s) ^ Long.MIN_VALUE;
+    }
+  };
+}
@@ -124,6 +124,11 @@ public interface MRJobConfig {
 
   public static final String IO_SORT_MB = "mapreduce.task.io.sort.mb";
 
+  public static final String IO_SORT_OFFHEAP = "mapreduce.task.io.sort.offheap";
+
+  public static final String IO_SORT_OFFHEAP_SEGMENT_KB =
+    "mapreduce.task.io.sort.offheap.segment.kb";
+
   public static final String INDEX_CACHE_MEMORY_LIMIT = "mapreduce.task.index.cache.limit.bytes";
 
   public static final String PRESERVE_FAILED_TASK_FILES = "mapreduce.task.files.preserve.failedtasks";
@@ -168,6 +173,10 @@ public interface MRJobConfig {
 
   public static final String MAP_SORT_SPILL_PERCENT = "mapreduce.map.sort.spill.percent";
 
+  public static final String MAP_SORT_KEY_PREFIX = "mapreduce.map.sort.key.prefix";
+
+  public static final String MAP_SORT_THREADS = "mapreduce.map.sort.threads";
+
   public static final String MAP_INPUT_FILE = "mapreduce.map.input.file";
 
   public static final String MAP_INPUT_PATH = "mapreduce.map.input.length";
@@ -198,12 +207,19 @@ public interface MRJobConfig {
 
   public static final String MAP_COMBINE_MIN_SPILLS = "mapreduce.map.combine.minspills";
 
+  public static final String MAP_COMBINE_HASH = "mapreduce.map.combine.hash";
+
+  public static final String MAP_COMBINE_HASH_MEMORY_MB = "mapreduce.map.combine.hash.memory.mb";
+
   public static final String MAP_OUTPUT_COMPRESS = "mapreduce.map.output.compress";
 
   public static final String MAP_OUTPUT_COMPRESS_CODEC = "mapreduce.map.output.compress.codec";
 
   public static final String MAP_OUTPUT_KEY_CLASS = "mapreduce.map.output.key.class";
 
+  public static final String MAP_OUTPUT_COLLECTOR_CLASS_ATTR =
+    "mapreduce.job.map.output.collector.class";
+
   public static final String MAP_OUTPUT_VALUE_CLASS = "mapreduce.map.output.value.class";
 
   public static final String MAP_OUTPUT_KEY_FIELD_SEPERATOR = "mapreduce.map.output.key.field.separator";
@@ -249,6 +265,10 @@ public interface MRJobConfig {
 
   public static final String SHUFFLE_PARALLEL_COPIES = "mapreduce.reduce.shuffle.parallelcopies";
 
+  public static final String SHUFFLE_FETCHERS_ADAPTIVE = "mapreduce.reduce.shuffle.fetchers.adaptive";
+
+  public static final String SHUFFLE_FETCHERS_MAX = "mapreduce.reduce.shuffle.fetchers.max";
+
   public static final String REDUCE_DEBUG_SCRIPT = "mapreduce.reduce.debug.script";
 
   public static final String REDUCE_SPECULATIVE = "mapreduce.reduce.speculative";
@@ -257,6 +277,8 @@ public interface MRJobConfig {
 
   public static final String SHUFFLE_READ_TIMEOUT = "mapreduce.reduce.shuffle.read.timeout";
 
+  public static final String SHUFFLE_KEEP_ALIVE = "mapreduce.reduce.shuffle.keep-alive";
+
   public static final String SHUFFLE_FETCH_FAILURES = "mapreduce.reduce.shuffle.maxfetchfailures";
 
   public static final String SHUFFLE_NOTIFY_READERROR = "mapreduce.reduce.shuffle.notify.readerror";
@@ -269,6 +291,8 @@ public interface MRJobConfig {
 
   public static final String REDUCE_MEMTOMEM_ENABLED = "mapreduce.reduce.merge.memtomem.enabled";
 
+  public static final String REDUCE_MERGE_LOSER_TREE = "mapreduce.reduce.merge.inmem.loser-tree";
+
   public static final String COMBINE_RECORDS_BEFORE_PROGRESS = "mapreduce.task.combine.progress.records";
 
   public static final String JOB_NAMENODES = "mapreduce.job.hdfs-servers";
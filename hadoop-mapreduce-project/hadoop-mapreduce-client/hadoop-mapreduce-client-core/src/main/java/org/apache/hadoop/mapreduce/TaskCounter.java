@@ -47,5 +47,10 @@ public enum TaskCounter {
   CPU_MILLISECONDS,
   PHYSICAL_MEMORY_BYTES,
   VIRTUAL_MEMORY_BYTES,
-  COMMITTED_HEAP_BYTES
+  COMMITTED_HEAP_BYTES,
+  MAP_SPILLS,
+  MAP_SPILL_MILLIS,
+  MAP_MERGE_MILLIS,
+  MAP_HASH_COMBINE_INPUT_BYTES,
+  MAP_HASH_COMBINE_OUTPUT_BYTES
 }
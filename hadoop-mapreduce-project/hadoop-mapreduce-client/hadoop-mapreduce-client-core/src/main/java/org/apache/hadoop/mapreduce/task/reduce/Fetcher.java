@@ -83,6 +83,7 @@ class Fetcher<K,V> extends Thread {
   
   private final int connectionTimeout;
   private final int readTimeout;
+  private final boolean keepAlive;
   
   // Decompression of map-outputs
   private final CompressionCodec codec;
@@ -131,6 +132,7 @@ class Fetcher<K,V> extends Thread {
                  DEFAULT_STALLED_COPY_TIMEOUT);
     this.readTimeout = 
       job.getInt(MRJobConfig.SHUFFLE_READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    this.keepAlive = job.getBoolean(MRJobConfig.SHUFFLE_KEEP_ALIVE, false);
     
     setName("fetcher#" + id);
     setDaemon(true);
@@ -164,6 +166,14 @@ class Fetcher<K,V> extends Thread {
     }
   }
 
+  /**
+   * Stop the fetcher once it is done with its current host, without
+   * interrupting its copies.
+   */
+  public void retire() {
+    this.stopped = true;
+  }
+
   public void shutDown() throws InterruptedException {
     this.stopped = true;
     interrupt();
@@ -190,6 +200,23 @@ class Fetcher<K,V> extends Thread {
       return;
     }
     
+    // With keep-alive, the connection to the host stays open after all the
+    // maps are fetched: keep asking it for the outputs of the maps which
+    // completed in the meantime, while we still hold the host
+    while (copyMapOutputs(host, maps) && keepAlive && !stopped) {
+      maps = scheduler.getMapsForHost(host);
+      if (maps.isEmpty()) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Fetch the outputs of some maps from the host in one request.
+   * @return true if all the map outputs were fetched
+   */
+  private boolean copyMapOutputs(MapHost host, List<TaskAttemptID> maps)
+  throws IOException {
     LOG.debug("Fetcher " + id + " going to fetch from " + host);
     for (TaskAttemptID tmp: maps) {
       LOG.debug(tmp);
@@ -252,7 +279,7 @@ class Fetcher<K,V> extends Thread {
         scheduler.putBackKnownMapOutput(host, left);
       }
       
-      return;
+      return false;
     }
     
     try {
@@ -271,13 +298,13 @@ class Fetcher<K,V> extends Thread {
         throw new IOException("server didn't return all expected map outputs: "
             + remaining.size() + " left.");
       }
+      return good;
     } finally {
       for (TaskAttemptID left : remaining) {
         scheduler.putBackKnownMapOutput(host, left);
       }
     }
-      
-   }
+  }
   
   private boolean copyMapOutput(MapHost host,
                                 DataInputStream input,
@@ -342,6 +369,8 @@ class Fetcher<K,V> extends Thread {
       // Note successful shuffle
       remaining.remove(mapId);
       metrics.successFetch();
+      metrics.hostFetch(host.getHostName(), compressedLength,
+                        endTime - startTime);
       return true;
     } catch (IOException ioe) {
       ioErrs.increment(1);
@@ -422,6 +451,9 @@ class Fetcher<K,V> extends Thread {
       url.append(mapId);
       first = false;
     }
+    if (keepAlive) {
+      url.append("&keepAlive=true");
+    }
    
     LOG.debug("MapOutput URL for " + host + " -> " + url.toString());
     return new URL(url.toString());
@@ -73,7 +73,22 @@ public class InMemoryReader<K, V> extends Reader<K, V> {
   public long getLength() { 
     return fileLength;
   }
-  
+
+  /** @return the array holding the map-output */
+  public byte[] getData() {
+    return buffer;
+  }
+
+  /** @return the offset of the map-output in {@link #getData()} */
+  public int getStart() {
+    return start;
+  }
+
+  /** @return the offset following the map-output in {@link #getData()} */
+  public int getEnd() {
+    return start + length;
+  }
+
   private void dumpOnError() {
     File dumpFile = new File("../output/" + taskAttemptId + ".dump");
     System.err.println("Dumping corrupt map-output of " + taskAttemptId + 
@@ -35,6 +35,14 @@ class MapHost {
   private final String hostName;
   private final String baseUrl;
   private List<TaskAttemptID> maps = new ArrayList<TaskAttemptID>();
+  // the bytes and the time of the copies from the host, the older copies
+  // weighing less
+  private float bytesFetched = 0;
+  private float fetchMillis = 0;
+  private boolean fetched = false;
+
+  /** The weight of the previous copies when a copy completes */
+  private static final float FETCH_RATE_DECAY = 0.75f;
   
   public MapHost(String hostName, String baseUrl) {
     this.hostName = hostName;
@@ -91,6 +99,25 @@ class MapHost {
     return state;
   }
   
+  /**
+   * Record a copy from the host.
+   * @param bytes the size of the map output copied
+   * @param millis the time of the copy
+   */
+  public synchronized void fetched(long bytes, long millis) {
+    bytesFetched = FETCH_RATE_DECAY * bytesFetched + bytes;
+    fetchMillis = FETCH_RATE_DECAY * fetchMillis + millis;
+    fetched = true;
+  }
+
+  /**
+   * @return the bytes copied from the host per ms, mostly over the last
+   *         copies, or -1 if nothing was copied from it yet
+   */
+  public synchronized float getFetchRate() {
+    return fetched ? bytesFetched / Math.max(1, fetchMillis) : -1;
+  }
+
   @Override
   public String toString() {
     return hostName;
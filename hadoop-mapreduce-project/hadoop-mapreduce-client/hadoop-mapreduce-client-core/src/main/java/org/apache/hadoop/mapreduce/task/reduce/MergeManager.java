@@ -40,6 +40,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.IFile;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.LoserTreeMerger;
 import org.apache.hadoop.mapred.MapOutputFile;
 import org.apache.hadoop.mapred.Merger;
 import org.apache.hadoop.mapred.RawKeyValueIterator;
@@ -100,6 +101,9 @@ public class MergeManager<K, V> {
   
   private final int ioSortFactor;
 
+  /** Whether the merges of in-memory segments use a loser tree */
+  private final boolean loserTreeMerge;
+
   private final Reporter reporter;
   private final ExceptionReporter exceptionReporter;
   
@@ -168,6 +172,8 @@ public class MergeManager<K, V> {
         * maxInMemCopyUse);
  
     this.ioSortFactor = jobConf.getInt(MRJobConfig.IO_SORT_FACTOR, 100);
+    this.loserTreeMerge =
+      jobConf.getBoolean(MRJobConfig.REDUCE_MERGE_LOSER_TREE, false);
 
     final float singleShuffleMemoryLimitPercent =
         jobConf.getFloat(MRJobConfig.SHUFFLE_MEMORY_LIMIT_PERCENT,
@@ -227,6 +233,14 @@ public class MergeManager<K, V> {
   public void waitForInMemoryMerge() throws InterruptedException {
     inMemoryMerger.waitForMerge();
   }
+
+  /**
+   * @return the memory reserved by the map outputs shuffled to memory, as a
+   *         fraction of the memory of the shuffle
+   */
+  public synchronized float getMemoryUsage() {
+    return (float) usedMemory / memoryLimit;
+  }
   
   private boolean canShuffleToMemory(long requestedSize) {
     return (requestedSize < maxSingleShuffleLimit); 
@@ -389,13 +403,7 @@ public class MergeManager<K, V> {
                " segments of total-size: " + mergeOutputSize);
 
       RawKeyValueIterator rIter = 
-        Merger.merge(jobConf, rfs,
-                     (Class<K>)jobConf.getMapOutputKeyClass(),
-                     (Class<V>)jobConf.getMapOutputValueClass(),
-                     inMemorySegments, inMemorySegments.size(),
-                     new Path(reduceId.toString()),
-                     (RawComparator<K>)jobConf.getOutputKeyComparator(),
-                     reporter, null, null, null);
+        mergeInMemorySegments(inMemorySegments, null, null);
       Merger.writeFile(rIter, writer, reporter, jobConf);
       writer.close();
 
@@ -456,13 +464,8 @@ public class MergeManager<K, V> {
         LOG.info("Initiating in-memory merge with " + noInMemorySegments + 
                  " segments...");
         
-        rIter = Merger.merge(jobConf, rfs,
-                             (Class<K>)jobConf.getMapOutputKeyClass(),
-                             (Class<V>)jobConf.getMapOutputValueClass(),
-                             inMemorySegments, inMemorySegments.size(),
-                             new Path(reduceId.toString()),
-                             (RawComparator<K>)jobConf.getOutputKeyComparator(),
-                             reporter, spilledRecordsCounter, null, null);
+        rIter = mergeInMemorySegments(inMemorySegments,
+                                      spilledRecordsCounter, null);
         
         if (null == combinerClass) {
           Merger.writeFile(rIter, writer, reporter, jobConf);
@@ -611,6 +614,28 @@ public class MergeManager<K, V> {
     return totalSize;
   }
 
+  /**
+   * Merge segments which are all in memory in a single pass, with a loser
+   * tree if {@link MRJobConfig#REDUCE_MERGE_LOSER_TREE} is set, or with
+   * {@link Merger}.
+   */
+  private RawKeyValueIterator mergeInMemorySegments(
+      List<Segment<K, V>> inMemorySegments, Counters.Counter readsCounter,
+      Progress mergePhase) throws IOException {
+    final RawComparator<K> comparator =
+      (RawComparator<K>)jobConf.getOutputKeyComparator();
+    if (loserTreeMerge) {
+      return new LoserTreeMerger<K, V>(inMemorySegments, comparator,
+                                       mergePhase);
+    }
+    return Merger.merge(jobConf, rfs,
+                        (Class<K>)jobConf.getMapOutputKeyClass(),
+                        (Class<V>)jobConf.getMapOutputValueClass(),
+                        inMemorySegments, inMemorySegments.size(),
+                        new Path(reduceId.toString()), comparator,
+                        reporter, readsCounter, null, mergePhase);
+  }
+
   class RawKVIteratorReader extends IFile.Reader<K,V> {
 
     private final RawKeyValueIterator kvIter;
@@ -699,10 +724,8 @@ public class MergeManager<K, V> {
           mapOutputFile.getInputFileForWrite(mapId,
                                              inMemToDiskBytes).suffix(
                                                  Task.MERGED_OUTPUT_PREFIX);
-        final RawKeyValueIterator rIter = Merger.merge(job, fs,
-            keyClass, valueClass, memDiskSegments, numMemDiskSegments,
-            tmpDir, comparator, reporter, spilledRecordsCounter, null, 
-            mergePhase);
+        final RawKeyValueIterator rIter = mergeInMemorySegments(
+            memDiskSegments, spilledRecordsCounter, mergePhase);
         final Writer<K,V> writer = new Writer<K,V>(job, fs, outputPath,
             keyClass, valueClass, codec, null);
         try {
@@ -783,6 +806,9 @@ public class MergeManager<K, V> {
       }
       finalSegments.add(new Segment<K,V>(
             new RawKVIteratorReader(diskMerge, onDiskBytes), true));
+    } else {
+      return mergeInMemorySegments(finalSegments, spilledRecordsCounter,
+                                   null);
     }
     return Merger.merge(job, fs, keyClass, valueClass,
                  finalSegments, finalSegments.size(), tmpDir,
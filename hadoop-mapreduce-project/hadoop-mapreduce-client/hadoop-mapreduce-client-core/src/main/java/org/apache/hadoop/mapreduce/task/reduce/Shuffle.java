@@ -18,6 +18,11 @@
 package org.apache.hadoop.mapreduce.task.reduce;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
@@ -42,7 +47,18 @@ import org.apache.hadoop.util.Progress;
 @InterfaceStability.Unstable
 @SuppressWarnings({"deprecation", "unchecked", "rawtypes"})
 public class Shuffle<K, V> implements ExceptionReporter {
+  private static final Log LOG = LogFactory.getLog(Shuffle.class);
   private static final int PROGRESS_FREQUENCY = 2000;
+
+  // adaptive fetchers
+  /** The period of the adjustments of the number of fetchers */
+  private static final long ADJUST_PERIOD = 2000;
+  /** The usage of the memory of the shuffle over which a fetcher stops */
+  private static final float MEMORY_PRESSURE = 0.9f;
+  /** The throughput growth expected from a new fetcher */
+  private static final float MIN_THROUGHPUT_GAIN = 1.1f;
+  /** The periods without new fetcher after one stopped */
+  private static final int HOLD_PERIODS = 5;
   
   private final TaskAttemptID reduceId;
   private final JobConf jobConf;
@@ -57,6 +73,15 @@ public class Shuffle<K, V> implements ExceptionReporter {
   private final Progress copyPhase;
   private final TaskStatus taskStatus;
   private final Task reduceTask; //Used for status updates
+
+  private final List<Fetcher<K,V>> fetchers = new ArrayList<Fetcher<K,V>>();
+  private final List<Fetcher<K,V>> retiredFetchers =
+    new ArrayList<Fetcher<K,V>>();
+  private long lastAdjustTime;
+  private long lastBytesShuffled = 0;
+  private float lastThroughput = 0;
+  private boolean fetcherAdded = false;
+  private int holdPeriods = 0;
   
   public Shuffle(TaskAttemptID reduceId, JobConf jobConf, FileSystem localFS,
                  TaskUmbilicalProtocol umbilical,
@@ -106,17 +131,21 @@ public class Shuffle<K, V> implements ExceptionReporter {
     
     // Start the map-output fetcher threads
     final int numFetchers = jobConf.getInt(MRJobConfig.SHUFFLE_PARALLEL_COPIES, 5);
-    Fetcher<K,V>[] fetchers = new Fetcher[numFetchers];
     for (int i=0; i < numFetchers; ++i) {
-      fetchers[i] = new Fetcher<K,V>(jobConf, reduceId, scheduler, merger, 
-                                     reporter, metrics, this, 
-                                     reduceTask.getJobTokenSecret());
-      fetchers[i].start();
+      startFetcher();
     }
+    final boolean adaptive =
+      jobConf.getBoolean(MRJobConfig.SHUFFLE_FETCHERS_ADAPTIVE, false);
+    final int maxFetchers = Math.max(numFetchers,
+        jobConf.getInt(MRJobConfig.SHUFFLE_FETCHERS_MAX, 20));
+    lastAdjustTime = System.currentTimeMillis();
     
     // Wait for shuffle to complete successfully
     while (!scheduler.waitUntilDone(PROGRESS_FREQUENCY)) {
       reporter.progress();
+      if (adaptive) {
+        adjustFetchers(maxFetchers);
+      }
       
       synchronized (this) {
         if (throwable != null) {
@@ -133,7 +162,11 @@ public class Shuffle<K, V> implements ExceptionReporter {
     for (Fetcher<K,V> fetcher : fetchers) {
       fetcher.shutDown();
     }
-    fetchers = null;
+    for (Fetcher<K,V> fetcher : retiredFetchers) {
+      fetcher.shutDown();
+    }
+    fetchers.clear();
+    retiredFetchers.clear();
     
     // stop the scheduler
     scheduler.close();
@@ -161,6 +194,62 @@ public class Shuffle<K, V> implements ExceptionReporter {
     return kvIter;
   }
 
+  private void startFetcher() {
+    Fetcher<K,V> fetcher = new Fetcher<K,V>(jobConf, reduceId, scheduler,
+                                            merger, reporter, metrics, this,
+                                            reduceTask.getJobTokenSecret());
+    fetchers.add(fetcher);
+    metrics.setNumCopiers(fetchers.size());
+    fetcher.start();
+  }
+
+  private void retireFetcher() {
+    Fetcher<K,V> fetcher = fetchers.remove(fetchers.size() - 1);
+    fetcher.retire();
+    retiredFetchers.add(fetcher);
+    metrics.setNumCopiers(fetchers.size());
+  }
+
+  /**
+   * Start a new fetcher while the throughput of the shuffle grows with the
+   * fetchers and hosts wait for one. Stop a fetcher when the memory of the
+   * shuffle runs short, or when the last fetcher started did not raise the
+   * throughput.
+   */
+  private void adjustFetchers(int maxFetchers) {
+    final long now = System.currentTimeMillis();
+    if (now - lastAdjustTime < ADJUST_PERIOD) {
+      return;
+    }
+    final long bytes = scheduler.getBytesShuffled();
+    final float throughput =
+      (float) (bytes - lastBytesShuffled) / (now - lastAdjustTime);
+    final float memoryUsage = merger.getMemoryUsage();
+    boolean added = false;
+    if (memoryUsage > MEMORY_PRESSURE || 
+        (fetcherAdded && throughput < lastThroughput * MIN_THROUGHPUT_GAIN)) {
+      if (fetchers.size() > 1) {
+        retireFetcher();
+        LOG.info("Stopped a fetcher, " + fetchers.size() + " left, with a" +
+                 " throughput of " + throughput + " bytes/ms and " +
+                 memoryUsage + " of the memory used");
+      }
+      holdPeriods = HOLD_PERIODS;
+    } else if (holdPeriods > 0) {
+      --holdPeriods;
+    } else if (fetchers.size() < maxFetchers &&
+               scheduler.getNumPendingHosts() > 0) {
+      startFetcher();
+      added = true;
+      LOG.info("Started a fetcher, " + fetchers.size() + " running, with a" +
+               " throughput of " + throughput + " bytes/ms");
+    }
+    fetcherAdded = added;
+    lastThroughput = throughput;
+    lastBytesShuffled = bytes;
+    lastAdjustTime = now;
+  }
+
   public synchronized void reportException(Throwable t) {
     if (throwable == null) {
       throwable = t;
@@ -17,6 +17,9 @@
  */
 package org.apache.hadoop.mapreduce.task.reduce;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.TaskAttemptID;
@@ -32,21 +35,59 @@ class ShuffleClientMetrics implements Updater {
   private int numSuccessFetches = 0;
   private long numBytes = 0;
   private int numThreadsBusy = 0;
-  private final int numCopiers;
+  private int numCopiers;
+
+  /** The copies from a host since the last update */
+  private static class HostMetrics {
+    final MetricsRecord record;
+    long numBytes = 0;
+    long millis = 0;
+
+    HostMetrics(MetricsRecord record) {
+      this.record = record;
+    }
+  }
+
+  private final TaskAttemptID reduceId;
+  private final JobConf jobConf;
+  private final MetricsContext metricsContext;
+  private final Map<String, HostMetrics> hostMetrics =
+    new HashMap<String, HostMetrics>();
   
   ShuffleClientMetrics(TaskAttemptID reduceId, JobConf jobConf) {
     this.numCopiers = jobConf.getInt(MRJobConfig.SHUFFLE_PARALLEL_COPIES, 5);
+    this.reduceId = reduceId;
+    this.jobConf = jobConf;
 
-    MetricsContext metricsContext = MetricsUtil.getContext("mapred");
-    this.shuffleMetrics = 
-      MetricsUtil.createRecord(metricsContext, "shuffleInput");
-    this.shuffleMetrics.setTag("user", jobConf.getUser());
-    this.shuffleMetrics.setTag("jobName", jobConf.getJobName());
-    this.shuffleMetrics.setTag("jobId", reduceId.getJobID().toString());
-    this.shuffleMetrics.setTag("taskId", reduceId.toString());
-    this.shuffleMetrics.setTag("sessionId", jobConf.getSessionId());
+    metricsContext = MetricsUtil.getContext("mapred");
+    this.shuffleMetrics = createRecord("shuffleInput");
     metricsContext.registerUpdater(this);
   }
+
+  private MetricsRecord createRecord(String name) {
+    MetricsRecord record = MetricsUtil.createRecord(metricsContext, name);
+    record.setTag("user", jobConf.getUser());
+    record.setTag("jobName", jobConf.getJobName());
+    record.setTag("jobId", reduceId.getJobID().toString());
+    record.setTag("taskId", reduceId.toString());
+    record.setTag("sessionId", jobConf.getSessionId());
+    return record;
+  }
+
+  public synchronized void setNumCopiers(int numCopiers) {
+    this.numCopiers = numCopiers;
+  }
+  public synchronized void hostFetch(String host, long numBytes,
+                                     long millis) {
+    HostMetrics metrics = hostMetrics.get(host);
+    if (metrics == null) {
+      metrics = new HostMetrics(createRecord("shuffleInputHost"));
+      metrics.record.setTag("host", host);
+      hostMetrics.put(host, metrics);
+    }
+    metrics.numBytes += numBytes;
+    metrics.millis += millis;
+  }
   public synchronized void inputBytes(long numBytes) {
     this.numBytes += numBytes;
   }
@@ -78,6 +119,19 @@ class ShuffleClientMetrics implements Updater {
       numBytes = 0;
       numSuccessFetches = 0;
       numFailedFetches = 0;
+      for (HostMetrics host : hostMetrics.values()) {
+        if (host.numBytes == 0) {
+          continue;
+        }
+        host.record.incrMetric("shuffle_host_input_bytes", host.numBytes);
+        // MB/s
+        host.record.setMetric("shuffle_host_fetch_rate",
+            (float) host.numBytes / (1024 * 1024) /
+            Math.max(1, host.millis) * 1000);
+        host.record.update();
+        host.numBytes = 0;
+        host.millis = 0;
+      }
     }
     shuffleMetrics.update();
   }
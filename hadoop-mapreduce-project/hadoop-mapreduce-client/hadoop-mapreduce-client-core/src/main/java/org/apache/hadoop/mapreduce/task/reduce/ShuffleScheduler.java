@@ -63,7 +63,7 @@ class ShuffleScheduler<K,V> {
   private Set<MapHost> pendingHosts = new HashSet<MapHost>();
   private Set<TaskAttemptID> obsoleteMaps = new HashSet<TaskAttemptID>();
   
-  private final Random random = new Random(System.currentTimeMillis());
+  private final Random random = new Random();
   private final DelayQueue<Penalty> penalties = new DelayQueue<Penalty>();
   private final Referee referee = new Referee();
   private final Map<TaskAttemptID,IntWritable> failureCounts =
@@ -89,6 +89,9 @@ class ShuffleScheduler<K,V> {
   private DecimalFormat  mbpsFormat = new DecimalFormat("0.00");
 
   private boolean reportReadErrorImmediately = true;
+
+  // weigh the random choice of the hosts by their map outputs and bandwidth
+  private final boolean adaptive;
   
   public ShuffleScheduler(JobConf job, TaskStatus status,
                           ExceptionReporter reporter,
@@ -115,6 +118,8 @@ class ShuffleScheduler<K,V> {
         MRJobConfig.SHUFFLE_FETCH_FAILURES, REPORT_FAILURE_LIMIT);
     this.reportReadErrorImmediately = job.getBoolean(
         MRJobConfig.SHUFFLE_NOTIFY_READERROR, true);
+    this.adaptive = job.getBoolean(MRJobConfig.SHUFFLE_FETCHERS_ADAPTIVE,
+        false);
   }
 
   public synchronized void copySucceeded(TaskAttemptID mapId, 
@@ -125,6 +130,7 @@ class ShuffleScheduler<K,V> {
                                          ) throws IOException {
     failureCounts.remove(mapId);
     hostFailures.remove(host.getHostName());
+    host.fetched(bytes, millis);
     int mapIndex = mapId.getTaskID().getId();
     
     if (!finishedMaps[mapIndex]) {
@@ -291,10 +297,14 @@ class ShuffleScheduler<K,V> {
       }
       
       MapHost host = null;
-      Iterator<MapHost> iter = pendingHosts.iterator();
-      int numToPick = random.nextInt(pendingHosts.size());
-      for (int i=0; i <= numToPick; ++i) {
-        host = iter.next();
+      if (adaptive) {
+        host = selectHost();
+      } else {
+        Iterator<MapHost> iter = pendingHosts.iterator();
+        int numToPick = random.nextInt(pendingHosts.size());
+        for (int i=0; i <= numToPick; ++i) {
+          host = iter.next();
+        }
       }
       
       pendingHosts.remove(host);     
@@ -307,6 +317,66 @@ class ShuffleScheduler<K,V> {
       return host;
   }
   
+  /**
+   * Pick a pending host at random, in proportion of its map outputs ready.
+   * The outputs of a host slower than the average of the hosts count in
+   * proportion of its bandwidth, so that the fetchers go to the slow hosts
+   * less often. The choice is random rather than the best host, so that the
+   * reduces of a job do not all fetch from the same host at once.
+   */
+  private MapHost selectHost() {
+    float totalRate = 0;
+    int ratedHosts = 0;
+    for (MapHost host : mapLocations.values()) {
+      float rate = host.getFetchRate();
+      if (rate >= 0) {
+        totalRate += rate;
+        ++ratedHosts;
+      }
+    }
+    final float averageRate = ratedHosts == 0 ? 0 : totalRate / ratedHosts;
+
+    MapHost[] hosts = pendingHosts.toArray(new MapHost[pendingHosts.size()]);
+    float[] scores = new float[hosts.length];
+    float totalScore = 0;
+    for (int i = 0; i < hosts.length; ++i) {
+      float score = hosts[i].getNumKnownMapOutputs();
+      float rate = hosts[i].getFetchRate();
+      if (rate >= 0 && rate < averageRate) {
+        score *= rate / averageRate;
+      }
+      scores[i] = score;
+      totalScore += score;
+    }
+    if (totalScore <= 0) {
+      return hosts[random.nextInt(hosts.length)];
+    }
+
+    float pick = random.nextFloat() * totalScore;
+    MapHost last = null;
+    for (int i = 0; i < hosts.length; ++i) {
+      if (scores[i] > 0) {
+        last = hosts[i];
+        pick -= scores[i];
+        if (pick < 0) {
+          return last;
+        }
+      }
+    }
+    // rounding left the pick past the last score
+    return last;
+  }
+
+  /** @return the number of hosts with map outputs waiting for a fetcher */
+  public synchronized int getNumPendingHosts() {
+    return pendingHosts.size();
+  }
+
+  /** @return the bytes of the map outputs copied so far */
+  public synchronized long getBytesShuffled() {
+    return totalBytesShuffledTillNow;
+  }
+
   public synchronized List<TaskAttemptID> getMapsForHost(MapHost host) {
     List<TaskAttemptID> list = host.getAndClearKnownMaps();
     Iterator<TaskAttemptID> itr = list.iterator();
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitIndex;
+import org.junit.Test;
+
+/**
+ * Test that combining the map outputs in hash tables gives the same sums as
+ * the combiner of the spills, with less map output bytes when the keys
+ * repeat, and that it stops when they do not.
+ */
+public class TestHashCombiner {
+  private static final Log LOG = LogFactory.getLog(TestHashCombiner.class);
+  private static final int PARTITIONS = 4;
+  private static final int RECORDS = 200000;
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "target/test-dir"),
+      "TestHashCombiner").getAbsoluteFile();
+  private static final File LOCAL_DIR = new File(TEST_DIR, "local");
+
+  /** The sums of the values of the keys in the map output, and counters */
+  private static class MapOutput {
+    Map<String, Long> sums = new HashMap<String, Long>();
+    Counters counters;
+
+    long counter(TaskCounter counter) {
+      return counters.findCounter(counter).getValue();
+    }
+  }
+
+  private static MapOutput collect(boolean hash, int keys) throws Exception {
+    JobConf job = new JobConf();
+    job.set(MRConfig.LOCAL_DIR, LOCAL_DIR.getPath());
+    job.setNumReduceTasks(PARTITIONS);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setInt(MRJobConfig.IO_SORT_MB, 1);
+    job.setCombinerClass(LongSumReducer.class);
+    job.setBoolean(MRJobConfig.MAP_COMBINE_HASH, hash);
+    job.setInt(MRJobConfig.MAP_COMBINE_HASH_MEMORY_MB, 1);
+
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(LOCAL_DIR.mkdirs());
+    MapTask task = new MapTask("job.xml",
+        TaskAttemptID.forName("attempt_200707121733_0001_m_000000_0"), 0,
+        new TaskSplitIndex(), 1);
+    task.setConf(job);
+    Field sortPhase = MapTask.class.getDeclaredField("sortPhase");
+    sortPhase.setAccessible(true);
+    sortPhase.set(task, task.getProgress().addPhase("sort"));
+    Task.TaskReporter reporter =
+      task.new TaskReporter(task.getProgress(), null);
+
+    MapOutputCollector<Text, LongWritable> collector =
+      task.createSortingCollector(job, reporter);
+    assertEquals(hash, collector instanceof HashCombiner);
+    Random r = new Random(0xDEADBEEFL);
+    Text key = new Text();
+    LongWritable value = new LongWritable();
+    for (int i = 0; i < RECORDS; i++) {
+      int k = keys == RECORDS ? i : r.nextInt(keys);
+      key.set("key" + k);
+      value.set(r.nextInt(100));
+      collector.collect(key, value, k % PARTITIONS);
+    }
+    collector.flush();
+    collector.close();
+
+    MapOutput out = new MapOutput();
+    out.counters = task.getCounters();
+    FileSystem fs = FileSystem.getLocal(job).getRaw();
+    SpillRecord index =
+      new SpillRecord(task.mapOutputFile.getOutputIndexFile(), job);
+    DataInputBuffer rawKey = new DataInputBuffer();
+    DataInputBuffer rawValue = new DataInputBuffer();
+    for (int p = 0; p < PARTITIONS; ++p) {
+      IndexRecord rec = index.getIndex(p);
+      FSDataInputStream in = fs.open(task.mapOutputFile.getOutputFile());
+      in.seek(rec.startOffset);
+      IFile.Reader<Text, LongWritable> reader =
+        new IFile.Reader<Text, LongWritable>(job, in, rec.partLength, null,
+            null);
+      while (reader.nextRawKey(rawKey)) {
+        key.readFields(rawKey);
+        reader.nextRawValue(rawValue);
+        value.readFields(rawValue);
+        Long sum = out.sums.get(key.toString());
+        out.sums.put(key.toString(),
+            (sum == null ? 0 : sum) + value.get());
+      }
+      reader.close();
+    }
+    return out;
+  }
+
+  @Test
+  public void testRepeatedKeys() throws Exception {
+    MapOutput spill = collect(false, 1000);
+    MapOutput hash = collect(true, 1000);
+    assertEquals(spill.sums, hash.sums);
+
+    long input = hash.counter(TaskCounter.MAP_HASH_COMBINE_INPUT_BYTES);
+    long output = hash.counter(TaskCounter.MAP_HASH_COMBINE_OUTPUT_BYTES);
+    LOG.info("Map output bytes: " +
+        spill.counter(TaskCounter.MAP_OUTPUT_BYTES) + " without the hash" +
+        " combiner, " + hash.counter(TaskCounter.MAP_OUTPUT_BYTES) +
+        " with it, which combined " + input + " bytes into " + output);
+    assertTrue(input > 0);
+    assertTrue(output * 10 < input);
+    assertEquals(output, hash.counter(TaskCounter.MAP_OUTPUT_BYTES));
+    assertTrue(hash.counter(TaskCounter.MAP_OUTPUT_BYTES) * 10 <
+        spill.counter(TaskCounter.MAP_OUTPUT_BYTES));
+    assertEquals(1, hash.counter(TaskCounter.MAP_SPILLS));
+  }
+
+  @Test
+  public void testUniqueKeys() throws Exception {
+    MapOutput spill = collect(false, RECORDS);
+    MapOutput hash = collect(true, RECORDS);
+    assertEquals(spill.sums, hash.sums);
+    assertEquals(RECORDS, hash.sums.size());
+
+    // the tables were given up after they first filled
+    long input = hash.counter(TaskCounter.MAP_HASH_COMBINE_INPUT_BYTES);
+    assertTrue(input > 0);
+    assertEquals(input,
+        hash.counter(TaskCounter.MAP_HASH_COMBINE_OUTPUT_BYTES));
+    assertTrue(input * 2 < hash.counter(TaskCounter.MAP_OUTPUT_BYTES));
+    assertEquals(spill.counter(TaskCounter.MAP_OUTPUT_BYTES),
+        hash.counter(TaskCounter.MAP_OUTPUT_BYTES));
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BoundedByteArrayOutputStream;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.reduce.InMemoryReader;
+import org.apache.hadoop.mapreduce.task.reduce.InMemoryWriter;
+import org.apache.hadoop.util.Progress;
+import org.junit.Test;
+
+/**
+ * Test that {@link LoserTreeMerger} merges in-memory segments like
+ * {@link Merger}, and compare the time they take to merge many segments.
+ */
+public class TestLoserTreeMerger {
+  private static final Log LOG = LogFactory.getLog(TestLoserTreeMerger.class);
+  private static final TaskAttemptID MAP_ID =
+    TaskAttemptID.forName("attempt_200707121733_0001_m_000000_0");
+
+  private final JobConf conf = new JobConf();
+
+  /** Text.Comparator, without a known key prefix */
+  private static class PlainTextComparator extends Text.Comparator {
+  }
+
+  private static final RawComparator<Text> TEXT_COMPARATOR =
+    forText(WritableComparator.get(Text.class));
+  private static final RawComparator<Text> PLAIN_TEXT_COMPARATOR =
+    forText(new PlainTextComparator());
+
+  /** The raw WritableComparator of Text keys, typed for them */
+  @SuppressWarnings("unchecked")
+  private static RawComparator<Text> forText(RawComparator<?> comparator) {
+    return (RawComparator<Text>) comparator;
+  }
+
+  /**
+   * Build sorted segments of random Text keys. The value of each record is
+   * the index of its segment.
+   */
+  private static List<byte[]> createSegments(int numSegments, int records,
+      int distinctKeys, long seed) throws IOException {
+    Random r = new Random(seed);
+    List<byte[]> segments = new ArrayList<byte[]>(numSegments);
+    DataOutputBuffer key = new DataOutputBuffer();
+    DataOutputBuffer value = new DataOutputBuffer();
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    for (int s = 0; s < numSegments; ++s) {
+      // segments of various lengths, some of them empty
+      int n = s % 17 == 0 ? 0 : r.nextInt(2 * records);
+      String[] keys = new String[n];
+      for (int i = 0; i < n; ++i) {
+        keys[i] = "key" + r.nextInt(distinctKeys);
+      }
+      Arrays.sort(keys);
+      BoundedByteArrayOutputStream out =
+        new BoundedByteArrayOutputStream(64 + n * 32);
+      InMemoryWriter<Text, IntWritable> writer =
+        new InMemoryWriter<Text, IntWritable>(out);
+      for (String k : keys) {
+        key.reset();
+        new Text(k).write(key);
+        value.reset();
+        new IntWritable(s).write(value);
+        keyIn.reset(key.getData(), key.getLength());
+        valueIn.reset(value.getData(), value.getLength());
+        writer.append(keyIn, valueIn);
+      }
+      writer.close();
+      segments.add(Arrays.copyOf(out.getBuffer(), out.size()));
+    }
+    return segments;
+  }
+
+  private static List<Merger.Segment<Text, IntWritable>> toSegments(
+      List<byte[]> data) throws IOException {
+    List<Merger.Segment<Text, IntWritable>> segments =
+      new ArrayList<Merger.Segment<Text, IntWritable>>();
+    for (byte[] b : data) {
+      segments.add(new Merger.Segment<Text, IntWritable>(
+          new InMemoryReader<Text, IntWritable>(null, MAP_ID, b, 0, b.length),
+          true));
+    }
+    return segments;
+  }
+
+  private RawKeyValueIterator merger(List<byte[]> data,
+      RawComparator<Text> comparator) throws IOException {
+    return Merger.merge(conf, FileSystem.getLocal(conf), Text.class,
+        IntWritable.class, toSegments(data), data.size(),
+        new Path("tmp"), comparator, Reporter.NULL, null, null, null);
+  }
+
+  private LoserTreeMerger<Text, IntWritable> loserTree(List<byte[]> data,
+      RawComparator<Text> comparator, Progress progress) throws IOException {
+    return new LoserTreeMerger<Text, IntWritable>(toSegments(data),
+        comparator, progress);
+  }
+
+  private static byte[] bytes(DataInputBuffer b) {
+    return Arrays.copyOfRange(b.getData(), b.getPosition(), b.getLength());
+  }
+
+  private static int segmentOf(DataInputBuffer value) {
+    return WritableComparator.readInt(value.getData(), value.getPosition());
+  }
+
+  private void checkMerge(List<byte[]> data, RawComparator<Text> comparator)
+      throws IOException {
+    RawKeyValueIterator expected = merger(data, comparator);
+    Progress progress = new Progress();
+    RawKeyValueIterator actual = loserTree(data, comparator, progress);
+    byte[] lastKey = null;
+    int lastSegment = -1;
+    int records = 0;
+    while (expected.next()) {
+      assertTrue(actual.next());
+      byte[] key = bytes(actual.getKey());
+      assertTrue(Arrays.equals(bytes(expected.getKey()), key));
+      // the records of equal keys come in the order of their segments
+      int segment = segmentOf(actual.getValue());
+      if (lastKey != null && Arrays.equals(lastKey, key)) {
+        assertTrue(lastSegment <= segment);
+      }
+      lastKey = key;
+      lastSegment = segment;
+      ++records;
+    }
+    assertFalse(actual.next());
+    assertFalse(actual.next());
+    assertEquals(1.0f, progress.getProgress(), 0.0001f);
+    expected.close();
+    actual.close();
+    LOG.info("Merged " + records + " records from " + data.size() +
+             " segments");
+  }
+
+  @Test
+  public void testMerge() throws IOException {
+    List<byte[]> data = createSegments(150, 500, 2000, 0xDEADBEEFL);
+    checkMerge(data, TEXT_COMPARATOR);
+    checkMerge(data, PLAIN_TEXT_COMPARATOR);
+    // keys sharing their first 8 bytes
+    checkMerge(createSegments(20, 500, 20, 1L), TEXT_COMPARATOR);
+  }
+
+  @Test
+  public void testFewSegments() throws IOException {
+    for (int n = 0; n <= 5; ++n) {
+      checkMerge(createSegments(n, 100, 50, n), PLAIN_TEXT_COMPARATOR);
+    }
+    LoserTreeMerger<Text, IntWritable> empty =
+      loserTree(new ArrayList<byte[]>(), PLAIN_TEXT_COMPARATOR, null);
+    assertFalse(empty.next());
+    empty.close();
+  }
+
+  @Test
+  public void testCorruptSegment() throws IOException {
+    List<byte[]> data = createSegments(3, 100, 50, 2L);
+    // drop the EOF marker and the checksum of the second segment
+    data.set(1, Arrays.copyOf(data.get(1), data.get(1).length - 6));
+    LoserTreeMerger<Text, IntWritable> merger = null;
+    try {
+      merger = loserTree(data, PLAIN_TEXT_COMPARATOR, null);
+      while (merger.next()) {
+      }
+      assertTrue("Expected an IOException", false);
+    } catch (IOException e) {
+      LOG.info("Expected: " + e);
+    }
+  }
+
+  private static long time(RawKeyValueIterator iter) throws IOException {
+    long start = System.currentTimeMillis();
+    long checksum = 0;
+    while (iter.next()) {
+      checksum += iter.getKey().getLength() + iter.getValue().getLength();
+    }
+    iter.close();
+    assertTrue(checksum > 0);
+    return System.currentTimeMillis() - start;
+  }
+
+  @Test
+  public void testBenchmark() throws IOException {
+    final int segments = 200;
+    List<byte[]> data = createSegments(segments, 5000, 1000000, 3L);
+    RawComparator<Text> comparator = TEXT_COMPARATOR;
+    // warm up
+    time(merger(data, comparator));
+    time(loserTree(data, comparator, null));
+
+    long merger = time(merger(data, comparator));
+    long loserTree = time(loserTree(data, comparator, null));
+    long plainLoserTree = time(loserTree(data, PLAIN_TEXT_COMPARATOR,
+                                         null));
+    LOG.info("Merge of " + segments + " in-memory segments: " + merger +
+             "ms with Merger, " + loserTree + "ms with a loser tree, " +
+             plainLoserTree + "ms with a loser tree without key prefixes");
+  }
+}
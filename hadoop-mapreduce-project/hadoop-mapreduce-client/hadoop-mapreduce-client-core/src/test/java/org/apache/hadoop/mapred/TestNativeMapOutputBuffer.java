@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitIndex;
+import org.apache.hadoop.util.NativeRecordSort;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+/**
+ * Test that the native map output collector writes the records the Java one
+ * does, in the same order, and that it leaves the jobs it does not support
+ * to the next collector.
+ */
+public class TestNativeMapOutputBuffer {
+  private static final Log LOG =
+    LogFactory.getLog(TestNativeMapOutputBuffer.class);
+  private static final int PARTITIONS = 5;
+  private static final int RECORDS = 100000;
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "target/test-dir"),
+      "TestNativeMapOutputBuffer").getAbsoluteFile();
+  private static final File LOCAL_DIR = new File(TEST_DIR, "local");
+
+  /** Sorts Text keys in reverse */
+  public static class ReverseTextComparator extends Text.Comparator {
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return -super.compare(b1, s1, l1, b2, s2, l2);
+    }
+  }
+
+  /** The records of each partition of a map output, and the time taken */
+  private static class MapOutput {
+    List<List<String>> partitions = new ArrayList<List<String>>();
+    long millis;
+    Counters counters;
+  }
+
+  private static JobConf newConf(Class<?> keyClass, boolean combine) {
+    JobConf job = new JobConf();
+    job.set(MRConfig.LOCAL_DIR, LOCAL_DIR.getPath());
+    job.setNumReduceTasks(PARTITIONS);
+    job.setMapOutputKeyClass(keyClass);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setInt(MRJobConfig.IO_SORT_MB, 1);
+    if (combine) {
+      job.setCombinerClass(LongSumReducer.class);
+    }
+    job.setStrings(MRJobConfig.MAP_OUTPUT_COLLECTOR_CLASS_ATTR,
+        MapTask.NativeMapOutputBuffer.class.getName(),
+        MapTask.MapOutputBuffer.class.getName());
+    return job;
+  }
+
+  private static MapTask newTask(JobConf job) throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(LOCAL_DIR.mkdirs());
+    MapTask task = new MapTask("job.xml",
+        TaskAttemptID.forName("attempt_200707121733_0001_m_000000_0"), 0,
+        new TaskSplitIndex(), 1);
+    task.setConf(job);
+    Field sortPhase = MapTask.class.getDeclaredField("sortPhase");
+    sortPhase.setAccessible(true);
+    sortPhase.set(task, task.getProgress().addPhase("sort"));
+    return task;
+  }
+
+  private static void setKey(Writable key, int k) {
+    if (key instanceof Text) {
+      ((Text) key).set("key" + k);
+    } else if (key instanceof BytesWritable) {
+      byte[] b = Integer.toString(k, 7).getBytes();
+      ((BytesWritable) key).set(b, 0, b.length);
+    } else if (key instanceof IntWritable) {
+      ((IntWritable) key).set(k - RECORDS / 2);
+    } else {
+      ((LongWritable) key).set((k - RECORDS / 2) * 0x100000001L);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static MapOutput collect(JobConf job, boolean nativeSort)
+      throws Exception {
+    if (!nativeSort) {
+      job.setClass(MRJobConfig.MAP_OUTPUT_COLLECTOR_CLASS_ATTR,
+          MapTask.MapOutputBuffer.class, MapOutputCollector.class);
+    }
+    MapTask task = newTask(job);
+    Task.TaskReporter reporter =
+      task.new TaskReporter(task.getProgress(), null);
+    long start = System.currentTimeMillis();
+    MapOutputCollector<Writable, LongWritable> collector =
+      task.createSortingCollector(job, reporter);
+    assertEquals(nativeSort,
+        collector instanceof MapTask.NativeMapOutputBuffer);
+    Random r = new Random(0xDEADBEEFL);
+    Writable key = (Writable) ReflectionUtils.newInstance(
+        job.getMapOutputKeyClass(), job);
+    LongWritable value = new LongWritable();
+    for (int i = 0; i < RECORDS; i++) {
+      setKey(key, r.nextInt(RECORDS / 4));
+      value.set(i);
+      collector.collect(key, value, r.nextInt(PARTITIONS));
+    }
+    collector.flush();
+    collector.close();
+
+    MapOutput out = new MapOutput();
+    out.millis = System.currentTimeMillis() - start;
+    out.counters = task.getCounters();
+    FileSystem fs = FileSystem.getLocal(job).getRaw();
+    SpillRecord index =
+      new SpillRecord(task.mapOutputFile.getOutputIndexFile(), job);
+    DataInputBuffer rawKey = new DataInputBuffer();
+    DataInputBuffer rawValue = new DataInputBuffer();
+    for (int p = 0; p < PARTITIONS; ++p) {
+      IndexRecord rec = index.getIndex(p);
+      FSDataInputStream in = fs.open(task.mapOutputFile.getOutputFile());
+      in.seek(rec.startOffset);
+      IFile.Reader<Writable, LongWritable> reader =
+        new IFile.Reader<Writable, LongWritable>(job, in, rec.partLength,
+            null, null);
+      List<String> records = new ArrayList<String>();
+      while (reader.nextRawKey(rawKey)) {
+        key.readFields(rawKey);
+        reader.nextRawValue(rawValue);
+        value.readFields(rawValue);
+        records.add(key + "\t" + value);
+      }
+      reader.close();
+      out.partitions.add(records);
+    }
+    return out;
+  }
+
+  /**
+   * @return the keys of the records in order, with the records of each key
+   *         in the order of their values, as the sort of equal keys is not
+   *         stable
+   */
+  private static List<String> byKeyThenValue(List<String> records) {
+    List<String> sorted = new ArrayList<String>();
+    int start = 0;
+    while (start < records.size()) {
+      String key = records.get(start).split("\t")[0];
+      int end = start;
+      List<Long> values = new ArrayList<Long>();
+      while (end < records.size() &&
+          records.get(end).split("\t")[0].equals(key)) {
+        values.add(Long.valueOf(records.get(end).split("\t")[1]));
+        ++end;
+      }
+      Collections.sort(values);
+      for (Long v : values) {
+        sorted.add(key + "\t" + v);
+      }
+      start = end;
+    }
+    return sorted;
+  }
+
+  private static void checkSameOutput(Class<? extends WritableComparable<?>>
+      keyClass, boolean combine) throws Exception {
+    MapOutput java = collect(newConf(keyClass, combine), false);
+    MapOutput nativeOut = collect(newConf(keyClass, combine), true);
+    LOG.info("Collected " + RECORDS + " records with " +
+        keyClass.getSimpleName() + " keys in " + java.millis +
+        "ms with the Java collector, " + nativeOut.millis +
+        "ms with the native one" + (combine ? ", combining" : ""));
+    assertTrue(
+        nativeOut.counters.findCounter(TaskCounter.MAP_SPILLS).getValue() > 1);
+    for (int p = 0; p < PARTITIONS; ++p) {
+      List<String> expected = java.partitions.get(p);
+      List<String> actual = nativeOut.partitions.get(p);
+      if (combine) {
+        assertEquals(expected, actual);
+      } else {
+        assertEquals(byKeyThenValue(expected), byKeyThenValue(actual));
+      }
+    }
+    for (TaskCounter counter : new TaskCounter[] {
+        TaskCounter.MAP_OUTPUT_RECORDS, TaskCounter.SPILLED_RECORDS,
+        TaskCounter.MAP_SPILLS, TaskCounter.COMBINE_OUTPUT_RECORDS }) {
+      assertEquals(counter.toString(),
+          java.counters.findCounter(counter).getValue(),
+          nativeOut.counters.findCounter(counter).getValue());
+    }
+  }
+
+  @Test
+  public void testSameOutput() throws Exception {
+    assumeTrue(NativeRecordSort.isAvailable());
+    checkSameOutput(Text.class, false);
+    checkSameOutput(BytesWritable.class, false);
+    checkSameOutput(IntWritable.class, false);
+    checkSameOutput(LongWritable.class, false);
+  }
+
+  @Test
+  public void testCombine() throws Exception {
+    assumeTrue(NativeRecordSort.isAvailable());
+    checkSameOutput(Text.class, true);
+    checkSameOutput(LongWritable.class, true);
+  }
+
+  /** The native sort reads the metadata blocks MapOutputBuffer writes. */
+  @Test
+  public void testMetadataLayout() {
+    assertEquals(NativeRecordSort.META_INDEX, MapTask.MapOutputBuffer.INDEX);
+    assertEquals(NativeRecordSort.META_VALSTART,
+        MapTask.MapOutputBuffer.VALSTART);
+    assertEquals(NativeRecordSort.META_KEYSTART,
+        MapTask.MapOutputBuffer.KEYSTART);
+    assertEquals(NativeRecordSort.META_PARTITION,
+        MapTask.MapOutputBuffer.PARTITION);
+    assertEquals(NativeRecordSort.META_INTS, MapTask.MapOutputBuffer.NMETA);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static boolean usesNativeSort(JobConf job) throws Exception {
+    MapTask task = newTask(job);
+    MapOutputCollector<Object, Object> collector =
+      task.createSortingCollector(job,
+          task.new TaskReporter(task.getProgress(), null));
+    collector.flush();
+    collector.close();
+    assertTrue(collector instanceof MapTask.MapOutputBuffer);
+    return collector instanceof MapTask.NativeMapOutputBuffer;
+  }
+
+  /** The jobs the native collector does not support use the next one. */
+  @Test
+  public void testFallback() throws Exception {
+    assertEquals(NativeRecordSort.isAvailable(),
+        usesNativeSort(newConf(Text.class, false)));
+    assertFalse(usesNativeSort(newConf(FloatWritable.class, false)));
+    JobConf job = newConf(Text.class, false);
+    job.setOutputKeyComparatorClass(ReverseTextComparator.class);
+    assertFalse(usesNativeSort(job));
+  }
+}
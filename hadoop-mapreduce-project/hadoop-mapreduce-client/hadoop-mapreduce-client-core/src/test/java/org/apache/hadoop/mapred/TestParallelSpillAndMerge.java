@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitIndex;
+import org.junit.Test;
+
+/**
+ * Test that the map output collectors write the same map output when the
+ * partitions are spilled and merged by several threads, and compare the
+ * time taken with one thread and with several.
+ */
+public class TestParallelSpillAndMerge {
+  private static final Log LOG =
+      LogFactory.getLog(TestParallelSpillAndMerge.class);
+  private static final int PARTITIONS = 8;
+  private static final int THREADS = 4;
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "target/test-dir"),
+      "TestParallelSpillAndMerge").getAbsoluteFile();
+  private static final File LOCAL_DIR = new File(TEST_DIR, "local");
+
+  /** The map output file and its index, and the time taken to write them */
+  private static class MapOutput {
+    byte[] data;
+    byte[] index;
+    long millis;
+    Counters counters;
+  }
+
+  private static JobConf newConf(Class<?> collector, int threads,
+      boolean combine) {
+    JobConf job = new JobConf();
+    job.set(MRConfig.LOCAL_DIR, LOCAL_DIR.getPath());
+    job.setNumReduceTasks(PARTITIONS);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setInt(MRJobConfig.IO_SORT_MB, 1);
+    job.setInt(MRJobConfig.IO_SORT_OFFHEAP_SEGMENT_KB, 64);
+    // intermediate merges of the partitions
+    job.setInt(MRJobConfig.IO_SORT_FACTOR, 3);
+    job.setInt(MRJobConfig.MAP_SORT_THREADS, threads);
+    job.setClass(MRJobConfig.MAP_OUTPUT_COLLECTOR_CLASS_ATTR, collector,
+        MapOutputCollector.class);
+    if (combine) {
+      job.setCombinerClass(LongSumReducer.class);
+    }
+    return job;
+  }
+
+  private static MapOutput collect(JobConf job, int records)
+      throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(LOCAL_DIR.mkdirs());
+    MapTask task = new MapTask("job.xml",
+        TaskAttemptID.forName("attempt_200707121733_0001_m_000000_0"), 0,
+        new TaskSplitIndex(), 1);
+    task.setConf(job);
+    Field sortPhase = MapTask.class.getDeclaredField("sortPhase");
+    sortPhase.setAccessible(true);
+    sortPhase.set(task, task.getProgress().addPhase("sort"));
+    Task.TaskReporter reporter =
+      task.new TaskReporter(task.getProgress(), null);
+
+    long start = System.currentTimeMillis();
+    MapOutputCollector<Text, LongWritable> collector =
+      task.createSortingCollector(job, reporter);
+    Random r = new Random(0xDEADBEEFL);
+    Text key = new Text();
+    LongWritable value = new LongWritable(1);
+    for (int i = 0; i < records; i++) {
+      key.set("key" + r.nextInt(records / 4));
+      collector.collect(key, value, r.nextInt(PARTITIONS));
+    }
+    collector.flush();
+    collector.close();
+
+    MapOutput out = new MapOutput();
+    out.millis = System.currentTimeMillis() - start;
+    out.data = readFile(job, task.mapOutputFile.getOutputFile());
+    out.index = readFile(job, task.mapOutputFile.getOutputIndexFile());
+    out.counters = task.getCounters();
+    return out;
+  }
+
+  private static byte[] readFile(JobConf job, Path path) throws IOException {
+    FileSystem fs = FileSystem.getLocal(job);
+    byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+    IOUtils.readFully(fs.open(path), data, 0, data.length);
+    return data;
+  }
+
+  private static MapOutput checkSameOutput(Class<?> collector,
+      boolean combine) throws Exception {
+    MapOutput serial = collect(newConf(collector, 1, combine), 100000);
+    MapOutput parallel =
+      collect(newConf(collector, THREADS, combine), 100000);
+    assertTrue(parallel.counters.findCounter(TaskCounter.MAP_SPILLS)
+        .getValue() > 3);
+    assertArrayEquals(serial.index, parallel.index);
+    assertArrayEquals(serial.data, parallel.data);
+    // the sort threads count the records they spill and combine
+    for (TaskCounter counter : new TaskCounter[] {
+        TaskCounter.SPILLED_RECORDS, TaskCounter.COMBINE_INPUT_RECORDS,
+        TaskCounter.COMBINE_OUTPUT_RECORDS }) {
+      assertEquals(counter.toString(),
+          serial.counters.findCounter(counter).getValue(),
+          parallel.counters.findCounter(counter).getValue());
+    }
+    return parallel;
+  }
+
+  /** The spills and the merge of each partition combine the records. */
+  private static void checkCombined(MapOutput out) {
+    long in = out.counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS)
+      .getValue();
+    long combined = out.counters
+      .findCounter(TaskCounter.COMBINE_OUTPUT_RECORDS).getValue();
+    assertTrue(in > 100000);
+    assertTrue(combined > 0 && combined < in);
+  }
+
+  @Test
+  public void testMapOutputBuffer() throws Exception {
+    checkSameOutput(MapTask.MapOutputBuffer.class, false);
+    checkCombined(checkSameOutput(MapTask.MapOutputBuffer.class, true));
+  }
+
+  @Test
+  public void testOffHeapMapOutputBuffer() throws Exception {
+    checkSameOutput(MapTask.OffHeapMapOutputBuffer.class, false);
+    checkCombined(
+        checkSameOutput(MapTask.OffHeapMapOutputBuffer.class, true));
+  }
+
+  @Test
+  public void testSpeedup() throws Exception {
+    final int records = 400000;
+    Class<?> collector = MapTask.MapOutputBuffer.class;
+    // warm up
+    collect(newConf(collector, 1, false), records);
+    collect(newConf(collector, THREADS, false), records);
+
+    long serial = collect(newConf(collector, 1, false), records).millis;
+    long parallel =
+      collect(newConf(collector, THREADS, false), records).millis;
+    LOG.info("Collected " + records + " records in " + PARTITIONS +
+        " partitions in " + serial + "ms with one sort thread, " + parallel +
+        "ms with " + THREADS + " sort threads");
+  }
+}
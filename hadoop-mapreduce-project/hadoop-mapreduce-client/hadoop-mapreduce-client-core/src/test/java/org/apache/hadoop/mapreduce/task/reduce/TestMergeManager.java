@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapreduce.task.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.IFile;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MROutputFiles;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.Progress;
+import org.junit.Test;
+
+/**
+ * Test the merges of the map outputs shuffled to memory, with {@link
+ * org.apache.hadoop.mapred.Merger} and with a loser tree.
+ */
+public class TestMergeManager {
+  private static final int MAPS = 60;
+  private static final int RECORDS = 1000;
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "target/test-dir"),
+      "TestMergeManager").getAbsoluteFile();
+
+  private static class FailingReporter implements ExceptionReporter {
+    volatile Throwable error;
+
+    @Override
+    public void reportException(Throwable t) {
+      error = t;
+    }
+  }
+
+  /**
+   * A sorted map output of Text keys and IntWritable values, as it is
+   * shuffled to memory
+   */
+  private static byte[] mapOutput(int map) throws Exception {
+    Random r = new Random(map);
+    String[] keys = new String[RECORDS];
+    for (int i = 0; i < RECORDS; ++i) {
+      keys[i] = "key" + r.nextInt(10 * RECORDS);
+    }
+    Arrays.sort(keys);
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataOutputBuffer key = new DataOutputBuffer();
+    DataOutputBuffer value = new DataOutputBuffer();
+    for (String k : keys) {
+      key.reset();
+      new Text(k).write(key);
+      value.reset();
+      new IntWritable(map).write(value);
+      WritableUtils.writeVInt(out, key.getLength());
+      WritableUtils.writeVInt(out, value.getLength());
+      out.write(key.getData(), 0, key.getLength());
+      out.write(value.getData(), 0, value.getLength());
+    }
+    WritableUtils.writeVInt(out, IFile.EOF_MARKER);
+    WritableUtils.writeVInt(out, IFile.EOF_MARKER);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  /**
+   * Shuffle the map outputs to memory and merge them.
+   * @return the number of records given to the reduce
+   */
+  private static long shuffleAndMerge(boolean loserTree,
+      float reduceInputBufferPercent, boolean memToMem, int memoryMaps)
+      throws Throwable {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(TEST_DIR.mkdirs());
+    JobConf job = new JobConf();
+    job.set(MRConfig.LOCAL_DIR, TEST_DIR.getPath());
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(IntWritable.class);
+    job.setBoolean(MRJobConfig.REDUCE_MERGE_LOSER_TREE, loserTree);
+    job.setFloat(MRJobConfig.REDUCE_INPUT_BUFFER_PERCENT,
+                 reduceInputBufferPercent);
+    job.setBoolean(MRJobConfig.REDUCE_MEMTOMEM_ENABLED, memToMem);
+    job.setInt(MRJobConfig.REDUCE_MEMTOMEM_THRESHOLD, 4);
+    job.setLong(MRJobConfig.REDUCE_MEMORY_TOTAL_BYTES,
+                memoryMaps * mapOutput(0).length);
+    job.setFloat(MRJobConfig.SHUFFLE_MERGE_PERCENT, 0.5f);
+    job.setFloat(MRJobConfig.SHUFFLE_MEMORY_LIMIT_PERCENT, 0.2f);
+
+    FailingReporter exceptionReporter = new FailingReporter();
+    Counters counters = new Counters();
+    TaskAttemptID reduceId =
+      TaskAttemptID.forName("attempt_200707121733_0001_r_000000_0");
+    MergeManager<Text, IntWritable> merger =
+      new MergeManager<Text, IntWritable>(reduceId, job,
+          FileSystem.getLocal(job), new LocalDirAllocator(MRConfig.LOCAL_DIR),
+          Reporter.NULL, null, null, null,
+          counters.findCounter(TaskCounter.SPILLED_RECORDS),
+          counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+          counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS),
+          exceptionReporter, new Progress(), new MROutputFiles());
+
+    for (int map = 0; map < MAPS; ++map) {
+      byte[] data = mapOutput(map);
+      TaskAttemptID mapId = TaskAttemptID.forName(
+          "attempt_200707121733_0001_m_0000" + (10 + map) + "_0");
+      MapOutput<Text, IntWritable> output;
+      while ((output = merger.reserve(mapId, data.length, 0)).getType() ==
+             MapOutput.Type.WAIT) {
+        Thread.sleep(10);
+      }
+      assertEquals(MapOutput.Type.MEMORY, output.getType());
+      System.arraycopy(data, 0, output.getMemory(), 0, data.length);
+      output.commit();
+    }
+
+    RawKeyValueIterator iter = merger.close();
+    assertNull(exceptionReporter.error);
+    long records = 0;
+    byte[] previous = null;
+    while (iter.next()) {
+      DataInputBuffer key = iter.getKey();
+      byte[] current = Arrays.copyOfRange(key.getData(), key.getPosition(),
+                                          key.getLength());
+      if (previous != null) {
+        assertTrue(WritableComparator.get(Text.class).compare(previous, 0,
+            previous.length, current, 0, current.length) <= 0);
+      }
+      previous = current;
+      ++records;
+    }
+    iter.close();
+    assertEquals(MAPS, counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS)
+                               .getValue());
+    return records;
+  }
+
+  /**
+   * @param memoryMaps the number of map outputs which fit in the memory of
+   *        the shuffle
+   */
+  private static void checkMerges(float reduceInputBufferPercent,
+      boolean memToMem, int memoryMaps) throws Throwable {
+    assertEquals(MAPS * RECORDS, shuffleAndMerge(false,
+        reduceInputBufferPercent, memToMem, memoryMaps));
+    assertEquals(MAPS * RECORDS, shuffleAndMerge(true,
+        reduceInputBufferPercent, memToMem, memoryMaps));
+  }
+
+  @Test
+  public void testMergeToDisk() throws Throwable {
+    checkMerges(0.0f, false, MAPS / 3);
+  }
+
+  @Test
+  public void testMergeInMemory() throws Throwable {
+    checkMerges(1.0f, false, MAPS / 3);
+  }
+
+  @Test
+  public void testMemToMemMerge() throws Throwable {
+    // the outputs of the memory-to-memory merges are not committed memory,
+    // the shuffle could wait for memory forever if it could not hold them
+    checkMerges(1.0f, true, 4 * MAPS);
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapreduce.task.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.Progress;
+import org.junit.Test;
+
+/**
+ * Test the choice of the hosts of the adaptive shuffle.
+ */
+public class TestShuffleScheduler {
+
+  private static final int PICKS = 6000;
+
+  private static ShuffleScheduler<Text, IntWritable> scheduler() {
+    JobConf job = new JobConf();
+    job.setNumMapTasks(30);
+    job.setBoolean(MRJobConfig.SHUFFLE_FETCHERS_ADAPTIVE, true);
+    Counters counters = new Counters();
+    return new ShuffleScheduler<Text, IntWritable>(job, null,
+        new ExceptionReporter() {
+          @Override
+          public void reportException(Throwable t) {
+            throw new RuntimeException(t);
+          }
+        }, new Progress(),
+        counters.findCounter(TaskCounter.SHUFFLED_MAPS),
+        counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES),
+        counters.findCounter(TaskCounter.FAILED_SHUFFLE));
+  }
+
+  private static void addMaps(ShuffleScheduler<Text, IntWritable> scheduler,
+      String host, int... maps) {
+    for (int map : maps) {
+      scheduler.addKnownMapOutput(host, "http://" + host + ":8080/",
+          TaskAttemptID.forName(String.format(
+              "attempt_200707121733_0001_m_%06d_0", map)));
+    }
+  }
+
+  /** Fetch from a host, then release it with the same maps to fetch */
+  private static void fetch(ShuffleScheduler<Text, IntWritable> scheduler,
+      MapHost host, long bytes, long millis) {
+    for (TaskAttemptID map : scheduler.getMapsForHost(host)) {
+      scheduler.putBackKnownMapOutput(host, map);
+    }
+    host.fetched(bytes, millis);
+  }
+
+  /**
+   * Pick a host then free it with its maps, over and over.
+   * @return how many times each host was picked
+   */
+  private static Map<String, Integer> pick(
+      ShuffleScheduler<Text, IntWritable> scheduler) throws Exception {
+    Map<String, Integer> picks = new HashMap<String, Integer>();
+    for (int i = 0; i < PICKS; ++i) {
+      MapHost host = scheduler.getHost();
+      Integer n = picks.get(host.getHostName());
+      picks.put(host.getHostName(), n == null ? 1 : n + 1);
+      scheduler.freeHost(host);
+    }
+    return picks;
+  }
+
+  private static void assertShare(float expected, Map<String, Integer> picks,
+      String host) {
+    Integer n = picks.get(host);
+    float share = (n == null ? 0 : n) / (float) PICKS;
+    assertTrue(host + " picked " + share + " of the times, not " + expected,
+        Math.abs(share - expected) < 0.05f);
+  }
+
+  @Test
+  public void testMostMapOutputsMostOften() throws Exception {
+    ShuffleScheduler<Text, IntWritable> scheduler = scheduler();
+    try {
+      addMaps(scheduler, "host1", 0);
+      addMaps(scheduler, "host2", 1, 2, 3);
+      addMaps(scheduler, "host3", 4, 5);
+      Map<String, Integer> picks = pick(scheduler);
+      assertShare(1 / 6f, picks, "host1");
+      assertShare(3 / 6f, picks, "host2");
+      assertShare(2 / 6f, picks, "host3");
+    } finally {
+      scheduler.close();
+    }
+  }
+
+  @Test
+  public void testSlowHostsLeastOften() throws Exception {
+    ShuffleScheduler<Text, IntWritable> scheduler = scheduler();
+    try {
+      addMaps(scheduler, "slow", 0, 1, 2);
+      addMaps(scheduler, "fast", 3, 4);
+      MapHost first = scheduler.getHost();
+      MapHost second = scheduler.getHost();
+      MapHost slow = "slow".equals(first.getHostName()) ? first : second;
+      MapHost fast = slow == first ? second : first;
+      assertEquals("fast", fast.getHostName());
+      fetch(scheduler, slow, 10 << 10, 1000);
+      fetch(scheduler, fast, 10 << 20, 1000);
+      assertTrue(slow.getFetchRate() < fast.getFetchRate());
+      scheduler.freeHost(slow);
+      scheduler.freeHost(fast);
+
+      // the three outputs of the slow host count less than the two of the
+      // fast one
+      Map<String, Integer> picks = pick(scheduler);
+      assertShare(1, picks, "fast");
+    } finally {
+      scheduler.close();
+    }
+  }
+
+  /**
+   * The reduces of a job see the same hosts with about as many map outputs.
+   * They should spread over the hosts rather than all pick the one with a
+   * few more outputs.
+   */
+  @Test
+  public void testReducesSpreadOverHosts() throws Exception {
+    final int reduces = 20;
+    final int hosts = 10;
+    Map<String, Integer> picks = new HashMap<String, Integer>();
+    for (int r = 0; r < reduces; ++r) {
+      ShuffleScheduler<Text, IntWritable> scheduler = scheduler();
+      try {
+        for (int h = 0; h < hosts; ++h) {
+          // the even hosts have three outputs, the odd ones two
+          addMaps(scheduler, "host" + h, 3 * h, 3 * h + 1);
+          if (h % 2 == 0) {
+            addMaps(scheduler, "host" + h, 3 * h + 2);
+          }
+        }
+        String host = scheduler.getHost().getHostName();
+        Integer n = picks.get(host);
+        picks.put(host, n == null ? 1 : n + 1);
+      } finally {
+        scheduler.close();
+      }
+    }
+    assertTrue("The reduces went to " + picks, picks.size() >= hosts / 2);
+    for (Map.Entry<String, Integer> e : picks.entrySet()) {
+      assertTrue(e.getValue() + " reduces went to " + e.getKey(),
+          e.getValue() <= reduces / 2);
+    }
+  }
+
+  @Test
+  public void testFetchRate() {
+    MapHost host = new MapHost("host", "http://host:8080/");
+    assertEquals(-1, host.getFetchRate(), 0);
+    host.fetched(1000, 10);
+    assertEquals(100, host.getFetchRate(), 0.01);
+    // the last copies weigh more
+    host.fetched(1000, 1);
+    assertTrue(host.getFetchRate() > 100 * 1.5f);
+    // copies too short to be timed
+    host.fetched(1000, 0);
+    assertTrue(host.getFetchRate() > 0);
+  }
+}
@@ -46,6 +46,9 @@ import org.apache.hadoop.util.ToolRunner;
  * <li>File size per map.
  * <li>Number of spills per map. 
  * <li>Number of maps per host.
+ * <li>Number of reduces.
+ * <li>Number of threads sorting, spilling and merging the partitions of a
+ *     map in parallel.
  * <p>
  * Sort is used for benchmarking the performance. 
  */
@@ -177,7 +180,8 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
    * This is the main routine for launching the benchmark. It generates random 
    * input data. The input is non-splittable. Sort is used for benchmarking. 
    * This benchmark reports the effect of having multiple sort and spill 
-   * cycles over a single sort and spill. 
+   * cycles over a single sort and spill, and the speedup of the spills and
+   * merge when the partitions are processed by several threads.
    * 
    * @throws IOException 
    */
@@ -190,11 +194,16 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
       "Usage: threadedmapbenchmark " +
       "[-dataSizePerMap <data size (in mb) per map, default is 128 mb>] " + 
       "[-numSpillsPerMap <number of spills per map, default is 2>] " +
-      "[-numMapsPerHost <number of maps per host, default is 1>]";
+      "[-numMapsPerHost <number of maps per host, default is 1>] " +
+      "[-numReduces <number of reduces, default is 1>] " +
+      "[-sortThreads <number of threads sorting, spilling and merging the " +
+      "partitions of a map, default is 4>]";
     
     int dataSizePerMap = 128; // in mb
     int numSpillsPerMap = 2;
     int numMapsPerHost = 1;
+    int numReduces = 1;
+    int sortThreads = 4;
     JobConf masterConf = new JobConf(getConf());
     
     for (int i = 0; i < args.length; i++) { // parse command line
@@ -204,6 +213,10 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
         numSpillsPerMap = Integer.parseInt(args[++i]);
       } else if (args[i].equals("-numMapsPerHost")) {
         numMapsPerHost = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-numReduces")) {
+        numReduces = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-sortThreads")) {
+        sortThreads = Integer.parseInt(args[++i]);
       } else {
         System.err.println(usage);
         System.exit(-1);
@@ -212,7 +225,9 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
     
     if (dataSizePerMap <  1 ||  // verify arguments
         numSpillsPerMap < 1 ||
-        numMapsPerHost < 1)
+        numMapsPerHost < 1 ||
+        numReduces < 1 ||
+        sortThreads < 1)
       {
         System.err.println(usage);
         System.exit(-1);
@@ -244,7 +259,7 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
       JobClient client = new JobClient(job);
       ClusterStatus cluster = client.getClusterStatus();
       job.setNumMapTasks(numMapsPerHost * cluster.getTaskTrackers());
-      job.setNumReduceTasks(1);
+      job.setNumReduceTasks(numReduces);
       
       // set mapreduce.task.io.sort.mb to avoid spill
       int ioSortMb = (int)Math.ceil(FACTOR * dataSizePerMap);
@@ -273,9 +288,34 @@ public class ThreadedMapBenchmark extends Configured implements Tool {
       startTime = System.currentTimeMillis();
       JobClient.runJob(spilledJob);
       endTime = System.currentTimeMillis();
+      final long spilledTime = endTime - startTime;
       
-      LOG.info("Total time taken : " + String.valueOf(endTime - startTime) 
+      LOG.info("Total time taken : " + String.valueOf(spilledTime) 
+               + " millisec");
+      fs.delete(OUTPUT_DIR, true);
+
+      // sort, spill and merge the partitions with several threads
+      JobConf threadedJob = new JobConf(spilledJob, ThreadedMapBenchmark.class);
+      threadedJob.setInt(JobContext.MAP_SORT_THREADS, sortThreads);
+      threadedJob.setJobName("threaded-map-benchmark-spilled-threads");
+      threadedJob.setJarByClass(ThreadedMapBenchmark.class);
+
+      LOG.info("Running sort with " + numSpillsPerMap + " spills per map and "
+               + sortThreads + " sort threads per map");
+      if (numReduces == 1) {
+        LOG.info("With a single reduce, the partitions are processed by a"
+                 + " single thread");
+      }
+      startTime = System.currentTimeMillis();
+      JobClient.runJob(threadedJob);
+      endTime = System.currentTimeMillis();
+      final long threadedTime = endTime - startTime;
+
+      LOG.info("Total time taken : " + String.valueOf(threadedTime)
                + " millisec");
+      LOG.info("Speedup of " + sortThreads + " sort threads per map : "
+               + String.format("%.2f",
+                   (double) spilledTime / Math.max(threadedTime, 1)));
     } finally {
       if (fs != null) {
         fs.delete(BASE_DIR, true);
@@ -39,6 +39,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.MapOutputCollector;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.mapreduce.MRConfig;
 import org.apache.hadoop.util.ReflectionUtils;
@@ -311,6 +312,12 @@ public class TestMapCollection {
   }
 
   private static void runTest(String name, Job job) throws Exception {
+    configureJob(job);
+    LOG.info("Running " + name);
+    assertTrue("Job failed!", job.waitForCompletion(false));
+  }
+
+  private static void configureJob(Job job) {
     job.setNumReduceTasks(1);
     job.getConfiguration().set(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME);
     job.getConfiguration().setInt(MRJobConfig.IO_SORT_FACTOR, 1000);
@@ -323,9 +330,6 @@ public class TestMapCollection {
     job.setMapOutputKeyClass(KeyWritable.class);
     job.setMapOutputValueClass(ValWritable.class);
     job.setSortComparatorClass(VariableComparator.class);
-
-    LOG.info("Running " + name);
-    assertTrue("Job failed!", job.waitForCompletion(false));
   }
 
   @Test
@@ -376,6 +380,75 @@ public class TestMapCollection {
     runTest("splitmetaspill", 7, 1, 131072, 1, 0.8f);
   }
 
+  private static void runOffHeapTest(String name, int keylen, int vallen,
+      int records) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(Job.COMPLETION_POLL_INTERVAL_KEY, 100);
+    Job job = Job.getInstance(conf);
+    conf = job.getConfiguration();
+    // banks of 8 segments of 64KB
+    conf.setInt(MRJobConfig.IO_SORT_MB, 1);
+    conf.setBoolean(MRJobConfig.IO_SORT_OFFHEAP, true);
+    conf.setInt(MRJobConfig.IO_SORT_OFFHEAP_SEGMENT_KB, 64);
+    conf.setClass("test.mapcollection.class", FixedRecordFactory.class,
+        RecordFactory.class);
+    FixedRecordFactory.setLengths(conf, keylen, vallen);
+    conf.setInt("test.spillmap.records", records);
+    runTest(name, job);
+  }
+
+  @Test
+  public void testOffHeap() throws Exception {
+    runOffHeapTest("offheap", 100, 100, 10000);
+    runOffHeapTest("offheapzerokeyval", 0, 0, 10000);
+    runOffHeapTest("offheapsegmentrec", 1024, 63 * 1024, 100);
+    runOffHeapTest("offheaplargerec", 100, 128 * 1024, 5);
+    runOffHeapTest("offheapsinglerecord", 100, 100, 1);
+  }
+
+  /** A collector refusing every job */
+  public static class FailingCollector<K,V>
+      implements MapOutputCollector<K,V> {
+    static int inits = 0;
+    public void init(MapOutputCollector.Context context) throws IOException {
+      ++inits;
+      throw new IOException("Unsupported job");
+    }
+    public void collect(K key, V value, int partition) {
+      throw new UnsupportedOperationException();
+    }
+    public void close() { }
+    public void flush() { }
+  }
+
+  @Test
+  public void testCollectorFallback() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(Job.COMPLETION_POLL_INTERVAL_KEY, 100);
+    Job job = Job.getInstance(conf);
+    conf = job.getConfiguration();
+    conf.setInt(MRJobConfig.IO_SORT_MB, 1);
+    conf.setStrings(MRJobConfig.MAP_OUTPUT_COLLECTOR_CLASS_ATTR,
+        FailingCollector.class.getName(),
+        "org.apache.hadoop.mapred.MapTask$MapOutputBuffer");
+    conf.setClass("test.mapcollection.class", FixedRecordFactory.class,
+        RecordFactory.class);
+    FixedRecordFactory.setLengths(conf, 100, 100);
+    conf.setInt("test.spillmap.records", 10000);
+    final int inits = FailingCollector.inits;
+    runTest("collectorfallback", job);
+    assertEquals(inits + 1, FailingCollector.inits);
+
+    // the job fails if no collector initializes
+    job = Job.getInstance(conf);
+    conf = job.getConfiguration();
+    conf.setClass(MRJobConfig.MAP_OUTPUT_COLLECTOR_CLASS_ATTR,
+        FailingCollector.class, MapOutputCollector.class);
+    configureJob(job);
+    assertFalse(job.waitForCompletion(false));
+    assertEquals(inits + 2, FailingCollector.inits);
+  }
+
   public static class StepFactory extends RecordFactory {
     public int prekey;
     public int postkey;
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapreduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the sort of the map outputs by key prefix, with keys sharing long
+ * prefixes and several spills, on and off the heap.
+ */
+public class TestMapSortKeyPrefix {
+  private static final int RECORDS = 100000;
+  private static final int REDUCES = 3;
+  private static Path inputPath;
+
+  @BeforeClass
+  public static void createInput() throws IOException {
+    String dataDir = System.getProperty("test.build.data", "target");
+    inputPath = new Path(new Path(dataDir), "mapSortKeyPrefixInput");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    fs.delete(inputPath, true);
+    BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+        fs.create(new Path(inputPath, "0"))));
+    Random r = new Random(0xDEADBEEFL);
+    for (int i = 0; i < RECORDS; i++) {
+      // few distinct values, so that many keys have equal prefixes
+      w.write(Long.toString(r.nextInt(10000) * 10000000000L
+          - 5 * 10000000000000L) + "\n");
+    }
+    w.close();
+  }
+
+  public static class TextKeyMapper
+      extends Mapper<LongWritable, Text, Text, IntWritable> {
+    private final Text key = new Text();
+    private final IntWritable one = new IntWritable(1);
+    @Override
+    protected void map(LongWritable offset, Text line, Context context)
+        throws IOException, InterruptedException {
+      key.set("key-" + line);
+      context.write(key, one);
+    }
+  }
+
+  public static class LongKeyMapper
+      extends Mapper<LongWritable, Text, LongWritable, IntWritable> {
+    private final LongWritable key = new LongWritable();
+    private final IntWritable one = new IntWritable(1);
+    @Override
+    protected void map(LongWritable offset, Text line, Context context)
+        throws IOException, InterruptedException {
+      key.set(Long.parseLong(line.toString()));
+      context.write(key, one);
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  public static class SumCombiner<K extends WritableComparable>
+      extends Reducer<K, IntWritable, K, IntWritable> {
+    private final IntWritable sum = new IntWritable();
+    @Override
+    protected void reduce(K key, Iterable<IntWritable> values,
+        Context context) throws IOException, InterruptedException {
+      int n = 0;
+      for (IntWritable value : values) {
+        n += value.get();
+      }
+      sum.set(n);
+      context.write(key, sum);
+    }
+  }
+
+  /** Checks that the keys are received in order, and counts the values */
+  @SuppressWarnings("rawtypes")
+  public static class OrderReducer<K extends WritableComparable>
+      extends Reducer<K, IntWritable, NullWritable, NullWritable> {
+    private K previous;
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void reduce(K key, Iterable<IntWritable> values,
+        Context context) throws IOException, InterruptedException {
+      if (previous != null) {
+        assertTrue(previous + " before " + key, previous.compareTo(key) < 0);
+      }
+      previous = (K) WritableUtils.clone(key,
+          context.getConfiguration());
+      for (IntWritable value : values) {
+        context.getCounter("test", "values").increment(value.get());
+      }
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void runSort(Class<? extends Mapper> mapper,
+      Class<?> keyClass, boolean prefix, boolean offHeap,
+      Class<? extends Reducer> combiner) throws Exception {
+    runSort(new Configuration(), mapper, keyClass, prefix, offHeap, combiner);
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void runSort(Configuration base,
+      Class<? extends Mapper> mapper, Class<?> keyClass, boolean prefix,
+      boolean offHeap, Class<? extends Reducer> combiner) throws Exception {
+    Job job = Job.getInstance(base);
+    Configuration conf = job.getConfiguration();
+    conf.set(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME);
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(MRJobConfig.IO_SORT_MB, 1);
+    conf.setBoolean(MRJobConfig.MAP_SORT_KEY_PREFIX, prefix);
+    conf.setBoolean(MRJobConfig.IO_SORT_OFFHEAP, offHeap);
+    conf.setInt(MRJobConfig.IO_SORT_OFFHEAP_SEGMENT_KB, 64);
+    job.setNumReduceTasks(REDUCES);
+    job.setMapperClass(mapper);
+    if (combiner != null) {
+      job.setCombinerClass(combiner);
+    }
+    job.setReducerClass(OrderReducer.class);
+    job.setMapOutputKeyClass(keyClass);
+    job.setMapOutputValueClass(IntWritable.class);
+    job.setOutputFormatClass(NullOutputFormat.class);
+    FileInputFormat.addInputPath(job, inputPath);
+    assertTrue("Job failed!", job.waitForCompletion(false));
+    assertEquals(RECORDS,
+        job.getCounters().findCounter("test", "values").getValue());
+    assertEquals(RECORDS, job.getCounters().findCounter(
+        TaskCounter.MAP_OUTPUT_RECORDS).getValue());
+    // the buffer of 1MB must have spilled
+    assertTrue(job.getCounters().findCounter(
+        TaskCounter.MAP_SPILLS).getValue() > 1);
+    if (null == combiner) {
+      assertTrue(job.getCounters().findCounter(
+          TaskCounter.SPILLED_RECORDS).getValue() > RECORDS);
+    }
+  }
+
+  @Test
+  public void testTextKeys() throws Exception {
+    runSort(TextKeyMapper.class, Text.class, true, false, null);
+    runSort(TextKeyMapper.class, Text.class, false, false, null);
+  }
+
+  @Test
+  public void testLongKeys() throws Exception {
+    runSort(LongKeyMapper.class, LongWritable.class, true, false, null);
+    runSort(LongKeyMapper.class, LongWritable.class, false, false, null);
+  }
+
+  @Test
+  public void testOffHeap() throws Exception {
+    runSort(TextKeyMapper.class, Text.class, true, true, null);
+    runSort(TextKeyMapper.class, Text.class, false, true, null);
+    runSort(LongKeyMapper.class, LongWritable.class, true, true, null);
+  }
+
+  @Test
+  public void testCombiner() throws Exception {
+    runSort(TextKeyMapper.class, Text.class, true, false, SumCombiner.class);
+    runSort(TextKeyMapper.class, Text.class, true, true, SumCombiner.class);
+  }
+
+  @Test
+  public void testParallelSort() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(MRJobConfig.MAP_SORT_THREADS, 2 * REDUCES);
+    runSort(conf, TextKeyMapper.class, Text.class, true, false, null);
+    runSort(conf, TextKeyMapper.class, Text.class, false, false, null);
+    runSort(conf, LongKeyMapper.class, LongWritable.class, true, false, null);
+    runSort(conf, TextKeyMapper.class, Text.class, true, false,
+        SumCombiner.class);
+    runSort(conf, TextKeyMapper.class, Text.class, true, true, null);
+    // with intermediate merges of the partitions
+    conf.setInt(MRJobConfig.IO_SORT_FACTOR, 2);
+    runSort(conf, TextKeyMapper.class, Text.class, true, false, null);
+    runSort(conf, TextKeyMapper.class, Text.class, true, false,
+        SumCombiner.class);
+  }
+}
@@ -19,7 +19,10 @@
 package org.apache.hadoop.mapred;
 
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.KEEP_ALIVE;
 import static org.jboss.netty.handler.codec.http.HttpMethod.GET;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
@@ -30,7 +33,6 @@ import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -38,7 +40,9 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -75,6 +79,7 @@ import org.apache.hadoop.yarn.service.AbstractService;
 import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
@@ -88,7 +93,6 @@ import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
@@ -102,7 +106,12 @@ import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelUpstreamHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
@@ -113,6 +122,7 @@ public class ShuffleHandler extends AbstractService
 
   private int port;
   private ChannelFactory selector;
+  private Timer timer;
   private final ChannelGroup accepted = new DefaultChannelGroup();
 
   public static final String MAPREDUCE_SHUFFLE_SERVICEID =
@@ -126,6 +136,46 @@ public class ShuffleHandler extends AbstractService
   public static final String SHUFFLE_PORT_CONFIG_KEY = "mapreduce.shuffle.port";
   public static final int DEFAULT_SHUFFLE_PORT = 8080;
 
+  /**
+   * The seconds a connection kept alive at the request of a fetcher stays
+   * open without receiving a new request. 0 closes idle connections only
+   * when the fetchers do.
+   */
+  public static final String SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT =
+      "mapreduce.shuffle.connection-keep-alive.timeout";
+  public static final int DEFAULT_SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT = 5;
+
+  /**
+   * The maximum size of the map outputs, with their headers, which are read
+   * in memory and sent together in a single write. The larger map outputs
+   * are sent from their files. 0 sends every map output from its file.
+   */
+  public static final String SHUFFLE_BATCH_MAX_BYTES =
+      "mapreduce.shuffle.batch.max.bytes";
+  public static final int DEFAULT_SHUFFLE_BATCH_MAX_BYTES = 0;
+
+  /**
+   * Whether the map outputs of a request are sent in the order of their
+   * files and offsets, the small ones from chunks of their files read ahead
+   * in a buffer shared by all the requests.
+   */
+  public static final String SHUFFLE_CONSOLIDATION_ENABLED =
+      "mapreduce.shuffle.consolidation.enable";
+  public static final boolean DEFAULT_SHUFFLE_CONSOLIDATION_ENABLED = false;
+
+  /**
+   * The size of the chunks of the map output files read ahead. The map
+   * outputs larger than a chunk are sent from their files.
+   */
+  public static final String SHUFFLE_READ_AHEAD_CHUNK_BYTES =
+      "mapreduce.shuffle.consolidation.readahead.chunk.bytes";
+  public static final int DEFAULT_SHUFFLE_READ_AHEAD_CHUNK_BYTES = 1 << 20;
+
+  /** The maximum memory of the chunks read ahead */
+  public static final String SHUFFLE_READ_AHEAD_MAX_BYTES =
+      "mapreduce.shuffle.consolidation.readahead.max.bytes";
+  public static final long DEFAULT_SHUFFLE_READ_AHEAD_MAX_BYTES = 64L << 20;
+
   @Metrics(about="Shuffle output metrics", context="mapred")
   static class ShuffleMetrics implements ChannelFutureListener {
     @Metric("Shuffle output in bytes")
@@ -136,6 +186,29 @@ public class ShuffleHandler extends AbstractService
         MutableCounterInt shuffleOutputsOK;
     @Metric("# of current shuffle connections")
         MutableGaugeInt shuffleConnections;
+    @Metric("# of disk reads of map outputs")
+        MutableCounterLong shuffleDiskReads;
+    @Metric("# of disk reads of map outputs not following the previous read")
+        MutableCounterLong shuffleDiskSeeks;
+    @Metric("Map output bytes read from disk")
+        MutableCounterLong shuffleDiskReadBytes;
+    @Metric("# of reads of map outputs from the read-ahead buffer")
+        MutableCounterLong shuffleReadAheadHits;
+
+    /** The file of the last read, and the offset following it */
+    private String lastFile;
+    private long nextOffset;
+
+    /** Account for a read of a map output file */
+    synchronized void diskRead(String file, long offset, long length) {
+      shuffleDiskReads.incr();
+      shuffleDiskReadBytes.incr(length);
+      if (!file.equals(lastFile) || offset != nextOffset) {
+        shuffleDiskSeeks.incr();
+      }
+      lastFile = file;
+      nextOffset = offset + length;
+    }
 
     @Override
     public void operationComplete(ChannelFuture future) throws Exception {
@@ -249,7 +322,8 @@ public class ShuffleHandler extends AbstractService
   public synchronized void start() {
     Configuration conf = getConfig();
     ServerBootstrap bootstrap = new ServerBootstrap(selector);
-    HttpPipelineFactory pipelineFact = new HttpPipelineFactory(conf);
+    timer = new HashedWheelTimer();
+    HttpPipelineFactory pipelineFact = new HttpPipelineFactory(conf, timer);
     bootstrap.setPipelineFactory(pipelineFact);
     port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
     Channel ch = bootstrap.bind(new InetSocketAddress(port));
@@ -266,6 +340,9 @@ public class ShuffleHandler extends AbstractService
     accepted.close().awaitUninterruptibly(10, TimeUnit.SECONDS);
     ServerBootstrap bootstrap = new ServerBootstrap(selector);
     bootstrap.releaseExternalResources();
+    if (timer != null) {
+      timer.stop();
+    }
     super.stop();
   }
 
@@ -283,19 +360,26 @@ public class ShuffleHandler extends AbstractService
   class HttpPipelineFactory implements ChannelPipelineFactory {
 
     final Shuffle SHUFFLE;
+    private final Timer timer;
 
-    public HttpPipelineFactory(Configuration conf) {
+    public HttpPipelineFactory(Configuration conf, Timer timer) {
       SHUFFLE = new Shuffle(conf);
+      this.timer = timer;
     }
 
     @Override
     public ChannelPipeline getPipeline() throws Exception {
-        return Channels.pipeline(
+        ChannelPipeline pipeline = Channels.pipeline(
             new HttpRequestDecoder(),
             new HttpChunkAggregator(1 << 16),
             new HttpResponseEncoder(),
-            new ChunkedWriteHandler(),
-            SHUFFLE);
+            new ChunkedWriteHandler());
+        if (SHUFFLE.keepAliveTimeout > 0) {
+          pipeline.addLast("idle", new IdleStateHandler(timer,
+              SHUFFLE.keepAliveTimeout, 0, 0));
+        }
+        pipeline.addLast("shuffle", SHUFFLE);
+        return pipeline;
         // TODO factor security manager into pipeline
         // TODO factor out encode/decode to permit binary shuffle
         // TODO factor out decode of index to permit alt. models
@@ -303,18 +387,96 @@ public class ShuffleHandler extends AbstractService
 
   }
 
-  class Shuffle extends SimpleChannelUpstreamHandler {
+  /** A map output to send, located from its index file */
+  static class MapOutputInfo {
+    final String mapId;
+    final Path mapOutputFileName;
+    final IndexRecord indexRecord;
+    final byte[] header;
+
+    MapOutputInfo(String mapId, Path mapOutputFileName,
+        IndexRecord indexRecord, byte[] header) {
+      this.mapId = mapId;
+      this.mapOutputFileName = mapOutputFileName;
+      this.indexRecord = indexRecord;
+      this.header = header;
+    }
+
+    /** @return the number of bytes sent for this map output */
+    long getLength() {
+      return header.length + indexRecord.partLength;
+    }
+  }
+
+  private static final Comparator<MapOutputInfo> MAP_OUTPUT_FILE_ORDER =
+    new Comparator<MapOutputInfo>() {
+      @Override
+      public int compare(MapOutputInfo a, MapOutputInfo b) {
+        int cmp = a.mapOutputFileName.compareTo(b.mapOutputFileName);
+        if (cmp != 0) {
+          return cmp;
+        }
+        return a.indexRecord.startOffset < b.indexRecord.startOffset ? -1
+            : a.indexRecord.startOffset == b.indexRecord.startOffset ? 0 : 1;
+      }
+    };
+
+  /**
+   * Serves the outputs of maps to a reduce. A response sends the requested
+   * map outputs one after the other, each one following its
+   * {@link ShuffleHeader}.
+   * <p>
+   * When the request has the parameter <code>keepAlive=true</code>, the
+   * response has a Content-Length and the connection is kept open for the
+   * next requests of the fetcher, until it is idle for
+   * {@link #SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT} seconds. Otherwise the
+   * connection is closed at the end of the response.
+   * <p>
+   * In consolidation mode, the map outputs of a response are sent in the
+   * order of their files, and the ones smaller than
+   * {@link #SHUFFLE_READ_AHEAD_CHUNK_BYTES} are copied from chunks of their
+   * files read ahead in a {@link ShuffleReadAheadCache} shared by all the
+   * reduces.
+   */
+  class Shuffle extends IdleStateAwareChannelUpstreamHandler {
 
     private final Configuration conf;
     private final IndexCache indexCache;
     private final LocalDirAllocator lDirAlloc =
       new LocalDirAllocator(YarnConfiguration.NM_LOCAL_DIRS);
     private int port;
+    final int keepAliveTimeout;
+    private final int batchMaxBytes;
+    private final ShuffleReadAheadCache readAhead;
 
     public Shuffle(Configuration conf) {
       this.conf = conf;
       indexCache = new IndexCache(new JobConf(conf));
       this.port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
+      keepAliveTimeout = conf.getInt(SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT,
+          DEFAULT_SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT);
+      batchMaxBytes = conf.getInt(SHUFFLE_BATCH_MAX_BYTES,
+          DEFAULT_SHUFFLE_BATCH_MAX_BYTES);
+      if (conf.getBoolean(SHUFFLE_CONSOLIDATION_ENABLED,
+          DEFAULT_SHUFFLE_CONSOLIDATION_ENABLED)) {
+        readAhead = new ShuffleReadAheadCache(
+            conf.getInt(SHUFFLE_READ_AHEAD_CHUNK_BYTES,
+                DEFAULT_SHUFFLE_READ_AHEAD_CHUNK_BYTES),
+            conf.getLong(SHUFFLE_READ_AHEAD_MAX_BYTES,
+                DEFAULT_SHUFFLE_READ_AHEAD_MAX_BYTES),
+            metrics);
+      } else {
+        readAhead = null;
+      }
+    }
+
+    /**
+     * @return whether a map output is read in memory rather than sent from
+     *         its file
+     */
+    private boolean inMemory(MapOutputInfo output) {
+      return output.getLength() <= batchMaxBytes || (readAhead != null &&
+          output.indexRecord.partLength <= readAhead.getChunkSize());
     }
     
     public void setPort(int port) {
@@ -333,7 +495,8 @@ public class ShuffleHandler extends AbstractService
     }
 
     @Override
-    public void messageReceived(ChannelHandlerContext ctx, MessageEvent evt)
+    public void messageReceived(final ChannelHandlerContext ctx,
+        MessageEvent evt)
         throws Exception {
       HttpRequest request = (HttpRequest) evt.getMessage();
       if (request.getMethod() != GET) {
@@ -345,6 +508,9 @@ public class ShuffleHandler extends AbstractService
       final List<String> mapIds = splitMaps(q.get("map"));
       final List<String> reduceQ = q.get("reduce");
       final List<String> jobQ = q.get("job");
+      final List<String> keepAliveQ = q.get("keepAlive");
+      final boolean keepAlive =
+        keepAliveQ != null && Boolean.parseBoolean(keepAliveQ.get(0));
       if (LOG.isDebugEnabled()) {
         LOG.debug("RECV: " + request.getUri() +
             "\n  mapId: " + mapIds +
@@ -388,26 +554,95 @@ public class ShuffleHandler extends AbstractService
         return;
       }
 
-      Channel ch = evt.getChannel();
-      ch.write(response);
-      // TODO refactor the following into the pipeline
-      ChannelFuture lastMap = null;
+      // locate all the map outputs first, the length of the response is
+      // needed to keep the connection open after it
+      final String user = userRsrc.get(jobId);
+      final List<MapOutputInfo> outputs =
+        new ArrayList<MapOutputInfo>(mapIds.size());
+      long contentLength = 0;
       for (String mapId : mapIds) {
         try {
-          lastMap =
-            sendMapOutput(ctx, ch, userRsrc.get(jobId), jobId, mapId, reduceId);
-          if (null == lastMap) {
-            sendError(ctx, NOT_FOUND);
-            return;
-          }
+          MapOutputInfo output =
+            getMapOutputInfo(user, jobId, mapId, reduceId);
+          outputs.add(output);
+          contentLength += output.getLength();
         } catch (IOException e) {
           LOG.error("Shuffle error ", e);
           sendError(ctx, e.getMessage(), INTERNAL_SERVER_ERROR);
           return;
         }
       }
+      if (readAhead != null) {
+        // read the files one after the other, each one from its start
+        Collections.sort(outputs, MAP_OUTPUT_FILE_ORDER);
+      }
+      if (keepAlive) {
+        response.setHeader(CONTENT_LENGTH, String.valueOf(contentLength));
+        response.setHeader(CONNECTION, KEEP_ALIVE);
+        if (keepAliveTimeout > 0) {
+          response.setHeader("Keep-Alive", "timeout=" + keepAliveTimeout);
+        }
+      }
+
+      Channel ch = evt.getChannel();
+      // the connection is not idle while the response is written
+      ctx.setAttachment(Boolean.TRUE);
+      ChannelFuture lastMap = ch.write(response);
+      // TODO refactor the following into the pipeline
+      try {
+        List<MapOutputInfo> batch = new ArrayList<MapOutputInfo>();
+        long batchBytes = 0;
+        for (MapOutputInfo output : outputs) {
+          if (!inMemory(output)) {
+            if (!batch.isEmpty()) {
+              sendMapOutputs(ch, batch, batchBytes);
+              batch.clear();
+              batchBytes = 0;
+            }
+            lastMap = sendMapOutput(ctx, ch, output);
+            if (null == lastMap) {
+              sendError(ctx, NOT_FOUND);
+              return;
+            }
+            continue;
+          }
+          if (!batch.isEmpty() &&
+              batchBytes + output.getLength() > batchMaxBytes) {
+            sendMapOutputs(ch, batch, batchBytes);
+            batch.clear();
+            batchBytes = 0;
+          }
+          batch.add(output);
+          batchBytes += output.getLength();
+        }
+        if (!batch.isEmpty()) {
+          lastMap = sendMapOutputs(ch, batch, batchBytes);
+        }
+      } catch (IOException e) {
+        LOG.error("Shuffle error ", e);
+        sendError(ctx, e.getMessage(), INTERNAL_SERVER_ERROR);
+        return;
+      }
+      metrics.shuffleConnections.incr();
       lastMap.addListener(metrics);
-      lastMap.addListener(ChannelFutureListener.CLOSE);
+      if (keepAlive) {
+        lastMap.addListener(new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture future) {
+            ctx.setAttachment(null);
+          }
+        });
+      } else {
+        lastMap.addListener(ChannelFutureListener.CLOSE);
+      }
+    }
+
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
+      if (ctx.getAttachment() == null) {
+        // no request since the keep-alive timeout
+        e.getChannel().close();
+      }
     }
 
     private void verifyRequest(String appid, ChannelHandlerContext ctx,
@@ -445,9 +680,8 @@ public class ShuffleHandler extends AbstractService
       }
     }
 
-    protected ChannelFuture sendMapOutput(ChannelHandlerContext ctx, Channel ch,
-        String user, String jobId, String mapId, int reduce)
-        throws IOException {
+    protected MapOutputInfo getMapOutputInfo(String user, String jobId,
+        String mapId, int reduce) throws IOException {
       // TODO replace w/ rsrc alloc
       // $x/$user/appcache/$appId/output/$mapId
       // TODO: Once Shuffle is out of NM, this can use MR APIs to convert between App and Job
@@ -474,8 +708,15 @@ public class ShuffleHandler extends AbstractService
         new ShuffleHeader(mapId, info.partLength, info.rawLength, reduce);
       final DataOutputBuffer dob = new DataOutputBuffer();
       header.write(dob);
-      ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
-      File spillfile = new File(mapOutputFileName.toString());
+      return new MapOutputInfo(mapId, mapOutputFileName, info,
+          Arrays.copyOf(dob.getData(), dob.getLength()));
+    }
+
+    protected ChannelFuture sendMapOutput(ChannelHandlerContext ctx, Channel ch,
+        MapOutputInfo output) throws IOException {
+      final IndexRecord info = output.indexRecord;
+      ch.write(wrappedBuffer(output.header));
+      String spillfile = output.mapOutputFileName.toString();
       RandomAccessFile spill;
       try {
         spill = new RandomAccessFile(spillfile, "r");
@@ -494,11 +735,48 @@ public class ShuffleHandler extends AbstractService
             partition.releaseExternalResources();
           }
         });
-      metrics.shuffleConnections.incr();
       metrics.shuffleOutputBytes.incr(info.partLength); // optimistic
+      metrics.diskRead(spillfile, info.startOffset, info.partLength);
       return writeFuture;
     }
 
+    /**
+     * Send small map outputs, with their headers, in a single buffer rather
+     * than in two writes each.
+     */
+    protected ChannelFuture sendMapOutputs(Channel ch,
+        List<MapOutputInfo> outputs, long length) throws IOException {
+      final ChannelBuffer buffer = ChannelBuffers.buffer((int) length);
+      for (MapOutputInfo output : outputs) {
+        final IndexRecord info = output.indexRecord;
+        buffer.writeBytes(output.header);
+        readMapOutput(output, buffer.array(),
+            buffer.arrayOffset() + buffer.writerIndex());
+        buffer.writerIndex(buffer.writerIndex() + (int) info.partLength);
+        metrics.shuffleOutputBytes.incr(info.partLength); // optimistic
+      }
+      return ch.write(buffer);
+    }
+
+    private void readMapOutput(MapOutputInfo output, byte[] b, int off)
+        throws IOException {
+      final IndexRecord info = output.indexRecord;
+      final String spillfile = output.mapOutputFileName.toString();
+      if (readAhead != null) {
+        readAhead.read(spillfile, info.startOffset, b, off,
+            (int) info.partLength);
+        return;
+      }
+      RandomAccessFile spill = new RandomAccessFile(spillfile, "r");
+      try {
+        spill.seek(info.startOffset);
+        spill.readFully(b, off, (int) info.partLength);
+      } finally {
+        spill.close();
+      }
+      metrics.diskRead(spillfile, info.startOffset, info.partLength);
+    }
+
     private void sendError(ChannelHandlerContext ctx,
         HttpResponseStatus status) {
       sendError(ctx, "", status);
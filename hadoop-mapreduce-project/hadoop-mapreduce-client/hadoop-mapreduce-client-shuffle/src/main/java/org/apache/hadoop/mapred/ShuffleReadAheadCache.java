@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Chunks of the map output files read ahead by the shuffle, shared by the
+ * requests of all the reduces.
+ * <p>
+ * The partitions of a map output are next to each other in its file, in the
+ * order of the reduces. A chunk read for a reduce also holds the partitions
+ * of the following reduces, which are usually fetched soon after, so one
+ * disk read serves many small partitions. The chunks are evicted in the order
+ * they were read once the cache holds more than its maximum size.
+ */
+class ShuffleReadAheadCache {
+
+  private static final Log LOG =
+    LogFactory.getLog(ShuffleReadAheadCache.class);
+
+  private final int chunkSize;
+  private final long totalMemoryAllowed;
+  private final AtomicLong totalMemoryUsed = new AtomicLong();
+  private final ShuffleHandler.ShuffleMetrics metrics;
+
+  private final ConcurrentHashMap<String,Chunk> cache =
+    new ConcurrentHashMap<String,Chunk>();
+
+  private final LinkedBlockingQueue<String> queue =
+    new LinkedBlockingQueue<String>();
+
+  ShuffleReadAheadCache(int chunkSize, long totalMemoryAllowed,
+      ShuffleHandler.ShuffleMetrics metrics) {
+    this.chunkSize = chunkSize;
+    this.totalMemoryAllowed = totalMemoryAllowed;
+    this.metrics = metrics;
+    LOG.info("ShuffleReadAheadCache created with chunks of " + chunkSize +
+        " bytes and max memory = " + totalMemoryAllowed);
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Copy a part of a file from its chunks, reading the missing chunks.
+   * @param file the file to read
+   * @param offset the offset of the part in the file
+   * @param b the array receiving the part
+   * @param off the offset of the part in b
+   * @param len the length of the part
+   */
+  void read(String file, long offset, byte[] b, int off, int len)
+      throws IOException {
+    while (len > 0) {
+      final long index = offset / chunkSize;
+      final byte[] data = getChunk(file, index);
+      final int start = (int) (offset - index * chunkSize);
+      final int n = Math.min(len, data.length - start);
+      if (n <= 0) {
+        throw new EOFException("Cannot read " + len + " bytes at offset " +
+            offset + " of " + file);
+      }
+      System.arraycopy(data, start, b, off, n);
+      offset += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private byte[] getChunk(String file, long index) throws IOException {
+    final String key = file + "#" + index;
+    Chunk chunk = cache.get(key);
+    if (chunk == null) {
+      Chunk newChunk = new Chunk();
+      if ((chunk = cache.putIfAbsent(key, newChunk)) == null) {
+        return readChunk(key, newChunk, file, index);
+      }
+    }
+    synchronized (chunk) {
+      while (null == chunk.data && null == chunk.error) {
+        try {
+          chunk.wait();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for construction", e);
+        }
+      }
+    }
+    if (chunk.error != null) {
+      throw new IOException("Error reading " + key, chunk.error);
+    }
+    metrics.shuffleReadAheadHits.incr();
+    return chunk.data;
+  }
+
+  private byte[] readChunk(String key, Chunk chunk, String file, long index)
+      throws IOException {
+    byte[] data = null;
+    IOException error = null;
+    try {
+      final RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        final long start = index * chunkSize;
+        data = new byte[(int) Math.max(0,
+            Math.min(chunkSize, in.length() - start))];
+        in.seek(start);
+        in.readFully(data);
+        metrics.diskRead(file, start, data.length);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      error = e;
+      cache.remove(key);
+      throw e;
+    } finally {
+      synchronized (chunk) {
+        chunk.data = data;
+        chunk.error = error;
+        chunk.notifyAll();
+      }
+    }
+    queue.add(key);
+
+    if (totalMemoryUsed.addAndGet(data.length) > totalMemoryAllowed) {
+      freeChunks();
+    }
+    return data;
+  }
+
+  /**
+   * Bring memory usage below totalMemoryAllowed.
+   */
+  private synchronized void freeChunks() {
+    while (totalMemoryUsed.get() > totalMemoryAllowed) {
+      String key = queue.remove();
+      Chunk chunk = cache.remove(key);
+      if (chunk != null) {
+        totalMemoryUsed.addAndGet(-chunk.data.length);
+      }
+    }
+  }
+
+  private static class Chunk {
+    byte[] data;
+    IOException error;
+  }
+}
@@ -17,10 +17,40 @@
  */
 package org.apache.hadoop.mapred;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.security.SecureShuffleUtils;
+import org.apache.hadoop.mapreduce.security.token.JobTokenIdentifier;
+import org.apache.hadoop.mapreduce.security.token.JobTokenSecretManager;
+import org.apache.hadoop.mapreduce.task.reduce.ShuffleHeader;
 import org.apache.hadoop.metrics2.MetricsRecordBuilder;
 import org.apache.hadoop.metrics2.MetricsSource;
 import org.apache.hadoop.metrics2.impl.MetricsSystemImpl;
 import org.apache.hadoop.metrics2.MetricsSystem;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.server.nodemanager.containermanager.localizer.ContainerLocalizer;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.apache.hadoop.yarn.util.Records;
 import static org.apache.hadoop.test.MetricsAsserts.*;
 
 import org.jboss.netty.channel.ChannelFuture;
@@ -31,6 +61,14 @@ import static org.apache.hadoop.test.MockitoMaker.*;
 
 public class TestShuffleHandler {
   static final long MiB = 1024 * 1024;
+  static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "target/test-dir"),
+      "TestShuffleHandler").getAbsoluteFile();
+  static final String USER = System.getProperty("user.name");
+  static final String JOB_ID = "job_12345_0001";
+  static final int REDUCE = 1;
+  /** the lengths of the map outputs for the reduce, small and large ones */
+  static final int[] LENGTHS = { 100, 300, 20000, 50, 0, 70000, 10, 20 };
 
   @Test public void testSerializeMeta()  throws Exception {
     assertEquals(1, ShuffleHandler.deserializeMetaData(
@@ -69,4 +107,306 @@ public class TestShuffleHandler {
     assertCounter("ShuffleOutputsOK", succeeded, rb);
     assertGauge("ShuffleConnections", connections, rb);
   }
+
+  /** A shuffle server with the outputs of LENGTHS.length maps */
+  static class Server {
+    final MetricsSystem ms = new MetricsSystemImpl();
+    final ShuffleHandler shuffle;
+    final SecretKey secret;
+    /** the map output files */
+    final Map<String, byte[]> files = new HashMap<String, byte[]>();
+    final int port;
+
+    Server(int keepAliveTimeout, int batchMaxBytes) throws IOException {
+      this(conf(keepAliveTimeout, batchMaxBytes));
+    }
+
+    static Configuration conf(int keepAliveTimeout, int batchMaxBytes) {
+      Configuration conf = new Configuration();
+      conf.set(YarnConfiguration.NM_LOCAL_DIRS, TEST_DIR.getPath());
+      conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+      conf.setInt(ShuffleHandler.SHUFFLE_CONNECTION_KEEP_ALIVE_TIME_OUT,
+          keepAliveTimeout);
+      conf.setInt(ShuffleHandler.SHUFFLE_BATCH_MAX_BYTES, batchMaxBytes);
+      return conf;
+    }
+
+    Server(Configuration conf) throws IOException {
+      FileUtil.fullyDelete(TEST_DIR);
+      shuffle = new ShuffleHandler(ms);
+      shuffle.init(conf);
+      shuffle.start();
+      port = ShuffleHandler.deserializeMetaData(shuffle.getMeta());
+
+      ApplicationId appId = Records.newRecord(ApplicationId.class);
+      appId.setClusterTimestamp(12345);
+      appId.setId(1);
+      JobTokenIdentifier identifier = new JobTokenIdentifier(new Text(JOB_ID));
+      Token<JobTokenIdentifier> token = new Token<JobTokenIdentifier>(
+          identifier.getBytes(), "password".getBytes(),
+          identifier.getKind(), new Text("shuffle"));
+      secret = JobTokenSecretManager.createSecretKey(token.getPassword());
+      shuffle.initApp(USER, appId,
+          ShuffleHandler.serializeServiceData(token));
+
+      Random r = new Random(0);
+      for (int m = 0; m < LENGTHS.length; ++m) {
+        String mapId = mapId(m);
+        File dir = new File(TEST_DIR, ContainerLocalizer.USERCACHE + "/" +
+            USER + "/" + ContainerLocalizer.APPCACHE + "/" +
+            ConverterUtils.toString(appId) + "/output/" + mapId);
+        assertTrue(dir.mkdirs());
+        // the partitions of reduces 0 and 2 surround the one of REDUCE
+        byte[] data = new byte[LENGTHS[m] + 30];
+        r.nextBytes(data);
+        OutputStream out = new FileOutputStream(new File(dir, "file.out"));
+        out.write(data);
+        out.close();
+        SpillRecord index = new SpillRecord(3);
+        for (int reduce = 0; reduce < 3; ++reduce) {
+          index.putIndex(index(m, reduce), reduce);
+        }
+        index.writeToFile(new Path(dir.getPath(), "file.out.index"),
+            new JobConf());
+        files.put(mapId, data);
+      }
+    }
+
+    static IndexRecord index(int map, int reduce) {
+      switch (reduce) {
+      case 0:
+        return new IndexRecord(0, 10, 10);
+      case REDUCE:
+        return new IndexRecord(10, LENGTHS[map] + 1, LENGTHS[map]);
+      default:
+        return new IndexRecord(10 + LENGTHS[map], 20, 20);
+      }
+    }
+
+    /** @return the response expected for some maps */
+    byte[] expected(String... mapIds) throws IOException {
+      return expected(REDUCE, mapIds);
+    }
+
+    byte[] expected(int reduce, String... mapIds) throws IOException {
+      DataOutputBuffer out = new DataOutputBuffer();
+      for (String mapId : mapIds) {
+        IndexRecord index = index(TaskAttemptID.forName(mapId)
+            .getTaskID().getId(), reduce);
+        new ShuffleHeader(mapId, index.partLength, index.rawLength, reduce)
+            .write(out);
+        out.write(files.get(mapId), (int) index.startOffset,
+            (int) index.partLength);
+      }
+      return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    /** Send a request for some maps on a connection */
+    void request(Socket socket, boolean keepAlive, String... mapIds)
+        throws IOException {
+      request(socket, REDUCE, keepAlive, mapIds);
+    }
+
+    void request(Socket socket, int reduce, boolean keepAlive,
+        String... mapIds) throws IOException {
+      StringBuilder maps = new StringBuilder();
+      for (String mapId : mapIds) {
+        maps.append(maps.length() == 0 ? "" : ",").append(mapId);
+      }
+      String uri = "/mapOutput?job=" + JOB_ID + "&reduce=" + reduce +
+        "&map=" + maps + (keepAlive ? "&keepAlive=true" : "");
+      String hash = SecureShuffleUtils.hashFromString(
+          SecureShuffleUtils.buildMsgFrom(new URL("http", "", port, uri)),
+          secret);
+      socket.getOutputStream().write(("GET " + uri + " HTTP/1.1\r\n" +
+          "Host: localhost\r\n" + SecureShuffleUtils.HTTP_HEADER_URL_HASH +
+          ": " + hash + "\r\n\r\n").getBytes("UTF-8"));
+      socket.getOutputStream().flush();
+    }
+
+    void stop() {
+      shuffle.stop();
+    }
+  }
+
+  static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      assertTrue("Unexpected end of the response", c >= 0);
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  /**
+   * Read a response of the shuffle.
+   * @return the body, up to Content-Length or to the end of the connection
+   */
+  static byte[] readResponse(InputStream in) throws IOException {
+    assertEquals("HTTP/1.1 200 OK", readLine(in));
+    long length = -1;
+    for (String header = readLine(in); header.length() > 0;
+         header = readLine(in)) {
+      if (header.toLowerCase().startsWith("content-length:")) {
+        length = Long.parseLong(header.substring(15).trim());
+      }
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int c;
+    while (body.size() != length && (c = in.read()) >= 0) {
+      body.write(c);
+    }
+    return body.toByteArray();
+  }
+
+  static String mapId(int m) {
+    return "attempt_12345_0001_m_00000" + m + "_0";
+  }
+
+  @Test
+  public void testCloseConnection() throws Exception {
+    Server server = new Server(0, 0);
+    try {
+      Socket socket = new Socket("localhost", server.port);
+      socket.setSoTimeout(30000);
+      server.request(socket, false, mapId(0), mapId(2));
+      // the connection is closed after the response
+      assertArrayEquals(server.expected(mapId(0), mapId(2)),
+          readResponse(socket.getInputStream()));
+      socket.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static void checkKeepAlive(int batchMaxBytes) throws Exception {
+    Server server = new Server(0, batchMaxBytes);
+    try {
+      Socket socket = new Socket("localhost", server.port);
+      socket.setSoTimeout(30000);
+      InputStream in = socket.getInputStream();
+      String[] all = new String[LENGTHS.length];
+      for (int m = 0; m < LENGTHS.length; ++m) {
+        all[m] = mapId(m);
+      }
+      // several requests on one connection
+      server.request(socket, true, all);
+      assertArrayEquals(server.expected(all), readResponse(in));
+      server.request(socket, true, mapId(5));
+      assertArrayEquals(server.expected(mapId(5)), readResponse(in));
+      server.request(socket, true, mapId(3), mapId(1), mapId(6));
+      assertArrayEquals(server.expected(mapId(3), mapId(1), mapId(6)),
+          readResponse(in));
+      // the last response closes the connection
+      server.request(socket, false, mapId(7));
+      assertArrayEquals(server.expected(mapId(7)), readResponse(in));
+      assertEquals(-1, in.read());
+      socket.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    checkKeepAlive(0);
+  }
+
+  @Test
+  public void testBatchSmallMapOutputs() throws Exception {
+    checkKeepAlive(1024);
+    checkKeepAlive(1 << 20);
+  }
+
+  @Test
+  public void testKeepAliveTimeout() throws Exception {
+    Server server = new Server(1, 0);
+    try {
+      Socket socket = new Socket("localhost", server.port);
+      socket.setSoTimeout(30000);
+      server.request(socket, true, mapId(0));
+      assertArrayEquals(server.expected(mapId(0)),
+          readResponse(socket.getInputStream()));
+      // the idle connection is closed by the server
+      long start = System.currentTimeMillis();
+      assertEquals(-1, socket.getInputStream().read());
+      assertTrue(System.currentTimeMillis() - start < 20000);
+      socket.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Fetch the outputs of all the maps for 3 reduces, in the reverse order of
+   * the maps.
+   * @return the metrics of the server
+   */
+  private static MetricsRecordBuilder fetchAll(Configuration conf)
+      throws Exception {
+    Server server = new Server(conf);
+    try {
+      String[] all = new String[LENGTHS.length];
+      for (int m = 0; m < LENGTHS.length; ++m) {
+        all[m] = mapId(LENGTHS.length - 1 - m);
+      }
+      boolean consolidate =
+        conf.getBoolean(ShuffleHandler.SHUFFLE_CONSOLIDATION_ENABLED, false);
+      Socket socket = new Socket("localhost", server.port);
+      socket.setSoTimeout(30000);
+      InputStream in = socket.getInputStream();
+      for (int reduce = 0; reduce < 3; ++reduce) {
+        server.request(socket, reduce, true, all);
+        byte[] response = readResponse(in);
+        if (consolidate) {
+          // served in the order of the map output files
+          String[] sorted = all.clone();
+          Arrays.sort(sorted);
+          assertArrayEquals(server.expected(reduce, sorted), response);
+        } else {
+          assertArrayEquals(server.expected(reduce, all), response);
+        }
+      }
+      socket.close();
+      return getMetrics(server.ms.getSource("ShuffleMetrics"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testConsolidation() throws Exception {
+    final long maps = LENGTHS.length;
+    // each partition is read from its file, after one of another file
+    MetricsRecordBuilder rb = fetchAll(Server.conf(0, 0));
+    assertCounter("ShuffleDiskReads", 3 * maps, rb);
+    assertCounter("ShuffleDiskSeeks", 3 * maps, rb);
+    assertCounter("ShuffleReadAheadHits", 0L, rb);
+
+    // each file is read once, in a single chunk
+    Configuration conf = Server.conf(0, 0);
+    conf.setBoolean(ShuffleHandler.SHUFFLE_CONSOLIDATION_ENABLED, true);
+    conf.setInt(ShuffleHandler.SHUFFLE_READ_AHEAD_CHUNK_BYTES, 128 << 10);
+    rb = fetchAll(conf);
+    long bytes = 0;
+    for (int length : LENGTHS) {
+      bytes += length + 30;
+    }
+    assertCounter("ShuffleDiskReads", maps, rb);
+    assertCounter("ShuffleDiskSeeks", maps, rb);
+    assertCounter("ShuffleDiskReadBytes", bytes, rb);
+    // but for the empty partition
+    assertCounter("ShuffleReadAheadHits", 2 * maps - 1, rb);
+
+    // with partitions over several chunks or larger than a chunk, and a
+    // buffer holding only two chunks
+    conf.setInt(ShuffleHandler.SHUFFLE_READ_AHEAD_CHUNK_BYTES, 16 << 10);
+    conf.setLong(ShuffleHandler.SHUFFLE_READ_AHEAD_MAX_BYTES, 32 << 10);
+    fetchAll(conf);
+    conf.setInt(ShuffleHandler.SHUFFLE_BATCH_MAX_BYTES, 1 << 20);
+    fetchAll(conf);
+  }
 }